@@ -30,7 +30,6 @@ import static com.mastfrog.atomicstate.processor.AtomicStateAnnotationProcessor.
 import com.mastfrog.java.vogon.ClassBuilder;
 import com.mastfrog.java.vogon.ClassBuilder.BlockBuilder;
 import com.mastfrog.util.service.ServiceProvider;
-import com.mastfrog.util.strings.Strings;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -38,19 +37,33 @@ import static java.lang.Math.floor;
 import static java.lang.Math.log;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import static java.util.Collections.emptyList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.IntSupplier;
+import java.util.function.LongBinaryOperator;
 import java.util.function.LongSupplier;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 import javax.annotation.processing.AbstractProcessor;
@@ -72,9 +85,12 @@ import static javax.lang.model.element.Modifier.PRIVATE;
 import static javax.lang.model.element.Modifier.PUBLIC;
 import static javax.lang.model.element.Modifier.STATIC;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.tools.FileObject;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
 
 /**
  *
@@ -88,11 +104,29 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
     private static final long SER_VERSION = 0;
     private AnnotationUtils utils;
     private final Map<TypeElement, StateModel> models = new HashMap<>();
+    private final Map<TypeElement, StateModel> nestedModels = new HashMap<>();
+    private final Set<TypeElement> measuring = new HashSet<>();
 
     private static final String PKG = "com.mastfrog.atomicstate";
 
     static final String ATOMIC_STATE_ANNO = PKG + ".AtomicState";
     private static final String VALUE_RANGE_ANNO = PKG + ".ValueRange";
+    private static final String STAMP_ANNO = PKG + ".Stamp";
+    private static final String BITS_ANNO = PKG + ".Bits";
+    private static final String ACQUIRABLE_ANNO = PKG + ".Acquirable";
+    private static final String LISTENER_DISPATCHER_TYPE = PKG + ".ListenerDispatcher";
+    private static final String FLAT_COMBINER_TYPE = PKG + ".FlatCombiner";
+    private static final String BUFFERED_ANNO = PKG + ".Buffered";
+    private static final String QUANTIZED_ANNO = PKG + ".Quantized";
+    private static final String TIMESTAMP_ANNO = PKG + ".Timestamp";
+    private static final String COARSE_CLOCK_TYPE = PKG + ".CoarseClock";
+    private static final String INTERNED_ANNO = PKG + ".Interned";
+    private static final String INTERN_TABLE_TYPE = PKG + ".InternTable";
+    private static final String STRIPED_DELTA_TYPE = PKG + ".StripedDelta";
+    private static final String MCAS_CELL_TYPE = PKG + ".McasCell";
+    private static final String TRANSACTION_TYPE = PKG + ".Transaction";
+    private static final String PACKED_STATE_TYPE = PKG + ".PackedState";
+    private static final String ATOMIC_STATE_HOLDER_TYPE = PKG + ".AtomicStateHolder";
 
     @Override
     public synchronized void init(ProcessingEnvironment processingEnv) {
@@ -110,48 +144,59 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
 
         try {
             for (Map.Entry<TypeElement, StateModel> e : models.entrySet()) {
-                ClassBuilder<String> cb = e.getValue().generator().sortMembers();
-                Filer filer = utils.processingEnv().getFiler();
-                try {
-                    JavaFileObject src = filer.createSourceFile(cb.fqn(), e.getKey());
-                    try ( OutputStream out = src.openOutputStream()) {
-                        out.write(cb.build().getBytes(UTF_8));
-                    }
-                } catch (IOException ex) {
-                    utils.fail(ex + "", e.getKey());
-                    ex.printStackTrace();
-                }
-
-                cb = e.getValue().generateStateHolder().sortMembers();
-                try {
-                    JavaFileObject src = filer.createSourceFile(cb.fqn(), e.getKey());
-                    try ( OutputStream out = src.openOutputStream()) {
-                        out.write(cb.build().getBytes(UTF_8));
-                    }
-                } catch (IOException ex) {
-                    utils.fail(ex + "", e.getKey());
-                    ex.printStackTrace();
-                }
-                cb = e.getValue().generateListener();
-                if (cb != null) {
-                    cb.sortMembers();
-                    try {
-                        JavaFileObject src = filer.createSourceFile(cb.fqn(), e.getKey());
-                        try ( OutputStream out = src.openOutputStream()) {
-                            out.write(cb.build().getBytes(UTF_8));
-                        }
-                    } catch (IOException ex) {
-                        utils.fail(ex + "", e.getKey());
-                        ex.printStackTrace();
-                    }
+                if (e.getValue().isWide()) {
+                    write(e.getValue().generateWideState(), e.getKey());
+                    write(e.getValue().generateWideStateHolder(), e.getKey());
+                    write(e.getValue().generateListener(), e.getKey());
+                    continue;
                 }
+                write(e.getValue().generator(), e.getKey());
+                writeLayout(e.getValue(), e.getKey());
+                write(e.getValue().generateStateHolder(), e.getKey());
+                write(e.getValue().generateListener(), e.getKey());
+                write(e.getValue().generateStateArray(), e.getKey());
             }
         } finally {
             models.clear();
+            nestedModels.clear();
         }
         return true;
     }
 
+    private void write(ClassBuilder<String> cb, TypeElement origin) {
+        if (cb == null) {
+            return;
+        }
+        cb.sortMembers();
+        Filer filer = utils.processingEnv().getFiler();
+        try {
+            JavaFileObject src = filer.createSourceFile(cb.fqn(), origin);
+            try ( OutputStream out = src.openOutputStream()) {
+                out.write(cb.build().getBytes(UTF_8));
+            }
+        } catch (IOException ex) {
+            utils.fail(ex + "", origin);
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the layout descriptor of a state class next to it, so that it
+     * can be kept and used to generate a migration once the layout changes.
+     */
+    private void writeLayout(StateModel model, TypeElement origin) {
+        Filer filer = utils.processingEnv().getFiler();
+        try {
+            FileObject res = filer.createResource(StandardLocation.CLASS_OUTPUT, utils.packageName(origin),
+                    origin.getSimpleName() + ".layout", origin);
+            try ( OutputStream out = res.openOutputStream()) {
+                out.write(model.layoutDescriptor().getBytes(UTF_8));
+            }
+        } catch (IOException ex) {
+            utils.fail(ex + "", origin);
+        }
+    }
+
     StateModel model(AnnotationMirror mir, TypeElement el) {
         return models.computeIfAbsent(el, e -> new StateModel(e, mir));
     }
@@ -164,6 +209,42 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                 utils.fail("Annotation not applicable to a " + item.getKind() + ": " + item + " with " + anno);
                 return;
         }
+        addMethods(item, anno, () -> model(anno, (TypeElement) item));
+    }
+
+    /**
+     * Get the model of an AtomicState interface used as the return type of a
+     * method of another one, or null if the type is not one. The model is
+     * built independently of whether the interface is being compiled in this
+     * round, since only its layout is needed.
+     */
+    StateModel nestedModel(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        Element e = utils.processingEnv().getTypeUtils().asElement(type);
+        if (e == null || e.getKind() != ElementKind.INTERFACE) {
+            return null;
+        }
+        AnnotationMirror anno = utils.findMirror(e, ATOMIC_STATE_ANNO);
+        if (anno == null) {
+            return null;
+        }
+        TypeElement te = (TypeElement) e;
+        StateModel result = models.get(te);
+        if (result == null) {
+            result = nestedModels.get(te);
+            if (result == null) {
+                StateModel mdl = new StateModel(te, anno);
+                nestedModels.put(te, mdl);
+                addMethods(te, anno, () -> mdl);
+                result = mdl;
+            }
+        }
+        return result;
+    }
+
+    private void addMethods(Element item, AnnotationMirror anno, Supplier<StateModel> modelSupplier) {
         StateModel model = null;
         for (Element child : item.getEnclosedElements()) {
             Set<Modifier> mods = child.getModifiers();
@@ -182,7 +263,7 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                 }
 
                 if (model == null) {
-                    model = model(anno, (TypeElement) item);
+                    model = modelSupplier.get();
                 }
 
                 model.addItem(ee.getSimpleName().toString(), ee);
@@ -205,13 +286,40 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
             case INT:
             case CHAR:
                 return true;
+            case LONG:
+                if (el.getModifiers().contains(Modifier.DEFAULT)) {
+                    return false;
+                }
+                if (utils.findMirror(el, TIMESTAMP_ANNO) == null) {
+                    utils.fail("A long must be a @Timestamp to be part of an AtomicState", el);
+                    return false;
+                }
+                return true;
+            case DOUBLE:
+                if (el.getModifiers().contains(Modifier.DEFAULT)) {
+                    return false;
+                }
+                if (utils.findMirror(el, QUANTIZED_ANNO) == null) {
+                    utils.fail("A double must be @Quantized to be part of an AtomicState", el);
+                    return false;
+                }
+                return true;
             default:
                 if (el.getModifiers().contains(Modifier.DEFAULT)) {
                     return false;
                 }
+                if (mir.getKind() == TypeKind.DECLARED && utils.findMirror(el, INTERNED_ANNO) != null) {
+                    return true;
+                }
                 if (utils.isAssignable(mir, enumType())) {
                     return true;
                 }
+                if (nestedModel(mir) != null) {
+                    return true;
+                }
+                if (flagSetType(mir) != null) {
+                    return true;
+                }
                 utils.fail("Type " + mir + " is too large or inapproriate to be part of an AtomicState");
                 return false;
         }
@@ -226,6 +334,10 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
         final AnnotationMirror mir;
         final boolean isEnum;
         final Optional<ValueRangeProxy> range;
+        final StateModel nested;
+        final TypeMirror flagType;
+        final Optional<QuantizedProxy> quantized;
+        final boolean isInterned;
 
         public BitsElement(int startingBit, int bitsRequired, String name, ExecutableElement origin, AnnotationMirror mir, boolean isEnum) {
             this.startingBit = startingBit;
@@ -235,6 +347,102 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
             this.mir = mir;
             this.isEnum = isEnum;
             range = valueRange(origin);
+            nested = nestedModel(origin.getReturnType());
+            flagType = flagSetType(origin.getReturnType());
+            quantized = quantization(origin);
+            isInterned = utils.findMirror(origin, INTERNED_ANNO) != null;
+        }
+
+        String registryFieldName() {
+            return name.toUpperCase() + "_REGISTRY";
+        }
+
+        /**
+         * The simple name of the type of an interned field, importing it if
+         * need be.
+         */
+        String internedTypeName(ClassBuilder<?> cb) {
+            String result = origin.getReturnType().toString();
+            int ix = result.lastIndexOf('.');
+            if (ix > 0) {
+                String pkg = result.substring(0, ix);
+                if (!pkg.equals("java.lang") && !pkg.equals(cb.packageName())) {
+                    cb.importing(result);
+                }
+                result = result.substring(ix + 1);
+            }
+            return result;
+        }
+
+        /**
+         * The simple name of the enum type of a flag set, importing it and
+         * the set types if need be.
+         */
+        String flagTypeName(ClassBuilder<?> cb) {
+            cb.importing("java.util.EnumSet", "java.util.Set");
+            String result = flagType.toString();
+            int ix = result.lastIndexOf('.');
+            if (ix > 0) {
+                String pkg = result.substring(0, ix);
+                if (!pkg.equals(cb.packageName())) {
+                    cb.importing(result);
+                }
+                result = result.substring(ix + 1);
+            }
+            return result;
+        }
+
+        /**
+         * The simple name of the generated state class of a nested
+         * AtomicState, importing it if need be.
+         */
+        String nestedStateName(ClassBuilder<?> cb) {
+            String pkg = utils.packageName(nested.el);
+            String simple = nested.el.getSimpleName() + "State";
+            if (!pkg.equals(cb.packageName())) {
+                cb.importing(pkg + "." + simple);
+            }
+            return simple;
+        }
+
+        /**
+         * An expression decoding a nested state from its bits in the raw
+         * value; generated holders' values are trusted, but the state
+         * factory method is only package-private.
+         */
+        String nestedDecoder(ClassBuilder<?> cb, String rawBits, boolean outerIsLong) {
+            String ns = nestedStateName(cb);
+            boolean nestedIsLong = nested.totalBitsNeeded() > 32;
+            String arg = outerIsLong && !nestedIsLong ? "(int) " + rawBits : rawBits;
+            return utils.packageName(nested.el).equals(cb.packageName())
+                    ? ns + ".trusted(" + arg + ")"
+                    : "new " + ns + "(" + arg + ")";
+        }
+
+        /**
+         * An expression for the raw value of the nested state passed as
+         * <code>newValue</code>.
+         */
+        String nestedEncoder(ClassBuilder<?> cb) {
+            boolean nestedIsLong = nested.totalBitsNeeded() > 32;
+            return nestedStateName(cb) + ".from(newValue)." + (nestedIsLong ? "getAsLong()" : "getAsInt()");
+        }
+
+        String validation() {
+            return utils.enumConstantValue(mir, "validation", "FULL");
+        }
+
+        private String validationConsequence() {
+            switch (validation()) {
+                case "NONE":
+                    return " - this is not checked, and other values will be "
+                            + (range.isPresent() ? "clamped to the range." : "truncated.");
+                case "ASSERT":
+                    return " - this is only checked when assertions are enabled; otherwise other values will be "
+                            + (range.isPresent() ? "clamped to the range." : "truncated.");
+                default:
+                    return " or an IllegalArgumentException will be thrown.";
+            }
         }
 
         String boxedType() {
@@ -242,13 +450,39 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
         }
 
         void generateWriteMethod(boolean isLong, ClassBuilder<String> cb) {
+            generateWriteMethod(isLong, cb, false);
+        }
+
+        /**
+         * Generate the with* method, or, for a mutable cursor class nested in
+         * the state class, a set* method which updates the cursor's value in
+         * place and returns the cursor.
+         */
+        void generateWriteMethod(boolean isLong, ClassBuilder<?> cb, boolean forCursor) {
             String valType = isLong ? "long" : "int";
             String maskFieldName = name.toUpperCase() + "_MASK";
             String inputName;
             boolean needCastAndBoundsCheck;
-            range.ifPresent(rng -> {
-                rng.generateFields(name, isLong, cb);
-            });
+            if (!forCursor) {
+                range.ifPresent(rng -> {
+                    rng.generateFields(name, isLong, cb);
+                });
+                quantized.ifPresent(q -> q.generateFields(name, cb));
+            }
+            BiConsumer<String, BlockBuilder<?>> returnValue = (expr, bb) -> {
+                if (forCursor) {
+                    bb.statement("value = " + expr);
+                    bb.returningThis();
+                } else {
+                    // The argument has already been checked (or deliberately
+                    // not) and masked, so the result needs no further validation
+                    bb.returningNew(nb -> {
+                        nb.withArgument(expr)
+                                .withArgument(true)
+                                .ofType(cb.className());
+                    });
+                }
+            };
             switch (origin.getReturnType().getKind()) {
                 case BYTE:
                 case SHORT:
@@ -263,54 +497,123 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
             }
             String boxedType = boxedType();
 
-            String dox = "Creates a new instance of " + cb.className()
+            String internedDox = !isInterned ? ""
+                    : "\n@throws IllegalStateException if the value is not registered in " + registryFieldName()
+                    + " and all " + ((1 << bitsRequired) - 1) + " of its ids are in use";
+            String dox = forCursor
+                    ? "Sets " + name + " to the passed value."
+                    + (needCastAndBoundsCheck ? " The passed value must be within the bounds of "
+                            + boxedType + ".MIN_VALUE and " + boxedType + ".MAX_VALUE." : "")
+                    + "\n@param newValue the new value of " + name
+                    + "\n@return this cursor"
+                    + "\n@throws IllegalArgumentException if the value is out of range"
+                    + internedDox
+                    : "Creates a new instance of " + cb.className()
                     + " with " + name + " set to the passed value."
                     + (needCastAndBoundsCheck ? " Note that while this methd takes <code>int</code>, "
                             + "the passed value must be within the bounds of " + boxedType + ".MIN_VALUE and "
-                            + boxedType + ".MAX_VALUE or an IllegalArgumentException will be thrown." : "")
+                            + boxedType + ".MAX_VALUE" + validationConsequence() : "")
                     + "\n@param newValue the new value of " + name
                     + "\n@return a new instance of " + cb.className() + " or <code>this</code> if "
-                    + "the value is the same as this instance's value of " + name + ".";
+                    + "the value is the same as this instance's value of " + name + "."
+                    + internedDox;
 
-            cb.method("with" + capitalize(name), mth -> {
+            cb.method((forCursor ? "set" : "with") + capitalize(name), mth -> {
                 mth.withModifier(PUBLIC)
-                        .addArgument(simpleName(inputName), "newValue")
+                        .addArgument(flagType != null ? "Set<" + flagTypeName(cb) + ">"
+                                : isInterned ? internedTypeName(cb) : simpleName(inputName), "newValue")
                         .docComment(dox)
                         .returning(cb.className())
                         .body(bb -> {
+                            if (flagType != null) {
+                                // Every combination of bits is a valid set, so
+                                // there is nothing to validate
+                                bb.declare("bits").initializedWith(isLong ? "0L" : "0").as(valType);
+                                bb.simpleLoop(flagTypeName(cb), "flag", loop -> {
+                                    loop.over("newValue", lb -> lb.statement("bits |= "
+                                            + (isLong ? "1L" : "1") + " << flag.ordinal()"));
+                                });
+                                bb.declare("nue")
+                                        .initializedWith("(this.value & ~" + maskFieldName + ") | ((bits << "
+                                                + startingBitFieldName() + ") & " + maskFieldName + ")")
+                                        .as(valType);
+                                bb.iff().booleanExpression("nue == this.value").returningThis().endIf();
+                                returnValue.accept("nue", bb);
+                                return;
+                            }
+                            if (isInterned) {
+                                bb.lineComment("Registers the object if it does not have an id yet");
+                                bb.declare("id").initializedByInvoking("intern")
+                                        .withArgument("newValue").on(registryFieldName()).as("int");
+                                bb.declare("nue")
+                                        .initializedWith("(this.value & ~" + maskFieldName + ") | (("
+                                                + (isLong ? "(long) " : "") + "id << "
+                                                + startingBitFieldName() + ") & " + maskFieldName + ")")
+                                        .as(valType);
+                                bb.iff().booleanExpression("nue == this.value").returningThis().endIf();
+                                returnValue.accept("nue", bb);
+                                return;
+                            }
+                            if (quantized.isPresent() || origin.getReturnType().getKind() == TypeKind.FLOAT) {
+                                String stored;
+                                if (quantized.isPresent()) {
+                                    quantized.get().generateValidationTest(name, "newValue", validation(), bb);
+                                    stored = quantized.get().toStorableValue(name, "newValue", isLong);
+                                } else {
+                                    // Store the float's bits, not its value converted to an integer
+                                    stored = isLong ? "Float.floatToRawIntBits(newValue) & 0xFFFFFFFFL"
+                                            : "Float.floatToRawIntBits(newValue)";
+                                }
+                                bb.declare("stored").initializedWith(stored).as(valType);
+                                // Compare bits rather than values, so that writing -0.0 over 0.0,
+                                // or NaN over NaN, behaves as expected
+                                bb.declare("nue")
+                                        .initializedWith("(this.value & ~" + maskFieldName + ") | ((stored << "
+                                                + startingBitFieldName() + ") & " + maskFieldName + ")")
+                                        .as(valType);
+                                bb.iff().booleanExpression("nue == this.value").returningThis().endIf();
+                                returnValue.accept("nue", bb);
+                                return;
+                            }
+                            if (nested != null) {
+                                // Sub-states are validated by their own with* methods
+                                bb.declare("masked")
+                                        .initializedWith("this.value & ~" + maskFieldName)
+                                        .as(valType);
+                                returnValue.accept("masked | ((" + (isLong ? "(long) " : "")
+                                        + nestedEncoder(cb) + " << " + startingBitFieldName()
+                                        + ") & " + maskFieldName + ")", bb);
+                                return;
+                            }
                             String valueName;
+                            String validation = validation();
                             if (needCastAndBoundsCheck) {
                                 valueName = "realValue";
                                 if (range.isPresent()) {
-                                    range.get().generateValidationTest(name, "newValue", bb);
-                                } else {
+                                    range.get().generateValidationTest(name, "newValue", simpleName(inputName), validation, bb);
+                                } else if ("ASSERT".equals(validation)) {
+                                    bb.statement("assert newValue >= " + boxedType + ".MIN_VALUE"
+                                            + " && newValue <= " + boxedType + ".MAX_VALUE : "
+                                            + "\"Value \" + newValue + \" is outside the bounds of "
+                                            + boxedType + "\"");
+                                } else if ("FULL".equals(validation)) {
                                     bb.iff().booleanExpression("newValue < " + boxedType + ".MIN_VALUE"
                                             + " || newValue > " + boxedType + ".MAX_VALUE")
-                                            .andThrow(nb -> {
-                                                nb.withStringConcatentationArgument("Value")
-                                                        .appendExpression("newValue")
-                                                        .append(" is outside the bounds of ")
-                                                        .append(boxedType)
-                                                        .endConcatenation()
-                                                        .ofType("IllegalArgumentException");
-                                            }).endIf();
+                                            .statement("throw outOfRange(\"" + name + "\", newValue, "
+                                                    + boxedType + ".MIN_VALUE, " + boxedType + ".MAX_VALUE)")
+                                            .endIf();
                                 }
                                 bb.declare("realValue")
                                         .initializedWith("(" + origin.getReturnType() + ") newValue")
                                         .as(origin.getReturnType() + "");
                             } else {
                                 if (range.isPresent()) {
-                                    range.get().generateValidationTest(name, "newValue", bb);
+                                    range.get().generateValidationTest(name, "newValue", simpleName(inputName), validation, bb);
                                 }
                                 valueName = "newValue";
                             }
-                            if (origin.getReturnType().getKind() == TypeKind.BOOLEAN) {
-                                bb.iff().booleanExpression(name + "()")
-                                        .returningThis().endIf();
-                            } else {
-                                bb.iff().booleanExpression(name + "() == " + valueName)
-                                        .returningThis().endIf();
-                            }
+                            bb.iff().booleanExpression(name + "() == " + valueName)
+                                    .returningThis().endIf();
                             bb.declare("masked")
                                     .initializedWith("this.value & ~" + maskFieldName)
                                     .as(valType);
@@ -322,10 +625,7 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                                         + (isLong ? "(long)" : "")
                                         + "newValue.ordinal() << " + startingBitFieldName() + ")");
                                 nue.as(valType);
-                                bb.returningNew(nb -> {
-                                    nb.withArgument("nue")
-                                            .ofType(cb.className());
-                                });
+                                returnValue.accept("nue", bb);
                             } else if (origin.getReturnType().getKind() == TypeKind.BOOLEAN) {
                                 ClassBuilder.BlockBuilder<?> nue = bb.declare("nue")
                                         .initializedWith("masked").as(valType);
@@ -345,10 +645,7 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                                                 .endIf();
                                     }
                                 }
-                                bb.returningNew(nb -> {
-                                    nb.withArgument("nue")
-                                            .ofType(cb.className());
-                                });
+                                returnValue.accept("nue", bb);
                             } else {
                                 bb.declare("nue")
                                         .initializedWith("masked").as(valType);
@@ -362,15 +659,23 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                                 } else {
                                     finalValueName = valueName;
                                 }
-                                bb.returningNew(nb -> {
-                                    nb.withArgument("nue | "
-                                            + (startingBit == 0 ? finalValueName : "(" + finalValueName + " << " + startingBitFieldName() + ")")
-                                    )
-                                            .ofType(cb.className());
-                                });
+                                // Mask, so that neither a negative value's sign extension
+                                // nor an unvalidated out-of-range value can touch other fields
+                                String widened = isLong && !range.isPresent()
+                                        ? "(long) " + finalValueName : finalValueName;
+                                returnValue.accept("nue | "
+                                        + (startingBit == 0 ? "(" + finalValueName + " & " + maskFieldName + ")"
+                                                : "((" + widened + " << " + startingBitFieldName() + ") & "
+                                                + maskFieldName + ")"), bb);
                             }
                         });
             });
+            if (flagType != null) {
+                generateFlagMethods(isLong, cb, forCursor);
+            }
+            if (isTimestamp()) {
+                generateTimestampMethods(isLong, cb, forCursor);
+            }
         }
 
         @Override
@@ -381,15 +686,167 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                     + ", isEnum=" + isEnum + '}';
         }
 
+        String valuesFieldName() {
+            return name.toUpperCase() + "_VALUES";
+        }
+
+        /**
+         * This field as a line of the layout descriptor. Fields whose
+         * encoding is <code>opaque</code> can only be migrated by copying
+         * their bits unchanged.
+         */
+        LayoutField layoutField() {
+            TypeKind kind = origin.getReturnType().getKind();
+            String encoding;
+            if (isInterned || quantized.isPresent() || isTimestamp() || kind == TypeKind.FLOAT) {
+                AnnotationMirror anno = utils.findMirror(origin, INTERNED_ANNO);
+                if (anno == null) {
+                    anno = utils.findMirror(origin, QUANTIZED_ANNO);
+                }
+                if (anno == null) {
+                    anno = utils.findMirror(origin, TIMESTAMP_ANNO);
+                }
+                encoding = "opaque " + (origin.getReturnType() + (anno == null ? "" : ":" + anno))
+                        .replaceAll("\\s", "");
+            } else if (nested != null) {
+                encoding = "opaque nested:" + Long.toHexString(nested.layoutHash());
+            } else if (flagType != null) {
+                encoding = "flags " + String.join(",", getEnumMembers(flagType));
+            } else if (isEnum) {
+                encoding = "enum " + String.join(",", getEnumMembers(origin));
+            } else if (kind == TypeKind.BOOLEAN) {
+                encoding = "boolean";
+            } else if (range.isPresent()) {
+                encoding = "offset " + range.get().min + " " + range.get().max;
+            } else if (kind == TypeKind.CHAR) {
+                encoding = "offset 0 " + maxValueOf(kind);
+            } else {
+                encoding = "signed " + minValueOf(kind) + " " + maxValueOf(kind);
+            }
+            return LayoutField.parse(name + " " + startingBit + " " + bitsRequired + " " + encoding);
+        }
+
         String startingBitFieldName() {
             return name.toUpperCase() + "_STARTING_BIT";
         }
 
+        boolean isStamp() {
+            return utils.findMirror(origin, STAMP_ANNO) != null;
+        }
+
+        boolean isTimestamp() {
+            return utils.findMirror(origin, TIMESTAMP_ANNO) != null;
+        }
+
+        /**
+         * An expression for the current time on the coarse clock in the
+         * timestamp's resolution, not yet truncated to its bits.
+         */
+        private String timestampNow(ClassBuilder<?> cb) {
+            cb.importing(COARSE_CLOCK_TYPE);
+            String unit = utils.enumConstantValue(utils.findMirror(origin, TIMESTAMP_ANNO),
+                    "resolution", "MILLISECONDS");
+            long divisor = TimeUnit.valueOf(unit).toMillis(1);
+            return divisor == 1 ? "CoarseClock.currentMillis()"
+                    : "(CoarseClock.currentMillis() / " + divisor + "L)";
+        }
+
+        /**
+         * Generate <code>withXNow()</code> (or, on a cursor,
+         * <code>setXNow()</code>) and <code>elapsedSinceX()</code> for a
+         * timestamp.
+         */
+        void generateTimestampMethods(boolean isLong, ClassBuilder<?> cb, boolean forCursor) {
+            String unit = utils.enumConstantValue(utils.findMirror(origin, TIMESTAMP_ANNO),
+                    "resolution", "MILLISECONDS").toLowerCase();
+            String cap = capitalize(name);
+            String now = timestampNow(cb);
+            cb.method((forCursor ? "set" : "with") + cap + "Now", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment(forCursor
+                                ? "Sets " + name + " to the current time on the coarse clock."
+                                + "\n@return this cursor"
+                                : "Creates a new instance of " + cb.className() + " with " + name
+                                + " set to the current time on the coarse clock."
+                                + "\n@return a new instance of " + cb.className() + " or <code>this</code> if "
+                                + "the time has not changed")
+                        .returning(cb.className())
+                        .body(bb -> {
+                            bb.declare("nue")
+                                    .initializedWith("(value & ~" + maskFieldName() + ") | ("
+                                            + (isLong ? "" : "(int) ") + "(" + now + " << "
+                                            + startingBitFieldName() + ") & " + maskFieldName() + ")")
+                                    .as(isLong ? "long" : "int");
+                            if (forCursor) {
+                                bb.statement("value = nue");
+                                bb.returningThis();
+                            } else {
+                                bb.iff().booleanExpression("nue == value").returningThis().endIf();
+                                bb.returning("new " + cb.className() + "(nue, true)");
+                            }
+                        });
+            });
+            cb.method("elapsedSince" + cap, mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Get the time elapsed since " + name + " on the coarse clock, in "
+                                + unit + ". Since " + name + " wraps around after " + bitsRequired
+                                + " bits, this is only correct if the true elapsed time is less than "
+                                + "2<sup>" + bitsRequired + "</sup> " + unit + "."
+                                + "\n@return The elapsed time in " + unit)
+                        .returning("long")
+                        .body(bb -> bb.returning("(" + now + " - ((value & " + maskFieldName() + ") >>> "
+                                + startingBitFieldName() + ")) & " + asBinaryString((1L << bitsRequired) - 1)));
+            });
+        }
+
+        void generateStampMethods(boolean isLong, ClassBuilder<String> cb) {
+            String valType = isLong ? "long" : "int";
+            String one = isLong ? "1L" : "1";
+            cb.method("nextStampBits", mth -> {
+                mth.docComment("Compute the bits of the stamp " + name + " incremented by one, "
+                        + "wrapping around within its range, in position in the raw value."
+                        + "\n@param oldValue The raw value whose stamp should be incremented"
+                        + "\n@return The masked bits of the new stamp");
+                mth.withModifier(PRIVATE, STATIC)
+                        .addArgument(valType, "oldValue")
+                        .returning(valType)
+                        .body(bb -> {
+                            bb.declare("oldStamp")
+                                    .initializedWith("oldValue & " + maskFieldName())
+                                    .as(valType);
+                            if (range.isPresent()) {
+                                long limit = range.get().max - range.get().min;
+                                String lim = isLong ? Long.toString(limit) + "L" : Long.toString(limit);
+                                bb.iff().booleanExpression("oldStamp == (" + lim + " << " + startingBitFieldName() + ")")
+                                        .returning("0").endIf();
+                            }
+                            bb.returning("(oldStamp + (" + one + " << " + startingBitFieldName()
+                                    + ")) & " + maskFieldName());
+                        });
+            });
+            cb.method("stampOf", mth -> {
+                mth.docComment("Get the stamp of a raw value, as used by holders' "
+                        + "optimistic reads.\n@param value A raw value\n@return The stamp");
+                mth.withModifier(STATIC)
+                        .addArgument(valType, "value")
+                        .returning("long")
+                        .body(bb -> {
+                            bb.returning("(value & " + maskFieldName() + ") >>> " + startingBitFieldName());
+                        });
+            });
+        }
+
         String maskFieldName() {
             return name.toUpperCase() + "_MASK";
         }
 
         void contributeValidationClause(boolean isLong, BlockBuilder<?> bb) {
+            if (nested != null) {
+                bb.lineComment("The nested state's constructor validates its bits");
+                String ns = nested.el.getSimpleName() + "State";
+                bb.statement(ns + ".new" + ns + "(" + (isLong && nested.totalBitsNeeded() <= 32 ? "(int) " : "")
+                        + "((value & " + maskFieldName() + ") >>> " + startingBitFieldName() + "))");
+            }
             if (isEnum) {
                 int count = getEnumMembers(origin.getReturnType()).size();
                 String varName = name + "Ordinal";
@@ -425,8 +882,24 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
         }
 
         void generateReadMethod(boolean isLong, ClassBuilder<String> cb) {
+            generateReadMethod(isLong, cb, false);
+        }
+
+        /**
+         * Generate the getter, or, for a mutable cursor class nested in the
+         * state class (which shares the state class's constants), a plain
+         * public getter with no constants.
+         */
+        void generateReadMethod(boolean isLong, ClassBuilder<?> cb, boolean forCursor) {
             String valType = isLong ? "long" : "int";
             String maskFieldName = maskFieldName();
+            Consumer<Consumer<? super ClassBuilder.MethodBuilder<?>>> getter = forCursor
+                    ? c -> cb.method(name, mb -> c.accept(mb.withModifier(PUBLIC)))
+                    : c -> cb.overridePublic(name, c);
+            if (forCursor) {
+                generateGetterBody(isLong, cb, getter, valType, maskFieldName);
+                return;
+            }
             cb.field(maskFieldName, fld -> {
                 long mask = 0;
                 for (int i = 0; i < bitsRequired; i++) {
@@ -451,8 +924,74 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
             cb.field(startingBitFieldName())
                     .withModifier(FINAL, PRIVATE, STATIC)
                     .initializedWith(startingBit);
+            if (isInterned) {
+                String typeName = internedTypeName(cb);
+                cb.importing(INTERN_TABLE_TYPE);
+                cb.field(registryFieldName(), fld -> {
+                    fld.docComment("Maps the ids stored for " + name + " to objects. Objects are registered "
+                            + "when passed to <code>with" + capitalize(name) + "()</code>, and should only "
+                            + "be released from it once no live state refers to them. It holds at most "
+                            + ((1 << bitsRequired) - 1) + " objects; once it is full, passing an object "
+                            + "which is not already registered throws an IllegalStateException.")
+                            .withModifier(PUBLIC, STATIC, FINAL)
+                            .initializedTo("new InternTable<>(" + bitsRequired + ")")
+                            .ofType("InternTable<" + typeName + ">");
+                });
+            }
+            if (flagType != null) {
+                String typeName = flagTypeName(cb);
+                cb.importing("java.util.ArrayList", "java.util.Collection", "java.util.List");
+                cb.field(valuesFieldName())
+                        .withModifier(FINAL, PRIVATE, STATIC)
+                        .initializedTo(typeName + ".values()")
+                        .ofType(typeName + "[]");
+            }
+            if (isEnum) {
+                String typeName = simpleName(origin.getReturnType().toString());
+                cb.field(valuesFieldName())
+                        .withModifier(FINAL, PRIVATE, STATIC)
+                        .initializedTo(typeName + ".values()")
+                        .ofType(typeName + "[]");
+            }
+            generateGetterBody(isLong, cb, getter, valType, maskFieldName);
+        }
+
+        /**
+         * Whether this field occupies exactly the width of its integral
+         * type, so it can be decoded with a shift and a narrowing cast.
+         */
+        private boolean isFullWidth() {
+            if (range.isPresent() || isEnum) {
+                return false;
+            }
+            switch (origin.getReturnType().getKind()) {
+                case BYTE:
+                    return bitsRequired == 8;
+                case SHORT:
+                case CHAR:
+                    return bitsRequired == 16;
+                case INT:
+                    return bitsRequired == 32;
+                default:
+                    return false;
+            }
+        }
 
-            cb.overridePublic(name, mth -> {
+        private void generateGetterBody(boolean isLong, ClassBuilder<?> cb,
+                Consumer<Consumer<? super ClassBuilder.MethodBuilder<?>>> getter,
+                String valType, String maskFieldName) {
+            getter.accept(mth -> {
+                if (flagType != null) {
+                    generateFlagGetterBody(isLong, cb, mth, maskFieldName);
+                    return;
+                }
+                if (isInterned) {
+                    mth.returning(internedTypeName(cb))
+                            .body(bb -> bb.returning(registryFieldName() + ".get("
+                                    + (isLong ? "(int) " : "") + "((value & " + maskFieldName + ") >>> "
+                                    + startingBitFieldName() + "))"));
+                    return;
+                }
                 String ret = origin.getReturnType().toString();
                 if (ret.indexOf('.') > 0) {
                     int ix = ret.lastIndexOf('.');
@@ -461,9 +1000,24 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                         cb.importing(ret);
                     }
                 }
+                if (nested != null) {
+                    // Covariant, so callers get the packed state class
+                    mth.returning(nestedStateName(cb))
+                            .body(bb -> bb.returning(nestedDecoder(cb, "((value & " + maskFieldName
+                                    + ") >>> " + startingBitFieldName() + ")", isLong)));
+                    return;
+                }
                 mth.returning(simpleName(ret))
                         .body(bb -> {
                             String nm = name + "Value";
+                            if (isFullWidth()) {
+                                // The narrowing cast discards the bits above the
+                                // field, so no mask is needed
+                                bb.returning("(" + ret + ") "
+                                        + (startingBit == 0 ? "value"
+                                                : "(value >>> " + startingBitFieldName() + ")"));
+                                return;
+                            }
                             if (startingBit == 0) {
                                 bb.declare(nm)
                                         .initializedWith("(value & "
@@ -494,32 +1048,16 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                             }
 
                             if (isEnum) {
-                                List<String> consts = getEnumMembers(origin);
-                                String typeName = simpleName(origin.getReturnType().toString());
-                                bb.switchingOn(nm, sw -> {
-                                    for (int i = 0; i < consts.size(); i++) {
-                                        int ix = i;
-                                        sw.inCase(i, cs -> {
-                                            cs.returningField(consts.get(ix)).of(typeName);
-                                        });
-                                    }
-                                    sw.inDefaultCase(cs -> {
-                                        cs.andThrow(nb -> {
-                                            nb.withStringConcatentationArgument("Not a valid enum index ")
-                                                    .appendExpression("value")
-                                                    .append(" on ")
-                                                    .append(typeName)
-                                                    .append(" which has ")
-                                                    .append(consts.size())
-                                                    .append(" enum constants: ")
-                                                    .append(Strings.join(", ", consts))
-                                                    .endConcatenation()
-                                                    .ofType("IllegalArgumentException");
-                                        });
-                                    });
-                                });
+                                // An array lookup rather than a switch with a throwing
+                                // default keeps this small enough to always be inlined;
+                                // the value was validated on construction
+                                bb.returning(valuesFieldName() + "[" + nm + "]");
                             } else if (origin.getReturnType().getKind() == TypeKind.BOOLEAN) {
                                 bb.returning(nm + " != 0");
+                            } else if (quantized.isPresent()) {
+                                bb.returning(quantized.get().toReturnableValue(name, nm));
+                            } else if (origin.getReturnType().getKind() == TypeKind.FLOAT) {
+                                bb.returning("Float.intBitsToFloat(" + (isLong ? "(int) " : "") + nm + ")");
                             } else {
                                 if (range.isPresent()) {
                                     ValueRangeProxy px = range.get();
@@ -532,8 +1070,86 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
             });
         }
 
+        /**
+         * A flag set getter returns a new EnumSet, populated by visiting
+         * only the bits which are set.
+         */
+        private void generateFlagGetterBody(boolean isLong, ClassBuilder<?> cb,
+                ClassBuilder.MethodBuilder<?> mth, String maskFieldName) {
+            String et = flagTypeName(cb);
+            String setType = simpleName(utils.erasureOf(origin.getReturnType()).toString());
+            mth.returning(setType + "<" + et + ">")
+                    .body(bb -> bb.returning("decodeFlags((value & " + maskFieldName + ") >>> "
+                    + startingBitFieldName() + ", " + valuesFieldName() + ", " + et + ".class)"));
+        }
+
+        /**
+         * Generate the single-bit add, remove and test methods for one flag
+         * of a flag set - <code>with*Added</code> and
+         * <code>with*Removed</code> on the state, or <code>addTo*</code> and
+         * <code>removeFrom*</code> on a cursor, and <code>*Contains</code> on
+         * both.
+         */
+        void generateFlagMethods(boolean isLong, ClassBuilder<?> cb, boolean forCursor) {
+            String et = flagTypeName(cb);
+            String cap = capitalize(name);
+            String bit = "(" + (isLong ? "1L" : "1") + " << (" + startingBitFieldName() + " + flag.ordinal()))";
+            String[][] ops = forCursor
+                    ? new String[][]{{"addTo" + cap, "Adds", "value | bit", "!= 0"},
+                    {"removeFrom" + cap, "Removes", "value & ~bit", "== 0"}}
+                    : new String[][]{{"with" + cap + "Added", "Adds", "value | bit", "!= 0"},
+                    {"with" + cap + "Removed", "Removes", "value & ~bit", "== 0"}};
+            for (String[] op : ops) {
+                cb.method(op[0], mth -> {
+                    mth.withModifier(PUBLIC)
+                            .addArgument(et, "flag")
+                            .docComment(op[1] + " one constant " + (op[1].equals("Adds") ? "to " : "from ") + name
+                                    + (forCursor ? ", updating this cursor in place." : ", returning a new state, or "
+                                            + "<code>this</code> if nothing would change.")
+                                    + "\n@param flag A constant\n@return " + (forCursor ? "this cursor" : "a state"))
+                            .returning(cb.className())
+                            .body(bb -> {
+                                bb.declare("bit").initializedWith(bit).as(isLong ? "long" : "int");
+                                if (forCursor) {
+                                    bb.statement("value = " + op[2]);
+                                    bb.returningThis();
+                                } else {
+                                    bb.iff().booleanExpression("(value & bit) " + op[3])
+                                            .returningThis().endIf();
+                                    bb.returning("new " + cb.className() + "(" + op[2] + ", true)");
+                                }
+                            });
+                });
+            }
+            cb.method(name + "Contains", mth -> {
+                mth.withModifier(PUBLIC)
+                        .addArgument(et, "flag")
+                        .docComment("Determine if " + name + " contains one constant, without "
+                                + "creating a set.\n@param flag A constant\n@return true if it is present")
+                        .returning("boolean")
+                        .body(bb -> bb.returning("(value & " + bit + ") != 0"));
+            });
+        }
+
         private void contributeToMapClause(String varName, BlockBuilder<?> bb) {
-            if (isEnum) {
+            if (flagType != null) {
+                String et = flagType.toString();
+                String names = name + "Names";
+                bb.declare(names).initializedWith("new ArrayList<>()").as("List<String>");
+                bb.simpleLoop(simpleName(et), name + "Flag", loop -> {
+                    loop.over(name + "()", lb -> lb.statement(names + ".add(" + name + "Flag.name())"));
+                });
+                bb.invoke("put")
+                        .withStringLiteral(name)
+                        .withArgument(names)
+                        .on(varName);
+            } else if (nested != null) {
+                bb.invoke("put")
+                        .withStringLiteral(name)
+                        .withArgumentFromInvoking("toMap")
+                        .onInvocationOf(name)
+                        .onThis().on(varName);
+            } else if (isEnum) {
                 bb.lineComment("Use the string name of enum constants to avoid issues with")
                         .lineComment("things like Jackson which can be configured to serialize ")
                         .lineComment("enums as their ordinals.");
@@ -551,6 +1167,188 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
             }
         }
 
+        String jsonValuesFieldName() {
+            return name.toUpperCase() + "_JSON_VALUES";
+        }
+
+        /**
+         * Write this field's name and value as JSON - numbers, booleans and
+         * enum constants straight from the getters, with no map or boxing.
+         */
+        void contributeJsonClause(JsonTarget target, boolean isLong, String prefix, ClassBuilder<?> cb,
+                BlockBuilder<?> bb) {
+            target.literal(prefix + "\"" + name + "\":", name.toUpperCase() + "_JSON_NAME", cb, bb);
+            TypeKind kind = origin.getReturnType().getKind();
+            String getter = name + "()";
+            String var = name + "Value";
+            if (flagType != null) {
+                bb.statement(target.character('['));
+                bb.declare(var)
+                        .initializedWith("(value & " + maskFieldName() + ") >>> " + startingBitFieldName())
+                        .as(isLong ? "long" : "int");
+                String lowest = (isLong ? "Long" : "Integer") + ".numberOfTrailingZeros(" + var + ")";
+                bb.whileLoop(loop -> {
+                    if (target == JsonTarget.BYTE_BUFFER) {
+                        loop.statement("into.put(" + jsonValuesFieldName() + "[" + lowest + "])");
+                    } else {
+                        loop.statement("into.append('\"').append(" + valuesFieldName() + "[" + lowest
+                                + "].name()).append('\"')");
+                    }
+                    loop.statement(var + " &= " + var + " - 1");
+                    loop.iff().booleanExpression(var + " != 0")
+                            .statement(target.character(','))
+                            .endIf();
+                    loop.underCondition().booleanExpression(var + " != 0");
+                });
+                bb.statement(target.character(']'));
+            } else if (nested != null) {
+                bb.statement(getter + ".writeJson(into)");
+            } else if (isInterned || kind == TypeKind.CHAR) {
+                if (isInterned) {
+                    bb.declare(var).initializedWith(getter).as(internedTypeName(cb));
+                    bb.iff().booleanExpression(var + " == null")
+                            .statement(target.nullLiteral())
+                            .orElse(els -> els.statement(target.string("jsonString(String.valueOf(" + var + "))")));
+                } else {
+                    bb.statement(target.string("jsonString(String.valueOf(" + getter + "))"));
+                }
+            } else if (isEnum) {
+                if (target == JsonTarget.BYTE_BUFFER) {
+                    bb.statement("into.put(" + jsonValuesFieldName() + "[" + getter + ".ordinal()])");
+                } else {
+                    bb.statement("into.append('\"').append(" + getter + ".name()).append('\"')");
+                }
+            } else if (kind == TypeKind.BOOLEAN) {
+                bb.statement(target.bool(getter));
+            } else if (kind == TypeKind.FLOAT || kind == TypeKind.DOUBLE) {
+                String boxed = kind == TypeKind.FLOAT ? "Float" : "Double";
+                if (quantized.isPresent()) {
+                    bb.statement(target.floatingPoint(getter, boxed));
+                } else {
+                    bb.declare(var).initializedWith(getter).as(kind == TypeKind.FLOAT ? "float" : "double");
+                    bb.lineComment("JSON has no NaN or infinity");
+                    bb.iff().booleanExpression(boxed + ".isFinite(" + var + ")")
+                            .statement(target.floatingPoint(var, boxed))
+                            .orElse(els -> els.statement(target.nullLiteral()));
+                }
+            } else if (isTimestamp()) {
+                bb.lineComment("Coarse clock times are relative to this JVM's start, so write wall clock time");
+                bb.statement(target.decimal("System.currentTimeMillis() - elapsedSince" + capitalize(name) + "()"
+                        + timestampMillisMultiplier()));
+            } else {
+                bb.statement(target.decimal(getter));
+            }
+        }
+
+        /**
+         * The multiplier, if any, which converts a number of units of a
+         * timestamp's resolution to milliseconds.
+         */
+        private String timestampMillisMultiplier() {
+            long millis = TimeUnit.valueOf(utils.enumConstantValue(utils.findMirror(origin, TIMESTAMP_ANNO),
+                    "resolution", "MILLISECONDS")).toMillis(1);
+            return millis == 1 ? "" : " * " + millis + "L";
+        }
+
+        /**
+         * Parse this field's value from JSON into the raw value being
+         * accumulated, tolerating what <code>fromMap()</code> tolerates -
+         * values of the wrong type are skipped, and enum constants may be
+         * names or ordinals, with unknown ones ignored.
+         */
+        void contributeJsonParseClause(boolean isLong, ClassBuilder<?> cb, BlockBuilder<?> bb) {
+            String mask = maskFieldName();
+            String store = "result = (result & ~" + mask + ") | (((" + (isLong ? "long" : "int")
+                    + ") (%s) << " + startingBitFieldName() + ") & " + mask + ")";
+            TypeKind kind = origin.getReturnType().getKind();
+            if (isInterned) {
+                if (!"java.lang.String".equals(origin.getReturnType().toString())) {
+                    bb.lineComment("Only interned strings can be read from JSON");
+                    bb.statement("in.skipValue()");
+                    return;
+                }
+                bb.iff().booleanExpression("in.peek() == '\"'")
+                        .statement(String.format(store, registryFieldName() + ".intern(in.stringValue())"))
+                        .elseIf().booleanExpression("in.peek() == 'n'")
+                        .statement("in.literal(\"null\")")
+                        .statement("result &= ~" + mask)
+                        .orElse(els -> els.statement("in.skipValue()"));
+            } else if (nested != null) {
+                String ns = nestedStateName(cb);
+                String from = name + "From";
+                ClassBuilder.IfBuilder<?> iff = bb.iff().booleanExpression("in.peek() == '{'");
+                iff.declare(from).initializedWith("in.pos").as("int");
+                iff.statement("in.skipValue()");
+                iff.declare(name + "State").initializedWith("in.chars != null ? " + ns + ".parseJson(in.chars, "
+                        + from + ", in.pos) : " + ns + ".parseJson(in.bytes.duplicate().position(" + from
+                        + ").limit(in.pos))").as(ns);
+                iff.statement(String.format(store, name + "State."
+                        + (nested.totalBitsNeeded() > 32 ? "getAsLong()" : "getAsInt()")));
+                iff.orElse(els -> els.statement("in.skipValue()"));
+            } else if (flagType != null) {
+                bb.statement(String.format(store, "in.constants(" + valuesFieldName() + ")"));
+            } else if (isEnum) {
+                String ordinal = name + "Ordinal";
+                bb.declare(ordinal).initializedWith("in.constant(" + valuesFieldName() + ")").as("int");
+                bb.iff().booleanExpression(ordinal + " >= 0")
+                        .statement(String.format(store, ordinal))
+                        .endIf();
+            } else if (kind == TypeKind.BOOLEAN) {
+                bb.statement("result &= ~" + mask);
+                bb.iff().booleanExpression("in.peek() == 't'")
+                        .statement("in.literal(\"true\")")
+                        .statement("result |= " + mask)
+                        .orElse(els -> els.statement("in.skipValue()"));
+            } else if (quantized.isPresent()) {
+                String dv = name + "Double";
+                ClassBuilder.IfBuilder<?> iff = bb.iff().booleanExpression("in.atNumber()");
+                iff.declare(dv).initializedWith("in.real()").as("double");
+                iff.statement(String.format(store, quantized.get().toStorableValue(name, dv, isLong)));
+                iff.orElse(els -> els.statement("in.skipValue()"));
+            } else if (kind == TypeKind.FLOAT) {
+                String bits = "Float.floatToRawIntBits(%s)" + (isLong ? " & 0xFFFFFFFFL" : "");
+                bb.iff().booleanExpression("in.atNumber()")
+                        .statement(String.format(store, String.format(bits, "(float) in.real()")))
+                        .elseIf().booleanExpression("in.peek() == 'n'")
+                        .lineComment("Non-finite values are written as null")
+                        .statement("in.literal(\"null\")")
+                        .statement(String.format(store, String.format(bits, "Float.NaN")))
+                        .orElse(els -> els.statement("in.skipValue()"));
+            } else if (kind == TypeKind.CHAR) {
+                String str = name + "String";
+                ClassBuilder.IfBuilder<?> iff = bb.iff().booleanExpression("in.peek() == '\"'");
+                iff.declare(str).initializedWith("in.stringValue()").as("String");
+                iff.statement("if (" + str + ".length() == 1) " + String.format(store, str + ".charAt(0)"));
+                iff.orElse(els -> els.statement("in.skipValue()"));
+            } else {
+                String num = name + "Number";
+                ClassBuilder.IfBuilder<?> iff = bb.iff().booleanExpression("in.atNumber()");
+                iff.declare(num).initializedWith("in.integer()").as("long");
+                if (range.isPresent()) {
+                    ValueRangeProxy px = range.get();
+                    String min = px.minFieldNameOf(name);
+                    String max = px.maxFieldNameOf(name);
+                    iff.statement("if (" + num + " < " + min + " || " + num + " > " + max + ") throw outOfRange(\""
+                            + name + "\", " + num + ", " + min + ", " + max + ")");
+                    iff.statement(String.format(store, num + " - " + min));
+                } else if (isTimestamp()) {
+                    // Written as wall clock time; truncating the result to
+                    // the field's bits handles wraparound
+                    String elapsed = "(System.currentTimeMillis() - " + num + ")";
+                    String divisor = timestampMillisMultiplier().replace(" * ", " / ");
+                    iff.statement(String.format(store, timestampNow(cb) + " - "
+                            + (divisor.isEmpty() ? elapsed : "(" + elapsed + divisor + ")")));
+                } else {
+                    String min = minValueOf(kind) + "L";
+                    String max = maxValueOf(kind) + "L";
+                    iff.statement("if (" + num + " < " + min + " || " + num + " > " + max + ") throw outOfRange(\""
+                            + name + "\", " + num + ", " + min + ", " + max + ")");
+                    iff.statement(String.format(store, num));
+                }
+                iff.orElse(els -> els.statement("in.skipValue()"));
+            }
+        }
+
         private void contributeFromMapClause(boolean isLong, String resultVar, String mapVar, BlockBuilder<?> bb) {
             String vn = name + "MapValue";
             bb.declare(vn)
@@ -560,7 +1358,58 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                     .as("Object");
 
             TypeKind knd = origin.getReturnType().getKind();
-            if (isNumberKind(knd)) {
+            if (isInterned) {
+                String type = simpleName(origin.getReturnType().toString());
+                bb.iff().booleanExpression(vn + " instanceof " + type)
+                        .statement(resultVar + " |= (" + (isLong ? "(long) " : "") + registryFieldName()
+                                + ".intern((" + type + ") " + vn + ") << " + startingBitFieldName()
+                                + ") & " + maskFieldName())
+                        .endIf();
+            } else if (flagType != null) {
+                String et = simpleName(flagType.toString());
+                String bits = name + "Bits";
+                String one = isLong ? "1L" : "1";
+                ClassBuilder.IfBuilder<?> iff = bb.iff().booleanExpression(vn + " instanceof Collection");
+                iff.lineComment("Flags may be enum constants or their names; as with enums,")
+                        .lineComment("unknown names are ignored");
+                iff.declare(bits).initializedWith(isLong ? "0L" : "0").as(isLong ? "long" : "int");
+                iff.simpleLoop("Object", name + "Flag", loop -> {
+                    loop.over("(Collection<?>) " + vn, lb -> {
+                        lb.iff().booleanExpression(name + "Flag instanceof " + et)
+                                .statement(bits + " |= " + one + " << ((" + et + ") " + name + "Flag).ordinal()")
+                                .elseIf().booleanExpression(name + "Flag instanceof String")
+                                .trying(tri -> {
+                                    tri.statement(bits + " |= " + one + " << " + et + ".valueOf((String) "
+                                            + name + "Flag).ordinal()");
+                                    tri.catching("IllegalArgumentException")
+                                            .lineComment("Ignored")
+                                            .endTryCatch();
+                                })
+                                .endIf();
+                    });
+                });
+                iff.statement(resultVar + " |= (" + bits + " << " + startingBitFieldName() + ") & " + maskFieldName());
+                iff.endIf();
+            } else if (nested != null) {
+                String ns = nested.el.getSimpleName() + "State";
+                boolean nestedIsLong = nested.totalBitsNeeded() > 32;
+                bb.iff().booleanExpression(vn + " instanceof Map")
+                        .lineComment("A nested state is stored as a nested map")
+                        .statement("@SuppressWarnings(\"unchecked\") Map<String, Object> " + name + "Map = (Map<String, Object>) " + vn)
+                        .statement(resultVar + " |= (" + (isLong ? "(long) " : "") + ns + ".fromMap(" + name + "Map)."
+                                + (nestedIsLong ? "getAsLong()" : "getAsInt()") + " << " + startingBitFieldName()
+                                + ") & " + maskFieldName())
+                        .endIf();
+            } else if (quantized.isPresent() || knd == TypeKind.FLOAT) {
+                String dv = name + "DoubleValue";
+                ClassBuilder.IfBuilder<?> iff = bb.iff().booleanExpression(vn + " instanceof Number");
+                iff.declare(dv).initializedWith("((Number) " + vn + ").doubleValue()").as("double");
+                String stored = quantized.isPresent()
+                        ? quantized.get().toStorableValue(name, dv, isLong)
+                        : "Float.floatToRawIntBits((float) " + dv + ")" + (isLong ? " & 0xFFFFFFFFL" : "");
+                iff.statement(resultVar + " |= ((" + stored + ") << " + startingBitFieldName() + ") & " + maskFieldName());
+                iff.endIf();
+            } else if (isNumberKind(knd)) {
                 ClassBuilder.IfBuilder<?> iff = bb.iff().booleanExpression(vn + " != null && " + vn + " instanceof Number");
                 String unboxedName = name + boxedType() + "Value";
                 iff.declare(unboxedName)
@@ -659,6 +1508,8 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
     final class StateModel {
 
         private final Map<String, ExecutableElement> methodForName = new TreeMap<>();
+        private final List<String> declarationOrder = new ArrayList<>();
+        private List<BitsElement> layout;
         private final TypeElement el;
         private final AnnotationMirror on;
 
@@ -678,15 +1529,1257 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
             return val;
         }
 
-        ClassBuilder<String> generateListener() {
-            boolean changeSupport = utils.annotationValue(on, "generateChangeSupport", Boolean.class, false);
-
-            if (!changeSupport) {
-                return null;
+        /**
+         * A hash of the names, types and positions of the fields, which
+         * changes whenever a change to the interface would change the
+         * meaning of a raw value.
+         */
+        long layoutHash() {
+            long hash = 0xCBF29CE484222325L;
+            for (BitsElement be : toElements()) {
+                String desc = be.name + ":" + be.origin.getReturnType() + ":" + be.startingBit
+                        + ":" + be.bitsRequired + be.range.map(r -> ":" + r.min + ".." + r.max).orElse("")
+                        + be.quantized.map(q -> ":" + q.min + ".." + q.max).orElse("") + ";";
+                for (int i = 0; i < desc.length(); i++) {
+                    hash ^= desc.charAt(i);
+                    hash *= 0x100000001B3L;
+                }
             }
-            String stateName = el.getSimpleName() + "State";
-            String listenerClassName = stateName + "Listener";
-            ClassBuilder<String> listenerClass = ClassBuilder.forPackage(utils.packageName(el))
+            return hash;
+        }
+
+        /**
+         * Whether to generate JSON methods - requested explicitly, or
+         * implied by runtimeInterfaces, since PackedState declares
+         * <code>writeJson()</code>.
+         */
+        boolean generatesJson() {
+            return utils.annotationValue(on, "generateJson", Boolean.class, false)
+                    || utils.annotationValue(on, "runtimeInterfaces", Boolean.class, false);
+        }
+
+        /**
+         * Whether any field, including those of nested states, stores an
+         * interned id or a time on the coarse clock - values which only mean
+         * something within the JVM that stored them.
+         */
+        boolean hasProcessLocalFields() {
+            for (BitsElement be : toElements()) {
+                if (be.isInterned || be.isTimestamp()
+                        || (be.nested != null && be.nested.hasProcessLocalFields())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Generate the compact serialized form - a layout hash followed by
+         * the raw value - and, if requested, static methods which copy raw
+         * values to and from a ByteBuffer in bulk. States with process-local fields get
+         * neither, and refuse to be serialized, since the raw value would be
+         * misread by any other JVM.
+         */
+        private void generateCodec(ClassBuilder<String> result, boolean isLong) {
+            String valType = isLong ? "long" : "int";
+            String boxed = isLong ? "Long" : "Int";
+            int width = isLong ? 8 : 4;
+            String stateName = result.className();
+            result.field("LAYOUT_HASH", fld -> {
+                fld.docComment("A hash of the names, types and bit positions of the fields of " + stateName
+                        + ", written with serialized and encoded values so that values written by an "
+                        + "incompatible version are rejected rather than misread.")
+                        .withModifier(PUBLIC, STATIC, FINAL)
+                        .initializedWith(layoutHash());
+            });
+            if (hasProcessLocalFields()) {
+                result.importing("java.io.NotSerializableException", "java.io.ObjectStreamException");
+                result.method("writeReplace", mth -> {
+                    mth.docComment("Refuse to serialize, since the interned ids and coarse clock times stored "
+                            + "in a " + stateName + " are meaningless in any other JVM; use "
+                            + (generatesJson() ? "<code>writeJson()</code>" : "<code>toMap()</code>")
+                            + ", which writes portable values, instead."
+                            + "\n@return nothing"
+                            + "\n@throws ObjectStreamException always")
+                            .withModifier(PRIVATE)
+                            .throwing("ObjectStreamException")
+                            .returning("Object")
+                            .body(bb -> bb.statement("throw new NotSerializableException(\"" + stateName
+                                    + " contains interned ids or coarse clock times, which cannot be "
+                                    + "serialized\")"));
+                });
+                return;
+            }
+            result.importing("java.io.Externalizable", "java.io.IOException", "java.io.InvalidObjectException",
+                    "java.io.ObjectInput", "java.io.ObjectOutput", "java.io.ObjectStreamException");
+            result.method("writeReplace", mth -> {
+                mth.docComment("Serialize as a SerialForm."
+                        + "\n@return A SerialForm")
+                        .withModifier(PRIVATE)
+                        .returning("Object")
+                        .body(bb -> bb.returningNew(nb -> nb.withArgument("value").ofType("SerialForm")));
+            });
+            result.innerClass("SerialForm", ser -> {
+                ser.docComment("The serialized form of a " + stateName + ": the layout hash, so that a value "
+                        + "serialized by an incompatible version of " + el.getSimpleName() + " fails to "
+                        + "deserialize instead of being misread, followed by the raw " + valType + ".")
+                        .withModifier(STATIC, FINAL)
+                        .implementing("Externalizable")
+                        .field("serialVersionUID", fld -> fld.withModifier(PRIVATE, STATIC, FINAL)
+                        .initializedWith(1L))
+                        .field("value", fld -> fld.withModifier(PRIVATE).ofType(valType))
+                        .constructor(con -> con.setModifier(PUBLIC)
+                        .docComment("Used by deserialization.")
+                        .emptyBody())
+                        .constructor(con -> con.addArgument(valType, "value")
+                        .body(bb -> bb.statement("this.value = value")));
+                ser.overridePublic("writeExternal", mth -> {
+                    mth.addArgument("ObjectOutput", "out")
+                            .throwing("IOException")
+                            .body(bb -> {
+                                bb.invoke("writeLong").withArgument("LAYOUT_HASH").on("out");
+                                bb.invoke("write" + boxed).withArgument("value").on("out");
+                            });
+                });
+                ser.overridePublic("readExternal", mth -> {
+                    mth.addArgument("ObjectInput", "in")
+                            .throwing("IOException")
+                            .body(bb -> {
+                                bb.declare("hash").initializedByInvoking("readLong").on("in").as("long");
+                                bb.iff().booleanExpression("hash != LAYOUT_HASH")
+                                        .statement("throw new InvalidObjectException(\"" + stateName
+                                                + " serialized with an incompatible layout\")")
+                                        .endIf();
+                                bb.statement("value = in.read" + boxed + "()");
+                            });
+                });
+                ser.method("readResolve", mth -> {
+                    mth.throwing("ObjectStreamException")
+                            .returning("Object")
+                            .body(bb -> {
+                                bb.trying(tri -> {
+                                    tri.invoke("validate").withArgument("value").inScope();
+                                    ClassBuilder.CatchBuilder<?> cat = tri.catching("IllegalArgumentException")
+                                            .as("e");
+                                    cat.declare("ex").initializedWith("new InvalidObjectException(e.getMessage())")
+                                            .as("InvalidObjectException");
+                                    cat.invoke("initCause").withArgument("e").on("ex");
+                                    cat.statement("throw ex");
+                                    cat.endTryCatch();
+                                });
+                                bb.returningNew(nb -> nb.withArgument("value").ofType(stateName));
+                            });
+                });
+            });
+            if (!utils.annotationValue(on, "generateCodec", Boolean.class, false)) {
+                return;
+            }
+            result.importing("java.nio.BufferOverflowException", "java.nio.BufferUnderflowException",
+                    "java.nio.ByteBuffer", "java.nio.ByteOrder");
+            result.field("CODEC_HEADER_BYTES", fld -> {
+                fld.docComment("The size of the header written by <code>encode()</code> - the layout hash "
+                        + "and the number of values.")
+                        .withModifier(PUBLIC, STATIC, FINAL)
+                        .initializedWith(12);
+            });
+            result.method("encode", mth -> {
+                mth.docComment("Write a header - the layout hash and the count - followed by raw values, "
+                        + "as little-endian " + valType + "s, to a buffer, advancing its position. The "
+                        + "buffer's byte order is left unchanged."
+                        + "\n@param values Raw values"
+                        + "\n@param offset The offset of the first value to write"
+                        + "\n@param count The number of values to write"
+                        + "\n@param into The buffer"
+                        + "\n@throws BufferOverflowException if the buffer has less than "
+                        + "<code>CODEC_HEADER_BYTES + " + width + " * count</code> bytes remaining, in "
+                        + "which case nothing is written")
+                        .withModifier(PUBLIC, STATIC)
+                        .addArgument(valType + "[]", "values")
+                        .addArgument("int", "offset")
+                        .addArgument("int", "count")
+                        .addArgument("ByteBuffer", "into")
+                        .body(bb -> {
+                            bb.iff().booleanExpression("offset < 0 || count < 0 || offset > values.length - count")
+                                    .statement("throw new IndexOutOfBoundsException(\"Offset \" + offset + \" count \" "
+                                            + "+ count + \" in \" + values.length)")
+                                    .endIf();
+                            bb.iff().booleanExpression("into.remaining() < CODEC_HEADER_BYTES + " + width + "L * count")
+                                    .statement("throw new BufferOverflowException()")
+                                    .endIf();
+                            bb.declare("order").initializedByInvoking("order").on("into").as("ByteOrder");
+                            bb.trying(tri -> {
+                                tri.statement("into.order(ByteOrder.LITTLE_ENDIAN)");
+                                tri.statement("into.putLong(LAYOUT_HASH).putInt(count)");
+                                tri.lineComment("A bulk copy through a view, rather than a put per value");
+                                tri.statement("into.as" + boxed + "Buffer().put(values, offset, count)");
+                                tri.statement("into.position(into.position() + " + width + " * count)");
+                                tri.fynalli(fi -> fi.statement("into.order(order)"));
+                            });
+                        });
+            });
+            result.method("encode", mth -> {
+                mth.docComment("Write a header followed by the raw values of some states to a buffer, in "
+                        + "the same format as <code>encode(" + valType + "[], int, int, ByteBuffer)</code>."
+                        + "\n@param states Some states"
+                        + "\n@param into The buffer"
+                        + "\n@throws BufferOverflowException if there is not enough room, in which case "
+                        + "nothing is written")
+                        .withModifier(PUBLIC, STATIC)
+                        .addArgument(stateName + "[]", "states")
+                        .addArgument("ByteBuffer", "into")
+                        .body(bb -> {
+                            bb.iff().booleanExpression("into.remaining() < CODEC_HEADER_BYTES + " + width
+                                    + "L * states.length")
+                                    .statement("throw new BufferOverflowException()")
+                                    .endIf();
+                            bb.declare("order").initializedByInvoking("order").on("into").as("ByteOrder");
+                            bb.trying(tri -> {
+                                tri.statement("into.order(ByteOrder.LITTLE_ENDIAN)");
+                                tri.statement("into.putLong(LAYOUT_HASH).putInt(states.length)");
+                                tri.statement("for (" + stateName + " state : states) into.put"
+                                        + (isLong ? "Long" : "Int") + "(state.value)");
+                                tri.fynalli(fi -> fi.statement("into.order(order)"));
+                            });
+                        });
+            });
+            result.method("encodedCount", mth -> {
+                mth.docComment("Read the number of values in the header at a buffer's position, without "
+                        + "advancing it, so that an array can be sized to decode into."
+                        + "\n@param from The buffer"
+                        + "\n@return The count"
+                        + "\n@throws IllegalArgumentException if the header was written by an "
+                        + "incompatible version of " + stateName
+                        + "\n@throws BufferUnderflowException if there is no complete header")
+                        .withModifier(PUBLIC, STATIC)
+                        .addArgument("ByteBuffer", "from")
+                        .returning("int")
+                        .body(bb -> {
+                            bb.iff().booleanExpression("from.remaining() < CODEC_HEADER_BYTES")
+                                    .statement("throw new BufferUnderflowException()")
+                                    .endIf();
+                            bb.declare("order").initializedByInvoking("order").on("from").as("ByteOrder");
+                            bb.declare("hash").initializedWith("0L").as("long");
+                            bb.declare("count").initializedWith("0").as("int");
+                            bb.trying(tri -> {
+                                tri.statement("from.order(ByteOrder.LITTLE_ENDIAN)");
+                                tri.statement("hash = from.getLong(from.position())");
+                                tri.statement("count = from.getInt(from.position() + 8)");
+                                tri.fynalli(fi -> fi.statement("from.order(order)"));
+                            });
+                            bb.iff().booleanExpression("hash != LAYOUT_HASH")
+                                    .statement("throw new IllegalArgumentException(\"Values were encoded with an "
+                                            + "incompatible layout of " + stateName + "\")")
+                                    .endIf();
+                            bb.returning("count");
+                        });
+            });
+            result.method("decode", mth -> {
+                mth.docComment("Read a header and the raw values following it from a buffer into an array, "
+                        + "validating them but creating no objects, and advance the buffer's position past "
+                        + "them."
+                        + "\n@param from The buffer"
+                        + "\n@param into The array"
+                        + "\n@param offset The offset in the array to decode into"
+                        + "\n@return The number of values read"
+                        + "\n@throws IllegalArgumentException if the values were written by an "
+                        + "incompatible version of " + stateName + ", or a value is invalid"
+                        + "\n@throws BufferUnderflowException if the buffer does not contain all of the values"
+                        + "\n@throws IndexOutOfBoundsException if they do not fit in the array")
+                        .withModifier(PUBLIC, STATIC)
+                        .addArgument("ByteBuffer", "from")
+                        .addArgument(valType + "[]", "into")
+                        .addArgument("int", "offset")
+                        .returning("int")
+                        .body(bb -> {
+                            bb.declare("count").initializedWith("encodedCount(from)").as("int");
+                            bb.iff().booleanExpression("count < 0 || from.remaining() - CODEC_HEADER_BYTES < "
+                                    + width + "L * count")
+                                    .statement("throw new BufferUnderflowException()")
+                                    .endIf();
+                            bb.iff().booleanExpression("offset < 0 || offset > into.length - count")
+                                    .statement("throw new IndexOutOfBoundsException(\"Cannot fit \" + count "
+                                            + "+ \" values at \" + offset + \" in \" + into.length)")
+                                    .endIf();
+                            bb.declare("order").initializedByInvoking("order").on("from").as("ByteOrder");
+                            bb.declare("start").initializedWith("from.position() + CODEC_HEADER_BYTES").as("int");
+                            bb.trying(tri -> {
+                                tri.statement("from.order(ByteOrder.LITTLE_ENDIAN)");
+                                tri.statement("from.position(start)");
+                                tri.statement("from.as" + (isLong ? "Long" : "Int") + "Buffer().get(into, offset, count)");
+                                tri.fynalli(fi -> fi.statement("from.order(order)"));
+                            });
+                            bb.statement("for (int i = offset; i < offset + count; i++) validate(into[i])");
+                            bb.statement("from.position(start + " + width + " * count)");
+                            bb.returning("count");
+                        });
+            });
+            result.method("decodeStates", mth -> {
+                mth.docComment("Read a header and the raw values following it from a buffer as states, "
+                        + "advancing the buffer's position past them."
+                        + "\n@param from The buffer"
+                        + "\n@return The states"
+                        + "\n@throws IllegalArgumentException if the values were written by an "
+                        + "incompatible version of " + stateName + ", or a value is invalid"
+                        + "\n@throws BufferUnderflowException if the buffer does not contain all of the values")
+                        .withModifier(PUBLIC, STATIC)
+                        .addArgument("ByteBuffer", "from")
+                        .returning(stateName + "[]")
+                        .body(bb -> {
+                            bb.declare("raw").initializedWith("new " + valType + "[encodedCount(from)]")
+                                    .as(valType + "[]");
+                            bb.invoke("decode").withArgument("from").withArgument("raw").withArgument(0).inScope();
+                            bb.declare("result").initializedWith("new " + stateName + "[raw.length]")
+                                    .as(stateName + "[]");
+                            bb.statement("for (int i = 0; i < raw.length; i++) result[i] = new " + stateName
+                                    + "(raw[i], true)");
+                            bb.returning("result");
+                        });
+            });
+        }
+
+        /**
+         * Generate <code>writeJson()</code> methods, which write the same
+         * names and values as <code>toMap()</code> as a JSON object, with
+         * no intermediate map or boxing - for a buffer, as UTF-8 from
+         * precomputed byte arrays.
+         */
+        private void generateJson(ClassBuilder<String> result, boolean isLong, List<BitsElement> elements) {
+            for (BitsElement be : elements) {
+                if (be.nested != null && !be.nested.generatesJson()) {
+                    utils.fail(el.getSimpleName() + " generates JSON, so " + be.nested.el.getSimpleName()
+                            + " must also be annotated with @AtomicState(generateJson = true)", be.origin);
+                }
+            }
+            boolean hasStrings = false;
+            boolean hasFloats = false;
+            boolean hasEnums = false;
+            boolean hasNumbers = false;
+            for (BitsElement be : elements) {
+                TypeKind kind = be.origin.getReturnType().getKind();
+                hasNumbers |= be.flagType == null && be.nested == null && !be.isInterned && !be.isEnum
+                        && isNumberKind(kind) && kind != TypeKind.FLOAT && kind != TypeKind.DOUBLE;
+                hasStrings |= be.isInterned || (kind == TypeKind.CHAR && be.nested == null);
+                hasFloats |= (kind == TypeKind.FLOAT || kind == TypeKind.DOUBLE);
+                if (be.flagType != null || (be.isEnum && !be.isInterned)) {
+                    hasEnums = true;
+                    String enumType = simpleName((be.flagType != null ? be.flagType : be.origin.getReturnType())
+                            .toString());
+                    result.field(be.jsonValuesFieldName(), fld -> fld.withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo("jsonStrings(" + enumType + ".values())")
+                            .ofType("byte[][]"));
+                }
+            }
+            result.importing("java.io.IOException", "java.nio.ByteBuffer", "java.nio.charset.StandardCharsets");
+            for (String[] constant : new String[][]{{"JSON_TRUE", "true"}, {"JSON_FALSE", "false"},
+            {"JSON_NULL", "null"}}) {
+                result.field(constant[0], fld -> fld.withModifier(PRIVATE, STATIC, FINAL)
+                        .initializedTo("\"" + constant[1] + "\".getBytes(StandardCharsets.UTF_8)")
+                        .ofType("byte[]"));
+            }
+            String nameList = el.getSimpleName() + "'s methods";
+            String represented = "as <code>toMap()</code> would represent it"
+                    + (elements.stream().anyMatch(BitsElement::isTimestamp)
+                    ? " (but with timestamps as milliseconds since the epoch)" : "");
+            for (JsonTarget target : JsonTarget.values()) {
+                result.method("writeJson", mth -> {
+                    String doc;
+                    switch (target) {
+                        case STRING_BUILDER:
+                            doc = "Append this state to a StringBuilder as a JSON object whose keys are the "
+                                    + "names of " + nameList + ", " + represented + ", "
+                                    + "without creating a map or boxing values."
+                                    + "\n@param into A StringBuilder"
+                                    + "\n@return The StringBuilder";
+                            break;
+                        case APPENDABLE:
+                            doc = "Append this state to an Appendable as a JSON object whose keys are the "
+                                    + "names of " + nameList + ", " + represented + ". "
+                                    + "Writing to a StringBuilder is cheaper, as numbers can be appended "
+                                    + "without creating strings."
+                                    + "\n@param into An Appendable"
+                                    + "\n@return The Appendable"
+                                    + "\n@throws IOException if the Appendable throws one";
+                            break;
+                        default:
+                            doc = "Write this state to a buffer as a UTF-8 JSON object whose keys are the "
+                                    + "names of " + nameList + ", " + represented + ", "
+                                    + "from precomputed bytes for names and constants."
+                                    + "\n@param into A buffer"
+                                    + "\n@return The buffer"
+                                    + "\n@throws java.nio.BufferOverflowException if the buffer fills up, in "
+                                    + "which case it is left partially written";
+                    }
+                    mth.docComment(doc)
+                            .withModifier(PUBLIC)
+                            .addArgument(target.typeName, "into")
+                            .returning(target.typeName);
+                    if (target == JsonTarget.APPENDABLE) {
+                        mth.throwing("IOException");
+                    }
+                    mth.body(bb -> {
+                        if (target == JsonTarget.APPENDABLE) {
+                            bb.iff().booleanExpression("into instanceof StringBuilder")
+                                    .returning("writeJson((StringBuilder) into)")
+                                    .endIf();
+                        }
+                        for (int i = 0; i < elements.size(); i++) {
+                            elements.get(i).contributeJsonClause(target, isLong, i == 0 ? "{" : ",", result, bb);
+                        }
+                        if (elements.isEmpty()) {
+                            bb.statement(target.character('{'));
+                        }
+                        bb.statement(target.character('}'));
+                        bb.returning("into");
+                    });
+                });
+            }
+            if (hasNumbers) {
+                result.method("appendDecimal", mth -> {
+                    mth.docComment("Append a number in decimal without creating a string."
+                            + "\n@param value A number"
+                            + "\n@param into An Appendable"
+                            + "\n@throws IOException if the Appendable throws one")
+                            .withModifier(PRIVATE, STATIC)
+                            .addArgument("long", "value")
+                            .addArgument("Appendable", "into")
+                            .throwing("IOException")
+                            .body(bb -> writeDecimal(bb, "into.append((char) ('0' - value / div % 10))",
+                            "into.append('-')"));
+                });
+                result.method("putDecimal", mth -> {
+                    mth.docComment("Write a number in decimal ASCII without creating a string."
+                            + "\n@param value A number"
+                            + "\n@param into A buffer")
+                            .withModifier(PRIVATE, STATIC)
+                            .addArgument("long", "value")
+                            .addArgument("ByteBuffer", "into")
+                            .body(bb -> writeDecimal(bb, "into.put((byte) ('0' - value / div % 10))",
+                            "into.put((byte) '-')"));
+                });
+            }
+            if (hasFloats) {
+                result.method("putAscii", mth -> {
+                    mth.docComment("Write the characters of a formatted number, which are all ASCII."
+                            + "\n@param text A formatted number"
+                            + "\n@param into A buffer")
+                            .withModifier(PRIVATE, STATIC)
+                            .addArgument("String", "text")
+                            .addArgument("ByteBuffer", "into")
+                            .body(bb -> bb.statement("for (int i = 0; i < text.length(); i++) "
+                            + "into.put((byte) text.charAt(i))"));
+                });
+            }
+            if (hasEnums) {
+                result.method("jsonStrings", mth -> {
+                    mth.docComment("Encode the names of some enum constants as quoted UTF-8, indexed by ordinal."
+                            + "\n@param constants The constants"
+                            + "\n@return An array of byte arrays")
+                            .withModifier(PRIVATE, STATIC)
+                            .addArgument("Enum<?>[]", "constants")
+                            .returning("byte[][]")
+                            .body(bb -> {
+                                bb.declare("result").initializedWith("new byte[constants.length][]").as("byte[][]");
+                                bb.statement("for (int i = 0; i < constants.length; i++) result[i] = "
+                                        + "(\"\\\"\" + constants[i].name() + \"\\\"\").getBytes(StandardCharsets.UTF_8)");
+                                bb.returning("result");
+                            });
+                });
+            }
+            if (hasStrings) {
+                result.method("jsonString", mth -> {
+                    mth.docComment("Quote and escape a string for JSON."
+                            + "\n@param text Some text"
+                            + "\n@return A JSON string")
+                            .withModifier(PRIVATE, STATIC)
+                            .addArgument("String", "text")
+                            .returning("String")
+                            .body(bb -> {
+                                bb.declare("sb").initializedWith("new StringBuilder(text.length() + 2).append('\"')")
+                                        .as("StringBuilder");
+                                bb.simpleLoop("char", "c", loop -> loop.over("text.toCharArray()", lb -> {
+                                    lb.iff().booleanExpression("c == '\"' || c == '\\\\'")
+                                            .statement("sb.append('\\\\').append(c)")
+                                            .elseIf().booleanExpression("c < ' '")
+                                            .statement("sb.append(String.format(\"\\\\u%04x\", (int) c))")
+                                            .orElse(els -> els.statement("sb.append(c)"));
+                                }));
+                                bb.returning("sb.append('\"').toString()");
+                            });
+                });
+            }
+        }
+
+        /**
+         * Write a long as decimal digits, one character at a time, working
+         * with its negation so that Long.MIN_VALUE needs no special case.
+         */
+        private void writeDecimal(BlockBuilder<?> bb, String digit, String minus) {
+            bb.iff().booleanExpression("value < 0")
+                    .statement(minus)
+                    .orElse(els -> els.statement("value = -value"));
+            bb.declare("div").initializedWith("1L").as("long");
+            bb.whileLoop(loop -> {
+                loop.statement("div *= 10");
+                loop.underCondition().booleanExpression("value / div <= -10");
+            });
+            bb.whileLoop(loop -> {
+                loop.statement(digit);
+                loop.statement("div /= 10");
+                loop.underCondition().booleanExpression("div > 0");
+            });
+        }
+
+        /**
+         * Generate <code>parseJson()</code> methods, which read what
+         * <code>writeJson()</code> writes straight into a raw value,
+         * matching keys by a switch on their length, with a private reader
+         * over either a CharSequence or UTF-8 bytes.
+         */
+        private void generateJsonParser(ClassBuilder<String> result, boolean isLong, List<BitsElement> elements) {
+            String stateName = result.className();
+            String valType = isLong ? "long" : "int";
+            boolean hasStrings = false;
+            for (BitsElement be : elements) {
+                TypeKind kind = be.origin.getReturnType().getKind();
+                hasStrings |= (be.isInterned && "java.lang.String".equals(be.origin.getReturnType().toString()))
+                        || (kind == TypeKind.CHAR && be.nested == null);
+            }
+            result.importing("java.nio.ByteBuffer");
+            generateJsonReader(result, hasStrings);
+            result.method("parseJson", mth -> {
+                mth.docComment("Parse a JSON object in the form written by <code>writeJson()</code>. As with "
+                        + "<code>fromMap()</code>, unknown keys and values of the wrong type are ignored, and "
+                        + "enum constants may be names or ordinals, with unrecognized ones ignored."
+                        + "\n@param json Some JSON"
+                        + "\n@return A " + stateName
+                        + "\n@throws IllegalArgumentException if the JSON is malformed, or a value is out of range")
+                        .withModifier(PUBLIC, STATIC)
+                        .addArgument("CharSequence", "json")
+                        .returning(stateName)
+                        .body(bb -> bb.returning("parseJson(json, 0, json.length())"));
+            });
+            result.method("parseJson", mth -> {
+                mth.docComment("Parse a JSON object which occupies a region of a CharSequence, "
+                        + "apart from whitespace."
+                        + "\n@param json Some JSON"
+                        + "\n@param start The start of the region"
+                        + "\n@param end The end of the region, exclusive"
+                        + "\n@return A " + stateName
+                        + "\n@throws IllegalArgumentException if the JSON is malformed, or a value is out of range")
+                        .withModifier(PUBLIC, STATIC)
+                        .addArgument("CharSequence", "json")
+                        .addArgument("int", "start")
+                        .addArgument("int", "end")
+                        .returning(stateName)
+                        .body(bb -> {
+                            bb.iff().booleanExpression("start < 0 || end > json.length() || start > end")
+                                    .statement("throw new IndexOutOfBoundsException(\"Region \" + start + \" to \" "
+                                            + "+ end + \" of \" + json.length())")
+                                    .endIf();
+                            bb.declare("in").initializedWith("new JsonReader(json, null, start, end)").as("JsonReader");
+                            bb.declare("result").initializedWith("parseJsonObject(in)").as(valType);
+                            bb.invoke("expectEnd").on("in");
+                            bb.returningNew(nb -> nb.withArgument("result").ofType(stateName));
+                        });
+            });
+            result.method("parseJson", mth -> {
+                mth.docComment("Parse a UTF-8 JSON object starting at a buffer's position, and advance the "
+                        + "position past it, so that a buffer containing a sequence of objects can be read "
+                        + "one at a time."
+                        + "\n@param json A buffer"
+                        + "\n@return A " + stateName
+                        + "\n@throws IllegalArgumentException if the JSON is malformed, or a value is out of "
+                        + "range, in which case the position is unchanged")
+                        .withModifier(PUBLIC, STATIC)
+                        .addArgument("ByteBuffer", "json")
+                        .returning(stateName)
+                        .body(bb -> {
+                            bb.declare("in").initializedWith("new JsonReader(null, json, json.position(), json.limit())")
+                                    .as("JsonReader");
+                            bb.declare("parsed").initializedWithNew(nb -> nb.withArgument("parseJsonObject(in)")
+                                    .ofType(stateName)).as(stateName);
+                            bb.invoke("position").withArgument("in.pos").on("json");
+                            bb.returning("parsed");
+                        });
+            });
+            result.method("parseJsonObject", mth -> {
+                mth.withModifier(PRIVATE, STATIC)
+                        .addArgument("JsonReader", "in")
+                        .returning(valType)
+                        .body(bb -> {
+                            bb.declare("result").initializedWith(isLong ? "0L" : "0").as(valType);
+                            bb.invoke("expect").withArgument("'{'").on("in");
+                            bb.iff().booleanExpression("in.peek() == '}'")
+                                    .statement("in.pos++")
+                                    .returning("result")
+                                    .endIf();
+                            Map<Integer, List<Integer>> byLength = new TreeMap<>();
+                            for (int i = 0; i < elements.size(); i++) {
+                                byLength.computeIfAbsent(elements.get(i).name.length(), k -> new ArrayList<>()).add(i);
+                            }
+                            bb.whileLoop(loop -> {
+                                loop.iff().booleanExpression("in.peek() != '\"'")
+                                        .statement("throw in.fail(\"Expected a key\")")
+                                        .endIf();
+                                loop.declare("keyStart").initializedWith("in.string()").as("int");
+                                loop.declare("keyLength").initializedWith("in.pos - 1 - keyStart").as("int");
+                                loop.declare("field").initializedWith("-1").as("int");
+                                StringBuilder decoded = new StringBuilder();
+                                for (int i = 0; i < elements.size(); i++) {
+                                    decoded.append("key.equals(\"").append(elements.get(i).name).append("\") ? ")
+                                            .append(i).append(" : ");
+                                }
+                                decoded.append("-1");
+                                loop.iff().booleanExpression("in.escaped")
+                                        .lineComment("Rare enough that comparing the decoded key is fine")
+                                        .declare("key").initializedWith("in.decode(keyStart, in.pos - 1)").as("String")
+                                        .statement("field = " + decoded)
+                                        .orElse(els -> {
+                                            els.lineComment("Narrow candidate keys by length before comparing characters");
+                                            els.switchingOn("keyLength", sw -> {
+                                                byLength.forEach((len, indices) -> {
+                                                    StringBuilder match = new StringBuilder();
+                                                    for (int ix : indices) {
+                                                        match.append("in.matches(keyStart, ").append(len).append(", \"")
+                                                                .append(elements.get(ix).name).append("\") ? ").append(ix)
+                                                                .append(" : ");
+                                                    }
+                                                    match.append("-1");
+                                                    sw.inCase(len, cs -> {
+                                                        cs.statement("field = " + match);
+                                                        cs.statement("break");
+                                                    });
+                                                });
+                                            });
+                                        });
+                                loop.invoke("expect").withArgument("':'").on("in");
+                                loop.switchingOn("field", sw -> {
+                                    for (int i = 0; i < elements.size(); i++) {
+                                        BitsElement be = elements.get(i);
+                                        sw.inCase(i, cs -> {
+                                            be.contributeJsonParseClause(isLong, result, cs);
+                                            cs.statement("break");
+                                        });
+                                    }
+                                    sw.inDefaultCase(cs -> cs.statement("in.skipValue()"));
+                                });
+                                loop.iff().booleanExpression("in.peek() == '}'")
+                                        .statement("in.pos++")
+                                        .returning("result")
+                                        .endIf();
+                                loop.invoke("expect").withArgument("','").on("in");
+                                loop.underCondition().booleanExpression("true");
+                            });
+                        });
+            });
+        }
+
+        /**
+         * Generate the <code>Field</code> enum, which describes each field's
+         * bits and bounds, and reads and writes it in a raw value, so that
+         * tooling can treat any state as a table of primitive fields.
+         */
+        private void generateFieldEnum(ClassBuilder<String> result, List<BitsElement> elements) {
+            result.importing("java.util.Arrays", "java.util.Collections", "java.util.List");
+            result.innerClass("Field", en -> {
+                en.toEnum().withModifier(PUBLIC)
+                        .docComment("Metadata for the fields of " + result.className() + ", and accessors for "
+                                + "them in raw values, for code which handles many kinds of state generically. "
+                                + "Values are longs in the field's own encoding: numbers as themselves, "
+                                + "booleans as 0 or 1, enums as ordinals, sets of constants as bit sets of "
+                                + "ordinals, and anything else (floats, quantized values, timestamps, interned "
+                                + "objects and nested states) as the bits stored.");
+                en.enumConstants(ecb -> {
+                    for (BitsElement be : elements) {
+                        LayoutField lf = be.layoutField();
+                        TypeMirror ret = be.origin.getReturnType();
+                        String type = (ret.getKind().isPrimitive() ? ret.toString()
+                                : utils.erasureOf(ret).toString()) + ".class";
+                        long min;
+                        long max;
+                        String constants = "null";
+                        switch (lf.encoding) {
+                            case "offset":
+                            case "signed":
+                                min = lf.min();
+                                max = lf.max();
+                                break;
+                            case "enum":
+                                min = 0;
+                                max = lf.constants().size() - 1;
+                                constants = be.valuesFieldName();
+                                break;
+                            case "flags":
+                                min = 0;
+                                max = (1L << lf.constants().size()) - 1;
+                                constants = be.valuesFieldName();
+                                break;
+                            default:
+                                min = lf.bits == 64 ? Long.MIN_VALUE : 0;
+                                max = lf.bits == 64 ? Long.MAX_VALUE : (1L << lf.bits) - 1;
+                        }
+                        String bounds = min + "L, " + max + "L, " + "signed".equals(lf.encoding) + ", " + constants;
+                        ecb.addWithArgs(be.name.toUpperCase(), inv -> inv
+                                .withStringLiteral(be.name)
+                                .withArgument(type)
+                                .withArgument(lf.start)
+                                .withArgument(lf.bits)
+                                .withArgument(bounds));
+                    }
+                });
+                en.field("fieldName", fld -> fld.withModifier(PRIVATE, FINAL).ofType("String"));
+                en.field("type", fld -> fld.withModifier(PRIVATE, FINAL).ofType("Class<?>"));
+                en.field("startingBit", fld -> fld.withModifier(PRIVATE, FINAL).ofType("int"));
+                en.field("width", fld -> fld.withModifier(PRIVATE, FINAL).ofType("int"));
+                en.field("mask", fld -> fld.withModifier(PRIVATE, FINAL).ofType("long"));
+                en.field("min", fld -> fld.withModifier(PRIVATE, FINAL).ofType("long"));
+                en.field("max", fld -> fld.withModifier(PRIVATE, FINAL).ofType("long"));
+                en.field("offset", fld -> fld.withModifier(PRIVATE, FINAL).ofType("long"));
+                en.field("signed", fld -> fld.withModifier(PRIVATE, FINAL).ofType("boolean"));
+                en.field("constants", fld -> fld.withModifier(PRIVATE, FINAL).ofType("List<Enum<?>>"));
+                en.constructor(con -> con.addArgument("String", "fieldName")
+                        .addArgument("Class<?>", "type")
+                        .addArgument("int", "startingBit")
+                        .addArgument("int", "width")
+                        .addArgument("long", "min")
+                        .addArgument("long", "max")
+                        .addArgument("boolean", "signed")
+                        .addArgument("Enum<?>[]", "constants")
+                        .body(bb -> {
+                            bb.statement("this.fieldName = fieldName");
+                            bb.statement("this.type = type");
+                            bb.statement("this.startingBit = startingBit");
+                            bb.statement("this.width = width");
+                            bb.statement("this.mask = (width == 64 ? -1L : (1L << width) - 1) << startingBit");
+                            bb.statement("this.min = min");
+                            bb.statement("this.max = max");
+                            bb.lineComment("Ranged numbers are stored as their distance from the minimum");
+                            bb.statement("this.offset = signed ? 0 : min");
+                            bb.statement("this.signed = signed");
+                            bb.statement("this.constants = constants == null ? Collections.emptyList() "
+                                    + ": Collections.unmodifiableList(Arrays.asList(constants))");
+                        }));
+                en.method("fieldName", mth -> mth.withModifier(PUBLIC)
+                        .docComment("The name of the method on " + el.getSimpleName() + " this field implements."
+                                + "\n@return A name")
+                        .returning("String").body(bb -> bb.returning("fieldName")));
+                en.method("type", mth -> mth.withModifier(PUBLIC)
+                        .docComment("The (erased) type the field's method returns."
+                                + "\n@return A type")
+                        .returning("Class<?>").body(bb -> bb.returning("type")));
+                en.method("startingBit", mth -> mth.withModifier(PUBLIC)
+                        .docComment("The lowest bit of the raw value the field occupies."
+                                + "\n@return A bit index")
+                        .returning("int").body(bb -> bb.returning("startingBit")));
+                en.method("width", mth -> mth.withModifier(PUBLIC)
+                        .docComment("The number of bits the field occupies."
+                                + "\n@return A bit count")
+                        .returning("int").body(bb -> bb.returning("width")));
+                en.method("mask", mth -> mth.withModifier(PUBLIC)
+                        .docComment("The bits of the raw value the field occupies."
+                                + "\n@return A mask")
+                        .returning("long").body(bb -> bb.returning("mask")));
+                en.method("min", mth -> mth.withModifier(PUBLIC)
+                        .docComment("The smallest value <code>set()</code> accepts."
+                                + "\n@return A minimum")
+                        .returning("long").body(bb -> bb.returning("min")));
+                en.method("max", mth -> mth.withModifier(PUBLIC)
+                        .docComment("The largest value <code>set()</code> accepts."
+                                + "\n@return A maximum")
+                        .returning("long").body(bb -> bb.returning("max")));
+                en.method("isSigned", mth -> mth.withModifier(PUBLIC)
+                        .docComment("Whether the field is stored in two's complement, rather than as an "
+                                + "unsigned distance from its minimum."
+                                + "\n@return true if signed")
+                        .returning("boolean").body(bb -> bb.returning("signed")));
+                en.method("constants", mth -> mth.withModifier(PUBLIC)
+                        .docComment("The enum constants the field's value is an ordinal or bit set of, or an "
+                                + "empty list."
+                                + "\n@return An unmodifiable list")
+                        .returning("List<Enum<?>>").body(bb -> bb.returning("constants")));
+                en.method("get", mth -> mth.withModifier(PUBLIC)
+                        .docComment("Read this field from a raw value."
+                                + "\n@param raw A raw value"
+                                + "\n@return The field's value")
+                        .addArgument("long", "raw")
+                        .returning("long").body(bb -> {
+                            bb.declare("bits").initializedWith("(raw & mask) >>> startingBit").as("long");
+                            bb.returning("signed ? (bits << (64 - width)) >> (64 - width) : bits + offset");
+                        }));
+                en.method("set", mth -> mth.withModifier(PUBLIC)
+                        .docComment("Replace this field in a raw value."
+                                + "\n@param raw A raw value"
+                                + "\n@param v The new value"
+                                + "\n@return The new raw value"
+                                + "\n@throws IllegalArgumentException if the value is outside "
+                                + "<code>min()</code> and <code>max()</code>")
+                        .addArgument("long", "raw")
+                        .addArgument("long", "v")
+                        .returning("long").body(bb -> {
+                            bb.iff().booleanExpression("v < min || v > max")
+                                    .statement("throw outOfRange(fieldName, v, min, max)")
+                                    .endIf();
+                            bb.returning("(raw & ~mask) | (((v - offset) << startingBit) & mask)");
+                        }));
+            });
+        }
+
+        /**
+         * Generate the private scanner used by <code>parseJson()</code>,
+         * which reads characters by absolute index from a CharSequence or a
+         * ByteBuffer - where anything a key or a number consists of is
+         * ASCII.
+         */
+        private void generateJsonReader(ClassBuilder<String> result, boolean hasStrings) {
+            result.innerClass("JsonReader", rd -> {
+                rd.docComment("Scans JSON by absolute index from a CharSequence, or as UTF-8 from a ByteBuffer.")
+                        .withModifier(PRIVATE, STATIC, FINAL)
+                        .field("chars", fld -> fld.withModifier(FINAL).ofType("CharSequence"))
+                        .field("bytes", fld -> fld.withModifier(FINAL).ofType("ByteBuffer"))
+                        .field("end", fld -> fld.withModifier(PRIVATE, FINAL).ofType("int"))
+                        .field("pos", fld -> fld.ofType("int"))
+                        .field("escaped", fld -> fld.docComment("Whether the last string scanned contained escapes.")
+                        .ofType("boolean"))
+                        .constructor(con -> con.addArgument("CharSequence", "chars")
+                        .addArgument("ByteBuffer", "bytes")
+                        .addArgument("int", "pos")
+                        .addArgument("int", "end")
+                        .body(bb -> {
+                            bb.statement("this.chars = chars");
+                            bb.statement("this.bytes = bytes");
+                            bb.statement("this.pos = pos");
+                            bb.statement("this.end = end");
+                        }));
+                rd.method("at", mth -> mth.addArgument("int", "ix").returning("int").body(bb -> {
+                    bb.iff().booleanExpression("ix >= end")
+                            .statement("throw new IllegalArgumentException(\"Unexpected end of JSON at \" + ix)")
+                            .endIf();
+                    bb.returning("chars == null ? bytes.get(ix) & 0xFF : chars.charAt(ix)");
+                }));
+                rd.method("fail", mth -> mth.addArgument("String", "msg").returning("IllegalArgumentException")
+                        .body(bb -> bb.returning("new IllegalArgumentException(msg + \" at \" + pos + \" in JSON\")")));
+                rd.method("peek", mth -> mth.docComment("Skip whitespace and return the next character.")
+                        .returning("int").body(bb -> {
+                    bb.declare("c").initializedWith("at(pos)").as("int");
+                    bb.whileLoop(loop -> {
+                        loop.statement("c = at(++pos)");
+                        loop.underCondition().booleanExpression("c == ' ' || c == '\\t' || c == '\\n' || c == '\\r'");
+                    });
+                    bb.returning("c");
+                }));
+                rd.method("expect", mth -> mth.addArgument("char", "c").body(bb -> {
+                    bb.iff().booleanExpression("peek() != c")
+                            .statement("throw fail(\"Expected '\" + c + \"'\")")
+                            .endIf();
+                    bb.statement("pos++");
+                }));
+                rd.method("expectEnd", mth -> mth.body(bb -> {
+                    bb.whileLoop(loop -> {
+                        loop.iff().booleanExpression("\" \\t\\n\\r\".indexOf(at(pos)) < 0")
+                                .statement("throw fail(\"Unexpected content after the JSON object\")")
+                                .endIf();
+                        loop.statement("pos++");
+                        loop.underCondition().booleanExpression("pos < end");
+                    });
+                }));
+                rd.method("string", mth -> mth.docComment("Skip the string at the current position, returning "
+                        + "the index of its first character and leaving the position after its closing quote. "
+                        + "Sets <code>escaped</code> if the raw text cannot be compared as-is.")
+                        .returning("int").body(bb -> {
+                    bb.declare("start").initializedWith("++pos").as("int");
+                    bb.declare("c").initializedWith("at(pos)").as("int");
+                    bb.statement("escaped = false");
+                    bb.whileLoop(loop -> {
+                        loop.iff().booleanExpression("c == '\\\\'")
+                                .statement("escaped = true")
+                                .statement("pos += 2")
+                                .orElse(els -> els.statement("pos++"));
+                        loop.statement("c = at(pos)");
+                        loop.underCondition().booleanExpression("c != '\"'");
+                    });
+                    bb.statement("pos++");
+                    bb.returning("start");
+                }));
+                rd.method("matches", mth -> mth.addArgument("int", "start").addArgument("int", "length")
+                        .addArgument("String", "s").returning("boolean").body(bb -> {
+                    bb.iff().booleanExpression("length != s.length()").returning("false").endIf();
+                    bb.statement("for (int i = 0; i < length; i++) if (at(start + i) != s.charAt(i)) return false");
+                    bb.returning("true");
+                }));
+                rd.method("literal", mth -> mth.addArgument("String", "word").body(bb -> {
+                    bb.iff().booleanExpression("!matches(pos, word.length(), word)")
+                            .statement("throw fail(\"Expected \" + word)")
+                            .endIf();
+                    bb.statement("pos += word.length()");
+                }));
+                rd.method("atNumber", mth -> mth.returning("boolean").body(bb -> {
+                    bb.declare("c").initializedWith("peek()").as("int");
+                    bb.returning("c == '-' || (c >= '0' && c <= '9')");
+                }));
+                rd.method("numberEnd", mth -> mth.returning("int").body(bb -> {
+                    bb.declare("ix").initializedWith("pos").as("int");
+                    bb.statement("while (ix < end && \"+-.eE0123456789\".indexOf(at(ix)) >= 0) ix++");
+                    bb.returning("ix");
+                }));
+                rd.method("integer", mth -> mth.docComment("Read a number as a long, truncating any fraction.")
+                        .returning("long").body(bb -> {
+                    bb.declare("start").initializedWith("pos").as("int");
+                    bb.declare("tokenEnd").initializedWith("numberEnd()").as("int");
+                    bb.declare("negative").initializedWith("start < tokenEnd && at(start) == '-'").as("boolean");
+                    bb.declare("first").initializedWith("negative ? start + 1 : start").as("int");
+                    bb.iff().booleanExpression("first == tokenEnd")
+                            .statement("throw fail(\"Expected a number\")")
+                            .endIf();
+                    bb.statement("pos = tokenEnd");
+                    bb.declare("result").initializedWith("0L").as("long");
+                    bb.declare("ix").initializedWith("first").as("int");
+                    bb.whileLoop(loop -> {
+                        loop.declare("digit").initializedWith("at(ix) - '0'").as("int");
+                        loop.iff().booleanExpression("digit < 0 || digit > 9").statement("break").endIf();
+                        loop.statement("result = result * 10 + digit");
+                        loop.statement("ix++");
+                        loop.underCondition().booleanExpression("ix < tokenEnd && ix - first < 18");
+                    });
+                    bb.iff().booleanExpression("ix < tokenEnd")
+                            .lineComment("A fraction, an exponent or more digits than are safe to accumulate")
+                            .returning("(long) Double.parseDouble(text(start, tokenEnd))")
+                            .endIf();
+                    bb.returning("negative ? -result : result");
+                }));
+                rd.method("real", mth -> mth.returning("double").body(bb -> {
+                    bb.declare("start").initializedWith("pos").as("int");
+                    bb.statement("pos = numberEnd()");
+                    bb.returning("Double.parseDouble(text(start, pos))");
+                }));
+                rd.method("text", mth -> mth.addArgument("int", "from").addArgument("int", "to")
+                        .returning("String").body(bb -> {
+                    bb.iff().booleanExpression("chars != null")
+                            .returning("chars.subSequence(from, to).toString()")
+                            .endIf();
+                    bb.declare("sb").initializedWith("new StringBuilder(to - from)").as("StringBuilder");
+                    bb.statement("for (int i = from; i < to; i++) sb.append((char) at(i))");
+                    bb.returning("sb.toString()");
+                }));
+                rd.method("constant", mth -> mth.docComment("Read an enum constant as a name or an ordinal, "
+                        + "returning its ordinal, or -1 if it is unknown or not a string or number.")
+                        .addArgument("Enum<?>[]", "constants")
+                        .returning("int").body(bb -> {
+                    bb.declare("c").initializedWith("peek()").as("int");
+                    ClassBuilder.IfBuilder<?> iff = bb.iff().booleanExpression("c == '\"'");
+                    iff.declare("start").initializedWith("string()").as("int");
+                    iff.declare("length").initializedWith("pos - 1 - start").as("int");
+                    iff.iff().booleanExpression("escaped")
+                            .declare("name").initializedWith("decode(start, pos - 1)").as("String")
+                            .statement("for (int i = 0; i < constants.length; i++) if (constants[i].name()"
+                                    + ".equals(name)) return i")
+                            .returning("-1")
+                            .endIf();
+                    iff.statement("for (int i = 0; i < constants.length; i++) if (matches(start, length, "
+                            + "constants[i].name())) return i");
+                    iff.returning("-1");
+                    iff.endIf();
+                    ClassBuilder.IfBuilder<?> num = bb.iff().booleanExpression("atNumber()");
+                    num.declare("ordinal").initializedWith("integer()").as("long");
+                    num.returning("ordinal >= 0 && ordinal < constants.length ? (int) ordinal : -1");
+                    num.endIf();
+                    bb.statement("skipValue()");
+                    bb.returning("-1");
+                }));
+                rd.method("constants", mth -> mth.docComment("Read an array of enum constants as a bit set; "
+                        + "anything but an array reads as empty.")
+                        .addArgument("Enum<?>[]", "constants")
+                        .returning("long").body(bb -> {
+                    bb.iff().booleanExpression("peek() != '['")
+                            .statement("skipValue()")
+                            .returning("0L")
+                            .endIf();
+                    bb.statement("pos++");
+                    bb.declare("result").initializedWith("0L").as("long");
+                    bb.iff().booleanExpression("peek() == ']'")
+                            .statement("pos++")
+                            .returning("result")
+                            .endIf();
+                    bb.whileLoop(loop -> {
+                        loop.declare("ordinal").initializedWith("constant(constants)").as("int");
+                        loop.iff().booleanExpression("ordinal >= 0").statement("result |= 1L << ordinal").endIf();
+                        loop.iff().booleanExpression("peek() == ']'")
+                                .statement("pos++")
+                                .returning("result")
+                                .endIf();
+                        loop.statement("expect(',')");
+                        loop.underCondition().booleanExpression("true");
+                    });
+                }));
+                rd.method("skipValue", mth -> mth.body(bb -> {
+                    bb.declare("c").initializedWith("peek()").as("int");
+                    bb.iff().booleanExpression("c == '\"'")
+                            .statement("string()")
+                            .elseIf().booleanExpression("c == 't'")
+                            .statement("literal(\"true\")")
+                            .elseIf().booleanExpression("c == 'f'")
+                            .statement("literal(\"false\")")
+                            .elseIf().booleanExpression("c == 'n'")
+                            .statement("literal(\"null\")")
+                            .elseIf().booleanExpression("c == '{' || c == '['")
+                            .lineComment("Track nesting; only strings need scanning as a unit")
+                            .statement("pos++")
+                            .declare("depth").initializedWith("1").as("int")
+                            .whileLoop(loop -> {
+                                loop.statement("c = peek()");
+                                loop.iff().booleanExpression("c == '\"'")
+                                        .statement("string()")
+                                        .orElse(els -> {
+                                            els.statement("if (c == '{' || c == '[') depth++; "
+                                                    + "else if (c == '}' || c == ']') depth--");
+                                            els.statement("pos++");
+                                        });
+                                loop.underCondition().booleanExpression("depth > 0");
+                            })
+                            .orElse(els -> {
+                                els.declare("start").initializedWith("pos").as("int");
+                                els.statement("pos = numberEnd()");
+                                els.iff().booleanExpression("pos == start")
+                                        .statement("throw fail(\"Unexpected character '\" + (char) c + \"'\")")
+                                        .endIf();
+                            });
+                }));
+                if (hasStrings) {
+                    rd.method("stringValue", mth -> mth.docComment("Read a string, decoding escapes and UTF-8.")
+                            .returning("String").body(bb -> {
+                        bb.declare("start").initializedWith("string()").as("int");
+                        bb.returning("decode(start, pos - 1)");
+                    }));
+                }
+                rd.method("decode", mth -> mth.docComment("Decode escapes and UTF-8 in the body of a string.")
+                        .addArgument("int", "start").addArgument("int", "stop")
+                        .returning("String").body(bb -> {
+                    bb.declare("sb").initializedWith("new StringBuilder(stop - start)").as("StringBuilder");
+                    bb.declare("ix").initializedWith("start").as("int");
+                    bb.whileLoop(loop -> {
+                        loop.declare("c").initializedWith("at(ix++)").as("int");
+                        loop.iff().booleanExpression("c == '\\\\'")
+                                .statement("c = at(ix++)")
+                                .iff().booleanExpression("c == 'u'")
+                                .statement("c = Integer.parseInt(text(ix, ix + 4), 16)")
+                                .statement("ix += 4")
+                                .orElse(els -> els.statement("c = c == 'b' ? '\\b' : c == 'f' ? '\\f' : c == 'n' "
+                                + "? '\\n' : c == 'r' ? '\\r' : c == 't' ? '\\t' : c"))
+                                .elseIf().booleanExpression("chars == null && c >= 0x80")
+                                .lineComment("The lead byte of a UTF-8 sequence gives its length")
+                                .declare("extra").initializedWith("c >= 0xF0 ? 3 : c >= 0xE0 ? 2 : 1").as("int")
+                                .statement("c &= 0x3F >> extra")
+                                .statement("for (int i = 0; i < extra; i++) c = (c << 6) | (at(ix++) & 0x3F)")
+                                .endIf();
+                        loop.statement("sb.appendCodePoint(c)");
+                        loop.underCondition().booleanExpression("ix < stop");
+                    });
+                    bb.returning("sb.toString()");
+                }));
+            });
+        }
+
+        /**
+         * The layout descriptor written alongside the state class - one line
+         * per field, giving its name, starting bit, width and encoding.
+         */
+        String layoutDescriptor() {
+            StringBuilder sb = new StringBuilder("# Bit layout of ").append(el.getQualifiedName())
+                    .append(" - to migrate raw values from it after changing the interface, copy this as ")
+                    .append(el.getSimpleName()).append(".v<n>.layout into its package and add n to ")
+                    .append("@AtomicState(migrateFrom)\n# name start bits encoding\n");
+            for (BitsElement be : toElements()) {
+                sb.append(be.layoutField()).append('\n');
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Read the layout descriptor of a previous version from the source
+         * path or resources.
+         */
+        private List<LayoutField> previousLayout(int version) {
+            String pkg = utils.packageName(el);
+            String file = el.getSimpleName() + ".v" + version + ".layout";
+            Filer filer = utils.processingEnv().getFiler();
+            for (StandardLocation loc : new StandardLocation[]{StandardLocation.SOURCE_PATH,
+                StandardLocation.CLASS_OUTPUT, StandardLocation.CLASS_PATH}) {
+                CharSequence content;
+                try {
+                    content = filer.getResource(loc, pkg, file).getCharContent(true);
+                } catch (IOException | IllegalArgumentException ex) {
+                    continue;
+                }
+                List<LayoutField> result = new ArrayList<>();
+                int lineNumber = 0;
+                for (String line : content.toString().split("\n")) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    LayoutField fld = LayoutField.parse(line);
+                    if (fld == null) {
+                        utils.fail("Malformed line " + lineNumber + " in " + file + ": " + line, el, on);
+                        return null;
+                    }
+                    result.add(fld);
+                }
+                return result;
+            }
+            utils.fail("No layout descriptor " + file + " in package " + pkg + " to migrate from", el, on);
+            return null;
+        }
+
+        private void generateMigrations(ClassBuilder<String> result, boolean isLong) {
+            for (int version : new TreeSet<>(utils.annotationValues(on, "migrateFrom", Integer.class))) {
+                List<LayoutField> previous = previousLayout(version);
+                if (previous != null) {
+                    generateMigration(result, isLong, version, previous);
+                }
+            }
+        }
+
+        /**
+         * Generate <code>migrateFromV<i>n</i>()</code>, which moves each
+         * field of a raw value in a previous layout to its current position,
+         * with any enum remapping done by table lookup, so that converting
+         * stored values is a tight loop with no allocation.
+         */
+        private void generateMigration(ClassBuilder<String> result, boolean isLong, int version,
+                List<LayoutField> previous) {
+            String valType = isLong ? "long" : "int";
+            Map<String, LayoutField> previousFields = new TreeMap<>();
+            for (LayoutField fld : previous) {
+                previousFields.put(fld.name, fld);
+            }
+            result.method("migrateFromV" + version, mth -> {
+                mth.docComment("Convert a raw value in version " + version + " of the layout of "
+                        + el.getSimpleName() + " to the current layout. Fields added since then get "
+                        + "their initial value, fields removed since then are dropped, and enum "
+                        + "constants are matched by name."
+                        + "\n@param raw A raw value in the version " + version + " layout"
+                        + "\n@return A raw value in the current layout"
+                        + "\n@throws IllegalArgumentException if a value cannot be represented in the "
+                        + "current layout, such as a number outside a narrowed range or an enum "
+                        + "constant which no longer exists")
+                        .withModifier(PUBLIC, STATIC)
+                        .addArgument("long", "raw")
+                        .returning(valType)
+                        .body(bb -> {
+                            bb.declare("result").initializedWith("0L").as("long");
+                            for (BitsElement be : toElements()) {
+                                LayoutField was = previousFields.remove(be.name);
+                                if (was == null) {
+                                    bb.lineComment(be.name + " is new since version " + version);
+                                } else {
+                                    migrateField(result, bb, version, was, be.layoutField());
+                                }
+                            }
+                            if (!previousFields.isEmpty()) {
+                                bb.lineComment("Dropped since version " + version + ": "
+                                        + String.join(", ", previousFields.keySet()));
+                            }
+                            String cast = isLong ? "result" : "(int) result";
+                            bb.invoke("validate").withArgument(cast).inScope();
+                            bb.returning(cast);
+                        });
+            });
+        }
+
+        private void migrateField(ClassBuilder<String> cb, BlockBuilder<?> bb, int version,
+                LayoutField was, LayoutField now) {
+            String name = now.name;
+            String extracted = was.start == 0 ? "(raw & " + was.mask() + ")"
+                    : "((raw >>> " + was.start + ") & " + was.mask() + ")";
+            String shift = now.start == 0 ? "" : " << " + now.start;
+            if (was.encoding.equals(now.encoding) && was.args.equals(now.args) && was.bits == now.bits) {
+                bb.statement("result |= " + extracted + shift);
+                return;
+            }
+            String var = name + "Value";
+            String table = name.toUpperCase() + "_FROM_V" + version;
+            if (was.isNumeric() && now.isNumeric()) {
+                bb.declare(var).initializedWith(extracted).as("long");
+                if ("signed".equals(was.encoding) && was.bits < 64) {
+                    bb.statement(var + " = (" + var + " << " + (64 - was.bits) + ") >> " + (64 - was.bits));
+                } else if (was.min() != 0) {
+                    bb.statement(var + " += " + was.min() + "L");
+                }
+                if (was.min() < now.min() || was.max() > now.max()) {
+                    bb.iff().booleanExpression(var + " < " + now.min() + "L || " + var + " > " + now.max() + "L")
+                            .statement("throw new IllegalArgumentException(\"" + name + " of \" + " + var
+                                    + " + \" is outside its current range " + now.min() + " to " + now.max() + "\")")
+                            .endIf();
+                }
+                if ("signed".equals(now.encoding)) {
+                    bb.statement(var + " &= " + now.mask());
+                } else if (now.min() != 0) {
+                    bb.statement(var + " -= " + now.min() + "L");
+                }
+                bb.statement("result |= " + var + shift);
+            } else if ("enum".equals(was.encoding) && "enum".equals(now.encoding) && was.bits <= 16) {
+                List<String> oldConstants = was.constants();
+                List<String> newConstants = now.constants();
+                if (isPrefix(oldConstants, newConstants)) {
+                    bb.lineComment("Constants were only added, so ordinals are unchanged");
+                    bb.statement("result |= " + extracted + shift);
+                    return;
+                }
+                cb.field(table, fld -> {
+                    fld.docComment("Maps the ordinals of " + name + " in version " + version
+                            + " to their current ordinals, or -1 for removed constants.")
+                            .withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo("new int[] {" + remapping(oldConstants, newConstants, 1 << was.bits) + "}")
+                            .ofType("int[]");
+                });
+                String ordinal = name + "Ordinal";
+                bb.declare(ordinal).initializedWith("(int) " + extracted).as("int");
+                bb.declare(var).initializedWith(table + "[" + ordinal + "]").as("int");
+                bb.iff().booleanExpression(var + " < 0")
+                        .statement("throw new IllegalArgumentException(\"The constant of " + name + " with ordinal \" + "
+                                + ordinal + " + \" in version " + version + " no longer exists\")")
+                        .endIf();
+                bb.statement("result |= (long) " + var + shift);
+            } else if ("flags".equals(was.encoding) && "flags".equals(now.encoding)) {
+                List<String> oldConstants = was.constants();
+                List<String> newConstants = now.constants();
+                if (isPrefix(oldConstants, newConstants)) {
+                    bb.lineComment("Constants were only added, so bit positions are unchanged");
+                    bb.statement("result |= " + extracted + shift);
+                    return;
+                }
+                cb.field(table, fld -> {
+                    fld.docComment("Maps the bits of " + name + " in version " + version
+                            + " to their current bits, or -1 for removed constants, which are dropped.")
+                            .withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo("new int[] {" + remapping(oldConstants, newConstants, was.bits) + "}")
+                            .ofType("int[]");
+                });
+                bb.declare(var).initializedWith(extracted).as("long");
+                bb.whileLoop(loop -> {
+                    loop.declare("to").initializedWith(table + "[Long.numberOfTrailingZeros(" + var + ")]").as("int");
+                    loop.iff().booleanExpression("to >= 0")
+                            .statement(now.start == 0 ? "result |= 1L << to" : "result |= 1L << (to + " + now.start + ")")
+                            .endIf();
+                    loop.statement(var + " &= " + var + " - 1");
+                    loop.underCondition().booleanExpression(var + " != 0");
+                });
+            } else {
+                utils.fail("Cannot migrate " + name + " from version " + version + ", where it was stored as "
+                        + was.encoding + " " + String.join(" ", was.args) + ", to " + now.encoding + " "
+                        + String.join(" ", now.args) + " - to start it afresh, rename it", el, on);
+            }
+        }
+
+        ClassBuilder<String> generateListener() {
+            boolean changeSupport = utils.annotationValue(on, "generateChangeSupport", Boolean.class, false);
+
+            if (!changeSupport) {
+                return null;
+            }
+            String stateName = el.getSimpleName() + "State";
+            String listenerClassName = stateName + "Listener";
+            ClassBuilder<String> listenerClass = ClassBuilder.forPackage(utils.packageName(el))
                     .named(listenerClassName)
                     .withModifier(PUBLIC);
 
@@ -774,6 +2867,41 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                                             });
                                 });
                     })
+                    .method("async", mth -> {
+                        listenerClass.importing(LISTENER_DISPATCHER_TYPE);
+                        mth.docComment("Create a listener which will be invoked asynchronously by the passed "
+                                + "shared dispatcher.  Events are dispatched with the holder's current-state "
+                                + "supplier as their affinity, so events from any one holder are delivered "
+                                + "in order, on the same dispatcher thread, while events from many holders "
+                                + "are spread across the dispatcher's bounded set of threads."
+                                + "\n@param dispatcher A dispatcher, typically shared by many holders"
+                                + "\n@param delegate The listener which should be invoked asynchronously"
+                                + "\n@return A listener which wraps the delegate an executes it asynchronously"
+                        ).withModifier(STATIC)
+                                .returning(listenerClassName)
+                                .addArgument("ListenerDispatcher", "dispatcher")
+                                .addArgument(listenerClassName, "delegate")
+                                .body(bb -> {
+                                    bb.returningLambda()
+                                            .withArgument("previousState")
+                                            .withArgument("changedToState")
+                                            .withArgument("currentStateGetter")
+                                            .body(lbb -> {
+                                                lbb.invoke("dispatch")
+                                                        .withArgument("currentStateGetter")
+                                                        .withLambdaArgument(sublbb -> {
+                                                            sublbb.body(b -> {
+                                                                b.invoke("onChange")
+                                                                        .withArgument("previousState")
+                                                                        .withArgument("changedToState")
+                                                                        .withArgument("currentStateGetter")
+                                                                        .on("delegate");
+                                                            });
+                                                        })
+                                                        .on("dispatcher");
+                                            });
+                                });
+                    })
                     .method("andThen", mth -> {
                         mth.withModifier(DEFAULT)
                                 .docComment("Chain this Listener and another, returning a Listener that "
@@ -834,64 +2962,32 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                             .ofType("Supplier<" + stateName + ">");
                 });
 
-                result.innerClass("Holder", sh -> {
-                    sh.docComment("Holds the old state computed within the lambda for updateAndGet, so that "
-                            + "we have a previous state to compare with to decide if the listener should be "
-                            + "notified.  The <code>set()</code> method may be called multiple times under "
-                            + "contention.")
-                            .withModifier(PRIVATE, STATIC, FINAL)
-                            .field("changedState", cs -> {
-                                cs.withModifier(PRIVATE)
-                                        .ofType(stateName);
-                            })
-                            .method("set", set -> {
-                                set.addArgument(stateName, "newState")
-                                        .returning(stateName)
-                                        .body(bb -> {
-                                            bb.lineComment("Note that, due to the way atomic updateAndGet methods function,")
-                                                    .lineComment("this method may be called multiple times");
-                                            bb.assertingNotNull("newState");
-                                            bb.ifNull("newState")
-                                                    .andThrow(nb -> {
-                                                        nb.withStringLiteral("New state may not be null")
-                                                                .ofType("IllegalArgumentException");
-                                                    }).endIf();
-                                            bb.assign("changedState").toExpression("newState");
-                                            bb.returning("newState");
-                                        });
-                            })
-                            .method("get", get -> {
-                                get.returning(stateName)
-                                        .body(bb -> {
-                                            bb.ifNull("changedState")
-                                                    .andThrow(nb -> {
-                                                        nb.withStringLiteral("New state was not set")
-                                                                .ofType("IllegalStateException");
-                                                    }).endIf();
-
-                                            bb.returning("changedState");
-                                        });
-                            });
-                });
-
             }
 
+            boolean transactional = utils.annotationValue(on, "transactional", Boolean.class, false);
             String atomicType = isLong ? "AtomicLong" : "AtomicInteger";
             result.importing(UnaryOperator.class);
-            if (isLong) {
+            if (transactional) {
+                // Same API as the atomic it replaces, so the rest of the holder
+                // is generated the same way
+                atomicType = isLong ? "McasCell.OfLong" : "McasCell.OfInt";
+                result.importing(MCAS_CELL_TYPE);
+                generateParticipantMethods(result, stateName, isLong, changeSupport);
+            } else if (isLong) {
                 result.importing(AtomicLong.class);
             } else {
                 result.importing(AtomicInteger.class);
             }
 
-            String stateMethod = "new" + stateName;
-
-            result.importing("static " + result.packageName() + "." + stateName + "." + stateMethod);
+            // The holder's value can only have been written by generated code,
+            // so skip validation when reading it
+            String stateMethod = stateName + ".trusted";
 
+            String cellType = atomicType;
             result.field("state").withModifier(PRIVATE, FINAL)
                     .initializedWithNew(nb
-                            -> nb.ofType(atomicType))
-                    .ofType(atomicType);
+                            -> nb.ofType(cellType))
+                    .ofType(cellType);
 
             result.method("state", mth -> {
                 mth.withModifier(PUBLIC)
@@ -903,150 +2999,90 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                                     .on("state").inScope();
                         });
             });
-            String valueMethod = isLong ? "getAsLong" : "getAsInt";
-
-            if (changeSupport) {
-                result.method("updateAndGetNoListener", mth -> {
-                    mth.withModifier(PRIVATE)
-                            .addArgument("UnaryOperator<" + stateName + ">", "transition")
-                            .returning(stateName)
+            result.method("rawValue", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Get the raw " + (isLong ? "long" : "int") + " value of the current "
+                                + "state using an acquire load, without constructing a " + stateName
+                                + " - useful for cheaply polling for changes, e.g. with a "
+                                + "<code>StateSampler</code>.\n@return the raw value")
+                        .returning(isLong ? "long" : "int")
+                        .body(bb -> {
+                            bb.returningInvocationOf("getAcquire")
+                                    .on("state");
+                        });
+            });
+
+            if (stampElement(toElements()).isPresent()) {
+                result.method("tryOptimisticRead", mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Get a stamp for an optimistic read of data guarded by this holder's "
+                                    + "state, which can later be checked with <code>validate()</code>, in the "
+                                    + "style of <code>StampedLock</code>."
+                                    + "\n@return the current stamp")
+                            .returning("long")
                             .body(bb -> {
-                                bb.lineComment("Separating this into another method gives it a better chance")
-                                        .lineComment("of being inlined by the compiler");
-                                bb.declare("result")
-                                        .initializedByInvoking("updateAndGet")
-                                        .withLambdaArgument(lb -> {
-                                            lb.withArgument("old")
-                                                    .body(lbb -> {
-                                                        lbb.returningInvocationOf(valueMethod)
-                                                                .onInvocationOf("apply")
-                                                                .withArgumentFromInvoking(stateMethod)
-                                                                .withArgument("old")
-                                                                .inScope()
-                                                                .on("transition");
-                                                    });
-                                        }).on("state").as(isLong ? "long" : "int");
-                                bb.returningInvocationOf(stateMethod).withArgument("result").inScope();
+                                bb.returningInvocationOf("stampOf")
+                                        .withArgumentFromInvoking("getAcquire")
+                                        .on("state")
+                                        .on(stateName);
+                            });
+                });
+                result.method("validate", mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Determine whether any change has been committed since the passed "
+                                    + "stamp was obtained from <code>tryOptimisticRead()</code>, meaning that "
+                                    + "any reads performed since then must be discarded and retried."
+                                    + "\n@param stamp a stamp"
+                                    + "\n@return true if no change has been committed since the stamp was obtained")
+                            .addArgument("long", "stamp")
+                            .returning("boolean")
+                            .body(bb -> {
+                                bb.lineComment("Ensure reads of guarded data preceding this call are not "
+                                        + "reordered after the read of the state");
+                                bb.invoke("acquireFence").on("java.lang.invoke.VarHandle");
+                                bb.returning("stamp == " + stateName + ".stampOf(state.get())");
                             });
                 });
             }
 
+            String valueMethod = isLong ? "getAsLong" : "getAsInt";
+
             result.method("updateAndGet", mth -> {
                 mth.withModifier(PUBLIC)
                         .addArgument("UnaryOperator<" + stateName + ">", "transition")
                         .returning(stateName)
                         .docComment("Update the state, applying the passed UnaryOperator"
-                                + " and returning the new value."
+                                + " and returning the new value.  If the transition does not change "
+                                + "the state, nothing is written."
                                 + "\nNote that, per the contract of AtomicInteger/AtomicLong, "
                                 + "the passed unary operator may be called more than once, and must be stateless, itself."
                                 + "\n@param transition A UnaryOperator that computes a new state given an old one."
                                 + "\n@return the new state")
                         .body(bb -> {
+                            generateCasLoop(bb, stateName, isLong, "state.get()", "state.compareAndSet(");
                             if (changeSupport) {
-                                ClassBuilder.IfBuilder<?> noHolder = bb.ifNull("listener");
-                                noHolder.returningInvocationOf("updateAndGetNoListener")
-                                        .withArgument("transition")
-                                        .inScope().endIf();
-                            }
-                            if (changeSupport) {
-                                bb.declare("holder")
-                                        .initializedWith("new Holder()")
-                                        .as("Holder");
-                            }
-                            bb.declare("result")
-                                    .initializedByInvoking("updateAndGet")
-                                    .withLambdaArgument(lb -> {
-                                        lb.withArgument("old")
-                                                .body(lbb -> {
-                                                    if (changeSupport) {
-                                                        lbb.returningInvocationOf(valueMethod)
-                                                                .onInvocationOf("apply")
-                                                                .withArgumentFromInvoking("set")
-                                                                .withArgumentFromInvoking(stateMethod)
-                                                                .withArgument("old")
-                                                                .inScope()
-                                                                .on("holder")
-                                                                .on("transition");
-
-                                                    } else {
-                                                        lbb.returningInvocationOf(valueMethod)
-                                                                .onInvocationOf("apply")
-                                                                .withArgumentFromInvoking(stateMethod)
-                                                                .withArgument("old")
-                                                                .inScope()
-                                                                .on("transition");
-                                                    }
-                                                });
-                                    }).on("state").as(isLong ? "long" : "int");
-                            if (changeSupport) {
-                                bb.declare("newValue")
-                                        .initializedByInvoking(stateMethod)
-                                        .withArgument("result")
-                                        .inScope().as(stateName);
-                                bb.iff().booleanExpression("!newValue.equals(holder.get())")
-                                        .invoke("onChange")
-                                        .withArgumentFromInvoking("get").on("holder")
-                                        .withArgument("newValue")
-                                        .withArgument("getter")
-                                        .on("listener")
-                                        .endIf();
-                                bb.returning("newValue");
-                            } else {
-                                bb.returningInvocationOf(stateMethod).withArgument("result").inScope();
+                                generateNotify(bb, stateName);
                             }
+                            bb.returningInvocationOf(stateMethod).withArgument("newValue").inScope();
                         });
             });
             result.method("getAndUpdate", mth -> {
                 mth.withModifier(PUBLIC)
                         .addArgument("UnaryOperator<" + stateName + ">", "transition")
                         .docComment("Update the state, applying the passed UnaryOperator"
-                                + " and returning the <i>old</i> value."
+                                + " and returning the <i>old</i> value.  If the transition does not "
+                                + "change the state, nothing is written."
                                 + "\nNote that, per the contract of AtomicInteger/AtomicLong, "
                                 + "the passed unary operator may be called more than once, and must be stateless, itself."
                                 + "\n@param transition A UnaryOperator that computes a new state given an old one."
                                 + "\n@return the previous value")
                         .returning(stateName)
                         .body(bb -> {
-                            bb.declare("result")
-                                    .initializedByInvoking("getAndUpdate")
-                                    .withLambdaArgument(lb -> {
-                                        lb.withArgument("old")
-                                                .body(lbb -> {
-                                                    lbb.returningInvocationOf(valueMethod)
-                                                            .onInvocationOf("apply")
-                                                            .withArgumentFromInvoking(stateMethod)
-                                                            .withArgument("old")
-                                                            .inScope()
-                                                            .on("transition");
-                                                });
-                                    }).on("state").as(isLong ? "long" : "int");
+                            generateCasLoop(bb, stateName, isLong, "state.get()", "state.compareAndSet(");
                             if (changeSupport) {
-                                bb.iff(iff -> {
-                                    ClassBuilder.IfBuilder<?> ib = iff.isNotNull("listener")
-                                            .endCondition();
-                                    ib.declare("oldState")
-                                            .initializedByInvoking(stateMethod)
-                                            .withArgument("result")
-                                            .inScope()
-                                            .as(stateName);
-                                    ib.declare("newState")
-                                            .initializedByInvoking("apply")
-                                            .withArgument("oldState")
-                                            .on("transition")
-                                            .as(stateName);
-                                    ClassBuilder.IfBuilder<?> nif = ib.iff().booleanExpression("!oldState.equals(newState)");
-                                    nif.invoke("onChange")
-                                            .withArgument("oldState")
-                                            .withArgument("newState")
-                                            .withArgument("getter")
-                                            .on("listener")
-                                            .endIf();
-                                    ib.returning("oldState").endIf();
-                                });
+                                generateNotify(bb, stateName);
                             }
-
-                            bb.returningInvocationOf(stateMethod)
-                                    .withArgument("result").inScope();
+                            bb.returningInvocationOf(stateMethod).withArgument("oldValue").inScope();
                         });
             });
 
@@ -1125,179 +3161,1271 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                                         nb.withStringLiteral("New state may not be null.")
                                                 .ofType("IllegalArgumentException");
                                     }).endIf();
-                            bb.declare("oldState").initializedByInvoking("getAndUpdate")
-                                    .withLambdaArgument(lb -> {
-                                        lb.withArgument("old")
-                                                .body().returning("newState").endBlock();
-                                    }).inScope()
-                                    .as(stateName);
+                            bb.declare("transition")
+                                    .initializedWith("ignored -> newState")
+                                    .as("UnaryOperator<" + stateName + ">");
+                            generateCasLoop(bb, stateName, isLong, "state.get()", "state.compareAndSet(");
                             if (changeSupport) {
-                                bb.declare("unchanged")
-                                        .initializedByInvoking("equals")
-                                        .withArgument("newState")
-                                        .on("oldState")
-                                        .as("boolean");
-
-                                bb.iff().booleanExpression("!unchanged && listener != null")
-                                        .invoke("onChange")
-                                        .withArgument("oldState")
-                                        .withArgument("newState")
-                                        .withArgument("getter")
-                                        .on("listener")
-                                        .endIf();
-
-                                bb.returning("!unchanged");
-                            } else {
-                                bb.statement("return !newState.equals(oldState)");
+                                generateNotify(bb, stateName);
                             }
+                            bb.returning("newValue != oldValue");
                         });
             });
 
+            if (utils.annotationValue(on, "runtimeInterfaces", Boolean.class, false)) {
+                generateHolderInterfaceMethods(result, stateName, isLong, changeSupport);
+            }
+            generateUpdateRaw(result, stateName, isLong, changeSupport, false);
+            generateAcquireMethods(result, stateName, isLong, changeSupport);
+            if (utils.annotationValue(on, "combining", Boolean.class, false)) {
+                generateCombiningMethods(result, stateName, isLong, changeSupport);
+            }
+            generateBufferedMethods(result, stateName);
+            generateFlagMethods(result);
+            generateTimestampMethods(result, stateName);
             return result;
         }
 
-        ClassBuilder<String> generator() {
-            int totalBits = totalBitsNeeded();
-            boolean isLong = totalBits > 32;
-            String valueType = isLong ? "long" : "int";
-
-            ClassBuilder<String> result = ClassBuilder.forPackage(utils.packageName(el))
-                    .named(el.getSimpleName() + "State")
-                    .importing(Serializable.class)
-                    .implementing("Serializable")
-                    //                    .generateDebugLogCode()
-                    .withModifier(PUBLIC, FINAL)
-                    .implementing(el.getSimpleName().toString())
-                    .docComment("Wraps a single " + valueType
-                            + " as an implementation of " + el.getSimpleName()
-                            + ", using " + totalBits + " bits."
-                    )
-                    .field("value", fld -> {
-                        fld.withModifier(PRIVATE, FINAL)
-                                .ofType(valueType);
-                    })
-                    .field("serialVersionUid", fld -> {
-                        fld.withModifier(PRIVATE, STATIC, FINAL)
-                                .initializedWith(serialVersionUid());
-                    })
-                    .constructor(con -> {
-                        con.setModifier(PUBLIC)
-                                .addArgument(valueType, "value")
-                                .body(bb -> {
-                                    bb.invoke("validate").withArgument("value").inScope();
-                                    bb.statement("this.value = value");
-                                });
-                    });
-
-            if (isLong) {
-                result.importing(LongSupplier.class);
-                result.implementing("LongSupplier");
-                result.overridePublic("getAsLong")
-                        .returning("long")
-                        .bodyReturning("value");
-            } else {
-                result.importing(IntSupplier.class);
-                result.implementing("IntSupplier");
-                result.overridePublic("getAsInt")
-                        .returning("int")
-                        .bodyReturning("value");
+        private void generateTimestampMethods(ClassBuilder<String> result, String stateName) {
+            for (BitsElement be : toElements()) {
+                if (!be.isTimestamp()) {
+                    continue;
+                }
+                String cap = capitalize(be.name);
+                result.method("touch" + cap, mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Atomically set " + be.name + " to the current time on the coarse clock."
+                                    + "\n@return The new state")
+                            .returning(stateName)
+                            .body(bb -> bb.returning("updateAndGet(old -> old.with" + cap + "Now())"));
+                });
+                result.method("elapsedSince" + cap, mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Get the time elapsed since " + be.name + " in the current state."
+                                    + "\n@return The elapsed time in units of its resolution")
+                            .returning("long")
+                            .body(bb -> bb.returning("state().elapsedSince" + cap + "()"));
+                });
             }
+        }
 
-            result.field("INITIAL")
-                    .withModifier(PUBLIC, STATIC, FINAL)
-                    .initializedWithNew(nb -> {
-                        nb.withArgument(0)
-                                .ofType(result.className());
-                    }).ofType(result.className());
-
-            result.method("new" + result.className())
-                    .docComment("Create a new " + result.className() + "."
-                            + "\n@param the initial value"
-                            + "\n@return A " + result.className()
-                            + "\n@throws IllegalArgumentException if the passed value is "
-                            + "outside the bounds of the possible values of "
-                            + result.className())
-                    .withModifier(PUBLIC, STATIC)
-                    .addArgument(valueType, "initialValue")
-                    .returning(result.className())
-                    .body().returningNew().withArgument("initialValue")
-                    .ofType(result.className());
-
-            boolean invMaskIsZero;
-            if (isLong) {
-                long allMask = 0;
-                for (int i = 0; i < totalBits; i++) {
-                    allMask |= 1L << i;
-                }
-                invMaskIsZero = ~allMask == 0;
-                if (!invMaskIsZero) {
-                    result.field("ALL_INV_MASK")
-                            .docComment("" + allMask + " inv " + (~allMask) + " bits " + totalBits)
-                            .withModifier(FINAL, PRIVATE, STATIC)
-                            .initializedTo(asBinaryString(~allMask))
-                            .ofType("long");
-                }
-            } else {
-                int allMask = 0;
-                for (int i = 0; i < totalBits; i++) {
-                    allMask |= 1 << i;
-                }
-                invMaskIsZero = ~allMask == 0;
-                if (!invMaskIsZero) {
-                    result.field("ALL_INV_MASK")
-                            .withModifier(FINAL, PRIVATE, STATIC)
-                            .initializedTo(asBinaryString(~allMask))
-                            .ofType("int");
+        private void generateFlagMethods(ClassBuilder<String> result) {
+            for (BitsElement be : toElements()) {
+                if (be.flagType == null) {
+                    continue;
                 }
+                String et = be.flagTypeName(result);
+                String cap = capitalize(be.name);
+                result.method("addTo" + cap, mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Atomically add one constant to " + be.name + "."
+                                    + "\n@param flag A constant"
+                                    + "\n@return true if it was not already present")
+                            .addArgument(et, "flag")
+                            .returning("boolean")
+                            .body(bb -> bb.returning("!getAndUpdate(old -> old.with" + cap
+                                    + "Added(flag))." + be.name + "Contains(flag)"));
+                });
+                result.method("removeFrom" + cap, mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Atomically remove one constant from " + be.name + "."
+                                    + "\n@param flag A constant"
+                                    + "\n@return true if it was present")
+                            .addArgument(et, "flag")
+                            .returning("boolean")
+                            .body(bb -> bb.returning("getAndUpdate(old -> old.with" + cap
+                                    + "Removed(flag))." + be.name + "Contains(flag)"));
+                });
             }
+        }
 
-            List<BitsElement> elements = toElements();
-
-            result.method("validate", mth -> {
-                mth.docComment("Ensures that the passed value is valid."
-                        + "\n@param value The value a " + result.className() + " is "
-                        + "being constructed for"
-                        + "\n@throws IllegalArgumentException if the value is outside the "
-                        + "bounds of the possible values of " + result.className()
-                );
+        private void generateBufferedMethods(ClassBuilder<String> result, String stateName) {
+            List<BitsElement> buffered = new ArrayList<>();
+            for (BitsElement be : toElements()) {
+                if (utils.findMirror(be.origin, BUFFERED_ANNO) != null) {
+                    buffered.add(be);
+                }
+            }
+            if (buffered.isEmpty()) {
+                return;
+            }
+            result.importing(STRIPED_DELTA_TYPE);
+            String valueMethod = totalBitsNeeded() > 32 ? "getAsLong" : "getAsInt";
+            for (BitsElement be : buffered) {
+                String cap = capitalize(be.name);
+                String type = be.origin.getReturnType().toString();
+                int threshold = utils.annotationValue(utils.findMirror(be.origin, BUFFERED_ANNO),
+                        "flushThreshold", Integer.class, 64);
+                TypeKind kind = be.origin.getReturnType().getKind();
+                long min = be.range.map(r -> r.min).orElse(minValueOf(kind));
+                long max = be.range.map(r -> r.max).orElse(maxValueOf(kind));
+                String pending = be.name + "Pending";
+                result.field(pending, fld -> {
+                    fld.withModifier(PRIVATE, FINAL)
+                            .initializedWithNew(nb -> nb.withArgument(threshold).ofType("StripedDelta"))
+                            .ofType("StripedDelta");
+                });
+                result.method("bufferedAdd" + cap, mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Add to " + be.name + " without touching the state, unless the "
+                                    + "pending delta of the stripe the calling thread maps to (which other "
+                                    + "threads may share) reaches " + threshold + ", in which case it is "
+                                    + "committed.  Whatever part of it would take " + be.name + " out of its "
+                                    + "range stays pending."
+                                    + "\n@param delta The amount to add (may be negative)")
+                            .addArgument("int", "delta")
+                            .body(bb -> {
+                                bb.declare("toCommit").initializedByInvoking("add")
+                                        .withArgument("delta").on(pending).as("long");
+                                ClassBuilder.IfBuilder<?> iff = bb.iff().booleanExpression("toCommit != 0");
+                                iff.declare("old").initializedByInvoking("getAndUpdate")
+                                        .withLambdaArgument(lb -> {
+                                            lb.withArgument("o")
+                                                    .body(lbb -> lbb.returning("o.with" + cap + "((" + type
+                                                    + ") clamp(o." + be.name + "() + toCommit, "
+                                                    + min + "L, " + max + "L))"));
+                                        }).inScope().as(stateName);
+                                iff.lineComment("A decrement committed before its increment must not be lost");
+                                iff.statement(pending + ".putBack(overflow(old." + be.name + "() + toCommit, "
+                                        + min + "L, " + max + "L))");
+                                iff.endIf();
+                            });
+                });
+                result.method("estimated" + cap, mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Get the committed value of " + be.name + " plus any deltas which "
+                                    + "have been added but not yet committed, clamped to its range."
+                                    + "\n@return An estimate")
+                            .returning(type)
+                            .body(bb -> {
+                                bb.returning("(" + type + ") clamp(state()." + be.name + "() + "
+                                        + pending + ".pending(), " + min + "L, " + max + "L)");
+                            });
+                });
+            }
+            result.method("flush", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Commit all pending buffered deltas in a single update; any part of "
+                                + "a delta which would take a field out of its range stays pending."
+                                + "\n@return The state after committing")
+                        .returning(stateName)
+                        .body(bb -> {
+                            StringBuilder test = new StringBuilder();
+                            for (BitsElement be : buffered) {
+                                bb.declare(be.name + "Delta").initializedByInvoking("drain")
+                                        .on(be.name + "Pending").as("long");
+                                if (test.length() > 0) {
+                                    test.append(" && ");
+                                }
+                                test.append(be.name).append("Delta == 0");
+                            }
+                            bb.iff().booleanExpression(test.toString())
+                                    .returning("state()").endIf();
+                            StringBuilder expr = new StringBuilder("o -> o");
+                            for (BitsElement be : buffered) {
+                                TypeKind kind = be.origin.getReturnType().getKind();
+                                long min = be.range.map(r -> r.min).orElse(minValueOf(kind));
+                                long max = be.range.map(r -> r.max).orElse(maxValueOf(kind));
+                                expr.append(".with").append(capitalize(be.name))
+                                        .append("((").append(be.origin.getReturnType())
+                                        .append(") clamp(o.").append(be.name).append("() + ")
+                                        .append(be.name).append("Delta, ").append(min)
+                                        .append("L, ").append(max).append("L))");
+                            }
+                            bb.declare("transition").initializedWith(expr.toString())
+                                    .as("UnaryOperator<" + stateName + ">");
+                            bb.declare("old").initializedByInvoking("getAndUpdate")
+                                    .withArgument("transition").inScope().as(stateName);
+                            for (BitsElement be : buffered) {
+                                TypeKind kind = be.origin.getReturnType().getKind();
+                                long min = be.range.map(r -> r.min).orElse(minValueOf(kind));
+                                long max = be.range.map(r -> r.max).orElse(maxValueOf(kind));
+                                bb.statement(be.name + "Pending.putBack(overflow(old." + be.name + "() + "
+                                        + be.name + "Delta, " + min + "L, " + max + "L))");
+                            }
+                            bb.lineComment("Recompute what getAndUpdate() committed rather than reading it back, "
+                                    + "which could include later changes");
+                            bb.returning(stateName + ".trusted(" + stateName + ".applyTransition(old."
+                                    + valueMethod + "(), transition))");
+                        });
+            });
+            result.method("overflow", mth -> {
                 mth.withModifier(PRIVATE, STATIC)
-                        .addArgument(valueType, "value")
+                        .docComment("The part of a value outside a range, which cannot be committed.")
+                        .addArgument("long", "value")
+                        .addArgument("long", "min")
+                        .addArgument("long", "max")
+                        .returning("long")
+                        .body(bb -> bb.returning("value - clamp(value, min, max)"));
+            });
+            result.method("clamp", mth -> {
+                mth.withModifier(PRIVATE, STATIC)
+                        .addArgument("long", "value")
+                        .addArgument("long", "min")
+                        .addArgument("long", "max")
+                        .returning("long")
+                        .body(bb -> bb.returning("Math.max(min, Math.min(max, value))"));
+            });
+        }
+
+        private void generateCombiningMethods(ClassBuilder<String> result, String stateName,
+                boolean isLong, boolean changeSupport) {
+            String stateMethod = stateName + ".trusted";
+            String cast = isLong ? "" : "(int) ";
+            result.importing(FLAT_COMBINER_TYPE);
+            if (changeSupport) {
+                result.method("combined", mth -> {
+                    mth.withModifier(PRIVATE)
+                            .addArgument("long", "previous")
+                            .addArgument("long", "current")
+                            .body(bb -> {
+                                bb.iff().booleanExpression("listener != null")
+                                        .statement("listener.onChange(" + stateMethod + "(" + cast + "previous), "
+                                                + stateMethod + "(" + cast + "current), getter)")
+                                        .endIf();
+                            });
+                });
+            }
+            result.field("combiner", fld -> {
+                // Lambdas over this.state rather than method references, which
+                // would capture the state field before it is initialized if the
+                // fields are sorted differently
+                fld.withModifier(PRIVATE, FINAL)
+                        .docComment("Combines contending updates made through the combining* methods.")
+                        .initializedTo("new FlatCombiner(() -> this.state.get(), "
+                                + "(expected, update) -> this.state.compareAndSet(" + cast + "expected, "
+                                + cast + "update), "
+                                + (changeSupport ? "this::combined)" : "null)"))
+                        .ofType("FlatCombiner");
+            });
+            result.method("combiningUpdateAndGet", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Update the state via a flat combiner: under contention, one thread "
+                                + "applies the pending transitions of all contending threads and commits "
+                                + "them with a single compare-and-set."
+                                + "\n<p>As with <code>updateAndGet()</code>, the transition may be called "
+                                + "more than once, and must be stateless.</p>"
+                                + "\n@param transition A UnaryOperator that computes a new state given an old one."
+                                + "\n@return the state committed by the batch of updates which included "
+                                + "this one, which may reflect other threads' updates too")
+                        .addArgument("UnaryOperator<" + stateName + ">", "transition")
+                        .returning(stateName)
                         .body(bb -> {
-                            if (!invMaskIsZero) {
-                                bb.iff().booleanExpression("(value & ALL_INV_MASK) != 0")
+                            bb.returning(stateMethod + "(" + cast + "combiner.update(old -> "
+                                    + stateName + ".applyTransition(" + cast + "old, transition)))");
+                        });
+            });
+            List<BitsElement> elements = toElements();
+            boolean anyAdders = false;
+            for (int i = 0; i < elements.size(); i++) {
+                BitsElement be = elements.get(i);
+                TypeKind kind = be.origin.getReturnType().getKind();
+                if (be.isEnum || be.isStamp()) {
+                    continue;
+                }
+                String type;
+                switch (kind) {
+                    case BYTE:
+                    case SHORT:
+                    case INT:
+                        type = kind.name().toLowerCase();
+                        break;
+                    default:
+                        continue;
+                }
+                anyAdders = true;
+                int key = i;
+                String cap = capitalize(be.name);
+                String adder = "ADD_TO_" + be.name.toUpperCase();
+                long min = be.range.map(r -> r.min).orElse(minValueOf(kind));
+                long max = be.range.map(r -> r.max).orElse(maxValueOf(kind));
+                result.field(adder).withModifier(PRIVATE, STATIC, FINAL)
+                        .initializedTo("(raw, delta) -> " + stateName + ".applyTransition(" + cast
+                                + "raw, state -> state.with" + cap + "((" + type + ") checkedAdd(state."
+                                + be.name + "(), delta, " + min + "L, " + max + "L, \"" + be.name + "\")))")
+                        .ofType("LongBinaryOperator");
+                result.method("combiningAdd" + cap, mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Add to " + be.name + " via a flat combiner; additions made to "
+                                    + be.name + " by contending threads are summed and applied together."
+                                    + "\n@param delta The amount to add (may be negative)"
+                                    + "\n@return the state committed by the batch of updates which included "
+                                    + "this one"
+                                    + "\n@throws IllegalArgumentException if the result would be out of range")
+                            .addArgument("int", "delta")
+                            .returning(stateName)
+                            .body(bb -> {
+                                bb.returning(stateMethod + "(" + cast + "combiner.add(" + key
+                                        + ", delta, " + adder + "))");
+                            });
+                });
+            }
+            if (anyAdders) {
+                result.importing(LongBinaryOperator.class);
+                result.method("checkedAdd", mth -> {
+                    mth.withModifier(PRIVATE, STATIC)
+                            .addArgument("long", "value")
+                            .addArgument("long", "delta")
+                            .addArgument("long", "min")
+                            .addArgument("long", "max")
+                            .addArgument("String", "name")
+                            .returning("long")
+                            .body(bb -> {
+                                bb.declare("result").initializedWith("value + delta").as("long");
+                                bb.iff().booleanExpression("result < min || result > max "
+                                        + "|| ((value ^ result) & (delta ^ result)) < 0")
                                         .andThrow(nb -> {
-                                            nb.withStringConcatentationArgument("Value contains "
-                                                    + "set bits which must not be set in a " + result.className() + ": ")
-                                                    .appendInvocationOf("toBinaryString")
-                                                    .withArgument("value & ALL_INV_MASK")
-                                                    .on("Long")
+                                            nb.withStringConcatentationArgument("Adding ")
+                                                    .appendExpression("delta")
+                                                    .append(" to ")
+                                                    .appendExpression("name")
+                                                    .append(" value ")
+                                                    .appendExpression("value")
+                                                    .append(" is out of range ")
+                                                    .appendExpression("min")
+                                                    .append(" to ")
+                                                    .appendExpression("max")
                                                     .endConcatenation()
                                                     .ofType("IllegalArgumentException");
                                         }).endIf();
-                            }
-                            elements.forEach(el -> el.contributeValidationClause(isLong, bb));
+                                bb.returning("result");
+                            });
+                });
+            }
+        }
+
+        private void generateAcquireMethods(ClassBuilder<String> result, String stateName,
+                boolean isLong, boolean changeSupport) {
+            List<BitsElement> acquirables = new ArrayList<>();
+            boolean anyBlocking = false;
+            for (BitsElement be : toElements()) {
+                AnnotationMirror acq = utils.findMirror(be.origin, ACQUIRABLE_ANNO);
+                if (acq != null) {
+                    acquirables.add(be);
+                    anyBlocking |= utils.annotationValue(acq, "blocking", Boolean.class, false);
+                }
+            }
+            if (acquirables.isEmpty()) {
+                return;
+            }
+            String valType = isLong ? "long" : "int";
+            String stateMethod = stateName + ".trusted";
+            String predType = "Predicate<? super " + stateName + ">";
+            String opType = "UnaryOperator<" + stateName + ">";
+            result.importing(Predicate.class);
+
+            result.method("tryAcquire", mth -> {
+                mth.withModifier(PRIVATE)
+                        .docComment("Atomically apply the passed transition if, and only if, the "
+                                + "passed test is true of the current state."
+                                + "\n@param test The test"
+                                + "\n@param acquire The transition"
+                                + "\n@return true if the transition was applied")
+                        .addArgument(predType, "test")
+                        .addArgument(opType, "acquire")
+                        .returning("boolean")
+                        .body(bb -> {
+                            bb.declare("old").initializedByInvoking("get").on("state").as(valType);
+                            bb.whileLoop(loop -> {
+                                loop.declare("nue").initializedByInvoking("applyTransition")
+                                        .withArgument("old").withArgument("acquire")
+                                        .on(stateName).as(valType);
+                                loop.iff(cas -> {
+                                    ClassBuilder.IfBuilder<?> ib = cas.booleanExpression("state.compareAndSet(old, nue)");
+                                    if (changeSupport) {
+                                        ib.iff().booleanExpression("listener != null && nue != old")
+                                                .statement("listener.onChange(" + stateMethod + "(old), "
+                                                        + stateMethod + "(nue), getter)")
+                                                .endIf();
+                                    }
+                                    ib.returning("true").endIf();
+                                });
+                                loop.assign("old").toInvocation("get").on("state");
+                                loop.underCondition().booleanExpression("test.test(" + stateMethod + "(old))");
+                            });
+                            bb.returning("false");
                         });
             });
 
-            result.method("from", mth -> {
-                mth.docComment("Allows constructing a " + result.className() + " from "
-                        + "an implementation of the " + el.getSimpleName() + " that "
-                        + " was implemented some other way."
-                        + "\n@param original An instance of " + el.getSimpleName()
-                        + " which may or may not also be an instance of " + result.className()
-                        + "\n@return the passed instance if it is already an instance of "
-                        + result.className() + ", or a newly constructed instanceof that if it is not.");
-                mth.returning(result.className())
-                        .addArgument(this.el.getSimpleName().toString(), "original")
-                        .withModifier(PUBLIC, STATIC)
+            boolean blocking = anyBlocking;
+            result.method("release", mth -> {
+                mth.withModifier(PRIVATE)
+                        .docComment("Atomically apply the passed release transition, failing if the "
+                                + "passed test shows that the lock being released is not held."
+                                + "\n@param held Tests whether the lock is held"
+                                + "\n@param release The transition"
+                                + "\n@param what The name of the lock, for error messages"
+                                + "\n@throws IllegalStateException if the lock is not held")
+                        .addArgument(predType, "held")
+                        .addArgument(opType, "release")
+                        .addArgument("String", "what")
                         .body(bb -> {
-                            bb.iff().booleanExpression("original instanceof " + result.className())
-                                    .returning("(" + result.className() + ") original")
-                                    .endIf();
+                            bb.iff().booleanExpression("!tryAcquire(held, release)")
+                                    .andThrow(nb -> {
+                                        nb.withStringConcatentationArgument("Cannot release ")
+                                                .appendExpression("what")
+                                                .append(" - not held in ")
+                                                .appendInvocationOf("state").inScope()
+                                                .endConcatenation()
+                                                .ofType("IllegalStateException");
+                                    }).endIf();
+                            if (blocking) {
+                                bb.invoke("wakeWaiter").inScope();
+                            }
+                        });
+            });
 
+            if (blocking) {
+                result.importing(ConcurrentLinkedQueue.class, LockSupport.class);
+                result.innerClass("Waiter", w -> {
+                    w.withModifier(PRIVATE, STATIC, FINAL)
+                            .docComment("A thread parked in a blocking acquire method, and the test it is "
+                                    + "waiting to become true.")
+                            .field("thread", fld -> fld.withModifier(FINAL).ofType("Thread"))
+                            .field("test", fld -> fld.withModifier(FINAL).ofType(predType))
+                            .constructor(con -> con.addArgument("Thread", "thread")
+                            .addArgument(predType, "test")
+                            .body(bb -> {
+                                bb.statement("this.thread = thread");
+                                bb.statement("this.test = test");
+                            }));
+                });
+                result.field("waiters", fld -> {
+                    fld.withModifier(PRIVATE, FINAL)
+                            .docComment("Threads parked in a blocking acquire method.")
+                            .initializedWithNew(nb -> nb.ofType("ConcurrentLinkedQueue<>"))
+                            .ofType("ConcurrentLinkedQueue<Waiter>");
+                });
+                result.method("wakeWaiter", mth -> {
+                    mth.withModifier(PRIVATE)
+                            .docComment("Unpark the longest-waiting thread which could acquire what it is "
+                                    + "waiting for in the current state, if any, rather than every waiter.")
+                            .body(bb -> {
+                                bb.declare("current").initializedWith(stateMethod + "(state.get())")
+                                        .as(stateName);
+                                bb.simpleLoop("Waiter", "waiter")
+                                        .over("waiters", loop -> {
+                                            loop.iff().booleanExpression("waiter.test.test(current)")
+                                                    .invoke("unpark").withArgument("waiter.thread")
+                                                    .on("LockSupport")
+                                                    .statement("return")
+                                                    .endIf();
+                                        });
+                            });
+                });
+                result.method("acquire", mth -> {
+                    mth.withModifier(PRIVATE)
+                            .docComment("Block until the passed transition can be applied because the "
+                                    + "passed test is true."
+                                    + "\n@param test The test"
+                                    + "\n@param acquire The transition"
+                                    + "\n@throws InterruptedException if interrupted while waiting")
+                            .addArgument(predType, "test")
+                            .addArgument(opType, "acquire")
+                            .throwing("InterruptedException")
+                            .body(bb -> {
+                                bb.iff().booleanExpression("tryAcquire(test, acquire)")
+                                        .statement("return").endIf();
+                                bb.declare("waiter").initializedWith("new Waiter(Thread.currentThread(), test)")
+                                        .as("Waiter");
+                                bb.lineComment("Enqueue before retrying, so a release between the "
+                                        + "retry and parking cannot be missed");
+                                bb.invoke("add").withArgument("waiter").on("waiters");
+                                bb.declare("woken").initializedWith("false").as("boolean");
+                                bb.trying(tri -> {
+                                    tri.whileLoop(loop -> {
+                                        loop.lineComment("A release wakes one waiter; if this thread was woken "
+                                                + "but lost the race, the wakeup may be usable by another");
+                                        loop.iff().booleanExpression("woken")
+                                                .invoke("wakeWaiter").inScope()
+                                                .endIf();
+                                        loop.invoke("park").withArgument("this").on("LockSupport");
+                                        loop.statement("woken = true");
+                                        loop.iff().booleanExpression("Thread.interrupted()")
+                                                .andThrow(nb -> nb.ofType("InterruptedException"))
+                                                .endIf();
+                                        loop.underCondition().booleanExpression("!tryAcquire(test, acquire)");
+                                    });
+                                    tri.fynalli(fi -> {
+                                        fi.invoke("remove").withArgument("waiter").on("waiters");
+                                        fi.lineComment("Pass on any wakeup this thread consumed without "
+                                                + "needing, such as one for a waiter on another lock");
+                                        fi.invoke("wakeWaiter").inScope();
+                                    });
+                                });
+                            });
+                });
+            }
+
+            for (BitsElement be : acquirables) {
+                boolean isBoolean = be.origin.getReturnType().getKind() == TypeKind.BOOLEAN;
+                boolean beBlocking = utils.annotationValue(utils.findMirror(be.origin, ACQUIRABLE_ANNO),
+                        "blocking", Boolean.class, false);
+                String cap = capitalize(be.name);
+                String upper = be.name.toUpperCase();
+                String suffix = isBoolean ? cap : "Shared" + cap;
+                String what = isBoolean ? be.name : "a share of " + be.name;
+                String available = upper + "_AVAILABLE";
+                String acquire = "ACQUIRE_" + upper;
+                String held = upper + "_HELD";
+                String release = "RELEASE_" + upper;
+                if (isBoolean) {
+                    result.field(available).withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo("state -> !state." + be.name + "()")
+                            .ofType("Predicate<" + stateName + ">");
+                    result.field(acquire).withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo("state -> state.with" + cap + "(true)")
+                            .ofType(opType);
+                    result.field(held).withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo(stateName + "::" + be.name)
+                            .ofType("Predicate<" + stateName + ">");
+                    result.field(release).withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo("state -> state.with" + cap + "(false)")
+                            .ofType(opType);
+                } else {
+                    long min = be.range.map(r -> r.min).orElse(minValueOf(be.origin.getReturnType().getKind()));
+                    long max = be.range.map(r -> r.max).orElse(maxValueOf(be.origin.getReturnType().getKind()));
+                    result.field(available).withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo("state -> state." + be.name + "() < " + max)
+                            .ofType("Predicate<" + stateName + ">");
+                    result.field(acquire).withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo("state -> state.with" + cap + "(state." + be.name + "() + 1)")
+                            .ofType(opType);
+                    result.field(held).withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo("state -> state." + be.name + "() > " + min)
+                            .ofType("Predicate<" + stateName + ">");
+                    result.field(release).withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo("state -> state.with" + cap + "(state." + be.name + "() - 1)")
+                            .ofType(opType);
+                }
+                result.method("tryAcquire" + suffix, mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Atomically acquire " + what + " if "
+                                    + (isBoolean ? "it is not already held" : "the maximum number of holders has not been reached")
+                                    + ".\n@return true if it was acquired")
+                            .returning("boolean")
+                            .body(bb -> bb.returningInvocationOf("tryAcquire")
+                            .withArgument(available).withArgument(acquire).inScope());
+                });
+                result.method("tryAcquire" + suffix, mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Atomically acquire " + what + " if "
+                                    + (isBoolean ? "it is not already held" : "the maximum number of holders has not been reached")
+                                    + " and the passed condition is true of the current state."
+                                    + "\n@param condition A condition which must also be met"
+                                    + "\n@return true if it was acquired")
+                            .addArgument(predType, "condition")
+                            .returning("boolean")
+                            .body(bb -> bb.returningInvocationOf("tryAcquire")
+                            .withArgument("state -> " + available + ".test(state) && condition.test(state)")
+                            .withArgument(acquire).inScope());
+                });
+                result.method("release" + suffix, mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Atomically release " + what
+                                    + ".\n@throws IllegalStateException if it is not held")
+                            .body(bb -> bb.invoke("release")
+                            .withArgument(held).withArgument(release)
+                            .withStringLiteral(be.name).inScope());
+                });
+                if (beBlocking) {
+                    result.method("acquire" + suffix, mth -> {
+                        mth.withModifier(PUBLIC)
+                                .docComment("Acquire " + what + ", parking the calling thread until it "
+                                        + "becomes available."
+                                        + "\n@throws InterruptedException if interrupted while waiting")
+                                .throwing("InterruptedException")
+                                .body(bb -> bb.invoke("acquire")
+                                .withArgument(available).withArgument(acquire).inScope());
+                    });
+                    result.method("acquire" + suffix, mth -> {
+                        mth.withModifier(PUBLIC)
+                                .docComment("Acquire " + what + ", parking the calling thread until it "
+                                        + "becomes available and the passed condition is true of the state."
+                                        + "\n@param condition A condition which must also be met"
+                                        + "\n@throws InterruptedException if interrupted while waiting")
+                                .addArgument(predType, "condition")
+                                .throwing("InterruptedException")
+                                .body(bb -> bb.invoke("acquire")
+                                .withArgument("state -> " + available + ".test(state) && condition.test(state)")
+                                .withArgument(acquire).inScope());
+                    });
+                }
+            }
+        }
+
+        ClassBuilder<String> generateStateArray() {
+            boolean generateArray = utils.annotationValue(on, "generateArray", Boolean.class, false);
+            if (!generateArray) {
+                return null;
+            }
+            boolean isLong = totalBitsNeeded() > 32;
+            String valueType = isLong ? "long" : "int";
+            String valueMethod = isLong ? "getAsLong" : "getAsInt";
+            String atomicType = isLong ? "AtomicLongArray" : "AtomicIntegerArray";
+            String stateName = el.getSimpleName() + "State";
+            String stateMethod = stateName + ".trusted";
+
+            ClassBuilder<String> result = ClassBuilder.forPackage(utils.packageName(el))
+                    .named(stateName + "Array")
+                    .docComment("A fixed-size array of " + stateName + "s, each of which can be "
+                            + "updated atomically, stored as a single " + atomicType
+                            + " - for large numbers of states this avoids an object per state.")
+                    .withModifier(PUBLIC, FINAL)
+                    .importing(UnaryOperator.class)
+                    .importing(isLong ? AtomicLongArray.class : AtomicIntegerArray.class);
+
+            result.field("states").withModifier(PRIVATE, FINAL)
+                    .ofType(atomicType);
+
+            result.constructor(con -> {
+                con.setModifier(PUBLIC)
+                        .docComment("Create a new " + result.className() + " with all elements in "
+                                + "the default (0) initial state.\n@param length the number of elements")
+                        .addArgument("int", "length")
+                        .body(bb -> {
+                            bb.assign("states").toNewInstance()
+                                    .withArgument("length")
+                                    .ofType(atomicType);
+                        });
+            });
+            result.constructor(con -> {
+                con.setModifier(PUBLIC)
+                        .docComment("Create a new " + result.className() + " with all elements in "
+                                + "the passed initial state.\n@param length the number of elements"
+                                + "\n@param initialState the initial state of every element")
+                        .addArgument("int", "length")
+                        .addArgument(stateName, "initialState")
+                        .body(bb -> {
+                            bb.assign("states").toNewInstance()
+                                    .withArgument("length")
+                                    .ofType(atomicType);
+                            bb.declare("initialValue")
+                                    .initializedByInvoking(valueMethod)
+                                    .on("initialState")
+                                    .as(valueType);
+                            bb.iff().booleanExpression("initialValue != 0")
+                                    .forVar("i")
+                                    .initializedWith(0)
+                                    .condition().lessThan().expression("length")
+                                    .endCondition()
+                                    .running(lb -> {
+                                        lb.invoke("set")
+                                                .withArgument("i")
+                                                .withArgument("initialValue")
+                                                .on("states");
+                                    }).endIf();
+                        });
+            });
+
+            result.method("length", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Get the number of elements.\n@return the length")
+                        .returning("int")
+                        .body(bb -> bb.returningInvocationOf("length").on("states"));
+            });
+            result.method("state", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Get the current state of one element.\n@param index the index"
+                                + "\n@return the state")
+                        .addArgument("int", "index")
+                        .returning(stateName)
+                        .body(bb -> {
+                            bb.returningInvocationOf(stateMethod)
+                                    .withArgumentFromInvoking("get")
+                                    .withArgument("index")
+                                    .on("states").inScope();
+                        });
+            });
+            result.method("rawValue", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Get the raw " + valueType + " value of one element using an "
+                                + "acquire load, without constructing a " + stateName + "."
+                                + "\n@param index the index\n@return the raw value")
+                        .addArgument("int", "index")
+                        .returning(valueType)
+                        .body(bb -> {
+                            bb.returningInvocationOf("getAcquire")
+                                    .withArgument("index")
+                                    .on("states");
+                        });
+            });
+            result.method("set", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Replace the state of one element.\n@param index the index"
+                                + "\n@param newState the new state"
+                                + "\n@return true if the new value differed from the old"
+                                + "\n@throws IllegalArgumentException if the passed state is null")
+                        .addArgument("int", "index")
+                        .addArgument(stateName, "newState")
+                        .returning("boolean")
+                        .body(bb -> {
+                            bb.ifNull("newState")
+                                    .andThrow(nb -> {
+                                        nb.withStringLiteral("New state may not be null.")
+                                                .ofType("IllegalArgumentException");
+                                    }).endIf();
+                            bb.declare("transition")
+                                    .initializedWith("ignored -> newState")
+                                    .as("UnaryOperator<" + stateName + ">");
+                            generateCasLoop(bb, stateName, isLong, "states.get(index)",
+                                    "states.compareAndSet(index, ");
+                            bb.returning("newValue != oldValue");
+                        });
+            });
+            result.method("updateAndGet", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Update the state of one element, applying the passed UnaryOperator"
+                                + " and returning the new value.  If the transition does not change "
+                                + "the state, nothing is written."
+                                + "\nNote that the passed unary operator may be called more than once, "
+                                + "and must be stateless, itself."
+                                + "\n@param index the index"
+                                + "\n@param transition A UnaryOperator that computes a new state given an old one."
+                                + "\n@return the new state")
+                        .addArgument("int", "index")
+                        .addArgument("UnaryOperator<" + stateName + ">", "transition")
+                        .returning(stateName)
+                        .body(bb -> {
+                            generateCasLoop(bb, stateName, isLong, "states.get(index)",
+                                    "states.compareAndSet(index, ");
+                            bb.returningInvocationOf(stateMethod).withArgument("newValue").inScope();
+                        });
+            });
+            result.method("getAndUpdate", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Update the state of one element, applying the passed UnaryOperator"
+                                + " and returning the <i>old</i> value.  If the transition does not "
+                                + "change the state, nothing is written."
+                                + "\nNote that the passed unary operator may be called more than once, "
+                                + "and must be stateless, itself."
+                                + "\n@param index the index"
+                                + "\n@param transition A UnaryOperator that computes a new state given an old one."
+                                + "\n@return the previous state")
+                        .addArgument("int", "index")
+                        .addArgument("UnaryOperator<" + stateName + ">", "transition")
+                        .returning(stateName)
+                        .body(bb -> {
+                            generateCasLoop(bb, stateName, isLong, "states.get(index)",
+                                    "states.compareAndSet(index, ");
+                            bb.returningInvocationOf(stateMethod).withArgument("oldValue").inScope();
+                        });
+            });
+            generateUpdateRaw(result, stateName, isLong, false, true);
+            result.overridePublic("toString").returning("String")
+                    .body().returningInvocationOf("toString")
+                    .on("states").endBlock();
+            return result;
+        }
+
+        /**
+         * Generate a compare-and-set loop which applies the variable
+         * <code>transition</code>, leaving the result in
+         * <code>oldValue</code> and <code>newValue</code>. Unlike
+         * <code>AtomicInteger.updateAndGet()</code>, if the transition does
+         * not change the value, nothing is written, so the cache line is not
+         * invalidated for every other core reading it.
+         */
+        /**
+         * Generate the methods through which a Transaction updates a
+         * transactional holder.
+         */
+        private void generateParticipantMethods(ClassBuilder<String> result, String stateName,
+                boolean isLong, boolean changeSupport) {
+            result.importing(TRANSACTION_TYPE);
+            result.implementing("Transaction.Participant<" + stateName + ">");
+            result.overridePublic("cell", mth -> {
+                mth.docComment("Get the cell this holder's raw value is stored in, for use by "
+                        + "<code>Transaction</code>.\n@return The cell")
+                        .returning("McasCell")
+                        .body(bb -> bb.returning("state"));
+            });
+            result.overridePublic("apply", mth -> {
+                mth.docComment("Apply a transition to a raw value on behalf of a "
+                        + "<code>Transaction</code>."
+                        + "\n@param oldRaw The current raw value"
+                        + "\n@param transition The transition"
+                        + "\n@return The new raw value")
+                        .addArgument("long", "oldRaw")
+                        .addArgument("UnaryOperator<" + stateName + ">", "transition")
+                        .returning("long")
+                        .body(bb -> bb.returning(stateName + ".applyTransition("
+                        + (isLong ? "" : "(int) ") + "oldRaw, transition)"));
+            });
+            result.overridePublic("onCommit", mth -> {
+                mth.docComment("Called after a <code>Transaction</code> has changed this holder's state."
+                        + "\n@param oldRaw The previous raw value"
+                        + "\n@param newRaw The new raw value")
+                        .addArgument("long", "oldRaw")
+                        .addArgument("long", "newRaw")
+                        .body(bb -> {
+                            if (changeSupport) {
+                                String cast = isLong ? "" : "(int) ";
+                                bb.iff().booleanExpression("listener != null")
+                                        .statement("listener.onChange(" + stateName + ".trusted(" + cast + "oldRaw), "
+                                                + stateName + ".trusted(" + cast + "newRaw), getter)")
+                                        .endIf();
+                            } else {
+                                bb.lineComment("No listener to notify");
+                            }
+                        });
+            });
+        }
+
+        private void generateCasLoop(BlockBuilder<?> bb, String stateName, boolean isLong,
+                String read, String casPrefix) {
+            String valueType = isLong ? "long" : "int";
+            bb.declare("oldValue").initializedWith(read).as(valueType);
+            bb.declare("newValue").initializedByInvoking("applyTransition")
+                    .withArgument("oldValue").withArgument("transition")
+                    .on(stateName).as(valueType);
+            bb.whileLoop(loop -> {
+                loop.assign("oldValue").toExpression(read);
+                loop.assign("newValue").toInvocation("applyTransition")
+                        .withArgument("oldValue").withArgument("transition")
+                        .on(stateName);
+                loop.underCondition().booleanExpression("newValue != oldValue && !"
+                        + casPrefix + "oldValue, newValue)");
+            });
+        }
+
+        /**
+         * Implement AtomicStateHolder - the state-object methods it declares
+         * are already generated for every holder, so only the packed-value
+         * ones are needed.
+         */
+        private void generateHolderInterfaceMethods(ClassBuilder<String> result, String stateName,
+                boolean isLong, boolean changeSupport) {
+            result.importing(ATOMIC_STATE_HOLDER_TYPE);
+            result.implementing("AtomicStateHolder<" + stateName + ">");
+            String cast = isLong ? "" : "(int) ";
+            result.overridePublic("packedValue", mth -> {
+                mth.returning("long")
+                        .body(bb -> bb.returningInvocationOf("getAcquire").on("state"));
+            });
+            result.overridePublic("compareAndSetPacked", mth -> {
+                mth.addArgument("long", "expected")
+                        .addArgument("long", "update")
+                        .returning("boolean")
+                        .body(bb -> {
+                            if (!isLong) {
+                                bb.iff().booleanExpression("(int) update != update")
+                                        .statement("throw new IllegalArgumentException(\"Not a packed "
+                                                + stateName + ": \" + update)")
+                                        .endIf();
+                                bb.iff().booleanExpression("(int) expected != expected")
+                                        .returning("false")
+                                        .endIf();
+                            }
+                            bb.lineComment("Validates the new value");
+                            bb.statement(stateName + ".new" + stateName + "(" + cast + "update)");
+                            bb.declare("oldValue").initializedWith(cast + "expected").as(isLong ? "long" : "int");
+                            bb.declare("newValue").initializedWith(cast + "update").as(isLong ? "long" : "int");
+                            bb.iff().booleanExpression("!state.compareAndSet(oldValue, newValue)")
+                                    .returning("false")
+                                    .endIf();
+                            if (changeSupport) {
+                                generateNotify(bb, stateName);
+                            }
+                            bb.returning("true");
+                        });
+            });
+        }
+
+        private void generateNotify(BlockBuilder<?> bb, String stateName) {
+            bb.iff().booleanExpression("newValue != oldValue && listener != null")
+                    .invoke("onChange")
+                    .withArgumentFromInvoking("trusted")
+                    .withArgument("oldValue")
+                    .on(stateName)
+                    .withArgumentFromInvoking("trusted")
+                    .withArgument("newValue")
+                    .on(stateName)
+                    .withArgument("getter")
+                    .on("listener")
+                    .endIf();
+        }
+
+        /**
+         * Generate the allocation-free updateRaw() method for a holder or, if
+         * indexed, an element of a state array.
+         */
+        private void generateUpdateRaw(ClassBuilder<String> result, String stateName,
+                boolean isLong, boolean changeSupport, boolean indexed) {
+            String valueType = isLong ? "long" : "int";
+            String field = indexed ? "states" : "state";
+            String ix = indexed ? "index, " : "";
+            result.method("updateRaw", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Update the state" + (indexed ? " of one element" : "")
+                                + " in place through a reusable, thread-local mutable cursor, "
+                                + "returning the new raw value - unlike <code>updateAndGet()</code>, "
+                                + "this allocates nothing, even when retrying under contention."
+                                + "\nNote that the passed transition may be called more than once, "
+                                + "and must be stateless, itself."
+                                + (indexed ? "\n@param index the index" : "")
+                                + "\n@param transition A transition which modifies the cursor it is passed"
+                                + "\n@return the new raw value");
+                if (indexed) {
+                    mth.addArgument("int", "index");
+                }
+                mth.addArgument(stateName + ".RawTransition", "transition")
+                        .returning(valueType)
+                        .body(bb -> {
+                            bb.declare("cursor").initializedByInvoking("cursor")
+                                    .on(stateName).as(stateName + ".Cursor");
+                            bb.trying(tri -> {
+                                String read = field + (indexed ? ".get(index)" : ".get()");
+                                tri.declare("old").initializedWith(read).as(valueType);
+                                tri.declare("nue").initializedByInvoking("applyTransition")
+                                        .withArgument("old").withArgument("transition").withArgument("cursor")
+                                        .on(stateName).as(valueType);
+                                tri.whileLoop(loop -> {
+                                    loop.assign("old").toExpression(read);
+                                    loop.assign("nue").toInvocation("applyTransition")
+                                            .withArgument("old").withArgument("transition").withArgument("cursor")
+                                            .on(stateName);
+                                    loop.underCondition().booleanExpression("nue != old && !" + field
+                                            + ".compareAndSet(" + ix + "old, nue)");
+                                });
+                                if (changeSupport) {
+                                    tri.iff().booleanExpression("listener != null && nue != old")
+                                            .statement("listener.onChange(" + stateName + ".trusted(old), "
+                                                    + stateName + ".trusted(nue), getter)")
+                                            .endIf();
+                                }
+                                tri.returning("nue");
+                                tri.fynalli(fi -> fi.invoke("releaseCursor").withArgument("cursor").on(stateName));
+                            });
+                        });
+            });
+        }
+
+        private void generateCursor(ClassBuilder<String> result, boolean isLong,
+                List<BitsElement> elements, Optional<BitsElement> stamp) {
+            String valueType = isLong ? "long" : "int";
+            String stateName = result.className();
+            result.innerClass("Cursor", cur -> {
+                cur.docComment("A mutable view of a raw " + valueType + " value, passed to a "
+                        + "<code>RawTransition</code>, which allows a state to be updated without "
+                        + "allocating intermediate " + stateName + " instances.  The setters validate "
+                        + "their arguments exactly as the corresponding <code>with*</code> methods do."
+                        + "\n<p>A cursor is only valid for the duration of the call to the transition "
+                        + "it is passed to, and must not be retained.</p>")
+                        .withModifier(PUBLIC, STATIC, FINAL)
+                        .field("value", fld -> fld.withModifier(PRIVATE).ofType(valueType))
+                        .field("inUse", fld -> fld.withModifier(PRIVATE).ofType("boolean"))
+                        .constructor(con -> con.setModifier(PRIVATE).emptyBody());
+                cur.method("rawValue", mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Get the raw value as currently modified."
+                                    + "\n@return the raw value")
+                            .returning(valueType)
+                            .bodyReturning("value");
+                });
+                cur.method("toState", mth -> {
+                    mth.withModifier(PUBLIC)
+                            .docComment("Create a " + stateName + " from the cursor's current value."
+                                    + "\n@return a new " + stateName)
+                            .returning(stateName)
+                            .body(bb -> bb.returningNew(nb -> nb.withArgument("value").ofType(stateName)));
+                });
+                for (BitsElement el : elements) {
+                    el.generateReadMethod(isLong, cur, true);
+                    el.generateWriteMethod(isLong, cur, true);
+                }
+                cur.overridePublic("toString", ts -> {
+                    ts.returning("String").body(bb -> bb.returning("\"Cursor(\" + toState() + \")\""));
+                });
+            });
+            result.innerClass("RawTransition", rt -> {
+                rt.docComment("A transition which updates a state in place via a mutable cursor, "
+                        + "for use with a holder's <code>updateRaw()</code> method, which does not "
+                        + "allocate.  Like the operators passed to <code>updateAndGet()</code>, it may "
+                        + "be called more than once, and must be stateless.")
+                        .withModifier(PUBLIC)
+                        .toInterface()
+                        .annotatedWith("FunctionalInterface").closeAnnotation()
+                        .method("apply", mth -> {
+                            mth.docComment("Modify the state."
+                                    + "\n@param cursor A cursor over the current raw value")
+                                    .addArgument("Cursor", "cursor")
+                                    .closeMethod();
+                        });
+            });
+            result.field("CURSORS", fld -> {
+                fld.withModifier(PRIVATE, STATIC, FINAL)
+                        .initializedTo("ThreadLocal.withInitial(Cursor::new)")
+                        .ofType("ThreadLocal<Cursor>");
+            });
+            result.method("cursor", mth -> {
+                mth.docComment("Get this thread's cursor, or a new one if it is in use by a "
+                        + "transition further up the stack; the caller must pass it to "
+                        + "<code>releaseCursor()</code> when done."
+                        + "\n@return A cursor")
+                        .withModifier(STATIC)
+                        .returning("Cursor")
+                        .body(bb -> {
+                            bb.declare("result").initializedByInvoking("get").on("CURSORS").as("Cursor");
+                            bb.iff().booleanExpression("result.inUse")
+                                    .assign("result").toNewInstance().ofType("Cursor")
+                                    .endIf();
+                            bb.statement("result.inUse = true");
+                            bb.returning("result");
+                        });
+            });
+            result.method("releaseCursor", mth -> {
+                mth.docComment("Mark a cursor obtained from <code>cursor()</code> as no longer in use."
+                        + "\n@param cursor A cursor")
+                        .withModifier(STATIC)
+                        .addArgument("Cursor", "cursor")
+                        .body(bb -> bb.statement("cursor.inUse = false"));
+            });
+            result.method("applyTransition", mth -> {
+                mth.docComment("Apply a raw transition to a raw value on behalf of a holder."
+                        + "\n@param oldValue The current raw value"
+                        + "\n@param transition The transition"
+                        + "\n@param cursor A cursor to reuse"
+                        + "\n@return The new raw value")
+                        .withModifier(STATIC)
+                        .addArgument(valueType, "oldValue")
+                        .addArgument("RawTransition", "transition")
+                        .addArgument("Cursor", "cursor")
+                        .returning(valueType)
+                        .body(bb -> {
+                            bb.statement("cursor.value = oldValue");
+                            bb.invoke("apply").withArgument("cursor").on("transition");
+                            bb.declare("newValue").initializedWith("cursor.value").as(valueType);
+                            stamp.ifPresent(st -> {
+                                bb.iff().booleanExpression("newValue != oldValue")
+                                        .statement("newValue = (newValue & ~" + st.maskFieldName()
+                                                + ") | nextStampBits(oldValue)")
+                                        .endIf();
+                            });
+                            bb.returning("newValue");
+                        });
+            });
+        }
+
+        ClassBuilder<String> generator() {
+            int totalBits = totalBitsNeeded();
+            boolean isLong = totalBits > 32;
+            String valueType = isLong ? "long" : "int";
+
+            ClassBuilder<String> result = ClassBuilder.forPackage(utils.packageName(el))
+                    .named(el.getSimpleName() + "State")
+                    .importing(Serializable.class)
+                    .implementing("Serializable")
+                    //                    .generateDebugLogCode()
+                    .withModifier(PUBLIC, FINAL)
+                    .implementing(el.getSimpleName().toString())
+                    .docComment("Wraps a single " + valueType
+                            + " as an implementation of " + el.getSimpleName()
+                            + ", using " + totalBits + " bits."
+                    )
+                    .field("value", fld -> {
+                        fld.withModifier(PRIVATE, FINAL)
+                                .ofType(valueType);
+                    })
+                    .field("serialVersionUid", fld -> {
+                        fld.withModifier(PRIVATE, STATIC, FINAL)
+                                .initializedWith(serialVersionUid());
+                    })
+                    .constructor(con -> {
+                        con.setModifier(PUBLIC)
+                                .addArgument(valueType, "value")
+                                .body(bb -> {
+                                    bb.invoke("validate").withArgument("value").inScope();
+                                    bb.statement("this.value = value");
+                                });
+                    });
+
+            if (isLong) {
+                result.importing(LongSupplier.class);
+                result.implementing("LongSupplier");
+                result.overridePublic("getAsLong")
+                        .returning("long")
+                        .bodyReturning("value");
+            } else {
+                result.importing(IntSupplier.class);
+                result.implementing("IntSupplier");
+                result.overridePublic("getAsInt")
+                        .returning("int")
+                        .bodyReturning("value");
+            }
+            if (utils.annotationValue(on, "runtimeInterfaces", Boolean.class, false)) {
+                result.importing(PACKED_STATE_TYPE);
+                result.implementing("PackedState");
+                result.overridePublic("packedValue")
+                        .returning("long")
+                        .bodyReturning("value");
+                result.overridePublic("packedBits")
+                        .returning("int")
+                        .bodyReturning(Integer.toString(totalBits));
+                result.overridePublic("layoutHash")
+                        .returning("long")
+                        .bodyReturning("LAYOUT_HASH");
+            }
+
+            result.field("INITIAL")
+                    .withModifier(PUBLIC, STATIC, FINAL)
+                    .initializedWithNew(nb -> {
+                        nb.withArgument(0)
+                                .ofType(result.className());
+                    }).ofType(result.className());
+
+            result.constructor(con -> {
+                con.setModifier(PRIVATE)
+                        .docComment("Construct without validation, for values which can only have been "
+                                + "produced by generated code."
+                                + "\n@param value The value"
+                                + "\n@param trusted Ignored; distinguishes this constructor")
+                        .addArgument(valueType, "value")
+                        .addArgument("boolean", "trusted")
+                        .body(bb -> bb.statement("this.value = value"));
+            });
+            result.method("trusted", mth -> {
+                mth.docComment("Create a " + result.className() + " without validating the value, for "
+                        + "use by generated holders, whose values can only have been written by "
+                        + "generated code; external values should go through the constructor or "
+                        + "<code>new" + result.className() + "()</code>."
+                        + "\n@param value A value known to be valid"
+                        + "\n@return A " + result.className())
+                        .withModifier(STATIC)
+                        .addArgument(valueType, "value")
+                        .returning(result.className())
+                        .body(bb -> bb.returningNew(nb -> nb.withArgument("value")
+                        .withArgument(true).ofType(result.className())));
+            });
+
+            result.method("new" + result.className())
+                    .docComment("Create a new " + result.className() + "."
+                            + "\n@param the initial value"
+                            + "\n@return A " + result.className()
+                            + "\n@throws IllegalArgumentException if the passed value is "
+                            + "outside the bounds of the possible values of "
+                            + result.className())
+                    .withModifier(PUBLIC, STATIC)
+                    .addArgument(valueType, "initialValue")
+                    .returning(result.className())
+                    .body().returningNew().withArgument("initialValue")
+                    .ofType(result.className());
+
+            boolean invMaskIsZero;
+            if (isLong) {
+                long allMask = 0;
+                for (int i = 0; i < totalBits; i++) {
+                    allMask |= 1L << i;
+                }
+                invMaskIsZero = ~allMask == 0;
+                if (!invMaskIsZero) {
+                    result.field("ALL_INV_MASK")
+                            .docComment("" + allMask + " inv " + (~allMask) + " bits " + totalBits)
+                            .withModifier(FINAL, PRIVATE, STATIC)
+                            .initializedTo(asBinaryString(~allMask))
+                            .ofType("long");
+                }
+            } else {
+                int allMask = 0;
+                for (int i = 0; i < totalBits; i++) {
+                    allMask |= 1 << i;
+                }
+                invMaskIsZero = ~allMask == 0;
+                if (!invMaskIsZero) {
+                    result.field("ALL_INV_MASK")
+                            .withModifier(FINAL, PRIVATE, STATIC)
+                            .initializedTo(asBinaryString(~allMask))
+                            .ofType("int");
+                }
+            }
+
+            List<BitsElement> elements = toElements();
+
+            Optional<BitsElement> stamp = stampElement(elements);
+            result.method("applyTransition", mth -> {
+                result.importing(UnaryOperator.class);
+                mth.docComment("Apply a transition to a raw value on behalf of a holder"
+                        + (stamp.isPresent() ? ", incrementing the stamp if the result differs." : ".")
+                        + "\n@param oldValue The current raw value"
+                        + "\n@param transition The transition"
+                        + "\n@return The new raw value");
+                mth.withModifier(STATIC)
+                        .addArgument(valueType, "oldValue")
+                        .addArgument("UnaryOperator<" + result.className() + ">", "transition")
+                        .returning(valueType)
+                        .body(bb -> {
+                            bb.declare("newValue")
+                                    .initializedByInvoking(isLong ? "getAsLong" : "getAsInt")
+                                    .onInvocationOf("apply")
+                                    .withArgumentFromInvoking("trusted")
+                                    .withArgument("oldValue")
+                                    .inScope()
+                                    .on("transition")
+                                    .as(valueType);
+                            stamp.ifPresent(st -> {
+                                bb.iff().booleanExpression("newValue != oldValue")
+                                        .statement("newValue = (newValue & ~" + st.maskFieldName()
+                                                + ") | nextStampBits(oldValue)")
+                                        .endIf();
+                            });
+                            bb.returning("newValue");
+                        });
+            });
+            stamp.ifPresent(st -> st.generateStampMethods(isLong, result));
+            generateCursor(result, isLong, elements, stamp);
+
+            generateOutOfRange(result, elements);
+            generateFlagDecoder(result, isLong, elements);
+            generateCodec(result, isLong);
+            generateMigrations(result, isLong);
+
+            result.method("validate", mth -> {
+                mth.docComment("Ensures that the passed value is valid."
+                        + "\n@param value The value a " + result.className() + " is "
+                        + "being constructed for"
+                        + "\n@throws IllegalArgumentException if the value is outside the "
+                        + "bounds of the possible values of " + result.className()
+                );
+                mth.withModifier(PRIVATE, STATIC)
+                        .addArgument(valueType, "value")
+                        .body(bb -> {
+                            if (!invMaskIsZero) {
+                                bb.iff().booleanExpression("(value & ALL_INV_MASK) != 0")
+                                        .andThrow(nb -> {
+                                            nb.withStringConcatentationArgument("Value contains "
+                                                    + "set bits which must not be set in a " + result.className() + ": ")
+                                                    .appendInvocationOf("toBinaryString")
+                                                    .withArgument("value & ALL_INV_MASK")
+                                                    .on("Long")
+                                                    .endConcatenation()
+                                                    .ofType("IllegalArgumentException");
+                                        }).endIf();
+                            }
+                            elements.forEach(el -> el.contributeValidationClause(isLong, bb));
+                        });
+            });
+
+            result.method("from", mth -> {
+                mth.docComment("Allows constructing a " + result.className() + " from "
+                        + "an implementation of the " + el.getSimpleName() + " that "
+                        + " was implemented some other way."
+                        + "\n@param original An instance of " + el.getSimpleName()
+                        + " which may or may not also be an instance of " + result.className()
+                        + "\n@return the passed instance if it is already an instance of "
+                        + result.className() + ", or a newly constructed instanceof that if it is not.");
+                mth.returning(result.className())
+                        .addArgument(this.el.getSimpleName().toString(), "original")
+                        .withModifier(PUBLIC, STATIC)
+                        .body(bb -> {
+                            bb.iff().booleanExpression("original instanceof " + result.className())
+                                    .returning("(" + result.className() + ") original")
+                                    .endIf();
+
+                            // Not INITIAL - the contract is that a new instance is returned,
+                            // and unchanged with* calls return the same instance
                             bb.declare("result")
-                                    .initializedFromField("INITIAL")
-                                    .of(result.className())
+                                    .initializedWithNew(nb -> nb.withArgument(0)
+                                    .ofType(result.className()))
                                     .as(result.className());
                             elements.forEach(el -> {
                                 bb.assign("result")
@@ -1310,144 +4438,945 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
                         });
             });
 
-            result.method("toMap", mth -> {
-                result.importing(Map.class, TreeMap.class);
-                mth.returning("Map<String, Object>")
-                        .docComment("Returns a Map-based representation of the current contents of this "
-                                + result.className() + " which may be more suitable for JSON representation, or "
-                                + "long-term persistence which may be deserialized by code running a "
-                                + "different version of " + this.el.getSimpleName()
-                                + "with different fields."
-                                + "\n@return A Map where the keys are method names from "
-                                + el.getSimpleName() + " and the values are the values returned "
-                                + " by calls to the those methods, on this instance, at this time"
-                        )
-                        .withModifier(PUBLIC)
+            result.method("toMap", mth -> {
+                result.importing(Map.class, TreeMap.class);
+                mth.returning("Map<String, Object>")
+                        .docComment("Returns a Map-based representation of the current contents of this "
+                                + result.className() + " which may be more suitable for JSON representation, or "
+                                + "long-term persistence which may be deserialized by code running a "
+                                + "different version of " + this.el.getSimpleName()
+                                + "with different fields."
+                                + "\n@return A Map where the keys are method names from "
+                                + el.getSimpleName() + " and the values are the values returned "
+                                + " by calls to the those methods, on this instance, at this time"
+                        )
+                        .withModifier(PUBLIC)
+                        .body(bb -> {
+                            bb.declare("result")
+                                    .initializedWithNew(nb -> {
+                                        nb.ofType("TreeMap<>");
+                                    }).as("Map<String,Object>");
+                            elements.forEach(el -> el.contributeToMapClause("result", bb));
+                            bb.returning("result");
+                        });
+            });
+            if (generatesJson()) {
+                generateJson(result, isLong, elements);
+                generateJsonParser(result, isLong, elements);
+            }
+            if (utils.annotationValue(on, "generateFieldEnum", Boolean.class, false)) {
+                generateFieldEnum(result, elements);
+            }
+
+            result.method("fromMap", mth -> {
+                mth.withModifier(PUBLIC, STATIC)
+                        .addArgument("Map<String,Object>", "map")
+                        .returning(result.className())
+                        .docComment("Create an instance of this class from a (possibly serialized) Map, where "
+                                + "the map keys are method names on " + el.getSimpleName() + " and the values are "
+                                + "objects (perhaps boxed numbers or booleans) of the values."
+                                + "Unknown keys and values of incorrect types are ignored; if the type is a <code>Number</code>, "
+                                + "then the appropriate conversion method from <code>java.lang.Number</code> is used."
+                                + "If the value for an enum type is a String, then the corresponding enum constant "
+                                + "will be used, and it the value will be ignored if it is unrecognized."
+                                + "\n@param map A map"
+                                + "\n@return An instance of " + result.className())
+                        .body(bb -> {
+                            bb.declare("result").initializedWith(isLong ? "0L" : "0")
+                                    .as(isLong ? "long" : "int");
+                            elements.forEach(el -> el.contributeFromMapClause(isLong, "result", "map", bb));
+                            bb.returningNew(nb -> {
+                                nb.withArgument("result")
+                                        .ofType(result.className());
+                            });
+                        });
+                ;
+            });
+
+            result.overridePublic("hashCode", hc -> {
+                hc.returning("int").
+                        body(bb -> {
+                            if (isLong) {
+                                bb.returning("(int) (102071L * (value ^ (value >>> 32)))");
+                            } else {
+                                bb.returning("43867 * value");
+                            }
+                        });
+            });
+
+            result.overridePublic("equals")
+                    .addArgument("Object", "o")
+                    .returning("boolean")
+                    .body(bb -> {
+                        bb.iff().booleanExpression("o == this")
+                                .returning(true)
+                                .elseIf().booleanExpression("o == null || o.getClass() != " + result.className() + ".class")
+                                .returning(false)
+                                .endIf();
+                        bb.returning("((" + result.className() + ") o).value == value");
+                    });
+
+            result.overridePublic("toString", ts -> {
+                ts.returning("String")
+                        .body(bb -> {
+                            bb.returningStringConcatenation(result.className() + "(", concat -> {
+                                int ct = 0;
+                                for (BitsElement el : toElements()) {
+                                    el.generateReadMethod(isLong, result);
+                                    el.generateWriteMethod(isLong, result);
+                                    if (ct++ > 0) {
+                                        concat.append(", ");
+                                    }
+                                    concat.append(el.name + "=")
+                                            .appendInvocationOf(el.name)
+                                            .inScope();
+                                }
+
+                                concat.append(") = 0b")
+                                        .appendInvocationOf("toBinaryString")
+                                        .withArgument("value")
+                                        .on(isLong ? "Long" : "Integer");
+
+                                concat.append(" = 0x")
+                                        .appendInvocationOf("toHexString")
+                                        .withArgument("value")
+                                        .on(isLong ? "Long" : "Integer");
+
+                                concat.append(" = ")
+                                        .appendInvocationOf("toString")
+                                        .withArgument("value")
+                                        .on(isLong ? "Long" : "Integer");
+
+                                concat.endConcatenation();
+                            });
+                        });
+            });
+
+            return result;
+        }
+
+        /**
+         * Whether the layout needs more than one 64-bit word, in which case
+         * the state is generated as several <code>long</code>s swapped as an
+         * immutable object through an <code>AtomicReference</code>.
+         */
+        boolean isWide() {
+            return totalBitsNeeded() > 64;
+        }
+
+        private int wordCount() {
+            return (totalBitsNeeded() + 63) / 64;
+        }
+
+        private String wordsList(int words, int replacing, String with) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < words; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(i == replacing ? with : "word" + i);
+            }
+            return sb.toString();
+        }
+
+        private void failIfUnsupportedWhenWide() {
+            String[] unsupported = {"generateArray", "combining", "transactional", "runtimeInterfaces",
+                "generateJson", "generateFieldEnum", "generateCodec"};
+            for (String attr : unsupported) {
+                if (utils.annotationValue(on, attr, Boolean.class, false)) {
+                    utils.fail(attr + " is not supported for states wider than 64 bits", el);
+                }
+            }
+            if (!utils.annotationValues(on, "migrateFrom", Integer.class).isEmpty()) {
+                utils.fail("migrateFrom is not supported for states wider than 64 bits", el);
+            }
+            for (ExecutableElement ee : methodForName.values()) {
+                if (flagSetType(ee.getReturnType()) != null) {
+                    utils.fail("Sets of enum constants are not supported for states wider "
+                            + "than 64 bits", ee);
+                }
+                for (String anno : new String[]{STAMP_ANNO, ACQUIRABLE_ANNO, BUFFERED_ANNO, TIMESTAMP_ANNO,
+                    INTERNED_ANNO}) {
+                    if (utils.findMirror(ee, anno) != null) {
+                        utils.fail("@" + simpleName(anno) + " is not supported for states "
+                                + "wider than 64 bits", ee);
+                    }
+                }
+            }
+        }
+
+        ClassBuilder<String> generateWideState() {
+            failIfUnsupportedWhenWide();
+            int words = wordCount();
+            int totalBits = totalBitsNeeded();
+            List<BitsElement> elements = toElements();
+            String validation = utils.enumConstantValue(on, "validation", "FULL");
+            ClassBuilder<String> result = ClassBuilder.forPackage(utils.packageName(el))
+                    .named(el.getSimpleName() + "State")
+                    .importing(Serializable.class)
+                    .implementing("Serializable")
+                    .withModifier(PUBLIC, FINAL)
+                    .implementing(el.getSimpleName().toString())
+                    .docComment("Wraps " + words + " <code>long</code>s as an implementation of "
+                            + el.getSimpleName() + ", using " + totalBits + " bits.  No field "
+                            + "crosses a word boundary.");
+            String cn = result.className();
+            result.field("serialVersionUid", fld -> {
+                fld.withModifier(PRIVATE, STATIC, FINAL)
+                        .initializedWith(serialVersionUid());
+            });
+            result.field("WORDS", fld -> {
+                fld.withModifier(PUBLIC, STATIC, FINAL)
+                        .docComment("The number of <code>long</code> words in a " + cn + ".")
+                        .initializedWith(words);
+            });
+            long[] used = new long[words];
+            for (BitsElement be : elements) {
+                used[be.startingBit / 64] |= ((1L << be.bitsRequired) - 1) << (be.startingBit % 64);
+            }
+            for (int i = 0; i < words; i++) {
+                result.field("word" + i).withModifier(PRIVATE, FINAL).ofType("long");
+                if (used[i] != -1L) {
+                    result.field("WORD" + i + "_INV_MASK")
+                            .withModifier(PRIVATE, STATIC, FINAL)
+                            .initializedTo(asBinaryString(~used[i]))
+                            .ofType("long");
+                }
+            }
+            result.field("INITIAL")
+                    .withModifier(PUBLIC, STATIC, FINAL)
+                    .initializedTo("new " + cn + "(" + wordsList(words, -1, null).replaceAll("word\\d+", "0L") + ", true)")
+                    .ofType(cn);
+
+            result.constructor(con -> {
+                con.setModifier(PUBLIC)
+                        .docComment("Create a " + cn + " from raw words, as returned by <code>word(int)</code>."
+                                + "\n@throws IllegalArgumentException if the words contain values which "
+                                + "are outside the bounds of the possible values of " + cn);
+                for (int i = 0; i < words; i++) {
+                    con.addArgument("long", "word" + i);
+                }
+                con.body(bb -> {
+                    bb.statement("validate(" + wordsList(words, -1, null) + ")");
+                    for (int i = 0; i < words; i++) {
+                        bb.statement("this.word" + i + " = word" + i);
+                    }
+                });
+            });
+            result.constructor(con -> {
+                con.setModifier(PRIVATE)
+                        .docComment("Construct without validation, for words which can only have been "
+                                + "produced by generated code."
+                                + "\n@param trusted Ignored; distinguishes this constructor");
+                for (int i = 0; i < words; i++) {
+                    con.addArgument("long", "word" + i);
+                }
+                con.addArgument("boolean", "trusted");
+                con.body(bb -> {
+                    for (int i = 0; i < words; i++) {
+                        bb.statement("this.word" + i + " = word" + i);
+                    }
+                });
+            });
+
+            result.method("word", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Get one of the raw words of this state, for persisting it "
+                                + "or passing it to the constructor."
+                                + "\n@param index A word index, from 0 to <code>WORDS - 1</code>"
+                                + "\n@return The raw word"
+                                + "\n@throws IndexOutOfBoundsException if the index is out of range")
+                        .addArgument("int", "index")
+                        .returning("long")
+                        .body(bb -> {
+                            bb.switchingOn("index", sw -> {
+                                for (int i = 0; i < words; i++) {
+                                    int ix = i;
+                                    sw.inCase(i, cs -> cs.returning("word" + ix));
+                                }
+                                sw.inDefaultCase(cs -> cs.andThrow(nb -> nb.withStringConcatentationArgument("Word index ")
+                                        .appendExpression("index")
+                                        .append(" out of range 0 to " + (words - 1))
+                                        .endConcatenation()
+                                        .ofType("IndexOutOfBoundsException")));
+                            });
+                        });
+            });
+
+            generateOutOfRange(result, elements);
+
+            for (BitsElement be : elements) {
+                generateWideAccessors(be, result, words, validation);
+            }
+
+            result.method("validate", mth -> {
+                mth.docComment("Ensures that the passed words are valid."
+                        + "\n@throws IllegalArgumentException if the words contain values outside the "
+                        + "bounds of the possible values of " + cn);
+                mth.withModifier(PRIVATE, STATIC);
+                for (int i = 0; i < words; i++) {
+                    mth.addArgument("long", "word" + i);
+                }
+                mth.body(bb -> {
+                    for (int i = 0; i < words; i++) {
+                        if (used[i] != -1L) {
+                            bb.iff().booleanExpression("(word" + i + " & WORD" + i + "_INV_MASK) != 0")
+                                    .statement("throw new IllegalArgumentException(\"Word " + i
+                                            + " contains set bits which must not be set in a " + cn
+                                            + ": \" + Long.toBinaryString(word" + i + "))")
+                                    .endIf();
+                        }
+                    }
+                    for (BitsElement be : elements) {
+                        String raw = "((word" + (be.startingBit / 64) + " & " + be.maskFieldName()
+                                + ") >>> " + be.startingBitFieldName() + ")";
+                        if (be.nested != null) {
+                            String ns = be.nestedStateName(result);
+                            bb.statement(ns + ".new" + ns + "(" + (be.nested.totalBitsNeeded() > 32 ? "" : "(int) ")
+                                    + raw + ")");
+                        } else if (be.isEnum) {
+                            bb.iff().booleanExpression(raw + " >= " + be.valuesFieldName() + ".length")
+                                    .statement("throw outOfRange(\"" + be.name + "\", " + raw + ", 0, "
+                                            + be.valuesFieldName() + ".length - 1)")
+                                    .endIf();
+                        } else if (be.range.isPresent()) {
+                            ValueRangeProxy px = be.range.get();
+                            bb.iff().booleanExpression(raw + " > " + px.maxFieldNameOf(be.name)
+                                    + " - " + px.minFieldNameOf(be.name))
+                                    .statement("throw outOfRange(\"" + be.name + "\", " + raw + " + "
+                                            + px.minFieldNameOf(be.name) + ", " + px.minFieldNameOf(be.name)
+                                            + ", " + px.maxFieldNameOf(be.name) + ")")
+                                    .endIf();
+                        }
+                    }
+                });
+            });
+
+            result.method("from", mth -> {
+                mth.withModifier(PUBLIC, STATIC)
+                        .docComment("Create a " + cn + " with the same values as the passed "
+                                + el.getSimpleName() + ".\n@param original Another instance"
+                                + "\n@return The passed instance if it is already a " + cn
+                                + ", or a new one")
+                        .addArgument(el.getSimpleName().toString(), "original")
+                        .returning(cn)
+                        .body(bb -> {
+                            bb.iff().booleanExpression("original instanceof " + cn)
+                                    .returning("(" + cn + ") original")
+                                    .endIf();
+                            bb.declare("result").initializedWith("INITIAL").as(cn);
+                            for (BitsElement be : elements) {
+                                bb.statement("result = result.with" + capitalize(be.name)
+                                        + "(original." + be.name + "())");
+                            }
+                            bb.returning("result");
+                        });
+            });
+
+            result.overridePublic("hashCode", hc -> {
+                hc.returning("int").body(bb -> {
+                    bb.declare("result").initializedWith("1L").as("long");
+                    for (int i = 0; i < words; i++) {
+                        bb.statement("result = 102071L * result + word" + i);
+                    }
+                    bb.returning("(int) (result ^ (result >>> 32))");
+                });
+            });
+
+            result.overridePublic("equals")
+                    .addArgument("Object", "o")
+                    .returning("boolean")
+                    .body(bb -> {
+                        bb.iff().booleanExpression("o == this")
+                                .returning(true)
+                                .elseIf().booleanExpression("o == null || o.getClass() != " + cn + ".class")
+                                .returning(false)
+                                .endIf();
+                        bb.declare("other").initializedWith("(" + cn + ") o").as(cn);
+                        StringBuilder sb = new StringBuilder();
+                        for (int i = 0; i < words; i++) {
+                            if (i > 0) {
+                                sb.append(" && ");
+                            }
+                            sb.append("other.word").append(i).append(" == word").append(i);
+                        }
+                        bb.returning(sb.toString());
+                    });
+
+            result.overridePublic("toString", ts -> {
+                ts.returning("String")
                         .body(bb -> {
-                            bb.declare("result")
-                                    .initializedWithNew(nb -> {
-                                        nb.ofType("TreeMap<>");
-                                    }).as("Map<String,Object>");
-                            elements.forEach(el -> el.contributeToMapClause("result", bb));
+                            bb.returningStringConcatenation(cn + "(", concat -> {
+                                int ct = 0;
+                                for (BitsElement be : elements) {
+                                    if (ct++ > 0) {
+                                        concat.append(", ");
+                                    }
+                                    concat.append(be.name + "=")
+                                            .appendInvocationOf(be.name)
+                                            .inScope();
+                                }
+                                concat.append(")");
+                                concat.endConcatenation();
+                            });
+                        });
+            });
+            return result;
+        }
+
+        private void generateWideAccessors(BitsElement be, ClassBuilder<String> cb, int words,
+                String validation) {
+            int word = be.startingBit / 64;
+            int bit = be.startingBit % 64;
+            String wordName = "word" + word;
+            TypeKind kind = be.origin.getReturnType().getKind();
+            String ret = be.origin.getReturnType().toString();
+            String raw = "((" + wordName + " & " + be.maskFieldName() + ") >>> "
+                    + be.startingBitFieldName() + ")";
+            cb.field(be.maskFieldName())
+                    .docComment("Bits " + bit + " to " + (bit + be.bitsRequired - 1) + " of word " + word
+                            + " for " + ret)
+                    .withModifier(PRIVATE, STATIC, FINAL)
+                    .initializedTo(asBinaryString(((1L << be.bitsRequired) - 1) << bit))
+                    .ofType("long");
+            cb.field(be.startingBitFieldName())
+                    .withModifier(PRIVATE, STATIC, FINAL)
+                    .initializedWith(bit);
+            be.range.ifPresent(px -> px.generateFields(be.name, true, cb));
+            be.quantized.ifPresent(q -> q.generateFields(be.name, cb));
+            if (be.isEnum) {
+                if (ret.indexOf('.') > 0 && !ret.substring(0, ret.lastIndexOf('.')).equals(cb.packageName())) {
+                    cb.importing(ret);
+                }
+                cb.field(be.valuesFieldName())
+                        .withModifier(PRIVATE, STATIC, FINAL)
+                        .initializedTo(simpleName(ret) + ".values()")
+                        .ofType(simpleName(ret) + "[]");
+            }
+            String getterExpr;
+            String inputType;
+            String stored;
+            String getterType = simpleName(ret);
+            if (be.nested != null) {
+                getterExpr = be.nestedDecoder(cb, raw, true);
+                getterType = be.nestedStateName(cb);
+                inputType = simpleName(ret);
+                if (ret.indexOf('.') > 0 && !ret.substring(0, ret.lastIndexOf('.')).equals(cb.packageName())) {
+                    cb.importing(ret);
+                }
+                stored = "(long) " + be.nestedEncoder(cb);
+            } else if (be.isEnum) {
+                getterExpr = be.valuesFieldName() + "[(int) " + raw + "]";
+                inputType = simpleName(ret);
+                stored = "(long) newValue.ordinal()";
+            } else if (kind == TypeKind.BOOLEAN) {
+                getterExpr = "(" + wordName + " & " + be.maskFieldName() + ") != 0";
+                inputType = "boolean";
+                stored = "(newValue ? 1L : 0L)";
+            } else if (be.quantized.isPresent()) {
+                getterExpr = be.quantized.get().toReturnableValue(be.name, raw);
+                inputType = ret;
+                stored = be.quantized.get().toStorableValue(be.name, "newValue", true);
+            } else if (kind == TypeKind.FLOAT) {
+                getterExpr = "Float.intBitsToFloat((int) " + raw + ")";
+                inputType = "float";
+                stored = "(Float.floatToRawIntBits(newValue) & 0xFFFFFFFFL)";
+            } else if (be.range.isPresent()) {
+                getterExpr = be.range.get().toReturnableValue(be.name, raw, true);
+                inputType = kind == TypeKind.BYTE || kind == TypeKind.SHORT ? "int" : ret;
+                stored = "(long) (newValue - " + be.range.get().minFieldNameOf(be.name) + ")";
+            } else {
+                getterExpr = "(" + ret + ") (" + wordName + " >>> " + be.startingBitFieldName() + ")";
+                inputType = kind == TypeKind.BYTE || kind == TypeKind.SHORT ? "int" : ret;
+                stored = "(long) newValue";
+            }
+            String returnType = getterType;
+            cb.overridePublic(be.name, mth -> {
+                mth.returning(returnType).body(bb -> bb.returning(getterExpr));
+            });
+            boolean boundsCheck = !be.range.isPresent() && (kind == TypeKind.BYTE || kind == TypeKind.SHORT);
+            cb.method("with" + capitalize(be.name), mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Creates a new instance of " + cb.className() + " with " + be.name
+                                + " set to the passed value."
+                                + (boundsCheck || be.range.isPresent()
+                                        ? " The value must be within the bounds of "
+                                        + (be.range.isPresent() ? "its ValueRange" : be.boxedType())
+                                        + be.validationConsequence() : "")
+                                + "\n@param newValue the new value of " + be.name
+                                + "\n@return a new instance of " + cb.className() + " or <code>this</code> if "
+                                + "the value is the same as this instance's value of " + be.name + ".")
+                        .addArgument(inputType, "newValue")
+                        .returning(cb.className())
+                        .body(bb -> {
+                            if (be.range.isPresent()) {
+                                be.range.get().generateValidationTest(be.name, "newValue", inputType, validation, bb);
+                            } else if (be.quantized.isPresent()) {
+                                be.quantized.get().generateValidationTest(be.name, "newValue", validation, bb);
+                            } else if (boundsCheck && "ASSERT".equals(validation)) {
+                                bb.statement("assert newValue >= " + be.boxedType() + ".MIN_VALUE"
+                                        + " && newValue <= " + be.boxedType() + ".MAX_VALUE : "
+                                        + "\"Value \" + newValue + \" is outside the bounds of "
+                                        + be.boxedType() + "\"");
+                            } else if (boundsCheck && "FULL".equals(validation)) {
+                                bb.iff().booleanExpression("newValue < " + be.boxedType() + ".MIN_VALUE"
+                                        + " || newValue > " + be.boxedType() + ".MAX_VALUE")
+                                        .statement("throw outOfRange(\"" + be.name + "\", newValue, "
+                                                + be.boxedType() + ".MIN_VALUE, " + be.boxedType() + ".MAX_VALUE)")
+                                        .endIf();
+                            }
+                            bb.declare("nue")
+                                    .initializedWith("(" + wordName + " & ~" + be.maskFieldName() + ") | (("
+                                            + stored + " << " + be.startingBitFieldName() + ") & "
+                                            + be.maskFieldName() + ")")
+                                    .as("long");
+                            bb.iff().booleanExpression("nue == " + wordName).returningThis().endIf();
+                            bb.returning("new " + cb.className() + "(" + wordsList(words, word, "nue") + ", true)");
+                        });
+            });
+        }
+
+        /**
+         * Generate the helper which decodes a set of enum constants from a
+         * bit set of ordinals, if there are any, so that each getter is a
+         * call small enough to be inlined rather than a copy of the loop.
+         */
+        private void generateFlagDecoder(ClassBuilder<String> result, boolean isLong, List<BitsElement> elements) {
+            if (elements.stream().noneMatch(be -> be.flagType != null)) {
+                return;
+            }
+            String valType = isLong ? "long" : "int";
+            result.method("decodeFlags", mth -> {
+                mth.docComment("Decodes a set of enum constants from a bit set of their ordinals."
+                        + "\n@param <E> The enum type"
+                        + "\n@param bits The bits, shifted down to bit 0"
+                        + "\n@param values The constants of the enum"
+                        + "\n@param type The enum type"
+                        + "\n@return A new set")
+                        .withModifier(PRIVATE, STATIC)
+                        .withTypeParam("E extends Enum<E>")
+                        .addArgument(valType, "bits")
+                        .addArgument("E[]", "values")
+                        .addArgument("Class<E>", "type")
+                        .returning("EnumSet<E>")
+                        .body(bb -> {
+                            bb.declare("result").initializedWith("EnumSet.noneOf(type)").as("EnumSet<E>");
+                            bb.whileLoop(loop -> {
+                                loop.statement("result.add(values[" + (isLong ? "Long" : "Integer")
+                                        + ".numberOfTrailingZeros(bits)])");
+                                loop.lineComment("Clear the lowest set bit");
+                                loop.statement("bits &= bits - 1");
+                                loop.underCondition().booleanExpression("bits != 0");
+                            });
                             bb.returning("result");
                         });
             });
+        }
 
-            result.method("fromMap", mth -> {
-                mth.withModifier(PUBLIC, STATIC)
-                        .addArgument("Map<String,Object>", "map")
-                        .returning(result.className())
-                        .docComment("Create an instance of this class from a (possibly serialized) Map, where "
-                                + "the map keys are method names on " + el.getSimpleName() + " and the values are "
-                                + "objects (perhaps boxed numbers or booleans) of the values."
-                                + "Unknown keys and values of incorrect types are ignored; if the type is a <code>Number</code>, "
-                                + "then the appropriate conversion method from <code>java.lang.Number</code> is used."
-                                + "If the value for an enum type is a String, then the corresponding enum constant "
-                                + "will be used, and it the value will be ignored if it is unrecognized."
-                                + "\n@param map A map"
-                                + "\n@return An instance of " + result.className())
+        /**
+         * Generate the cold helpers which create exceptions for out-of-range
+         * values - one for integral values, and one for quantized floating
+         * point values if there are any.
+         */
+        private void generateOutOfRange(ClassBuilder<String> result, List<BitsElement> elements) {
+            boolean anyQuantized = false;
+            for (BitsElement be : elements) {
+                anyQuantized |= be.quantized.isPresent();
+            }
+            for (String type : anyQuantized ? new String[]{"long", "double"} : new String[]{"long"}) {
+                result.method("outOfRange", mth -> {
+                    mth.docComment("Creates the exception for an out-of-range value; kept out of line so "
+                            + "that the methods which check values stay small enough to be inlined."
+                            + "\n@param name The field name"
+                            + "\n@param value The value"
+                            + "\n@param min The minimum"
+                            + "\n@param max The maximum"
+                            + "\n@return An exception to throw")
+                            .withModifier(PRIVATE, STATIC)
+                            .addArgument("String", "name")
+                            .addArgument(type, "value")
+                            .addArgument(type, "min")
+                            .addArgument(type, "max")
+                            .returning("IllegalArgumentException")
+                            .body(bb -> {
+                                bb.returningNew(nb -> {
+                                    nb.withStringConcatentationArgument("")
+                                            .appendExpression("name")
+                                            .append(" must be >= ")
+                                            .appendExpression("min")
+                                            .append(" and <= ")
+                                            .appendExpression("max")
+                                            .append(" but got ")
+                                            .appendExpression("value")
+                                            .endConcatenation()
+                                            .ofType("IllegalArgumentException");
+                                });
+                            });
+                });
+            }
+        }
+
+        ClassBuilder<String> generateWideStateHolder() {
+            boolean changeSupport = utils.annotationValue(on, "generateChangeSupport", Boolean.class, false);
+            String stateName = el.getSimpleName() + "State";
+            ClassBuilder<String> result = ClassBuilder.forPackage(utils.packageName(el))
+                    .named(el.getSimpleName() + "StateHolder")
+                    .docComment("An atomic wrapper around a " + stateName + ", which, being wider than "
+                            + "64 bits, is swapped as an immutable object through an AtomicReference "
+                            + "rather than stored in an AtomicLong.")
+                    .withModifier(PUBLIC, FINAL)
+                    .importing(AtomicReference.class, UnaryOperator.class);
+            if (changeSupport) {
+                result.importing(Supplier.class);
+                result.field("listener").withModifier(PRIVATE, FINAL).ofType(stateName + "Listener");
+                result.field("getter").withModifier(PRIVATE, FINAL)
+                        .initializedTo("this::state")
+                        .ofType("Supplier<" + stateName + ">");
+            }
+            result.field("state").withModifier(PRIVATE, FINAL)
+                    .ofType("AtomicReference<" + stateName + ">");
+
+            result.constructor(con -> {
+                con.setModifier(PUBLIC)
+                        .docComment("Create a new " + result.className() + " with the default (0) initial state.")
                         .body(bb -> {
-                            bb.declare("result").initializedWith(isLong ? "0L" : "0")
-                                    .as(isLong ? "long" : "int");
-                            elements.forEach(el -> el.contributeFromMapClause(isLong, "result", "map", bb));
-                            bb.returningNew(nb -> {
-                                nb.withArgument("result")
-                                        .ofType(result.className());
+                            bb.statement("this(" + stateName + ".INITIAL"
+                                    + (changeSupport ? ", null" : "") + ")");
+                        });
+            });
+            result.constructor(con -> {
+                con.setModifier(PUBLIC)
+                        .docComment("Create a new " + result.className() + " with the passed initial state."
+                                + "\n@param initialState the initial state"
+                                + "\n@throws IllegalArgumentException if the initial state is null")
+                        .addArgument(stateName, "initialState")
+                        .body(bb -> {
+                            if (changeSupport) {
+                                bb.statement("this(initialState, null)");
+                            } else {
+                                bb.ifNull("initialState").andThrow(nb -> nb.withStringLiteral("Initial state may not be null.")
+                                        .ofType("IllegalArgumentException")).endIf();
+                                bb.statement("this.state = new AtomicReference<>(initialState)");
+                            }
+                        });
+            });
+            if (changeSupport) {
+                result.constructor(con -> {
+                    con.setModifier(PUBLIC)
+                            .docComment("Create a new " + result.className() + " with the default (0) initial state"
+                                    + " notifying changes to the passed Listener.\n"
+                                    + "@param listener a listener")
+                            .addArgument(stateName + "Listener", "listener")
+                            .body(bb -> bb.statement("this(" + stateName + ".INITIAL, listener)"));
+                });
+                result.constructor(con -> {
+                    con.setModifier(PUBLIC)
+                            .docComment("Create a new " + result.className() + " with the passed initial state, "
+                                    + "and notifying changes to the passed listener."
+                                    + "\n@param initialState the initial state"
+                                    + "\n@param listener a listener"
+                                    + "\n@throws IllegalArgumentException if the initial state is null")
+                            .addArgument(stateName, "initialState")
+                            .addArgument(stateName + "Listener", "listener")
+                            .body(bb -> {
+                                bb.ifNull("initialState").andThrow(nb -> nb.withStringLiteral("Initial state may not be null.")
+                                        .ofType("IllegalArgumentException")).endIf();
+                                bb.statement("this.state = new AtomicReference<>(initialState)");
+                                bb.statement("this.listener = listener");
                             });
+                });
+            }
+
+            result.method("state", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Get the current state.\n@return the state")
+                        .returning(stateName)
+                        .body(bb -> bb.returning("state.get()"));
+            });
+
+            Consumer<BlockBuilder<?>> casLoop = bb -> {
+                bb.declare("oldValue").initializedWith("state.get()").as(stateName);
+                bb.declare("newValue").initializedWith("transition.apply(oldValue)").as(stateName);
+                bb.whileLoop(loop -> {
+                    loop.assign("oldValue").toExpression("state.get()");
+                    loop.assign("newValue").toExpression("transition.apply(oldValue)");
+                    loop.underCondition().booleanExpression("!newValue.equals(oldValue) "
+                            + "&& !state.compareAndSet(oldValue, newValue)");
+                });
+                if (changeSupport) {
+                    bb.iff().booleanExpression("listener != null && !newValue.equals(oldValue)")
+                            .statement("listener.onChange(oldValue, newValue, getter)")
+                            .endIf();
+                }
+            };
+            result.method("updateAndGet", mth -> {
+                mth.withModifier(PUBLIC)
+                        .addArgument("UnaryOperator<" + stateName + ">", "transition")
+                        .returning(stateName)
+                        .docComment("Update the state, applying the passed UnaryOperator"
+                                + " and returning the new value.  If the transition does not change "
+                                + "the state, nothing is written."
+                                + "\nNote that, per the contract of AtomicReference, "
+                                + "the passed unary operator may be called more than once, and must be stateless, itself."
+                                + "\n@param transition A UnaryOperator that computes a new state given an old one."
+                                + "\n@return the new state")
+                        .body(bb -> {
+                            casLoop.accept(bb);
+                            bb.returning("newValue.equals(oldValue) ? oldValue : newValue");
                         });
-                ;
             });
-
-            result.overridePublic("hashCode", hc -> {
-                hc.returning("int").
-                        body(bb -> {
-                            if (isLong) {
-                                bb.returning("(int) (102071L * (value ^ (value >>> 32)))");
-                            } else {
-                                bb.returning("43867 * value");
-                            }
+            result.method("getAndUpdate", mth -> {
+                mth.withModifier(PUBLIC)
+                        .addArgument("UnaryOperator<" + stateName + ">", "transition")
+                        .returning(stateName)
+                        .docComment("Update the state, applying the passed UnaryOperator"
+                                + " and returning the <i>old</i> value.  If the transition does not "
+                                + "change the state, nothing is written."
+                                + "\nNote that, per the contract of AtomicReference, "
+                                + "the passed unary operator may be called more than once, and must be stateless, itself."
+                                + "\n@param transition A UnaryOperator that computes a new state given an old one."
+                                + "\n@return the previous value")
+                        .body(bb -> {
+                            casLoop.accept(bb);
+                            bb.returning("oldValue");
                         });
             });
-
-            result.overridePublic("equals")
-                    .addArgument("Object", "o")
-                    .returning("boolean")
-                    .body(bb -> {
-                        bb.iff().booleanExpression("o == this")
-                                .returning(true)
-                                .elseIf().booleanExpression("o == null || o.getClass() != " + result.className() + ".class")
-                                .returning(false)
-                                .endIf();
-                        bb.returning("((" + result.className() + ") o).value == value");
-                    });
-
-            result.overridePublic("toString", ts -> {
-                ts.returning("String")
+            result.method("set", mth -> {
+                mth.withModifier(PUBLIC)
+                        .docComment("Replace the current state with the passed "
+                                + "value\n@return true if the new value differed from the old"
+                                + "\n@throws IllegalArgumentException if the passed state is null")
+                        .addArgument(stateName, "newState")
+                        .returning("boolean")
                         .body(bb -> {
-                            bb.returningStringConcatenation(result.className() + "(", concat -> {
-                                int ct = 0;
-                                for (BitsElement el : toElements()) {
-                                    el.generateReadMethod(isLong, result);
-                                    el.generateWriteMethod(isLong, result);
-                                    if (ct++ > 0) {
-                                        concat.append(", ");
-                                    }
-                                    concat.append(el.name + "=")
-                                            .appendInvocationOf(el.name)
-                                            .inScope();
-                                }
-
-                                concat.append(") = 0b")
-                                        .appendInvocationOf("toBinaryString")
-                                        .withArgument("value")
-                                        .on(isLong ? "Long" : "Integer");
-
-                                concat.append(" = 0x")
-                                        .appendInvocationOf("toHexString")
-                                        .withArgument("value")
-                                        .on(isLong ? "Long" : "Integer");
-
-                                concat.append(" = ")
-                                        .appendInvocationOf("toString")
-                                        .withArgument("value")
-                                        .on(isLong ? "Long" : "Integer");
-
-                                concat.endConcatenation();
-                            });
+                            bb.ifNull("newState")
+                                    .andThrow(nb -> {
+                                        nb.withStringLiteral("New state may not be null.")
+                                                .ofType("IllegalArgumentException");
+                                    }).endIf();
+                            bb.declare("transition")
+                                    .initializedWith("ignored -> newState")
+                                    .as("UnaryOperator<" + stateName + ">");
+                            casLoop.accept(bb);
+                            bb.returning("!newValue.equals(oldValue)");
                         });
             });
-
+            result.overridePublic("toString").returning("String")
+                    .body().returningInvocationOf("toString")
+                    .onInvocationOf("state").inScope().endBlock();
             return result;
         }
 
         public List<BitsElement> toElements() {
+            if (layout == null) {
+                layout = computeLayout();
+            }
+            return layout;
+        }
+
+        /**
+         * Assign bits: pinned and hot fields first, then the rest in layout
+         * order, each at the lowest free run of bits it fits in (on a byte
+         * boundary if aligning) without straddling a 64-bit word, so a state
+         * which does not fit in one word spills into further words. Elements
+         * are returned in layout order.
+         */
+        private List<BitsElement> computeLayout() {
+            List<String> order = new ArrayList<>(methodForName.keySet());
+            if ("DECLARATION".equals(utils.enumConstantValue(on, "layout", "ALPHABETICAL"))) {
+                order = new ArrayList<>(declarationOrder);
+            }
+            boolean align = utils.annotationValue(on, "alignToBytes", Boolean.class, false);
+            Map<String, Integer> positions = new HashMap<>();
+            BitSet occupied = new BitSet();
+            String hot = null;
+            for (String name : order) {
+                ExecutableElement ee = methodForName.get(name);
+                AnnotationMirror bits = utils.findMirror(ee, BITS_ANNO);
+                if (bits == null) {
+                    continue;
+                }
+                int pos = utils.annotationValue(bits, "position", Integer.class, -1);
+                if (utils.annotationValue(bits, "hot", Boolean.class, false)) {
+                    if (hot != null) {
+                        utils.fail("Only one method may be @Bits(hot = true), but found "
+                                + hot + " and " + name, ee);
+                        continue;
+                    }
+                    if (pos > 0) {
+                        utils.fail("A hot field is always at bit 0 and cannot also "
+                                + "have position " + pos, ee);
+                        continue;
+                    }
+                    hot = name;
+                    pos = 0;
+                }
+                if (pos < 0) {
+                    continue;
+                }
+                int needed = bitsNeeded(ee);
+                if (straddlesWord(pos, needed)) {
+                    utils.fail(name + " needs " + needed + " bits and cannot start at bit "
+                            + pos + " without crossing a 64-bit boundary", ee);
+                    continue;
+                }
+                if (!occupied.get(pos, pos + needed).isEmpty()) {
+                    utils.fail(name + " at bit " + pos + " overlaps another pinned field", ee);
+                    continue;
+                }
+                occupied.set(pos, pos + needed);
+                positions.put(name, pos);
+            }
+            for (String name : order) {
+                if (positions.containsKey(name)) {
+                    continue;
+                }
+                ExecutableElement ee = methodForName.get(name);
+                int needed = bitsNeeded(ee);
+                int step = align && needed > 1 ? 8 : 1;
+                int pos = 0;
+                while (straddlesWord(pos, needed) || !occupied.get(pos, pos + needed).isEmpty()) {
+                    pos += step;
+                }
+                occupied.set(pos, pos + needed);
+                positions.put(name, pos);
+            }
             List<BitsElement> result = new ArrayList<>();
-            int currBit = 0;
-            for (Map.Entry<String, ExecutableElement> e : methodForName.entrySet()) {
-                int needed = bitsNeeded(e.getValue());
-                BitsElement be = new BitsElement(currBit, needed,
-                        e.getKey(), e.getValue(), on, isEnum(utils.erasureOf(e.getValue().getReturnType())));
-                result.add(be);
-                currBit += needed;
+            for (String name : order) {
+                Integer pos = positions.get(name);
+                if (pos != null) {
+                    ExecutableElement ee = methodForName.get(name);
+                    result.add(new BitsElement(pos, bitsNeeded(ee), name, ee, on,
+                            isEnum(utils.erasureOf(ee.getReturnType()))));
+                }
             }
             return result;
         }
 
+        private boolean straddlesWord(int start, int bits) {
+            return (start % 64) + bits > 64;
+        }
+
         public void addItem(String name, ExecutableElement ee) {
-            methodForName.put(name, ee);
+            if (methodForName.put(name, ee) == null) {
+                declarationOrder.add(name);
+            }
+            layout = null;
             validate();
         }
 
         void validate() {
-            if (totalBitsNeeded() > 64) {
-                utils.fail("Atomic state requires more than 64 bits - cannot generate");
+            ExecutableElement stamp = null;
+            for (ExecutableElement ee : methodForName.values()) {
+                if (utils.findMirror(ee, STAMP_ANNO) != null) {
+                    if (stamp != null && stamp != ee) {
+                        utils.fail("Only one method may be annotated with @Stamp, but found "
+                                + stamp.getSimpleName() + " and " + ee.getSimpleName(), ee);
+                    }
+                    switch (ee.getReturnType().getKind()) {
+                        case BYTE:
+                        case SHORT:
+                        case INT:
+                            break;
+                        default:
+                            utils.fail("@Stamp can only be used on methods which return "
+                                    + "byte, short or int, not " + ee.getReturnType(), ee);
+                    }
+                    stamp = ee;
+                }
+                if (utils.findMirror(ee, BUFFERED_ANNO) != null) {
+                    switch (ee.getReturnType().getKind()) {
+                        case BYTE:
+                        case SHORT:
+                        case INT:
+                            break;
+                        default:
+                            utils.fail("@Buffered can only be used on methods which return "
+                                    + "byte, short or int, not " + ee.getReturnType(), ee);
+                    }
+                    if (stamp == ee || utils.findMirror(ee, ACQUIRABLE_ANNO) != null) {
+                        utils.fail("A @Buffered counter cannot also be a @Stamp or @Acquirable", ee);
+                    }
+                }
+                if (utils.findMirror(ee, ACQUIRABLE_ANNO) != null) {
+                    switch (ee.getReturnType().getKind()) {
+                        case BOOLEAN:
+                        case BYTE:
+                        case SHORT:
+                        case INT:
+                            break;
+                        default:
+                            utils.fail("@Acquirable can only be used on methods which return "
+                                    + "boolean, byte, short or int, not " + ee.getReturnType(), ee);
+                    }
+                    if (stamp == ee) {
+                        utils.fail("A @Stamp cannot also be @Acquirable", ee);
+                    }
+                }
+                AnnotationMirror interned = utils.findMirror(ee, INTERNED_ANNO);
+                if (interned != null) {
+                    TypeMirror ret = ee.getReturnType();
+                    if (ret.getKind() != TypeKind.DECLARED || isEnum(ret) || flagSetType(ret) != null
+                            || !((DeclaredType) ret).getTypeArguments().isEmpty()) {
+                        utils.fail("@Interned can only be used on methods which return a non-generic "
+                                + "class or interface type, not " + ret, ee, interned);
+                    }
+                }
+                AnnotationMirror timestamp = utils.findMirror(ee, TIMESTAMP_ANNO);
+                if (timestamp != null) {
+                    int bits = utils.annotationValue(timestamp, "bits", Integer.class, 16);
+                    switch (ee.getReturnType().getKind()) {
+                        case INT:
+                            if (bits < 1 || bits > 32) {
+                                utils.fail("An int @Timestamp must have from 1 to 32 bits, not " + bits,
+                                        ee, timestamp);
+                            }
+                            break;
+                        case LONG:
+                            if (bits <= 32 || bits > 63) {
+                                utils.fail("A long @Timestamp must have from 33 to 63 bits, not " + bits
+                                        + " - use int for fewer", ee, timestamp);
+                            }
+                            break;
+                        default:
+                            utils.fail("@Timestamp can only be used on methods which return "
+                                    + "int or long, not " + ee.getReturnType(), ee);
+                    }
+                    switch (utils.enumConstantValue(timestamp, "resolution", "MILLISECONDS")) {
+                        case "NANOSECONDS":
+                        case "MICROSECONDS":
+                            utils.fail("The resolution of a @Timestamp must be milliseconds or coarser", ee, timestamp);
+                            break;
+                        default:
+                            break;
+                    }
+                    for (String other : new String[]{VALUE_RANGE_ANNO, STAMP_ANNO, BUFFERED_ANNO, ACQUIRABLE_ANNO}) {
+                        if (utils.findMirror(ee, other) != null) {
+                            utils.fail("A @Timestamp cannot also be @" + simpleName(other), ee);
+                        }
+                    }
+                }
+            }
+        }
+
+        Optional<BitsElement> stampElement(List<BitsElement> elements) {
+            for (BitsElement be : elements) {
+                if (be.isStamp()) {
+                    return Optional.of(be);
+                }
             }
+            return Optional.empty();
         }
 
+        /**
+         * The number of bits up to and including the highest one used, which
+         * with pinned or aligned fields may be more than the sum of the
+         * fields' sizes.
+         */
         int totalBitsNeeded() {
             int result = 0;
-            for (ExecutableElement ee : methodForName.values()) {
-                result += bitsNeeded(ee);
+            for (BitsElement be : toElements()) {
+                result = Math.max(result, be.startingBit + be.bitsRequired);
             }
             return result;
         }
@@ -1456,6 +5385,48 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
 
     int bitsNeeded(ExecutableElement ee) {
         TypeMirror mir = ee.getReturnType();
+        AnnotationMirror interned = utils.findMirror(ee, INTERNED_ANNO);
+        if (interned != null) {
+            int bits = utils.annotationValue(interned, "bits", Integer.class, 8);
+            if (bits < 1 || bits > 16) {
+                utils.fail("@Interned bits must be from 1 to 16, not " + bits, ee, interned);
+            }
+            return Math.max(1, Math.min(16, bits));
+        }
+        TypeMirror flags = flagSetType(mir);
+        if (flags != null) {
+            int constCount = countEnumMembers(flags);
+            if (constCount > 64) {
+                utils.fail("A set of " + flags + " needs one bit per constant, but it has "
+                        + constCount + " constants", ee);
+            }
+            return Math.max(1, Math.min(64, constCount));
+        }
+        Optional<QuantizedProxy> quantized = quantization(ee);
+        if (quantized.isPresent()) {
+            return quantized.get().bits;
+        }
+        AnnotationMirror timestamp = utils.findMirror(ee, TIMESTAMP_ANNO);
+        if (timestamp != null) {
+            return utils.annotationValue(timestamp, "bits", Integer.class, 16);
+        }
+        StateModel nested = nestedModel(mir);
+        if (nested != null) {
+            if (!measuring.add(nested.el)) {
+                utils.fail(nested.el.getSimpleName() + " cannot contain itself", ee);
+                return 1;
+            }
+            try {
+                int result = nested.totalBitsNeeded();
+                if (result > 64) {
+                    utils.fail("A nested AtomicState must fit in 64 bits, but "
+                            + nested.el.getSimpleName() + " needs " + result, ee);
+                }
+                return Math.min(64, result);
+            } finally {
+                measuring.remove(nested.el);
+            }
+        }
         Optional<ValueRangeProxy> vr = valueRange(ee);
         if (vr.isPresent()) {
             switch (mir.getKind()) {
@@ -1540,6 +5511,26 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
         return utils.isAssignable(mir, enumType());
     }
 
+    /**
+     * If the passed type is a <code>Set</code> or <code>EnumSet</code> of
+     * an enum type, which is stored as one bit per constant, get the enum
+     * type; otherwise null.
+     */
+    TypeMirror flagSetType(TypeMirror mir) {
+        if (mir.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        String erased = utils.erasureOf(mir).toString();
+        if (!"java.util.Set".equals(erased) && !"java.util.EnumSet".equals(erased)) {
+            return null;
+        }
+        List<? extends TypeMirror> args = ((DeclaredType) mir).getTypeArguments();
+        if (args.size() != 1 || !isEnum(args.get(0))) {
+            return null;
+        }
+        return args.get(0);
+    }
+
     static int bitsFor(int count) {
         int result = Long.numberOfTrailingZeros(
                 nearestPowerOfTwoLessThan(count)
@@ -1680,6 +5671,276 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
         return Optional.empty();
     }
 
+    Optional<QuantizedProxy> quantization(ExecutableElement el) {
+        AnnotationMirror mir = utils.findMirror(el, QUANTIZED_ANNO);
+        if (mir != null) {
+            return Optional.of(new QuantizedProxy(mir, el));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * A float or double stored as an unsigned fixed-point value of some
+     * number of bits, scaled between a minimum and maximum.
+     */
+    class QuantizedProxy {
+
+        private final double min;
+        private final double max;
+        final int bits;
+        private final TypeKind kind;
+
+        QuantizedProxy(AnnotationMirror mir, ExecutableElement el) {
+            kind = el.getReturnType().getKind();
+            min = utils.annotationValue(mir, "min", Double.class, 0D);
+            max = utils.annotationValue(mir, "max", Double.class, 1D);
+            bits = utils.annotationValue(mir, "bits", Integer.class, 16);
+            int maxBits = kind == TypeKind.FLOAT ? 24 : 53;
+            if (kind != TypeKind.FLOAT && kind != TypeKind.DOUBLE) {
+                utils.fail("@Quantized can only be used on methods which return "
+                        + "float or double, not " + el.getReturnType(), el, mir);
+            } else if (bits < 1 || bits > maxBits) {
+                utils.fail("@Quantized bits for a " + el.getReturnType() + " must be from 1 to "
+                        + maxBits + " but got " + bits, el, mir);
+            }
+            if (!(min < max) || Double.isInfinite(min) || Double.isInfinite(max)) {
+                utils.fail("Minimum and maximum are contradictory: " + min + " and " + max, el, mir);
+            }
+        }
+
+        private long levels() {
+            return (1L << bits) - 1;
+        }
+
+        String minFieldNameOf(String fieldName) {
+            return fieldName.toUpperCase() + "_MIN";
+        }
+
+        String maxFieldNameOf(String fieldName) {
+            return fieldName.toUpperCase() + "_MAX";
+        }
+
+        String stepFieldNameOf(String fieldName) {
+            return fieldName.toUpperCase() + "_STEP";
+        }
+
+        String scaleFieldNameOf(String fieldName) {
+            return fieldName.toUpperCase() + "_SCALE";
+        }
+
+        void generateFields(String fieldName, ClassBuilder<?> cb) {
+            cb.field(minFieldNameOf(fieldName)).withModifier(PRIVATE, STATIC, FINAL)
+                    .initializedTo(Double.toString(min)).ofType("double");
+            cb.field(maxFieldNameOf(fieldName)).withModifier(PRIVATE, STATIC, FINAL)
+                    .initializedTo(Double.toString(max)).ofType("double");
+            cb.field(stepFieldNameOf(fieldName), fld -> {
+                fld.docComment("The difference between the values of adjacent stored values of " + fieldName)
+                        .withModifier(PRIVATE, STATIC, FINAL)
+                        .initializedTo(Double.toString((max - min) / levels())).ofType("double");
+            });
+            cb.field(scaleFieldNameOf(fieldName), fld -> {
+                fld.docComment("Multiplier converting an offset from the minimum of " + fieldName
+                        + " into steps")
+                        .withModifier(PRIVATE, STATIC, FINAL)
+                        .initializedTo(Double.toString(levels() / (max - min))).ofType("double");
+            });
+        }
+
+        <T> void generateValidationTest(String fieldName, String varName, String validation, BlockBuilder<T> bb) {
+            String inRange = varName + " >= " + minFieldNameOf(fieldName) + " && "
+                    + varName + " <= " + maxFieldNameOf(fieldName);
+            switch (validation) {
+                case "NONE":
+                    return;
+                case "ASSERT":
+                    bb.statement("assert " + inRange + " : \"" + fieldName
+                            + " must be >= \" + " + minFieldNameOf(fieldName) + " + \" and <= \" + "
+                            + maxFieldNameOf(fieldName) + " + \" but got \" + " + varName);
+                    return;
+                default:
+                    bb.lineComment("Negated so that NaN is rejected too");
+                    bb.iff().booleanExpression("!(" + inRange + ")")
+                            .statement("throw outOfRange(\"" + fieldName + "\", " + varName + ", "
+                                    + minFieldNameOf(fieldName) + ", " + maxFieldNameOf(fieldName) + ")")
+                            .endIf();
+            }
+        }
+
+        /**
+         * The number of steps from the minimum, clamping values which were
+         * not rejected by validation to the range.
+         */
+        String toStorableValue(String fieldName, String varName, boolean isLong) {
+            String result = "Math.round((Math.max(" + minFieldNameOf(fieldName) + ", Math.min("
+                    + maxFieldNameOf(fieldName) + ", " + varName + ")) - " + minFieldNameOf(fieldName)
+                    + ") * " + scaleFieldNameOf(fieldName) + ")";
+            return isLong ? result : "(int) " + result;
+        }
+
+        String toReturnableValue(String fieldName, String rawValue) {
+            String result = minFieldNameOf(fieldName) + " + " + rawValue + " * " + stepFieldNameOf(fieldName);
+            return kind == TypeKind.FLOAT ? "(float) (" + result + ")" : result;
+        }
+    }
+
+    /**
+     * The kinds of output generated <code>writeJson()</code> methods write
+     * to, and the statements which write to each.
+     */
+    enum JsonTarget {
+        STRING_BUILDER("StringBuilder"),
+        APPENDABLE("Appendable"),
+        BYTE_BUFFER("ByteBuffer");
+        final String typeName;
+
+        JsonTarget(String typeName) {
+            this.typeName = typeName;
+        }
+
+        /**
+         * Write a constant - inline as a string literal, or for a buffer, as
+         * a precomputed byte array.
+         */
+        void literal(String text, String constantName, ClassBuilder<?> cb, BlockBuilder<?> bb) {
+            String quoted = "\"" + text.replace("\"", "\\\"") + "\"";
+            if (this == BYTE_BUFFER) {
+                cb.field(constantName, fld -> fld.withModifier(PRIVATE, STATIC, FINAL)
+                        .initializedTo(quoted + ".getBytes(StandardCharsets.UTF_8)")
+                        .ofType("byte[]"));
+                bb.statement("into.put(" + constantName + ")");
+            } else {
+                bb.statement("into.append(" + quoted + ")");
+            }
+        }
+
+        String character(char c) {
+            return this == BYTE_BUFFER ? "into.put((byte) '" + c + "')" : "into.append('" + c + "')";
+        }
+
+        String nullLiteral() {
+            return this == BYTE_BUFFER ? "into.put(JSON_NULL)" : "into.append(\"null\")";
+        }
+
+        String bool(String expr) {
+            return this == BYTE_BUFFER ? "into.put(" + expr + " ? JSON_TRUE : JSON_FALSE)"
+                    : "into.append(" + expr + " ? \"true\" : \"false\")";
+        }
+
+        String decimal(String expr) {
+            switch (this) {
+                case STRING_BUILDER:
+                    return "into.append(" + expr + ")";
+                case APPENDABLE:
+                    return "appendDecimal(" + expr + ", into)";
+                default:
+                    return "putDecimal(" + expr + ", into)";
+            }
+        }
+
+        String floatingPoint(String expr, String boxed) {
+            switch (this) {
+                case STRING_BUILDER:
+                    return "into.append(" + expr + ")";
+                case APPENDABLE:
+                    return "into.append(" + boxed + ".toString(" + expr + "))";
+                default:
+                    return "putAscii(" + boxed + ".toString(" + expr + "), into)";
+            }
+        }
+
+        String string(String expr) {
+            return this == BYTE_BUFFER ? "into.put(" + expr + ".getBytes(StandardCharsets.UTF_8))"
+                    : "into.append(" + expr + ")";
+        }
+    }
+
+    static boolean isPrefix(List<String> prefix, List<String> of) {
+        return prefix.size() <= of.size() && prefix.equals(of.subList(0, prefix.size()));
+    }
+
+    /**
+     * Comma-delimited current positions of a previous version's enum
+     * constants, by name, padded with -1 to the passed length.
+     */
+    static String remapping(List<String> was, List<String> now, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(i < was.size() ? now.indexOf(was.get(i)) : -1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One field of a layout descriptor - a line of the form
+     * <code>name start bits encoding [arguments]</code>.
+     */
+    static final class LayoutField {
+
+        final String name;
+        final int start;
+        final int bits;
+        final String encoding;
+        final List<String> args;
+
+        private LayoutField(String name, int start, int bits, String encoding, List<String> args) {
+            this.name = name;
+            this.start = start;
+            this.bits = bits;
+            this.encoding = encoding;
+            this.args = args;
+        }
+
+        static LayoutField parse(String line) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 4) {
+                return null;
+            }
+            try {
+                LayoutField result = new LayoutField(parts[0], Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2]), parts[3], Arrays.asList(parts).subList(4, parts.length));
+                if (result.start < 0 || result.bits < 1 || result.start + result.bits > 64) {
+                    return null;
+                }
+                if (result.isNumeric()) {
+                    result.min();
+                    result.max();
+                }
+                return result;
+            } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                return null;
+            }
+        }
+
+        boolean isNumeric() {
+            return "offset".equals(encoding) || "signed".equals(encoding);
+        }
+
+        long min() {
+            return Long.parseLong(args.get(0));
+        }
+
+        long max() {
+            return Long.parseLong(args.get(1));
+        }
+
+        List<String> constants() {
+            return args.isEmpty() ? emptyList() : Arrays.asList(args.get(0).split(","));
+        }
+
+        String mask() {
+            return "0x" + Long.toHexString(bits == 64 ? -1L : (1L << bits) - 1) + "L";
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + start + " " + bits + " " + encoding
+                    + (args.isEmpty() ? "" : " " + String.join(" ", args));
+        }
+    }
+
     class ValueRangeProxy {
 
         private final long min;
@@ -1749,22 +6010,45 @@ public class AtomicStateAnnotationProcessor extends AbstractProcessor {
             generateField(bitsFor(max), maxFieldNameOf(fieldName), isLong, max, cb);
         }
 
+        /**
+         * Generate the check of a value passed to a setter. In ASSERT mode
+         * (with assertions disabled) and NONE mode, a value outside the range
+         * is clamped to it, if the field's bits could hold it, so that an
+         * unchecked setter never produces a state which validation would
+         * later reject.
+         */
+        <T> void generateValidationTest(String fieldName, String varName, String varType, String validation,
+                BlockBuilder<T> bb) {
+            switch (validation) {
+                case "NONE":
+                    break;
+                case "ASSERT":
+                    bb.statement("assert " + varName + " >= " + minFieldNameOf(fieldName) + " && "
+                            + varName + " <= " + maxFieldNameOf(fieldName) + " : \"" + fieldName
+                            + " must be >= \" + " + minFieldNameOf(fieldName) + " + \" and <= \" + "
+                            + maxFieldNameOf(fieldName) + " + \" but got \" + " + varName);
+                    break;
+                default:
+                    generateValidationTest(fieldName, varName, bb);
+                    return;
+            }
+            long span = max - min;
+            if (span < 0 || Long.bitCount(span + 1) == 1) {
+                // Every value of the field's bits is in range
+                return;
+            }
+            bb.statement(varName + " = (" + varType + ") Math.max(" + minFieldNameOf(fieldName)
+                    + ", Math.min(" + maxFieldNameOf(fieldName) + ", " + varName + "))");
+        }
+
         <T> void generateValidationTest(String fieldName, String varName, BlockBuilder<T> bb) {
             bb.lineComment("Validate " + fieldName + " as " + varName);
             bb.lineComment("Min " + min + " max " + max);
             bb.iff().booleanExpression(varName + " < " + minFieldNameOf(fieldName) + " || "
                     + varName + " > " + maxFieldNameOf(fieldName))
-                    .andThrow(nb -> {
-                        nb.withStringConcatentationArgument(fieldName)
-                                .append(" must be >= ")
-                                .appendExpression(minFieldNameOf(fieldName))
-                                .append(" and <= ")
-                                .appendExpression(maxFieldNameOf(fieldName))
-                                .append(" but got ")
-                                .appendExpression(varName)
-                                .endConcatenation()
-                                .ofType("IllegalArgumentException");
-                    }).endIf();
+                    .statement("throw outOfRange(\"" + fieldName + "\", " + varName + ", "
+                            + minFieldNameOf(fieldName) + ", " + maxFieldNameOf(fieldName) + ")")
+                    .endIf();
         }
 
         String toStorableValue(String fieldName, String varName, boolean isLong) {
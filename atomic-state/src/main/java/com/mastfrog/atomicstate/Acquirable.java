@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static java.lang.annotation.ElementType.METHOD;
+import java.lang.annotation.Retention;
+import static java.lang.annotation.RetentionPolicy.CLASS;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of an AtomicState as a lock, causing acquire and release
+ * methods to be generated on the holder, so that a lock and the rest of the
+ * state of a resource (such as its lifecycle phase) can live in one word and
+ * change in one CAS.
+ * <ul>
+ * <li>On a <code>boolean</code> method, e.g. <code>writeLocked()</code>, it is
+ * an exclusive lock, and the holder gets <code>tryAcquireWriteLocked()</code>
+ * and <code>releaseWriteLocked()</code></li>
+ * <li>On a <code>byte</code>, <code>short</code> or <code>int</code> method,
+ * e.g. <code>readers()</code>, it is a count of shared holders bounded by the
+ * method's {@link ValueRange} (or its type), and the holder gets
+ * <code>tryAcquireSharedReaders()</code> and
+ * <code>releaseSharedReaders()</code></li>
+ * </ul>
+ * Each <code>tryAcquire</code> method has an overload which takes a predicate
+ * that must also be true of the state for acquisition to succeed - so, for
+ * example, a reader-writer lock can be built by acquiring the exclusive lock
+ * only when <code>readers() == 0</code>, and shared locks only when
+ * <code>!writeLocked()</code>. Releasing a lock that is not held throws an
+ * <code>IllegalStateException</code>.
+ *
+ * @see ValueRange
+ */
+@Target(METHOD)
+@Retention(CLASS)
+public @interface Acquirable {
+
+    /**
+     * If true, also generate blocking <code>acquire</code> methods, which
+     * park the calling thread until a release through one of the holder's
+     * generated <code>release</code> methods allows acquisition to succeed.
+     * Note that other kinds of state changes do not wake waiting threads.
+     *
+     * @return Whether or not to generate blocking methods
+     */
+    boolean blocking() default false;
+}
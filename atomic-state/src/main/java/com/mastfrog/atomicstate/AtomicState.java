@@ -61,4 +61,174 @@ public @interface AtomicState {
      * @return a boolean
      */
     boolean generateChangeSupport() default false;
+
+    /**
+     * If true, a <code>*StateArray</code> class will also be generated, which
+     * stores a fixed number of states in a single
+     * <code>AtomicIntegerArray</code> or <code>AtomicLongArray</code>, for
+     * cases where there are very many instances of the state (for example,
+     * one per upstream service) and an object per holder is undesirable.
+     *
+     * @return a boolean
+     */
+    boolean generateArray() default false;
+
+    /**
+     * If true, the generated holder will also have
+     * <code>combiningUpdateAndGet()</code> and <code>combiningAddX()</code>
+     * methods which go through a {@link FlatCombiner}, so that under heavy
+     * write contention one thread commits the transitions of many with a
+     * single compare-and-set. Using this means the generated code depends on
+     * the atomic-state library at runtime.
+     *
+     * @return a boolean
+     */
+    boolean combining() default false;
+
+    /**
+     * If true, the generated holder stores its value in a {@link McasCell}
+     * rather than an <code>AtomicInteger</code> or <code>AtomicLong</code>,
+     * and implements {@link Transaction.Participant}, so that it can be
+     * updated atomically together with other transactional holders by a
+     * {@link Transaction}. Every write then allocates a small box, so only use
+     * this for holders which need it. Using this means the generated code
+     * depends on the atomic-state library at runtime.
+     *
+     * @return a boolean
+     */
+    boolean transactional() default false;
+
+    /**
+     * If true, the generated state class implements {@link PackedState} and
+     * the holder implements {@link AtomicStateHolder}, so that generic code
+     * such as {@link StateSampler} can work with states and holders of any
+     * type. Using this means the generated code depends on the atomic-state
+     * library at runtime. Not supported for states wider than 64 bits.
+     *
+     * @return a boolean
+     */
+    boolean runtimeInterfaces() default false;
+
+    /**
+     * If true, the generated state class will have <code>writeJson()</code>
+     * methods which write the same names and values as <code>toMap()</code>
+     * as a JSON object to an <code>Appendable</code>,
+     * <code>StringBuilder</code> or UTF-8 <code>ByteBuffer</code>, without
+     * creating a map, and static <code>parseJson()</code> methods which read
+     * it back straight into the raw value. Implied by
+     * {@link #runtimeInterfaces()}. A nested AtomicState must also set this.
+     * Not supported for states wider than 64 bits.
+     *
+     * @return a boolean
+     */
+    boolean generateJson() default false;
+
+    /**
+     * If true, the generated state class will have a nested
+     * <code>Field</code> enum with a constant per field, exposing its name,
+     * type, position, width, bounds and enum constants, and reading and
+     * writing it in a raw value, so that generic tooling can work with the
+     * state without reflection. Not supported for states wider than 64 bits.
+     *
+     * @return a boolean
+     */
+    boolean generateFieldEnum() default false;
+
+    /**
+     * If true, the generated state class will have static
+     * <code>encode()</code> and <code>decode()</code> methods which copy
+     * arrays of raw values to and from a <code>ByteBuffer</code> in bulk,
+     * after a header holding the layout hash. Ignored for states with
+     * <code>@Interned</code> or <code>@Timestamp</code> fields, whose raw
+     * values mean nothing in another JVM. Not supported for states wider than
+     * 64 bits.
+     *
+     * @return a boolean
+     */
+    boolean generateCodec() default false;
+
+    /**
+     * How the arguments to generated <code>with*</code> and cursor
+     * <code>set*</code> methods are checked against the bounds of their type
+     * and any {@link ValueRange}. Unchecked values never produce an invalid
+     * state: a value outside a ValueRange is clamped to it, and values are
+     * always masked to their own bits, so an unchecked value outside the
+     * bounds of its type cannot corrupt other fields, but will be stored
+     * truncated. States constructed from raw values are always validated.
+     *
+     * @return The validation mode
+     */
+    Validation validation() default Validation.FULL;
+
+    /**
+     * The order in which fields not pinned with {@link Bits} are assigned
+     * bits.
+     *
+     * @return The layout order
+     */
+    Layout layout() default Layout.ALPHABETICAL;
+
+    /**
+     * If true, fields wider than one bit which are not pinned with
+     * {@link Bits} start on a byte boundary, so that, for example, an
+     * unranged <code>byte</code> or <code>short</code> can be read with a
+     * single shift and narrowing cast; booleans still fill any gaps this
+     * leaves. Alignment may push the state from an <code>int</code> to a
+     * <code>long</code>.
+     *
+     * @return Whether to byte-align fields
+     */
+    boolean alignToBytes() default false;
+
+    /**
+     * Previous versions of the layout to generate static
+     * <code>migrateFromV<i>n</i>(long)</code> methods for, which convert a raw
+     * value in that version's layout to the current one, moving fields and
+     * remapping enum constants by name with tables computed at compile time.
+     * The layout of each state class is written to a
+     * <code><i>Name</i>.layout</code> resource alongside it; to keep a
+     * version, copy that file into the interface's package (in its sources or
+     * resources) as <code><i>Name</i>.v<i>n</i>.layout</code> before changing
+     * the interface. Not supported for states wider than 64 bits.
+     *
+     * @return Previous layout versions
+     */
+    int[] migrateFrom() default {};
+
+    /**
+     * Orders in which fields are assigned bits, starting from bit 0.
+     */
+    enum Layout {
+        /**
+         * Alphabetical order of method name - the original behavior, and the
+         * default, so existing raw values stay compatible.
+         */
+        ALPHABETICAL,
+        /**
+         * The order methods are declared in the interface, so that new
+         * methods added at the end of the interface do not move existing
+         * fields.
+         */
+        DECLARATION
+    }
+
+    /**
+     * Validation modes for generated setters.
+     */
+    enum Validation {
+        /**
+         * Out-of-range arguments throw an IllegalArgumentException.
+         */
+        FULL,
+        /**
+         * Checks are Java <code>assert</code> statements, so they run under
+         * <code>-ea</code> (for example, in tests) and cost nothing in
+         * production.
+         */
+        ASSERT,
+        /**
+         * No checks, for callers which already clamp their inputs.
+         */
+        NONE
+    }
 }
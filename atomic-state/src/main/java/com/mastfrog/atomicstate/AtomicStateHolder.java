@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * Implemented by generated holder classes whose interface is annotated with
+ * <code>@AtomicState(runtimeInterfaces = true)</code>, so that generic code can
+ * read and update holders of any state type, either as state objects or as
+ * packed values.
+ * <p>
+ * Every method is implemented directly by the generated (final) class, so a
+ * call site which only ever sees one or two holder types stays monomorphic or
+ * bimorphic and is inlined as usual.
+ * </p>
+ *
+ * @param <S> The state type
+ */
+public interface AtomicStateHolder<S extends PackedState> {
+
+    /**
+     * Get the current state.
+     *
+     * @return The state
+     */
+    S state();
+
+    /**
+     * Get the packed value of the current state using an acquire load, without
+     * constructing a state object; states stored in an <code>int</code> are
+     * widened with sign extension, as with {@link PackedState#packedValue()}.
+     *
+     * @return The packed value
+     */
+    long packedValue();
+
+    /**
+     * Atomically replace the packed value of the state if it is the expected
+     * one. The new value is validated, and listeners are notified if it
+     * differs from the old one; it is stored as-is, so a
+     * {@link Stamp} field is only advanced if the caller advanced it.
+     *
+     * @param expected The expected packed value
+     * @param update The new packed value
+     * @return true if the value was replaced
+     * @throws IllegalArgumentException if the new value is not a valid state
+     */
+    boolean compareAndSetPacked(long expected, long update);
+
+    /**
+     * Update the state, returning the new state; the transition may be called
+     * more than once.
+     *
+     * @param transition Computes a new state from the old one
+     * @return The new state
+     */
+    S updateAndGet(UnaryOperator<S> transition);
+
+    /**
+     * Update the state, returning the old state; the transition may be called
+     * more than once.
+     *
+     * @param transition Computes a new state from the old one
+     * @return The old state
+     */
+    S getAndUpdate(UnaryOperator<S> transition);
+
+    /**
+     * Replace the state.
+     *
+     * @param newState The new state
+     * @return true if the new state differed from the old one
+     */
+    boolean set(S newState);
+}
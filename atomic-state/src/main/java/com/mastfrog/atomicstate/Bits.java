@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static java.lang.annotation.ElementType.METHOD;
+import java.lang.annotation.Retention;
+import static java.lang.annotation.RetentionPolicy.CLASS;
+import java.lang.annotation.Target;
+
+/**
+ * Controls where a method of an AtomicState is placed in the generated
+ * <code>int</code> or <code>long</code>.
+ * <p>
+ * By default bits are assigned in the order given by
+ * {@link AtomicState#layout()}, so adding or renaming a method can move the
+ * fields after it. Pinning a field to an explicit <code>position</code> keeps
+ * its bits where they are as the interface evolves, so raw values that have
+ * been persisted or shared with other processes can still be read. A
+ * <code>hot</code> field is placed at bit 0, so reading it needs no shift.
+ * Fields without an explicit position fill the remaining free bits.
+ * </p>
+ * <p>
+ * It is an error for pinned fields to overlap, for more than one field to be
+ * hot, or for a field to extend past bit 63.
+ * </p>
+ */
+@Target(METHOD)
+@Retention(CLASS)
+public @interface Bits {
+
+    /**
+     * The bit at which this field starts, or -1 to let the layout place it.
+     *
+     * @return A bit position
+     */
+    int position() default -1;
+
+    /**
+     * If true, place this field at bit 0; may not be combined with an
+     * explicit position.
+     *
+     * @return Whether this is the most frequently read field
+     */
+    boolean hot() default false;
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static java.lang.annotation.ElementType.METHOD;
+import java.lang.annotation.Retention;
+import static java.lang.annotation.RetentionPolicy.CLASS;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a byte, short or int method of an AtomicState as an
+ * eventually-consistent counter - a statistic such as an approximate count of
+ * requests in flight, which can tolerate being slightly stale.
+ * <p>
+ * The generated holder gets a <code>bufferedAddX(int)</code> method which
+ * accumulates deltas in striped cells selected by thread id (a
+ * {@link StripedDelta}) instead of compare-and-setting the state word, and
+ * only commits a cell's
+ * accumulated delta once its magnitude reaches the
+ * {@link #flushThreshold() flush threshold}. The holder's
+ * <code>flush()</code> method commits everything pending in a single update,
+ * and can be called periodically (say, from a
+ * <code>ScheduledExecutorService</code>); <code>estimatedX()</code> returns
+ * the committed value plus whatever is still pending.
+ * </p>
+ * <p>
+ * Committed values are clamped to the field's {@link ValueRange} (or the
+ * bounds of its type), rather than failing, since deltas from different
+ * threads may be committed in a different order than they were made. The
+ * part of a delta which was clamped off stays pending and is retried by later
+ * commits, so a decrement committed before its matching increment is not
+ * lost.
+ * </p>
+ */
+@Target(METHOD)
+@Retention(CLASS)
+public @interface Buffered {
+
+    /**
+     * The magnitude of a cell's accumulated delta at which it is committed to
+     * the state.
+     *
+     * @return A threshold
+     */
+    int flushThreshold() default 64;
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A process-wide monotonic clock with millisecond resolution, read from a
+ * volatile field which a single daemon thread updates once per millisecond,
+ * so that code which records timestamps on every state transition - such as
+ * the generated methods for fields annotated with {@link Timestamp} - does not
+ * call <code>System.nanoTime()</code> each time.
+ * <p>
+ * The clock counts from an arbitrary origin (the time this class was
+ * initialized), so its values are only meaningful relative to each other. The
+ * ticking thread is started the first time the clock is read. It may lag
+ * behind real time by a tick or more when the machine is busy.
+ * </p>
+ */
+public final class CoarseClock {
+
+    private static final long ORIGIN = System.nanoTime();
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static volatile long millis;
+
+    private CoarseClock() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Get the number of milliseconds since the clock's origin, as of the most
+     * recent tick.
+     *
+     * @return A number of milliseconds
+     */
+    public static long currentMillis() {
+        return Ticker.read();
+    }
+
+    /**
+     * Get the time since the clock's origin in some unit, as of the most
+     * recent tick.
+     *
+     * @param unit A unit, which should be no finer than milliseconds
+     * @return The time in the passed unit
+     */
+    public static long current(TimeUnit unit) {
+        return unit.convert(currentMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static long preciseMillis() {
+        return (System.nanoTime() - ORIGIN) / TICK_NANOS;
+    }
+
+    /**
+     * Holds the ticking thread, so that it is started by class initialization
+     * the first time the clock is read, and reads after that pay nothing to
+     * check whether it has been.
+     */
+    private static final class Ticker implements Runnable {
+
+        static {
+            millis = preciseMillis();
+            Thread thread = new Thread(new Ticker(), "coarse-clock");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        static long read() {
+            return millis;
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                LockSupport.parkNanos(TICK_NANOS);
+                millis = preciseMillis();
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongSupplier;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Flat-combining front end for a single atomic <code>int</code> or
+ * <code>long</code>, used by holders generated with
+ * <code>@AtomicState(combining = true)</code>.
+ * <p>
+ * Rather than each thread retrying its own compare-and-set against a hot
+ * value, threads publish their transition into a slot in a small array;
+ * whichever thread wins the combiner role applies every published transition
+ * in sequence to one snapshot of the value and commits the result with a
+ * single compare-and-set, then hands the committed value back to each
+ * publisher. Additions to the same field (published with
+ * {@link #add(int, long, LongBinaryOperator)}) are summed and applied once.
+ * </p>
+ * <p>
+ * Since all transitions in a batch are committed together, the value returned
+ * to each thread is the value committed by the batch its transition was part
+ * of, not an intermediate value. As with <code>updateAndGet()</code>,
+ * transitions may be applied more than once (if the commit is lost to a
+ * thread writing the value directly) and must be stateless. A transition
+ * which throws an exception fails alone - the exception is rethrown on the
+ * thread that published it, and the rest of the batch is committed without
+ * it. If every slot is in use, the caller simply applies its transition
+ * directly. A transition must not update the value it is applied to; trying to
+ * from the combining thread fails with an IllegalStateException rather than
+ * deadlocking.
+ * </p>
+ * <p>
+ * Threads waiting for their transition to be combined spin briefly, then park
+ * until it has been, or until the combiner role is free.
+ * </p>
+ * <p>
+ * The commit listener is called once per batch, on the combining thread, after
+ * it has given up the combiner role - so a listener may itself update the
+ * value through this combiner, and listeners for different batches may run
+ * concurrently, as they may for direct updates. If it throws, the exception is
+ * rethrown on the thread which published the first transition in the batch
+ * that succeeded (after the change has been committed), rather than on
+ * whichever thread happened to be combining.
+ * </p>
+ */
+public final class FlatCombiner {
+
+    private static final int SPINS_BEFORE_PARKING = 128;
+    private final LongSupplier read;
+    private final CompareAndSet cas;
+    private final CommitListener onCommit;
+    private final AtomicReferenceArray<Request> slots;
+    private final AtomicReference<Thread> combiner = new AtomicReference<>();
+    private final Request[] batch;
+    private final int[] batchSlots;
+    private final int mask;
+
+    /**
+     * Create a combiner with a number of slots appropriate to the number of
+     * available processors.
+     *
+     * @param read Reads the current value
+     * @param cas Compare-and-sets the value
+     * @param onCommit Called on the combining thread after each change is
+     * committed (may be null)
+     */
+    public FlatCombiner(LongSupplier read, CompareAndSet cas, CommitListener onCommit) {
+        this(read, cas, onCommit, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Create a combiner.
+     *
+     * @param read Reads the current value
+     * @param cas Compare-and-sets the value
+     * @param onCommit Called on the combining thread after each change is
+     * committed (may be null)
+     * @param slotCount The number of publication slots, rounded up to a power
+     * of two
+     */
+    public FlatCombiner(LongSupplier read, CompareAndSet cas, CommitListener onCommit, int slotCount) {
+        if (slotCount <= 0) {
+            throw new IllegalArgumentException("Slot count must be > 0 but got " + slotCount);
+        }
+        int size = Integer.highestOneBit(Math.min(slotCount, 1 << 16));
+        if (size < slotCount) {
+            size <<= 1;
+        }
+        this.read = read;
+        this.cas = cas;
+        this.onCommit = onCommit;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.batch = new Request[size];
+        this.batchSlots = new int[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Apply a transition to the value.
+     *
+     * @param transition A stateless transition
+     * @return The value committed by the batch which included the transition
+     */
+    public long update(LongUnaryOperator transition) {
+        return submit(new Request(transition, -1, 0, null));
+    }
+
+    /**
+     * Add a delta to one field of the value; deltas for the same key within
+     * one batch are summed and passed to the adder once. If the summed delta
+     * fails (say, because an intermediate sum is out of range), the deltas are
+     * applied individually.
+     *
+     * @param key Identifies the field, from 0 to 63
+     * @param delta The amount to add
+     * @param adder Applies a delta to a value
+     * @return The value committed by the batch which included the addition
+     */
+    public long add(int key, long delta, LongBinaryOperator adder) {
+        if (key < 0 || key > 63) {
+            throw new IllegalArgumentException("Key must be 0-63 but got " + key);
+        }
+        return submit(new Request(null, key, delta, adder));
+    }
+
+    private int slotFor(Thread thread) {
+        long id = thread.getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+    }
+
+    private long submit(Request req) {
+        Thread current = Thread.currentThread();
+        if (combiner.get() == current) {
+            // Called from a transition being combined - the request could
+            // only be combined by this thread, which is busy
+            throw new IllegalStateException("A transition may not update the value it is applied to");
+        }
+        int start = slotFor(current);
+        boolean published = false;
+        for (int i = 0; i <= mask; i++) {
+            int ix = (start + i) & mask;
+            if (slots.compareAndSet(ix, null, req)) {
+                published = true;
+                break;
+            }
+        }
+        if (!published) {
+            return applyDirectly(req);
+        }
+        int spins = 0;
+        while (!req.done) {
+            if (combiner.get() == null && combiner.compareAndSet(null, current)) {
+                Request notifier;
+                try {
+                    notifier = combine();
+                } finally {
+                    combiner.set(null);
+                    wakePending();
+                }
+                if (notifier != null) {
+                    notify(notifier);
+                }
+            } else if (++spins < SPINS_BEFORE_PARKING) {
+                Thread.onSpinWait();
+            } else {
+                // Published before re-checking, so either the request is
+                // finished or the combiner sees it parked when it lets go
+                req.parked = true;
+                if (!req.done && combiner.get() != null) {
+                    LockSupport.park(this);
+                }
+                req.parked = false;
+            }
+        }
+        Throwable failure = req.failure;
+        if (failure != null) {
+            throw rethrow(failure);
+        }
+        return req.result;
+    }
+
+    private long applyDirectly(Request req) {
+        for (;;) {
+            long prev = read.getAsLong();
+            long nue = req.op != null
+                    ? req.op.applyAsLong(prev)
+                    : req.adder.applyAsLong(prev, req.delta);
+            if (nue == prev || cas.compareAndSet(prev, nue)) {
+                if (nue != prev && onCommit != null) {
+                    onCommit.committed(prev, nue);
+                }
+                return nue;
+            }
+        }
+    }
+
+    /**
+     * Wake one parked thread whose transition is still published, so it can
+     * take the combiner role.
+     */
+    private void wakePending() {
+        for (int i = 0; i <= mask; i++) {
+            Request req = slots.get(i);
+            if (req != null && req.parked) {
+                LockSupport.unpark(req.thread);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Combine every published transition and commit the result, releasing
+     * their publishers - except the one which should be told about a failure
+     * of the commit listener, which is returned, already unpublished, to be
+     * notified once the combiner role has been given up.
+     */
+    private Request combine() {
+        int count = 0;
+        for (int i = 0; i <= mask; i++) {
+            Request req = slots.get(i);
+            if (req != null) {
+                batchSlots[count] = i;
+                batch[count++] = req;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        long prev;
+        long nue;
+        do {
+            prev = read.getAsLong();
+            nue = applyAll(count, prev);
+        } while (nue != prev && !cas.compareAndSet(prev, nue));
+        // The listener's failure belongs to a request whose change it was
+        // notified of, so release every other publisher first
+        Request notifier = null;
+        for (int i = 0; i < count; i++) {
+            Request req = batch[i];
+            batch[i] = null;
+            slots.set(batchSlots[i], null);
+            req.result = nue;
+            req.previous = prev;
+            if (notifier == null && req.failure == null) {
+                notifier = req;
+            } else {
+                finish(req);
+            }
+        }
+        return notifier;
+    }
+
+    private void notify(Request req) {
+        try {
+            if (req.result != req.previous && onCommit != null) {
+                onCommit.committed(req.previous, req.result);
+            }
+        } catch (RuntimeException | Error ex) {
+            req.failure = ex;
+        } finally {
+            finish(req);
+        }
+    }
+
+    private static void finish(Request req) {
+        req.done = true;
+        if (req.parked) {
+            LockSupport.unpark(req.thread);
+        }
+    }
+
+    /**
+     * The number of transitions currently published, for tests.
+     */
+    int published() {
+        int result = 0;
+        for (int i = 0; i <= mask; i++) {
+            if (slots.get(i) != null) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private long applyAll(int count, long value) {
+        // Cleared once up front - the individual fallback below records
+        // failures for later requests with the same key, which must survive
+        // until the end of the pass
+        for (int i = 0; i < count; i++) {
+            batch[i].failure = null;
+        }
+        long mergedKeys = 0;
+        for (int i = 0; i < count; i++) {
+            Request req = batch[i];
+            if (req.op != null) {
+                try {
+                    value = req.op.applyAsLong(value);
+                } catch (RuntimeException | Error ex) {
+                    req.failure = ex;
+                }
+                continue;
+            }
+            long keyBit = 1L << req.key;
+            if ((mergedKeys & keyBit) != 0) {
+                continue;
+            }
+            mergedKeys |= keyBit;
+            long sum = req.delta;
+            boolean more = false;
+            for (int j = i + 1; j < count; j++) {
+                Request other = batch[j];
+                if (other.op == null && other.key == req.key) {
+                    sum += other.delta;
+                    more = true;
+                }
+            }
+            if (more) {
+                try {
+                    value = req.adder.applyAsLong(value, sum);
+                    continue;
+                } catch (RuntimeException | Error ex) {
+                    // Fall through and apply one at a time so only the
+                    // offending deltas fail
+                }
+            }
+            for (int j = i; j < count; j++) {
+                Request other = batch[j];
+                if (other.op == null && other.key == req.key) {
+                    try {
+                        value = other.adder.applyAsLong(value, other.delta);
+                    } catch (RuntimeException | Error ex) {
+                        other.failure = ex;
+                    }
+                }
+            }
+        }
+        return value;
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return (RuntimeException) t;
+    }
+
+    /**
+     * Compare-and-set operation on the underlying value.
+     */
+    @FunctionalInterface
+    public interface CompareAndSet {
+
+        /**
+         * Set the value if it is currently the expected value.
+         *
+         * @param expected The expected value
+         * @param update The new value
+         * @return true if the value was set
+         */
+        boolean compareAndSet(long expected, long update);
+    }
+
+    /**
+     * Notified of each committed change.
+     */
+    @FunctionalInterface
+    public interface CommitListener {
+
+        /**
+         * Called after a change is committed.
+         *
+         * @param previous The previous value
+         * @param current The new value
+         */
+        void committed(long previous, long current);
+    }
+
+    private static final class Request {
+
+        final LongUnaryOperator op;
+        final int key;
+        final long delta;
+        final LongBinaryOperator adder;
+        final Thread thread = Thread.currentThread();
+        long previous;
+        long result;
+        Throwable failure;
+        volatile boolean done;
+        volatile boolean parked;
+
+        Request(LongUnaryOperator op, int key, long delta, LongBinaryOperator adder) {
+            this.op = op;
+            this.key = key;
+            this.delta = delta;
+            this.adder = adder;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps objects to small integer ids and back, so that a reference to one of
+ * a small set of objects can be packed into a few bits of a state; generated
+ * states have one for each field annotated with {@link Interned}.
+ * <p>
+ * Id 0 always means null. Looking up an object by id is a single volatile
+ * array read; interning an object which already has an id is a
+ * <code>ConcurrentHashMap</code> lookup, and assigning a new id claims a free
+ * slot with a compare-and-set, so neither ever blocks a reader.
+ * </p>
+ * <p>
+ * Objects are matched by <code>equals()</code>, and stay registered until
+ * they are {@link #release(Object) released}, after which their id may be
+ * reused for a different object - so only release an object once no live
+ * state refers to it; a state which still holds the old id will otherwise
+ * see null, or the new occupant of the slot.
+ * </p>
+ *
+ * @param <T> The type of object
+ */
+public final class InternTable<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final ConcurrentHashMap<T, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger nextFree = new AtomicInteger(1);
+
+    /**
+     * Create a table whose ids fit in the passed number of bits.
+     *
+     * @param bits The number of bits, from 1 to 16
+     */
+    public InternTable(int bits) {
+        if (bits < 1 || bits > 16) {
+            throw new IllegalArgumentException("Bits must be from 1 to 16 but got " + bits);
+        }
+        slots = new AtomicReferenceArray<>(1 << bits);
+    }
+
+    /**
+     * Get the object with an id.
+     *
+     * @param id An id
+     * @return The object, or null if the id is 0 or has been released
+     */
+    public T get(int id) {
+        return slots.get(id);
+    }
+
+    /**
+     * Get the id of an object, registering it if it does not already have
+     * one.
+     *
+     * @param obj An object, or null
+     * @return Its id, which is 0 for null
+     * @throws IllegalStateException if every id is in use
+     */
+    public int intern(T obj) {
+        if (obj == null) {
+            return 0;
+        }
+        Integer result = ids.get(obj);
+        if (result != null) {
+            return result;
+        }
+        return register(obj);
+    }
+
+    private int register(T obj) {
+        int capacity = slots.length();
+        int start = nextFree.get();
+        for (int i = 0; i < capacity - 1; i++) {
+            int slot = 1 + ((start - 1 + i) % (capacity - 1));
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, obj)) {
+                Integer existing = ids.putIfAbsent(obj, slot);
+                if (existing != null) {
+                    // Another thread registered the same object first
+                    slots.set(slot, null);
+                    return existing;
+                }
+                nextFree.set(slot + 1 == capacity ? 1 : slot + 1);
+                return slot;
+            }
+        }
+        throw new IllegalStateException("All " + (capacity - 1) + " ids are in use");
+    }
+
+    /**
+     * Get the id of an object if it has one, without registering it.
+     *
+     * @param obj An object
+     * @return Its id, or -1 if it is not registered
+     */
+    public int idOf(T obj) {
+        if (obj == null) {
+            return 0;
+        }
+        Integer result = ids.get(obj);
+        return result == null ? -1 : result;
+    }
+
+    /**
+     * Unregister an object, freeing its id for reuse.
+     *
+     * @param obj An object
+     * @return true if it was registered
+     */
+    public boolean release(T obj) {
+        Integer id = obj == null ? null : ids.remove(obj);
+        if (id == null) {
+            return false;
+        }
+        slots.set(id, null);
+        return true;
+    }
+
+    /**
+     * Get the number of registered objects.
+     *
+     * @return A count
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Get the largest number of objects this table can hold.
+     *
+     * @return The capacity, not counting null
+     */
+    public int capacity() {
+        return slots.length() - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "InternTable(" + size() + " of " + capacity() + ")";
+    }
+}
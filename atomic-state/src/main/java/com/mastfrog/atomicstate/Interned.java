@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static java.lang.annotation.ElementType.METHOD;
+import java.lang.annotation.Retention;
+import static java.lang.annotation.RetentionPolicy.CLASS;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of an AtomicState which returns an object - the current
+ * handler, the selected upstream - as a reference to one of a small set of
+ * objects, stored as an id in a few bits of the state.
+ * <p>
+ * The generated state class has a public static {@link InternTable} per
+ * interned field, named like <code>HANDLER_REGISTRY</code>; passing an object
+ * to <code>withHandler()</code> registers it if it is not already, and the
+ * getter looks it up by id. Objects stay registered until they are released
+ * from the table, which should only be done once no live state refers to
+ * them, and once all <code>2<sup>bits</sup> - 1</code> ids are in use, passing
+ * an unregistered object throws an IllegalStateException - so only use this
+ * for objects from a small, bounded set, or release them as they go out of
+ * use.
+ * </p>
+ * <p>
+ * Since ids are only meaningful within one JVM, states with interned fields
+ * have no binary codec and refuse Java serialization; their JSON form
+ * contains the objects' string values instead of ids, and parsing it back
+ * interns them again, which is only possible for strings - other interned
+ * fields are left null. Using this means the generated code depends on the
+ * atomic-state library at runtime.
+ * </p>
+ */
+@Target(METHOD)
+@Retention(CLASS)
+public @interface Interned {
+
+    /**
+     * The number of bits for ids, from 1 to 16; the table can hold
+     * <code>2<sup>bits</sup> - 1</code> objects, since id 0 is null.
+     *
+     * @return A number of bits
+     */
+    int bits() default 8;
+}
@@ -0,0 +1,355 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded dispatcher for asynchronous state-change listeners, shared across
+ * any number of holders, with a fixed number of worker threads.
+ * <p>
+ * Each task is dispatched with an <i>affinity</i> object which selects the
+ * shard (and thus the worker thread) it runs on, so tasks dispatched with the
+ * same affinity always run in the order they were dispatched. The generated
+ * <code>*StateListener.async(ListenerDispatcher, listener)</code> methods use
+ * the holder's current-state supplier as the affinity, so events from one
+ * holder stay ordered while events from different holders are spread across
+ * shards.
+ * </p>
+ * <p>
+ * Each shard has a fixed-capacity ring buffer; workers drain everything
+ * available in a batch and run it outside the lock. When a shard's buffer is
+ * full, dispatching threads block until there is space - except the shard's
+ * own worker (a listener which triggers another change), which cannot wait for
+ * itself, so the buffer grows to take the task; running it inline instead
+ * would run it ahead of tasks already queued for the same affinity. Other
+ * threads still block once the configured capacity is reached, and the buffer
+ * shrinks back to it as soon as the worker drains it. Exceptions thrown by
+ * tasks are passed to the worker thread's uncaught exception handler and do
+ * not stop the worker.
+ * </p>
+ */
+public final class ListenerDispatcher implements AutoCloseable {
+
+    private static final AtomicInteger IDS = new AtomicInteger();
+    private final Shard[] shards;
+
+    /**
+     * Create a dispatcher with daemon worker threads.
+     *
+     * @param shardCount The number of shards and worker threads
+     * @param capacityPerShard The number of queued tasks per shard beyond
+     * which dispatching threads other than the shard's worker block
+     */
+    public ListenerDispatcher(int shardCount, int capacityPerShard) {
+        this(shardCount, capacityPerShard, daemonThreads());
+    }
+
+    /**
+     * Create a dispatcher.
+     *
+     * @param shardCount The number of shards and worker threads
+     * @param capacityPerShard The number of queued tasks per shard beyond
+     * which dispatching threads other than the shard's worker block
+     * @param threadFactory Creates the worker threads
+     */
+    public ListenerDispatcher(int shardCount, int capacityPerShard, ThreadFactory threadFactory) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be > 0 but got " + shardCount);
+        }
+        if (capacityPerShard <= 0) {
+            throw new IllegalArgumentException("Capacity must be > 0 but got " + capacityPerShard);
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(capacityPerShard);
+        }
+        for (Shard shard : shards) {
+            shard.start(threadFactory);
+        }
+    }
+
+    private static ThreadFactory daemonThreads() {
+        int id = IDS.incrementAndGet();
+        AtomicInteger threads = new AtomicInteger();
+        return r -> {
+            Thread result = new Thread(r, "listener-dispatcher-" + id + "-" + threads.getAndIncrement());
+            result.setDaemon(true);
+            return result;
+        };
+    }
+
+    /**
+     * Run a task on the shard selected by the passed affinity object, after
+     * any previously dispatched tasks with the same affinity.
+     *
+     * @param affinity An object whose identity selects the shard
+     * @param task A task
+     * @throws RejectedExecutionException if the dispatcher has been closed
+     */
+    public void dispatch(Object affinity, Runnable task) {
+        shards[shardFor(affinity)].enqueue(task);
+    }
+
+    /**
+     * Get the index of the shard tasks with the passed affinity run on.
+     *
+     * @param affinity An object
+     * @return A shard index
+     */
+    public int shardFor(Object affinity) {
+        int h = System.identityHashCode(affinity);
+        h ^= h >>> 16;
+        return Math.floorMod(h * 0x9E3779B9, shards.length);
+    }
+
+    /**
+     * Get the number of shards (and worker threads).
+     *
+     * @return The shard count
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Get the number of tasks currently queued in one shard.
+     *
+     * @param shard A shard index
+     * @return The queue depth
+     */
+    public int queueDepth(int shard) {
+        return shards[shard].size;
+    }
+
+    /**
+     * Get the total number of tasks currently queued across all shards.
+     *
+     * @return The total queue depth
+     */
+    public int queueDepth() {
+        int result = 0;
+        for (Shard shard : shards) {
+            result += shard.size;
+        }
+        return result;
+    }
+
+    /**
+     * Get the largest queue depth one shard has reached.
+     *
+     * @param shard A shard index
+     * @return The high water mark
+     */
+    public int highWaterMark(int shard) {
+        return shards[shard].highWaterMark;
+    }
+
+    /**
+     * Get the total number of tasks which have been run.
+     *
+     * @return A count
+     */
+    public long completedCount() {
+        long result = 0;
+        for (Shard shard : shards) {
+            result += shard.completed;
+        }
+        return result;
+    }
+
+    /**
+     * Stop accepting tasks; workers exit after running any tasks which are
+     * already queued.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    /**
+     * Close this dispatcher and wait for queued tasks to be run.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit The time unit
+     * @return true if all workers exited within the timeout
+     * @throws InterruptedException if interrupted
+     */
+    public boolean closeAndAwait(long timeout, TimeUnit unit) throws InterruptedException {
+        close();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Shard shard : shards) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            shard.worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+            if (shard.worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Shard implements Runnable {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final int capacity;
+        private Runnable[] ring;
+        private int head;
+        private volatile int size;
+        private volatile int highWaterMark;
+        private volatile long completed;
+        private boolean closed;
+        private Thread worker;
+
+        Shard(int capacity) {
+            this.capacity = capacity;
+            ring = new Runnable[capacity];
+        }
+
+        void start(ThreadFactory threadFactory) {
+            worker = threadFactory.newThread(this);
+            worker.start();
+        }
+
+        void enqueue(Runnable task) {
+            if (task == null) {
+                throw new IllegalArgumentException("Null task");
+            }
+            lock.lock();
+            try {
+                if (Thread.currentThread() == worker) {
+                    if (size == ring.length) {
+                        // A listener triggering a change whose listener lands
+                        // on the same shard; waiting would deadlock, and
+                        // running the task now would reorder it
+                        grow();
+                    }
+                } else {
+                    while (size >= capacity && !closed) {
+                        notFull.awaitUninterruptibly();
+                    }
+                }
+                if (closed) {
+                    throw new RejectedExecutionException("Dispatcher closed");
+                }
+                int sz = size;
+                ring[(head + sz) % ring.length] = task;
+                size = ++sz;
+                if (sz > highWaterMark) {
+                    highWaterMark = sz;
+                }
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void grow() {
+            Runnable[] nue = new Runnable[ring.length * 2];
+            for (int i = 0; i < size; i++) {
+                nue[i] = ring[(head + i) % ring.length];
+            }
+            ring = nue;
+            head = 0;
+        }
+
+        void shutdown() {
+            lock.lock();
+            try {
+                closed = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable[] batch = new Runnable[capacity];
+            for (;;) {
+                int count;
+                lock.lock();
+                try {
+                    while (size == 0) {
+                        if (closed) {
+                            return;
+                        }
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    count = size;
+                    if (count > batch.length) {
+                        batch = new Runnable[ring.length];
+                    }
+                    for (int i = 0; i < count; i++) {
+                        int ix = (head + i) % ring.length;
+                        batch[i] = ring[ix];
+                        ring[ix] = null;
+                    }
+                    head = (head + count) % ring.length;
+                    size = 0;
+                    if (ring.length > capacity) {
+                        // Drained after a burst from this worker; give back
+                        // what grow() took
+                        ring = new Runnable[capacity];
+                        head = 0;
+                    }
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                for (int i = 0; i < count; i++) {
+                    Runnable task = batch[i];
+                    batch[i] = null;
+                    runOne(task);
+                }
+                if (batch.length > capacity) {
+                    batch = new Runnable[capacity];
+                }
+            }
+        }
+
+        private void runOne(Runnable task) {
+            try {
+                task.run();
+            } catch (Throwable thrown) {
+                Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, thrown);
+            } finally {
+                completed++;
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An atomic <code>int</code> or <code>long</code> which can also take part in
+ * a lock-free multi-word compare-and-set across several cells, used in place
+ * of <code>AtomicInteger</code> or <code>AtomicLong</code> by holders
+ * generated with <code>@AtomicState(transactional = true)</code>, so they can
+ * be updated together with other holders by a {@link Transaction}.
+ * <p>
+ * A cell holds either an immutable box containing its value, or, while a
+ * multi-word operation is being installed, that operation's descriptor.
+ * Anything that encounters a descriptor - a read, a single-cell update or
+ * another transaction - helps that operation finish before continuing, so no
+ * thread ever waits on another, and a thread stalled mid-transaction cannot
+ * block anyone. Each write stores a newly allocated box, and boxes are
+ * compared by identity, so a value which changes and changes back cannot be
+ * mistaken for one which never changed.
+ * </p>
+ * <p>
+ * The price relative to a plain atomic is an allocation per write and a type
+ * check per read.
+ * </p>
+ */
+public abstract class McasCell {
+
+    private static final AtomicLong IDS = new AtomicLong();
+    private static final AtomicReferenceFieldUpdater<McasCell, Object> REF
+            = AtomicReferenceFieldUpdater.newUpdater(McasCell.class, Object.class, "ref");
+    final long id = IDS.getAndIncrement();
+    private volatile Object ref;
+
+    McasCell(long initial) {
+        ref = new Box(initial);
+    }
+
+    final Box box() {
+        for (;;) {
+            Object cur = ref;
+            if (cur instanceof Box) {
+                return (Box) cur;
+            }
+            help((Descriptor) cur);
+        }
+    }
+
+    final long getRaw() {
+        return box().value;
+    }
+
+    final boolean compareAndSetRaw(long expect, long update) {
+        Box nue = null;
+        for (;;) {
+            Box cur = box();
+            if (cur.value != expect) {
+                return false;
+            }
+            if (nue == null) {
+                nue = new Box(update);
+            }
+            if (REF.compareAndSet(this, cur, nue)) {
+                return true;
+            }
+        }
+    }
+
+    final void setRaw(long value) {
+        Box nue = new Box(value);
+        for (;;) {
+            Box cur = box();
+            if (REF.compareAndSet(this, cur, nue)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Atomically replace the expected box of every cell in the descriptor with
+     * its update, or none of them. Cells must be sorted by id, so that two
+     * operations helping each other always install in the same order and
+     * cannot each wait on a cell the other holds.
+     */
+    static boolean help(Descriptor d) {
+        if (d.status == Descriptor.UNDECIDED) {
+            int outcome = Descriptor.SUCCEEDED;
+            install:
+            for (int i = 0; i < d.cells.length; i++) {
+                McasCell cell = d.cells[i];
+                for (;;) {
+                    if (d.status != Descriptor.UNDECIDED) {
+                        break install;
+                    }
+                    Object cur = cell.ref;
+                    if (cur == d) {
+                        break;
+                    }
+                    if (cur instanceof Descriptor) {
+                        help((Descriptor) cur);
+                        continue;
+                    }
+                    if (cur != d.expected[i]) {
+                        outcome = Descriptor.FAILED;
+                        break install;
+                    }
+                    if (REF.compareAndSet(cell, cur, d)) {
+                        break;
+                    }
+                }
+            }
+            Descriptor.STATUS.compareAndSet(d, Descriptor.UNDECIDED, outcome);
+        }
+        boolean succeeded = d.status == Descriptor.SUCCEEDED;
+        for (int i = 0; i < d.cells.length; i++) {
+            REF.compareAndSet(d.cells[i], d, succeeded ? d.updates[i] : d.expected[i]);
+        }
+        return succeeded;
+    }
+
+    static final class Box {
+
+        final long value;
+
+        Box(long value) {
+            this.value = value;
+        }
+    }
+
+    static final class Descriptor {
+
+        static final int UNDECIDED = 0;
+        static final int SUCCEEDED = 1;
+        static final int FAILED = 2;
+        static final AtomicIntegerFieldUpdater<Descriptor> STATUS
+                = AtomicIntegerFieldUpdater.newUpdater(Descriptor.class, "status");
+        final McasCell[] cells;
+        final Box[] expected;
+        final Box[] updates;
+        volatile int status;
+
+        Descriptor(McasCell[] cells, Box[] expected, Box[] updates) {
+            this.cells = cells;
+            this.expected = expected;
+            this.updates = updates;
+        }
+    }
+
+    /**
+     * An <code>int</code> cell, with the subset of the API of
+     * <code>AtomicInteger</code> that generated holders use.
+     */
+    public static final class OfInt extends McasCell {
+
+        /**
+         * Create a cell with the value 0.
+         */
+        public OfInt() {
+            super(0);
+        }
+
+        /**
+         * Get the value, helping any transaction in progress on this cell to
+         * complete.
+         *
+         * @return The value
+         */
+        public int get() {
+            return (int) getRaw();
+        }
+
+        /**
+         * Same as <code>get()</code>, which is already a volatile read.
+         *
+         * @return The value
+         */
+        public int getAcquire() {
+            return (int) getRaw();
+        }
+
+        /**
+         * Set the value if it is currently the expected one.
+         *
+         * @param expect The expected value
+         * @param update The new value
+         * @return true if the value was set
+         */
+        public boolean compareAndSet(int expect, int update) {
+            return compareAndSetRaw(expect, update);
+        }
+
+        /**
+         * Set the value unconditionally.
+         *
+         * @param value The new value
+         */
+        public void set(int value) {
+            setRaw(value);
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(get());
+        }
+    }
+
+    /**
+     * A <code>long</code> cell, with the subset of the API of
+     * <code>AtomicLong</code> that generated holders use.
+     */
+    public static final class OfLong extends McasCell {
+
+        /**
+         * Create a cell with the value 0.
+         */
+        public OfLong() {
+            super(0);
+        }
+
+        /**
+         * Get the value, helping any transaction in progress on this cell to
+         * complete.
+         *
+         * @return The value
+         */
+        public long get() {
+            return getRaw();
+        }
+
+        /**
+         * Same as <code>get()</code>, which is already a volatile read.
+         *
+         * @return The value
+         */
+        public long getAcquire() {
+            return getRaw();
+        }
+
+        /**
+         * Set the value if it is currently the expected one.
+         *
+         * @param expect The expected value
+         * @param update The new value
+         * @return true if the value was set
+         */
+        public boolean compareAndSet(long expect, long update) {
+            return compareAndSetRaw(expect, update);
+        }
+
+        /**
+         * Set the value unconditionally.
+         *
+         * @param value The new value
+         */
+        public void set(long value) {
+            setRaw(value);
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(get());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.Map;
+
+/**
+ * Implemented by generated state classes whose interface is annotated with
+ * <code>@AtomicState(runtimeInterfaces = true)</code>, so that generic code -
+ * samplers, codecs, metric exporters - can work with any state type without
+ * reflection.
+ * <p>
+ * Every method is implemented directly by the generated (final) class, so a
+ * call site which only ever sees one or two state types stays monomorphic or
+ * bimorphic and is inlined as usual.
+ * </p>
+ */
+public interface PackedState {
+
+    /**
+     * Get the value this state is packed into; states stored in an
+     * <code>int</code> are widened with sign extension, so casting the result
+     * back to <code>int</code> recovers the raw value.
+     *
+     * @return The packed value
+     */
+    long packedValue();
+
+    /**
+     * Get the number of bits of the packed value this state's fields use.
+     *
+     * @return A number of bits, at most 64
+     */
+    int packedBits();
+
+    /**
+     * Get a hash of this state type's layout, which changes when any field is
+     * added, removed, moved or resized, or any enum constant is added or
+     * reordered.
+     *
+     * @return A hash
+     */
+    long layoutHash();
+
+    /**
+     * Get the fields of this state as a map of field names to values.
+     *
+     * @return A map
+     */
+    Map<String, Object> toMap();
+
+    /**
+     * Append this state as a JSON object.
+     *
+     * @param into A StringBuilder
+     * @return The passed StringBuilder
+     */
+    StringBuilder writeJson(StringBuilder into);
+}
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static java.lang.annotation.ElementType.METHOD;
+import java.lang.annotation.Retention;
+import static java.lang.annotation.RetentionPolicy.CLASS;
+import java.lang.annotation.Target;
+
+/**
+ * Stores a <code>float</code> or <code>double</code> method of an AtomicState
+ * as a fixed-point value - an unsigned integer of the requested number of
+ * bits, scaled linearly between {@link #min()} and {@link #max()} - so that a
+ * ratio, load factor or health score can share a word with other fields
+ * instead of consuming 32 or 64 bits.
+ * <p>
+ * Values are rounded to the nearest of <code>2<sup>bits</sup></code> evenly
+ * spaced steps from the minimum to the maximum, and decoded with a single
+ * multiply-add, so a value read back may differ from the one written by up to
+ * half a step. Values outside the range, and NaN, are handled according to
+ * the state's {@link AtomicState#validation() validation mode}, and clamped
+ * to the range when they are not rejected.
+ * </p>
+ */
+@Target(METHOD)
+@Retention(CLASS)
+public @interface Quantized {
+
+    /**
+     * The minimum value, inclusive.
+     *
+     * @return A minimum
+     */
+    double min() default 0;
+
+    /**
+     * The maximum value, inclusive.
+     *
+     * @return A maximum
+     */
+    double max() default 1;
+
+    /**
+     * The number of bits to store the value in - at most 24 for a
+     * <code>float</code> and 53 for a <code>double</code>, the precision of
+     * their significands.
+     *
+     * @return A number of bits
+     */
+    int bits() default 16;
+}
@@ -0,0 +1,56 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static java.lang.annotation.ElementType.METHOD;
+import java.lang.annotation.Retention;
+import static java.lang.annotation.RetentionPolicy.CLASS;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an integral method of an AtomicState as a <i>stamp</i> - a version
+ * number which the generated holder increments on every committed change,
+ * wrapping around within its {@link ValueRange} (or the bounds of its type if
+ * there is none).
+ * <p>
+ * Since the stamp lives in the same word as the rest of the state, it changes
+ * in the same CAS as the state does, so there is no need for a separate
+ * version counter that can diverge from it. The generated holder gets
+ * <code>tryOptimisticRead()</code> and <code>validate(long)</code> methods
+ * which work like their <code>StampedLock</code> counterparts, for reading
+ * external data guarded by the state without taking a lock: obtain a stamp,
+ * read the data, and if <code>validate(stamp)</code> returns false, a change
+ * was committed in the meantime and the data must be re-read.
+ * </p>
+ * <p>
+ * Use as many bits as you can spare - a validation can only be fooled if the
+ * stamp wraps all the way around between the read and the validation. At most
+ * one method may be annotated with <code>&#064;Stamp</code>.
+ * </p>
+ */
+@Target(METHOD)
+@Retention(CLASS)
+public @interface Stamp {
+
+}
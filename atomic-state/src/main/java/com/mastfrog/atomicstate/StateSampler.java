@@ -0,0 +1,365 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntToLongFunction;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * Polls the raw values of any number of state holders (or the elements of a
+ * generated <code>*StateArray</code>) at a fixed rate on a single thread, and
+ * delivers the ones that changed since the last sample to a consumer as a
+ * batch.
+ * <p>
+ * Unlike a listener passed to a generated holder, sampling costs nothing on
+ * the write path - the holders do not know they are being sampled - at the
+ * price of coalescing any changes that happen between two samples. Sources
+ * are read using the generated <code>rawValue()</code> methods, which perform
+ * an acquire load, and only changed values are decoded into state objects.
+ * </p>
+ * <p>
+ * The consumer is invoked on the sampling thread, and is never invoked with
+ * an empty list. If the decoder or the consumer throws during a scheduled
+ * sample, the exception is passed to the sampling thread's uncaught exception
+ * handler, that batch of changes is dropped, and sampling continues.
+ * </p>
+ *
+ * @param <K> The type of key used to identify a sampled holder
+ * @param <S> The state type
+ */
+public final class StateSampler<K, S> implements AutoCloseable {
+
+    private final List<Source<K>> sources = new CopyOnWriteArrayList<>();
+    private final LongFunction<? extends S> decoder;
+    private final Consumer<? super List<Change<K, S>>> onChanges;
+    private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+    private final ScheduledFuture<?> future;
+
+    /**
+     * Create a sampler which owns its own daemon thread.
+     *
+     * @param period The sampling period
+     * @param unit The unit of the period
+     * @param decoder Converts a raw value into a state, e.g.
+     * <code>raw -&gt; StatelyState.newStatelyState((int) raw)</code>
+     * @param onChanges Receives each non-empty batch of changes
+     */
+    public StateSampler(long period, TimeUnit unit,
+            LongFunction<? extends S> decoder,
+            Consumer<? super List<Change<K, S>>> onChanges) {
+        this(Executors.newSingleThreadScheduledExecutor(StateSampler::newThread),
+                true, period, unit, decoder, onChanges);
+    }
+
+    /**
+     * Create a sampler which schedules itself on the passed executor; the
+     * executor will not be shut down when this sampler is closed.
+     *
+     * @param executor An executor
+     * @param period The sampling period
+     * @param unit The unit of the period
+     * @param decoder Converts a raw value into a state
+     * @param onChanges Receives each non-empty batch of changes
+     */
+    public StateSampler(ScheduledExecutorService executor, long period, TimeUnit unit,
+            LongFunction<? extends S> decoder,
+            Consumer<? super List<Change<K, S>>> onChanges) {
+        this(executor, false, period, unit, decoder, onChanges);
+    }
+
+    private StateSampler(ScheduledExecutorService executor, boolean ownsExecutor,
+            long period, TimeUnit unit, LongFunction<? extends S> decoder,
+            Consumer<? super List<Change<K, S>>> onChanges) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be > 0 but got " + period);
+        }
+        this.decoder = decoder;
+        this.onChanges = onChanges;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.future = executor.scheduleAtFixedRate(this::sample, period, period, unit);
+    }
+
+    private void sample() {
+        // An exception escaping a scheduled task would silently cancel all
+        // future runs of it
+        try {
+            sampleNow();
+        } catch (Throwable thrown) {
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, thrown);
+        }
+    }
+
+    private static Thread newThread(Runnable r) {
+        Thread result = new Thread(r, "state-sampler");
+        result.setDaemon(true);
+        return result;
+    }
+
+    /**
+     * Register a single source of raw values, such as
+     * <code>holder::rawValue</code>. Changes are reported relative to the
+     * value at the time of registration.
+     *
+     * @param key The key changes will be reported under
+     * @param rawValue Reads the current raw value
+     * @return A registration which can be closed to stop sampling the source
+     */
+    public Registration register(K key, LongSupplier rawValue) {
+        return add(new SingleSource<>(key, rawValue));
+    }
+
+    /**
+     * Register a holder generated with
+     * <code>@AtomicState(runtimeInterfaces = true)</code>, sampling its
+     * {@link AtomicStateHolder#packedValue()}.
+     *
+     * @param key The key changes will be reported under
+     * @param holder A holder
+     * @return A registration which can be closed to stop sampling the holder
+     */
+    public Registration register(K key, AtomicStateHolder<?> holder) {
+        return register(key, holder::packedValue);
+    }
+
+    /**
+     * Register a fixed-size, indexed collection of raw values, such as the
+     * elements of a generated state array:
+     * <code>register(arr.length(), ix -&gt; keys[ix], arr::rawValue)</code>.
+     * Keys are only computed for indices whose values have changed.
+     *
+     * @param count The number of elements
+     * @param keys Computes the key for an index
+     * @param rawValues Reads the current raw value at an index
+     * @return A registration which can be closed to stop sampling the source
+     */
+    public Registration register(int count, IntFunction<? extends K> keys,
+            IntToLongFunction rawValues) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative count " + count);
+        }
+        return add(new IndexedSource<>(count, keys, rawValues));
+    }
+
+    private Registration add(Source<K> src) {
+        sources.add(src);
+        return () -> sources.remove(src);
+    }
+
+    /**
+     * Sample all registered sources immediately, on the calling thread, and
+     * pass any changes to the consumer; normally this is called by the
+     * sampler's own thread. Exceptions thrown by the decoder or consumer are
+     * propagated to the caller.
+     *
+     * @return The number of changes found
+     */
+    public synchronized int sampleNow() {
+        List<Change<K, S>> changes = null;
+        for (Source<K> src : sources) {
+            changes = src.sample(decoder, changes);
+        }
+        if (changes == null) {
+            return 0;
+        }
+        onChanges.accept(Collections.unmodifiableList(changes));
+        return changes.size();
+    }
+
+    /**
+     * Stop sampling, shutting down the sampling thread if this sampler
+     * created it.
+     */
+    @Override
+    public void close() {
+        future.cancel(false);
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Handle for a registered source.
+     */
+    @FunctionalInterface
+    public interface Registration extends AutoCloseable {
+
+        /**
+         * Stop sampling the source.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * A change detected between two samples.
+     *
+     * @param <K> The key type
+     * @param <S> The state type
+     */
+    public static final class Change<K, S> {
+
+        private final K key;
+        private final long previousRaw;
+        private final long currentRaw;
+        private final LongFunction<? extends S> decoder;
+
+        Change(K key, long previousRaw, long currentRaw, LongFunction<? extends S> decoder) {
+            this.key = key;
+            this.previousRaw = previousRaw;
+            this.currentRaw = currentRaw;
+            this.decoder = decoder;
+        }
+
+        /**
+         * The key the changed source was registered with.
+         *
+         * @return The key
+         */
+        public K key() {
+            return key;
+        }
+
+        /**
+         * The raw value at the previous sample.
+         *
+         * @return A raw value
+         */
+        public long previousRaw() {
+            return previousRaw;
+        }
+
+        /**
+         * The raw value at this sample.
+         *
+         * @return A raw value
+         */
+        public long currentRaw() {
+            return currentRaw;
+        }
+
+        /**
+         * The state at the previous sample, decoded on demand.
+         *
+         * @return A state
+         */
+        public S previous() {
+            return decoder.apply(previousRaw);
+        }
+
+        /**
+         * The state at this sample, decoded on demand.
+         *
+         * @return A state
+         */
+        public S current() {
+            return decoder.apply(currentRaw);
+        }
+
+        @Override
+        public String toString() {
+            return key + ": " + previous() + " -> " + current();
+        }
+    }
+
+    private interface Source<K> {
+
+        <S> List<Change<K, S>> sample(LongFunction<? extends S> decoder, List<Change<K, S>> into);
+    }
+
+    private static <K, S> List<Change<K, S>> add(K key, long prev, long curr,
+            LongFunction<? extends S> decoder, List<Change<K, S>> into) {
+        if (into == null) {
+            into = new ArrayList<>();
+        }
+        into.add(new Change<>(key, prev, curr, decoder));
+        return into;
+    }
+
+    private static final class SingleSource<K> implements Source<K> {
+
+        private final K key;
+        private final LongSupplier rawValue;
+        private long last;
+
+        SingleSource(K key, LongSupplier rawValue) {
+            this.key = key;
+            this.rawValue = rawValue;
+            this.last = rawValue.getAsLong();
+        }
+
+        @Override
+        public <S> List<Change<K, S>> sample(LongFunction<? extends S> decoder, List<Change<K, S>> into) {
+            long curr = rawValue.getAsLong();
+            long prev = last;
+            if (curr != prev) {
+                last = curr;
+                into = add(key, prev, curr, decoder, into);
+            }
+            return into;
+        }
+    }
+
+    private static final class IndexedSource<K> implements Source<K> {
+
+        private final IntFunction<? extends K> keys;
+        private final IntToLongFunction rawValues;
+        private final long[] last;
+
+        IndexedSource(int count, IntFunction<? extends K> keys, IntToLongFunction rawValues) {
+            this.keys = keys;
+            this.rawValues = rawValues;
+            this.last = new long[count];
+            for (int i = 0; i < count; i++) {
+                last[i] = rawValues.applyAsLong(i);
+            }
+        }
+
+        @Override
+        public <S> List<Change<K, S>> sample(LongFunction<? extends S> decoder, List<Change<K, S>> into) {
+            for (int i = 0; i < last.length; i++) {
+                long curr = rawValues.applyAsLong(i);
+                long prev = last[i];
+                if (curr != prev) {
+                    last[i] = curr;
+                    into = add(keys.apply(i), prev, curr, decoder, into);
+                }
+            }
+            return into;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates deltas to a counter in striped cells, each on its own cache
+ * line, so that threads adding to it rarely contend; used by holders for
+ * fields annotated with {@link Buffered}. Unlike <code>LongAdder</code>, the
+ * accumulated value is periodically <i>drained</i> into some other storage
+ * (the packed state), either when one stripe's pending delta reaches a
+ * threshold, or explicitly.
+ */
+public final class StripedDelta {
+
+    // Longs per stripe, so each stripe gets its own 64-byte cache line
+    private static final int STRIDE = 8;
+    private final AtomicLongArray cells;
+    private final int mask;
+    private final long threshold;
+
+    /**
+     * Create a StripedDelta with a number of stripes appropriate to the number
+     * of available processors.
+     *
+     * @param threshold The magnitude of a stripe's pending delta at which
+     * {@link #add(long)} drains it
+     */
+    public StripedDelta(long threshold) {
+        this(threshold, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a StripedDelta.
+     *
+     * @param threshold The magnitude of a stripe's pending delta at which
+     * {@link #add(long)} drains it
+     * @param stripes The number of stripes, rounded up to a power of two
+     */
+    public StripedDelta(long threshold, int stripes) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Threshold must be > 0 but got " + threshold);
+        }
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Stripes must be > 0 but got " + stripes);
+        }
+        int size = Integer.highestOneBit(Math.min(stripes, 1 << 12));
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.cells = new AtomicLongArray(size * STRIDE);
+        this.mask = size - 1;
+        this.threshold = threshold;
+    }
+
+    private int cellFor(Thread thread) {
+        long id = thread.getId();
+        return ((int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask) * STRIDE;
+    }
+
+    /**
+     * Add a delta to the stripe selected by the calling thread's id - which
+     * other threads may share; if the stripe's pending total reaches the
+     * threshold, it is drained and returned, and the caller is responsible for
+     * committing it.
+     *
+     * @param delta A delta
+     * @return The drained delta to commit, or 0 if the threshold was not
+     * reached
+     */
+    public long add(long delta) {
+        int ix = cellFor(Thread.currentThread());
+        long total = cells.addAndGet(ix, delta);
+        if (total >= threshold || total <= -threshold) {
+            return cells.getAndSet(ix, 0);
+        }
+        return 0;
+    }
+
+    /**
+     * Return a delta which was drained but could not be committed (say,
+     * because it would take a counter out of its range) to the stripe selected
+     * by the calling thread, without checking the threshold, so that it stays
+     * pending and is retried by a later commit.
+     *
+     * @param delta A delta
+     */
+    public void putBack(long delta) {
+        if (delta != 0) {
+            cells.addAndGet(cellFor(Thread.currentThread()), delta);
+        }
+    }
+
+    /**
+     * Drain all stripes, returning the sum of their pending deltas, which the
+     * caller is responsible for committing.
+     *
+     * @return The drained total
+     */
+    public long drain() {
+        long result = 0;
+        for (int i = 0; i < cells.length(); i += STRIDE) {
+            if (cells.get(i) != 0) {
+                result += cells.getAndSet(i, 0);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the sum of all pending deltas, without draining them.
+     *
+     * @return The pending total
+     */
+    public long pending() {
+        long result = 0;
+        for (int i = 0; i < cells.length(); i += STRIDE) {
+            result += cells.get(i);
+        }
+        return result;
+    }
+}
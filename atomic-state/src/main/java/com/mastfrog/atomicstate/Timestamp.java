@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static java.lang.annotation.ElementType.METHOD;
+import java.lang.annotation.Retention;
+import static java.lang.annotation.RetentionPolicy.CLASS;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks an int or long method of an AtomicState as a low-resolution
+ * timestamp - such as the last time something was polled - stored in the
+ * requested number of bits as a time on the {@link CoarseClock}, wrapping
+ * around when it overflows them.
+ * <p>
+ * The generated state gets <code>withXNow()</code>, which records the current
+ * time without calling <code>System.nanoTime()</code>, and
+ * <code>elapsedSinceX()</code>, which returns the time since it was recorded,
+ * in units of the resolution; since both are computed modulo the number of
+ * bits, wraparound is handled correctly as long as the true elapsed time is
+ * less than <code>2<sup>bits</sup></code> units. The holder gets
+ * <code>touchX()</code>, which records the current time atomically.
+ * </p>
+ * <p>
+ * Since coarse clock times are relative to the start of the JVM, states with
+ * timestamps have no binary codec and refuse Java serialization; their JSON
+ * form writes timestamps as milliseconds since the epoch, which parsing
+ * converts back to the coarse clock. Using this means the generated code
+ * depends on the atomic-state library at runtime.
+ * </p>
+ */
+@Target(METHOD)
+@Retention(CLASS)
+public @interface Timestamp {
+
+    /**
+     * The resolution of the timestamp, which must be milliseconds or
+     * coarser.
+     *
+     * @return A time unit
+     */
+    TimeUnit resolution() default TimeUnit.MILLISECONDS;
+
+    /**
+     * The number of bits to store the timestamp in - at most 32 for an
+     * <code>int</code> and 63 for a <code>long</code>. Sixteen bits of
+     * milliseconds wrap around after about a minute; sixteen bits of
+     * seconds, after about eighteen hours.
+     *
+     * @return A number of bits
+     */
+    int bits() default 16;
+}
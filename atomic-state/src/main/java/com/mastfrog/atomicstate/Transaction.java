@@ -0,0 +1,205 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Atomically applies transitions to several holders generated with
+ * <code>@AtomicState(transactional = true)</code> - for example, to hand a
+ * connection over to a pool slot, changing the state of both in one step -
+ * without locks:
+ * <pre>
+ * Transaction.begin()
+ *     .update(connection, c -&gt; c.withPhase(IDLE))
+ *     .update(slot, s -&gt; s.withOccupied(true))
+ *     .commit();
+ * </pre>
+ * <p>
+ * Committing reads every holder, applies each transition to its holder's
+ * state, and then installs all of the new values with a descriptor-based
+ * multi-word compare-and-set (see {@link McasCell}); if any holder changed
+ * in the meantime, the whole attempt is discarded and retried from fresh
+ * reads. Other threads never observe some of the holders updated and others
+ * not, and a thread which encounters a transaction in progress helps it
+ * complete rather than waiting.
+ * </p>
+ * <p>
+ * Since the holders are read one at a time, a transition may be passed a
+ * state that is already stale, and may be called more than once - as with
+ * <code>updateAndGet()</code>, transitions must be stateless. A transition
+ * which throws aborts the commit, and nothing is written. Listeners of
+ * holders whose state changed are notified after the commit, on the
+ * committing thread.
+ * </p>
+ * <p>
+ * A Transaction is a one-shot builder, and is not thread-safe.
+ * </p>
+ */
+public final class Transaction {
+
+    private final List<Entry<?>> entries = new ArrayList<>(4);
+
+    private Transaction() {
+    }
+
+    /**
+     * Start building a transaction.
+     *
+     * @return A transaction
+     */
+    public static Transaction begin() {
+        return new Transaction();
+    }
+
+    /**
+     * Add a holder and the transition to apply to it.
+     *
+     * @param <S> The state type
+     * @param holder A transactional holder
+     * @param transition A stateless transition
+     * @return this
+     * @throws IllegalArgumentException if the holder is already part of this
+     * transaction
+     */
+    public <S> Transaction update(Participant<S> holder, UnaryOperator<S> transition) {
+        if (holder == null || transition == null) {
+            throw new IllegalArgumentException("Null holder or transition");
+        }
+        McasCell cell = holder.cell();
+        for (Entry<?> e : entries) {
+            if (e.cell == cell) {
+                throw new IllegalArgumentException("Holder already in transaction: " + holder);
+            }
+        }
+        Entry<S> entry = new Entry<>(holder, transition, cell);
+        // Keep entries sorted by cell id, the order in which every
+        // transaction installs its descriptor
+        int ix = entries.size();
+        while (ix > 0 && entries.get(ix - 1).cell.id > cell.id) {
+            ix--;
+        }
+        entries.add(ix, entry);
+        return this;
+    }
+
+    /**
+     * Apply all of the transitions atomically, retrying until they are
+     * applied to a consistent set of states.
+     *
+     * @return true if any holder's state changed, false if every transition
+     * left its state as it was
+     */
+    public boolean commit() {
+        int size = entries.size();
+        McasCell[] cells = new McasCell[size];
+        for (int i = 0; i < size; i++) {
+            cells[i] = entries.get(i).cell;
+        }
+        for (;;) {
+            // Fresh arrays for each attempt - a thread may still be helping
+            // a failed attempt's descriptor
+            McasCell.Box[] expected = new McasCell.Box[size];
+            McasCell.Box[] updates = new McasCell.Box[size];
+            boolean changed = false;
+            for (int i = 0; i < size; i++) {
+                McasCell.Box old = cells[i].box();
+                long nue = entries.get(i).apply(old.value);
+                expected[i] = old;
+                if (nue == old.value) {
+                    // Installing the same box still checks it is unchanged
+                    updates[i] = old;
+                } else {
+                    updates[i] = new McasCell.Box(nue);
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                return false;
+            }
+            if (McasCell.help(new McasCell.Descriptor(cells, expected, updates))) {
+                for (int i = 0; i < size; i++) {
+                    if (updates[i] != expected[i]) {
+                        entries.get(i).holder.onCommit(expected[i].value, updates[i].value);
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Implemented by generated transactional holders; not normally called
+     * directly.
+     *
+     * @param <S> The state type
+     */
+    public interface Participant<S> {
+
+        /**
+         * Get the cell the holder stores its raw value in.
+         *
+         * @return A cell
+         */
+        McasCell cell();
+
+        /**
+         * Compute the raw value resulting from applying a transition to a
+         * raw value, exactly as the holder's own <code>updateAndGet()</code>
+         * would (incrementing any stamp, for example).
+         *
+         * @param oldRaw The current raw value
+         * @param transition A transition
+         * @return The new raw value
+         */
+        long apply(long oldRaw, UnaryOperator<S> transition);
+
+        /**
+         * Called after a transaction has changed the holder's value.
+         *
+         * @param oldRaw The previous raw value
+         * @param newRaw The committed raw value
+         */
+        void onCommit(long oldRaw, long newRaw);
+    }
+
+    private static final class Entry<S> {
+
+        final Participant<S> holder;
+        final UnaryOperator<S> transition;
+        final McasCell cell;
+
+        Entry(Participant<S> holder, UnaryOperator<S> transition, McasCell cell) {
+            this.holder = holder;
+            this.transition = transition;
+            this.cell = cell;
+        }
+
+        long apply(long oldRaw) {
+            return holder.apply(oldRaw, transition);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class AcquirableTest {
+
+    @Test
+    public void testExclusiveAcquire() {
+        L<GuardedState> l = new L<>();
+        GuardedStateHolder holder = new GuardedStateHolder(l::onChange);
+        assertTrue(holder.tryAcquireWriteLocked());
+        l.assertChange((old, nue) -> {
+            assertFalse(old.writeLocked());
+            assertTrue(nue.writeLocked());
+        });
+        assertFalse(holder.tryAcquireWriteLocked());
+        holder.releaseWriteLocked();
+        assertFalse(holder.state().writeLocked());
+        l.assertChange((old, nue) -> assertFalse(nue.writeLocked()));
+        assertThrows(IllegalStateException.class, holder::releaseWriteLocked);
+
+        assertFalse(holder.tryAcquireWriteLocked(state -> state.phase() == Things.CLOUDS));
+        holder.updateAndGet(old -> old.withPhase(Things.CLOUDS));
+        assertTrue(holder.tryAcquireWriteLocked(state -> state.phase() == Things.CLOUDS));
+    }
+
+    @Test
+    public void testSharedAcquireRespectsRange() {
+        GuardedStateHolder holder = new GuardedStateHolder();
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(holder.tryAcquireSharedReaders());
+            assertEquals(i, holder.state().readers());
+        }
+        assertFalse(holder.tryAcquireSharedReaders());
+        assertEquals(3, holder.state().readers());
+        for (int i = 2; i >= 0; i--) {
+            holder.releaseSharedReaders();
+            assertEquals(i, holder.state().readers());
+        }
+        assertThrows(IllegalStateException.class, holder::releaseSharedReaders);
+        assertTrue(holder.tryAcquireSharedReaders(state -> !state.writeLocked()));
+        assertTrue(holder.tryAcquireWriteLocked());
+        assertFalse(holder.tryAcquireSharedReaders(state -> !state.writeLocked()));
+    }
+
+    @Test
+    public void testBlockingAcquireIsWokenByRelease() throws Exception {
+        GuardedStateHolder holder = new GuardedStateHolder();
+        assertTrue(holder.tryAcquireWriteLocked());
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                holder.acquireWriteLocked();
+                acquired.countDown();
+            } catch (InterruptedException ex) {
+                // fail below
+            }
+        }, "waiter");
+        waiter.setDaemon(true);
+        waiter.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        holder.releaseWriteLocked();
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        assertTrue(holder.state().writeLocked());
+
+        CountDownLatch wasInterrupted = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            try {
+                holder.acquireWriteLocked();
+            } catch (InterruptedException ex) {
+                wasInterrupted.countDown();
+            }
+        });
+        other.setDaemon(true);
+        other.start();
+        Thread.sleep(50);
+        other.interrupt();
+        assertTrue(wasInterrupted.await(10, TimeUnit.SECONDS));
+        assertTrue(holder.state().writeLocked());
+    }
+
+    @Test
+    public void testReleaseWakesAWaiterWhichCanProceed() throws Exception {
+        GuardedStateHolder holder = new GuardedStateHolder();
+        assertTrue(holder.tryAcquireWriteLocked());
+        CountDownLatch cloudyAcquired = new CountDownLatch(1);
+        CountDownLatch plainAcquired = new CountDownLatch(1);
+        // Queued first, but cannot proceed until the phase changes
+        Thread cloudy = parkedWaiter(holder, () -> {
+            holder.acquireWriteLocked(state -> state.phase() == Things.CLOUDS);
+            cloudyAcquired.countDown();
+        });
+        Thread plain = parkedWaiter(holder, () -> {
+            holder.acquireWriteLocked();
+            plainAcquired.countDown();
+        });
+        holder.releaseWriteLocked();
+        assertTrue(plainAcquired.await(10, TimeUnit.SECONDS), "Waiter which could proceed not woken");
+        assertEquals(1, cloudyAcquired.getCount());
+        assertTrue(holder.state().writeLocked());
+
+        holder.updateAndGet(old -> old.withPhase(Things.CLOUDS));
+        holder.releaseWriteLocked();
+        assertTrue(cloudyAcquired.await(10, TimeUnit.SECONDS), "Waiter not woken by second release");
+        cloudy.join(10000);
+        plain.join(10000);
+        assertTrue(holder.state().writeLocked());
+    }
+
+    interface Acquisition {
+
+        void run() throws InterruptedException;
+    }
+
+    private static Thread parkedWaiter(GuardedStateHolder holder, Acquisition acquisition) {
+        Thread result = new Thread(() -> {
+            try {
+                acquisition.run();
+            } catch (InterruptedException ex) {
+                // fail in the test thread
+            }
+        }, "waiter");
+        result.setDaemon(true);
+        result.start();
+        // Waiters are enqueued before they park, so this fixes the queue order
+        while (result.isAlive() && LockSupport.getBlocker(result) != holder) {
+            Thread.onSpinWait();
+        }
+        return result;
+    }
+}
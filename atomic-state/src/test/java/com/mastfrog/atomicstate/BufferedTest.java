@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class BufferedTest {
+
+    @Test
+    public void testDeltasAreCommittedAtThresholdAndOnFlush() {
+        AtomicInteger changes = new AtomicInteger();
+        TrafficStateHolder holder = new TrafficStateHolder((old, nue, getter) -> changes.incrementAndGet());
+        for (int i = 0; i < 15; i++) {
+            holder.bufferedAddInFlight(1);
+        }
+        assertEquals(0, holder.state().inFlight());
+        assertEquals(15, holder.estimatedInFlight());
+        assertEquals(0, changes.get());
+        holder.bufferedAddInFlight(1);
+        assertEquals(16, holder.state().inFlight(), "Threshold reached - should be committed");
+        assertEquals(1, changes.get());
+
+        holder.bufferedAddInFlight(3);
+        holder.bufferedAddErrors(2);
+        assertEquals(16, holder.state().inFlight());
+        TrafficState flushed = holder.flush();
+        assertEquals(19, flushed.inFlight());
+        assertEquals(2, flushed.errors());
+        assertEquals(2, changes.get(), "Flush should commit everything in one update");
+        holder.flush();
+        assertEquals(2, changes.get(), "Nothing pending - flush should not change anything");
+
+        holder.bufferedAddInFlight(-25);
+        assertEquals(0, holder.estimatedInFlight(), "Estimate should be clamped to the range");
+        assertEquals(0, holder.state().inFlight(), "Commit should be clamped to the range");
+    }
+
+    @Test
+    public void testOutOfRangePartOfDeltaStaysPending() {
+        TrafficStateHolder holder = new TrafficStateHolder();
+        // A decrement flushed before its matching increment
+        holder.bufferedAddInFlight(-1);
+        assertEquals(0, holder.flush().inFlight());
+        holder.bufferedAddInFlight(1);
+        assertEquals(0, holder.flush().inFlight(), "The clamped decrement should not be lost");
+        assertEquals(0, holder.estimatedInFlight());
+        holder.bufferedAddInFlight(1);
+        assertEquals(1, holder.flush().inFlight());
+
+        // The same through the threshold
+        for (int i = 0; i < 16; i++) {
+            holder.bufferedAddInFlight(-1);
+        }
+        assertEquals(0, holder.state().inFlight());
+        for (int i = 0; i < 15; i++) {
+            holder.bufferedAddInFlight(1);
+        }
+        assertEquals(0, holder.flush().inFlight());
+        holder.bufferedAddInFlight(1);
+        assertEquals(1, holder.flush().inFlight());
+    }
+
+    @Test
+    public void testConcurrentBufferedAdds() throws Exception {
+        TrafficStateHolder holder = new TrafficStateHolder();
+        int threads = 6;
+        int iterations = 5000;
+        List<Thread> all = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < iterations; i++) {
+                    holder.bufferedAddInFlight(1);
+                }
+            });
+            all.add(thread);
+            thread.start();
+        }
+        for (Thread t : all) {
+            t.join();
+        }
+        assertEquals(threads * iterations, holder.estimatedInFlight());
+        assertTrue(holder.state().inFlight() <= threads * iterations);
+        assertEquals(threads * iterations, holder.flush().inFlight());
+    }
+}
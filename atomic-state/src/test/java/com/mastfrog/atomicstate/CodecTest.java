@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+public class CodecTest {
+
+    @Test
+    public void testSerializationRoundTrip() throws Exception {
+        StatelyState st = StatelyState.INITIAL.withNumber((byte) 23).withAge((short) 1234)
+                .withThing(Things.values()[Things.values().length - 1]).withIsCool(true);
+        assertEquals(st, deserialize(serialize(st)));
+        HealthState h = HealthState.INITIAL.withLoad(0.5F).withLatency(3F).withUp(true);
+        assertEquals(h, deserialize(serialize(h)));
+    }
+
+    @Test
+    public void testSerializedFormIsCompact() throws Exception {
+        // Externalizable data is written as a block - TC_BLOCKDATA, a length
+        // byte, the hash and the raw value - followed by TC_ENDBLOCKDATA
+        byte[] bytes = serialize(StatelyState.INITIAL);
+        int end = bytes.length - 1;
+        assertEquals(0x78, bytes[end]);
+        assertEquals(0x77, bytes[end - 14]);
+        assertEquals(Long.BYTES + Integer.BYTES, bytes[end - 13]);
+    }
+
+    @Test
+    public void testIncompatibleLayoutIsRejected() throws Exception {
+        byte[] bytes = serialize(StatelyState.INITIAL.withAge((short) 5));
+        int ix = indexOf(bytes, ByteBuffer.allocate(8).putLong(StatelyState.LAYOUT_HASH).array());
+        bytes[ix] ^= 1;
+        assertThrows(InvalidObjectException.class, () -> deserialize(bytes));
+    }
+
+    @Test
+    public void testEncodeDecodeInts() {
+        StatelyState[] states = new StatelyState[17];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = StatelyState.INITIAL.withNumber((byte) i).withAge((short) (i * 100));
+        }
+        ByteBuffer buf = ByteBuffer.allocate(StatelyState.CODEC_HEADER_BYTES + Integer.BYTES * states.length + 3);
+        buf.position(3);
+        StatelyState.encode(states, buf);
+        assertEquals(buf.capacity(), buf.position());
+        assertEquals(ByteOrder.BIG_ENDIAN, buf.order());
+        buf.position(3);
+        assertEquals(states.length, StatelyState.encodedCount(buf));
+        assertEquals(3, buf.position());
+        assertArrayEquals(states, StatelyState.decodeStates(buf));
+        assertEquals(buf.capacity(), buf.position());
+        assertEquals(ByteOrder.BIG_ENDIAN, buf.order());
+    }
+
+    @Test
+    public void testEncodeDecodeLongs() {
+        long[] raw = new long[10];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = HealthState.INITIAL.withLoad(i / 10F).withLatency(i).getAsLong();
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(HealthState.CODEC_HEADER_BYTES + Long.BYTES * 6);
+        HealthState.encode(raw, 2, 6, buf);
+        buf.flip();
+        // The format is little-endian regardless of the buffer's order
+        assertEquals(HealthState.LAYOUT_HASH, buf.duplicate().order(ByteOrder.LITTLE_ENDIAN).getLong());
+        long[] into = new long[8];
+        assertEquals(6, HealthState.decode(buf, into, 1));
+        for (int i = 0; i < 6; i++) {
+            assertEquals(raw[i + 2], into[i + 1]);
+        }
+        assertEquals(0L, into[0]);
+        assertEquals(0L, into[7]);
+    }
+
+    @Test
+    public void testEncodeFailsAtomically() {
+        ByteBuffer buf = ByteBuffer.allocate(StatelyState.CODEC_HEADER_BYTES + Integer.BYTES);
+        assertThrows(BufferOverflowException.class, ()
+                -> StatelyState.encode(new int[]{1, 2}, 0, 2, buf));
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    public void testDecodeRejectsOtherLayouts() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        StatelyState.encode(new StatelyState[]{StatelyState.INITIAL}, buf);
+        buf.flip();
+        assertThrows(IllegalArgumentException.class, () -> HealthState.decodeStates(buf));
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    public void testProcessLocalValuesAreNotSerialized() {
+        // Interned ids and coarse clock times mean nothing in another JVM
+        assertThrows(NotSerializableException.class,
+                () -> serialize(RoutingState.INITIAL.withUpstream("a")));
+        assertThrows(NotSerializableException.class,
+                () -> serialize(PollerState.INITIAL.withLastPollNow()));
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oout = new ObjectOutputStream(out)) {
+            oout.writeObject(o);
+        }
+        return out.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    private static int indexOf(byte[] in, byte[] seq) {
+        outer:
+        for (int i = 0; i <= in.length - seq.length; i++) {
+            for (int j = 0; j < seq.length; j++) {
+                if (in[i + j] != seq[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        throw new AssertionError("Not found");
+    }
+}
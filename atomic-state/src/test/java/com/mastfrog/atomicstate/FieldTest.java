@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class FieldTest {
+
+    @Test
+    public void testMetadata() {
+        assertEquals(7, InventoryState.Field.values().length);
+        InventoryState.Field skew = InventoryState.Field.SKEW;
+        assertEquals("skew", skew.fieldName());
+        assertEquals(int.class, skew.type());
+        assertEquals(-10, skew.min());
+        assertEquals(10, skew.max());
+        assertEquals(false, skew.isSigned());
+        assertEquals(((1L << skew.width()) - 1) << skew.startingBit(), skew.mask());
+        assertTrue(skew.constants().isEmpty());
+        assertEquals(true, InventoryState.Field.DELTA.isSigned());
+        assertEquals(Short.MIN_VALUE, InventoryState.Field.DELTA.min());
+        assertEquals(Arrays.asList(Things.values()), InventoryState.Field.KIND.constants());
+        assertEquals(Things.class, InventoryState.Field.KIND.type());
+        long masks = 0;
+        for (InventoryState.Field f : InventoryState.Field.values()) {
+            assertEquals(0, masks & f.mask(), f.name());
+            masks |= f.mask();
+        }
+    }
+
+    @Test
+    public void testGetMatchesAccessors() {
+        InventoryState st = InventoryState.INITIAL.withCount(999).withDelta((short) -7).withSkew(-5)
+                .withShelf(8).withOpen(true).withKind(Things.values()[2])
+                .withTags(EnumSet.of(Things.values()[0], Things.values()[3]));
+        long raw = st.getAsLong();
+        assertEquals(999, InventoryState.Field.COUNT.get(raw));
+        assertEquals(-7, InventoryState.Field.DELTA.get(raw));
+        assertEquals(-5, InventoryState.Field.SKEW.get(raw));
+        assertEquals(8, InventoryState.Field.SHELF.get(raw));
+        assertEquals(1, InventoryState.Field.OPEN.get(raw));
+        assertEquals(2, InventoryState.Field.KIND.get(raw));
+        assertEquals(0b1001, InventoryState.Field.TAGS.get(raw));
+
+        StatelyState stately = StatelyState.INITIAL.withAge((short) -1234).withNumber(Byte.MIN_VALUE);
+        assertEquals(-1234, StatelyState.Field.AGE.get(stately.getAsInt()));
+        assertEquals(Byte.MIN_VALUE, StatelyState.Field.NUMBER.get(stately.getAsInt()));
+    }
+
+    @Test
+    public void testSetMatchesWithers() {
+        long raw = InventoryState.INITIAL.getAsLong();
+        raw = InventoryState.Field.SKEW.set(raw, 10);
+        raw = InventoryState.Field.DELTA.set(raw, Short.MIN_VALUE);
+        raw = InventoryState.Field.OPEN.set(raw, 1);
+        raw = InventoryState.Field.TAGS.set(raw, 0b110);
+        InventoryState expected = InventoryState.INITIAL.withSkew(10).withDelta(Short.MIN_VALUE).withOpen(true)
+                .withTags(EnumSet.of(Things.values()[1], Things.values()[2]));
+        assertEquals(expected, InventoryState.newInventoryState(raw));
+        for (InventoryState.Field f : InventoryState.Field.values()) {
+            assertEquals(raw, f.set(raw, f.get(raw)), f.name());
+        }
+        long r = raw;
+        assertThrows(IllegalArgumentException.class, () -> InventoryState.Field.SKEW.set(r, 11));
+        assertThrows(IllegalArgumentException.class, () -> InventoryState.Field.KIND.set(r, 6));
+    }
+}
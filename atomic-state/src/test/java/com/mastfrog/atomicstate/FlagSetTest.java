@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static com.mastfrog.atomicstate.Things.CLOUDS;
+import static com.mastfrog.atomicstate.Things.DARTH_VADER;
+import static com.mastfrog.atomicstate.Things.SHOES;
+import static com.mastfrog.atomicstate.Things.SKIN;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.TreeMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class FlagSetTest {
+
+    @Test
+    public void testFlagsAreOneBitPerConstant() {
+        // active is bit 0, then six bits each for equipped and wanted
+        assertEquals(0b10, CapabilitiesState.INITIAL.withEquippedAdded(SHOES).getAsInt());
+        assertEquals(1 << (7 + DARTH_VADER.ordinal()),
+                CapabilitiesState.INITIAL.withWantedAdded(DARTH_VADER).getAsInt());
+        assertEquals(0b1111110, CapabilitiesState.INITIAL
+                .withEquipped(EnumSet.allOf(Things.class)).getAsInt());
+        assertTrue(CapabilitiesState.INITIAL.equipped().isEmpty());
+    }
+
+    @Test
+    public void testAddRemoveAndContains() {
+        CapabilitiesState st = CapabilitiesState.INITIAL.withActive(true)
+                .withEquippedAdded(SKIN).withEquippedAdded(CLOUDS);
+        assertTrue(st.equippedContains(SKIN));
+        assertTrue(st.equippedContains(CLOUDS));
+        assertFalse(st.equippedContains(SHOES));
+        assertFalse(st.wantedContains(SKIN));
+        assertEquals(EnumSet.of(SKIN, CLOUDS), st.equipped());
+        assertTrue(st.active());
+
+        assertSame(st, st.withEquippedAdded(SKIN));
+        assertSame(st, st.withEquippedRemoved(SHOES));
+        assertSame(st, st.withEquipped(EnumSet.of(CLOUDS, SKIN)));
+
+        CapabilitiesState removed = st.withEquippedRemoved(SKIN);
+        assertEquals(EnumSet.of(CLOUDS), removed.equipped());
+        assertTrue(removed.active());
+
+        CapabilitiesState replaced = st.withWanted(EnumSet.of(SHOES)).withEquipped(EnumSet.noneOf(Things.class));
+        assertEquals(EnumSet.of(SHOES), replaced.wanted());
+        assertTrue(replaced.equipped().isEmpty());
+        assertEquals(replaced, new CapabilitiesState(replaced.getAsInt()));
+    }
+
+    @Test
+    public void testCursor() {
+        CapabilitiesState.Cursor cur = CapabilitiesState.INITIAL.cursor();
+        cur.addToWanted(SKIN).addToWanted(SHOES).removeFromWanted(SKIN).setEquipped(EnumSet.of(CLOUDS));
+        assertTrue(cur.wantedContains(SHOES));
+        assertFalse(cur.wantedContains(SKIN));
+        assertEquals(EnumSet.of(CLOUDS), cur.equipped());
+    }
+
+    @Test
+    public void testMapRoundTrip() {
+        CapabilitiesState st = CapabilitiesState.INITIAL.withEquippedAdded(SHOES)
+                .withEquippedAdded(DARTH_VADER).withWantedAdded(CLOUDS);
+        Map<String, Object> map = st.toMap();
+        assertEquals(Arrays.asList("SHOES", "DARTH_VADER"), map.get("equipped"));
+        assertEquals(st, CapabilitiesState.fromMap(map));
+
+        Map<String, Object> other = new TreeMap<>();
+        other.put("wanted", Arrays.asList(SKIN, "CLOUDS", "NO_SUCH_THING"));
+        assertEquals(EnumSet.of(SKIN, CLOUDS), CapabilitiesState.fromMap(other).wanted());
+    }
+
+    @Test
+    public void testHolderAddAndRemove() {
+        L<CapabilitiesState> l = new L<>();
+        CapabilitiesStateHolder holder = new CapabilitiesStateHolder(l::onChange);
+        assertTrue(holder.addToEquipped(SKIN));
+        l.assertChange((old, nue) -> {
+            assertFalse(old.equippedContains(SKIN));
+            assertTrue(nue.equippedContains(SKIN));
+        });
+        assertFalse(holder.addToEquipped(SKIN));
+        assertTrue(holder.addToWanted(SKIN));
+        assertTrue(holder.removeFromEquipped(SKIN));
+        assertFalse(holder.removeFromEquipped(SKIN));
+        assertEquals(EnumSet.of(SKIN), holder.state().wanted());
+        assertTrue(holder.state().equipped().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentAddsAreNotLost() throws InterruptedException {
+        CapabilitiesStateHolder holder = new CapabilitiesStateHolder((a, b, c) -> {
+        });
+        Thread[] threads = new Thread[Things.values().length];
+        for (Things t : Things.values()) {
+            threads[t.ordinal()] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    holder.addToEquipped(t);
+                    holder.removeFromEquipped(t);
+                }
+                holder.addToEquipped(t);
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(EnumSet.allOf(Things.class), holder.state().equipped());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.ArrayList;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class FlatCombinerTest {
+
+    @Test
+    public void testContendedCombiningUpdates() throws Exception {
+        AtomicInteger notifications = new AtomicInteger();
+        AdmissionStateHolder holder = new AdmissionStateHolder((old, nue, getter) -> {
+            notifications.incrementAndGet();
+        });
+        holder.combiningUpdateAndGet(old -> old.withIsAdmitting(true));
+        assertEquals(1, notifications.get());
+        int threads = 8;
+        int iterations = 2000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> all = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < iterations; i++) {
+                        AdmissionState st = holder.combiningAddInFlight(1);
+                        assertTrue(st.inFlight() > 0, st::toString);
+                        holder.combiningUpdateAndGet(old -> old.withAdmitted(old.admitted() + 1));
+                        holder.combiningAddInFlight(-1);
+                    }
+                } catch (Throwable ex) {
+                    synchronized (failures) {
+                        failures.add(ex);
+                    }
+                }
+            });
+            all.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread t : all) {
+            t.join();
+        }
+        assertTrue(failures.isEmpty(), failures::toString);
+        AdmissionState st = holder.state();
+        assertEquals(0, st.inFlight());
+        assertEquals(threads * iterations, st.admitted());
+        assertTrue(st.isAdmitting());
+    }
+
+    @Test
+    public void testFailuresAreIsolated() {
+        AdmissionStateHolder holder = new AdmissionStateHolder();
+        assertThrows(IllegalArgumentException.class, () -> holder.combiningAddInFlight(-1));
+        assertThrows(IllegalArgumentException.class, () -> holder.combiningAddInFlight(100001));
+        assertEquals(5, holder.combiningAddInFlight(5).inFlight());
+        assertThrows(IllegalStateException.class, () -> holder.combiningUpdateAndGet(old -> {
+            throw new IllegalStateException();
+        }));
+        assertEquals(5, holder.state().inFlight());
+    }
+
+    @Test
+    public void testMergedAddsFallBackToIndividualApplication() {
+        AtomicLong value = new AtomicLong();
+        FlatCombiner combiner = new FlatCombiner(value::get, value::compareAndSet, null, 1);
+        assertEquals(3, combiner.add(0, 3, (raw, delta) -> raw + delta));
+        assertThrows(IllegalArgumentException.class, () -> combiner.add(0, -4, (raw, delta) -> {
+            if (raw + delta < 0) {
+                throw new IllegalArgumentException();
+            }
+            return raw + delta;
+        }));
+        assertEquals(13, combiner.update(raw -> raw + 10));
+    }
+
+    @Test
+    public void testRejectedDeltaInMergedBatchIsReported() throws Exception {
+        AtomicLong value = new AtomicLong();
+        FlatCombiner combiner = new FlatCombiner(value::get, value::compareAndSet, null, 8);
+        List<Throwable> failures = new ArrayList<>();
+        runBatchOfAdds(combiner, failures, 5, 4, 5);
+        assertEquals(1, failures.size(), failures::toString);
+        assertTrue(failures.get(0) instanceof IllegalArgumentException, failures::toString);
+        // Whichever delta was rejected, the others were applied
+        long rejected = Long.parseLong(failures.get(0).getMessage());
+        assertEquals(14 - rejected, value.get());
+    }
+
+    @Test
+    public void testCommitListenerFailureGoesToPublisher() throws Exception {
+        AtomicLong value = new AtomicLong();
+        FlatCombiner combiner = new FlatCombiner(value::get, value::compareAndSet, (prev, curr) -> {
+            if (curr > 0) {
+                throw new IllegalStateException("listener");
+            }
+        }, 8);
+        List<Throwable> failures = new ArrayList<>();
+        runBatchOfAdds(combiner, failures, 1, 2, 3);
+        assertEquals(1, failures.size(), failures::toString);
+        assertEquals("listener", failures.get(0).getMessage());
+        assertEquals(6, value.get());
+        assertThrows(IllegalStateException.class, () -> combiner.update(raw -> raw + 1));
+        assertEquals(7, value.get());
+    }
+
+    @Test
+    public void testListenerMayUpdateTheHolder() {
+        AdmissionStateHolder[] holder = new AdmissionStateHolder[1];
+        holder[0] = new AdmissionStateHolder((old, nue, getter) -> {
+            if (nue.admitted() == 1 && nue.inFlight() == 0) {
+                holder[0].combiningAddInFlight(1);
+            }
+        });
+        AdmissionState st = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> holder[0].combiningAddAdmitted(1));
+        assertEquals(1, st.admitted());
+        assertEquals(1, holder[0].state().inFlight());
+    }
+
+    @Test
+    public void testTransitionMayNotUpdateTheHolder() {
+        AdmissionStateHolder holder = new AdmissionStateHolder();
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            assertThrows(IllegalStateException.class, () -> holder.combiningUpdateAndGet(old -> {
+                holder.combiningAddInFlight(1);
+                return old.withIsAdmitting(true);
+            }));
+        });
+        assertEquals(AdmissionState.INITIAL, holder.state());
+        assertEquals(1, holder.combiningAddInFlight(1).inFlight());
+    }
+
+    /**
+     * Run adds of the passed deltas to key 0, capped at 10, on separate threads
+     * such that all of them are combined in one batch: a gate thread holds the
+     * combiner role inside its own transition until all of them have been
+     * published.
+     */
+    private static void runBatchOfAdds(FlatCombiner combiner, List<Throwable> failures,
+            long... deltas) throws InterruptedException {
+        CountDownLatch gateCombining = new CountDownLatch(1);
+        Thread gate = new Thread(() -> combiner.update(raw -> {
+            gateCombining.countDown();
+            while (combiner.published() < deltas.length + 1) {
+                Thread.onSpinWait();
+            }
+            return raw;
+        }));
+        gate.start();
+        gateCombining.await();
+        List<Thread> adders = new ArrayList<>();
+        for (long delta : deltas) {
+            Thread t = new Thread(() -> {
+                try {
+                    combiner.add(0, delta, (raw, d) -> {
+                        if (raw + d > 10) {
+                            throw new IllegalArgumentException(Long.toString(d));
+                        }
+                        return raw + d;
+                    });
+                } catch (RuntimeException ex) {
+                    synchronized (failures) {
+                        failures.add(ex);
+                    }
+                }
+            });
+            adders.add(t);
+            t.start();
+        }
+        gate.join();
+        for (Thread t : adders) {
+            t.join();
+        }
+    }
+}
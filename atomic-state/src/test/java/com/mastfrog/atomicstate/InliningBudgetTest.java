@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parses the generated class files and checks that hot methods stay within
+ * HotSpot's default inlining thresholds - 35 bytes of bytecode (MaxInlineSize)
+ * for accessors, which are inlined unconditionally, and 325 bytes
+ * (FreqInlineSize) for mutators, which are inlined at hot call sites.
+ */
+public class InliningBudgetTest {
+
+    private static final int MAX_INLINE_SIZE = 35;
+    private static final int FREQ_INLINE_SIZE = 325;
+
+    @Test
+    public void testGeneratedMethodsFitInliningBudgets() throws Exception {
+        List<Class<?>> ifaces = atomicStateInterfaces();
+        assertTrue(ifaces.contains(Stately.class) && ifaces.contains(Handshake.class), ifaces::toString);
+        // The fixtures whose states and holders implement the runtime interfaces
+        assertTrue(ifaces.contains(Meter.class) && ifaces.contains(Ledger.class), ifaces::toString);
+        for (Class<?> iface : ifaces) {
+            // Wide states have no cursor, raw value or raw transitions
+            boolean wide = InliningBudgetTest.class.getResource(iface.getSimpleName() + "State$Cursor.class") == null;
+            checkState(iface, wide);
+        }
+    }
+
+    /**
+     * Find every interface in this package which has a generated state
+     * class, so that new fixtures cannot be left out.
+     */
+    private static List<Class<?>> atomicStateInterfaces() throws Exception {
+        Path dir = Paths.get(InliningBudgetTest.class.getResource("InliningBudgetTest.class").toURI()).getParent();
+        String pkg = InliningBudgetTest.class.getPackage().getName();
+        List<Class<?>> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*State.class")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String ifaceName = pkg + "." + name.substring(0, name.length() - "State.class".length());
+                if (InliningBudgetTest.class.getResource("/" + ifaceName.replace('.', '/') + ".class") == null) {
+                    continue;
+                }
+                Class<?> iface = Class.forName(ifaceName);
+                Class<?> state = Class.forName(ifaceName + "State");
+                if (iface.isInterface() && iface.isAssignableFrom(state)) {
+                    result.add(iface);
+                }
+            }
+        }
+        result.sort(Comparator.comparing(Class::getName));
+        return result;
+    }
+
+    private static void checkState(Class<?> iface, boolean wide) throws Exception {
+        String base = iface.getName();
+        Map<String, Integer> state = codeLengths(base + "State");
+        Map<String, Integer> cursor = wide ? null : codeLengths(base + "State$Cursor");
+        Map<String, Integer> holder = codeLengths(base + "StateHolder");
+        for (Method m : iface.getMethods()) {
+            if (m.isDefault() || m.getParameterCount() > 0) {
+                continue;
+            }
+            String name = m.getName();
+            String with = "with" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            check(state, base + "State", name, MAX_INLINE_SIZE);
+            check(state, base + "State", with, FREQ_INLINE_SIZE);
+            if (!wide) {
+                check(cursor, base + "State.Cursor", name, MAX_INLINE_SIZE);
+                check(cursor, base + "State.Cursor", "set" + with.substring(4), FREQ_INLINE_SIZE);
+            }
+        }
+        check(holder, base + "StateHolder", "state", MAX_INLINE_SIZE);
+        for (String mutator : new String[]{"updateAndGet", "getAndUpdate", "set"}) {
+            check(holder, base + "StateHolder", mutator, FREQ_INLINE_SIZE);
+        }
+        if (PackedState.class.isAssignableFrom(Class.forName(base + "State"))) {
+            for (String accessor : new String[]{"packedValue", "packedBits", "layoutHash"}) {
+                check(state, base + "State", accessor, MAX_INLINE_SIZE);
+            }
+        }
+        if (AtomicStateHolder.class.isAssignableFrom(Class.forName(base + "StateHolder"))) {
+            check(holder, base + "StateHolder", "packedValue", MAX_INLINE_SIZE);
+            check(holder, base + "StateHolder", "compareAndSetPacked", FREQ_INLINE_SIZE);
+        }
+        if (!wide) {
+            check(state, base + "State", "applyTransition", FREQ_INLINE_SIZE);
+            check(holder, base + "StateHolder", "rawValue", MAX_INLINE_SIZE);
+            check(holder, base + "StateHolder", "updateRaw", FREQ_INLINE_SIZE);
+        }
+    }
+
+    private static void check(Map<String, Integer> lengths, String owner, String method, int limit) {
+        Integer len = lengths.get(method);
+        assertNotNull(len, "No method " + method + " in " + owner + ": " + lengths);
+        assertTrue(len <= limit, owner + "." + method + " has " + len
+                + " bytes of bytecode, over the inlining limit of " + limit);
+    }
+
+    /**
+     * Map each method name to the largest code length of any overload.
+     */
+    private static Map<String, Integer> codeLengths(String className) throws IOException {
+        String resource = "/" + className.replace('.', '/') + ".class";
+        try (InputStream raw = InliningBudgetTest.class.getResourceAsStream(resource)) {
+            assertNotNull(raw, "No class file " + resource);
+            DataInputStream in = new DataInputStream(raw);
+            in.readInt(); // magic
+            in.readUnsignedShort(); // minor
+            in.readUnsignedShort(); // major
+            int cpCount = in.readUnsignedShort();
+            String[] utf8 = new String[cpCount];
+            for (int i = 1; i < cpCount; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1:
+                        utf8[i] = in.readUTF();
+                        break;
+                    case 3:
+                    case 4:
+                    case 9:
+                    case 10:
+                    case 11:
+                    case 12:
+                    case 17:
+                    case 18:
+                        in.skipBytes(4);
+                        break;
+                    case 5:
+                    case 6:
+                        in.skipBytes(8);
+                        i++;
+                        break;
+                    case 15:
+                        in.skipBytes(3);
+                        break;
+                    case 7:
+                    case 8:
+                    case 16:
+                    case 19:
+                    case 20:
+                        in.skipBytes(2);
+                        break;
+                    default:
+                        throw new IOException("Unknown constant pool tag " + tag + " in " + className);
+                }
+            }
+            in.skipBytes(6); // access, this, super
+            in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+            int fieldCount = in.readUnsignedShort();
+            for (int i = 0; i < fieldCount; i++) {
+                in.skipBytes(6);
+                skipAttributes(in);
+            }
+            Map<String, Integer> result = new HashMap<>();
+            int methodCount = in.readUnsignedShort();
+            for (int i = 0; i < methodCount; i++) {
+                in.skipBytes(2);
+                String name = utf8[in.readUnsignedShort()];
+                in.skipBytes(2);
+                int attrCount = in.readUnsignedShort();
+                for (int j = 0; j < attrCount; j++) {
+                    String attrName = utf8[in.readUnsignedShort()];
+                    int len = in.readInt();
+                    if ("Code".equals(attrName)) {
+                        in.skipBytes(4); // max stack, max locals
+                        int codeLength = in.readInt();
+                        result.merge(name, codeLength, Math::max);
+                        in.skipBytes(len - 8);
+                    } else {
+                        in.skipBytes(len);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.skipBytes(2);
+            in.skipBytes(in.readInt());
+        }
+    }
+}
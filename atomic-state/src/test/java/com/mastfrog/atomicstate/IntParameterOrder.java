@@ -23,7 +23,7 @@
  */
 package com.mastfrog.atomicstate;
 
-@AtomicState(generateChangeSupport = false)
+@AtomicState(generateChangeSupport = false, generateJson = true)
 public interface IntParameterOrder {
 
     public int bbbb();
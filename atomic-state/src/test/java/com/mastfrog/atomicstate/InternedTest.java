@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.Map;
+import java.util.TreeMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class InternedTest {
+
+    @Test
+    public void testObjectsAreStoredAsIds() {
+        RoutingState st = RoutingState.INITIAL.withUpstream("alpha").withPhase(Things.SKIN);
+        assertEquals("alpha", st.upstream());
+        assertEquals(Things.SKIN, st.phase());
+        assertNull(st.handler());
+        assertNull(RoutingState.INITIAL.upstream());
+
+        // Equal objects share an id, so equal states have equal raw values
+        RoutingState same = RoutingState.INITIAL.withUpstream(new String("alpha")).withPhase(Things.SKIN);
+        assertEquals(st, same);
+        assertSame(st, st.withUpstream("alpha"));
+        assertEquals(RoutingState.UPSTREAM_REGISTRY.idOf("alpha"), (st.getAsInt() >>> 5) & 0xF);
+
+        RoutingState other = st.withUpstream("beta");
+        assertEquals("beta", other.upstream());
+        assertEquals(Things.SKIN, other.phase());
+        assertEquals(RoutingState.INITIAL.withPhase(Things.SKIN), other.withUpstream(null));
+    }
+
+    @Test
+    public void testReleaseAndCapacity() {
+        InternTable<Runnable> reg = RoutingState.HANDLER_REGISTRY;
+        assertEquals(3, reg.capacity());
+        Runnable[] handlers = new Runnable[3];
+        for (int i = 0; i < handlers.length; i++) {
+            // Capturing, so each is a distinct instance
+            String name = "handler-" + i;
+            handlers[i] = () -> name.length();
+            RoutingState st = RoutingState.INITIAL.withHandler(handlers[i]);
+            assertSame(handlers[i], st.handler());
+        }
+        assertEquals(3, reg.size());
+        String extraName = "extra";
+        Runnable extra = () -> extraName.length();
+        assertThrows(IllegalStateException.class, () -> RoutingState.INITIAL.withHandler(extra));
+
+        int id = reg.idOf(handlers[1]);
+        assertTrue(reg.release(handlers[1]));
+        assertFalse(reg.release(handlers[1]));
+        assertEquals(-1, reg.idOf(handlers[1]));
+        RoutingState reused = RoutingState.INITIAL.withHandler(extra);
+        assertSame(extra, reused.handler());
+        assertEquals(id, reg.idOf(extra));
+
+        for (Runnable r : handlers) {
+            reg.release(r);
+        }
+        reg.release(extra);
+        assertEquals(0, reg.size());
+    }
+
+    @Test
+    public void testMapRoundTrip() {
+        RoutingState st = RoutingState.INITIAL.withUpstream("gamma").withPhase(Things.CLOUDS);
+        assertEquals(st, RoutingState.fromMap(st.toMap()));
+        Map<String, Object> map = new TreeMap<>();
+        map.put("upstream", "delta");
+        assertEquals("delta", RoutingState.fromMap(map).upstream());
+    }
+
+    @Test
+    public void testHolderUpdatesReferenceAndPhaseTogether() {
+        RoutingStateHolder holder = new RoutingStateHolder();
+        RoutingState st = holder.updateAndGet(old -> old.withUpstream("epsilon").withPhase(Things.SHOES));
+        assertEquals("epsilon", holder.state().upstream());
+        assertEquals(st, holder.state());
+    }
+}
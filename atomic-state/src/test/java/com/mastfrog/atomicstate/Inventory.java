@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static com.mastfrog.atomicstate.AtomicState.Layout.DECLARATION;
+import java.util.Set;
+
+/**
+ * Exercises migration from an earlier layout, described by
+ * Inventory.v1.layout in the test resources.
+ */
+@AtomicState(layout = DECLARATION, migrateFrom = 1, generateJson = true,
+        generateFieldEnum = true)
+public interface Inventory {
+
+    @ValueRange(minimum = 0, maximum = 1000)
+    int count();
+
+    Things kind();
+
+    boolean open();
+
+    short delta();
+
+    @ValueRange(minimum = 1, maximum = 8)
+    int shelf();
+
+    Set<Things> tags();
+
+    @ValueRange(minimum = -10, maximum = 10)
+    int skew();
+}
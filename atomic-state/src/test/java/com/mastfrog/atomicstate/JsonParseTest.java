@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.EnumSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class JsonParseTest {
+
+    @Test
+    public void testRoundTrips() {
+        StatelyState st = StatelyState.INITIAL.withAge((short) -1234).withIsCool(true)
+                .withNumber((byte) -128).withThing(Things.SKIN);
+        assertEquals(st, StatelyState.parseJson(st.writeJson(new StringBuilder())));
+        assertEquals(st, StatelyState.parseJson(st.writeJson(ByteBuffer.allocate(256)).flip()));
+
+        CapabilitiesState caps = CapabilitiesState.INITIAL.withActive(true)
+                .withEquipped(EnumSet.of(Things.SHOES, Things.CLOUDS, Things.DARTH_VADER));
+        assertEquals(caps, CapabilitiesState.parseJson(caps.writeJson(new StringBuilder())));
+
+        HealthState health = HealthState.INITIAL.withLoad(1F).withScore(-1).withLatency(2.5F).withUp(true);
+        assertEquals(health, HealthState.parseJson(health.writeJson(new StringBuilder())));
+        HealthState nan = health.withLatency(Float.NaN);
+        assertTrue(Float.isNaN(HealthState.parseJson(nan.writeJson(new StringBuilder())).latency()));
+
+        ExchangeState ex = ExchangeState.INITIAL.withRetries(1000)
+                .withConnection(ConnectionPhaseState.INITIAL.withOpen(true).withStreams(15));
+        assertEquals(ex, ExchangeState.parseJson(ex.writeJson(new StringBuilder())));
+        assertEquals(ex, ExchangeState.parseJson(ex.writeJson(ByteBuffer.allocate(256)).flip()));
+
+        InventoryState inv = InventoryState.INITIAL.withCount(12).withDelta((short) -7).withSkew(-5)
+                .withTags(EnumSet.of(Things.CLOUDS));
+        assertEquals(inv, InventoryState.parseJson(inv.writeJson(new StringBuilder())));
+    }
+
+    @Test
+    public void testInternedStringsAreUnescaped() {
+        RoutingState st = RoutingState.INITIAL.withUpstream("say \"hi\"\né中");
+        assertEquals(st, RoutingState.parseJson(st.writeJson(new StringBuilder())));
+        assertEquals(st, RoutingState.parseJson(st.writeJson(ByteBuffer.allocate(256)).flip()));
+        assertEquals("é中", RoutingState.parseJson(
+                ByteBuffer.wrap("{\"upstream\":\"é中\"}".getBytes(UTF_8))).upstream());
+    }
+
+    @Test
+    public void testToleratesWhatFromMapTolerates() {
+        String json = " {\n \"extra\" : {\"a\":[1, \"}\", {\"b\":null}]},\"thing\":1, \"isCool\" : \"yes\","
+                + "\"number\":-3.75,\"age\":12 , \"other\":false }\t";
+        StatelyState st = StatelyState.parseJson(json);
+        assertEquals(Things.values()[1], st.thing());
+        assertEquals(false, st.isCool());
+        assertEquals(-3, st.number());
+        assertEquals(12, st.age());
+        assertEquals(StatelyState.INITIAL, StatelyState.parseJson("{}"));
+        assertEquals(StatelyState.INITIAL, StatelyState.parseJson("{\"thing\":\"NOT_A_THING\"}"));
+        assertEquals(EnumSet.of(Things.SKIN), CapabilitiesState.parseJson(
+                "{\"equipped\":[\"SKIN\", \"NOT_A_THING\", 99]}").equipped());
+    }
+
+    @Test
+    public void testEscapedKeysAndConstantsAreDecoded() {
+        assertEquals(7, StatelyState.parseJson("{\"a\\u0067e\":7}").age());
+        assertEquals(Things.SKIN, StatelyState.parseJson("{\"thing\":\"S\\u004bIN\"}").thing());
+        assertEquals(Things.SKIN, StatelyState.parseJson(
+                ByteBuffer.wrap("{\"\\u0074hing\":\"SK\\u0049N\"}".getBytes(UTF_8))).thing());
+        assertEquals(EnumSet.of(Things.SKIN, Things.SHOES), CapabilitiesState.parseJson(
+                "{\"equipped\":[\"S\\u004bIN\", \"SHOES\"]}").equipped());
+        assertEquals(StatelyState.INITIAL, StatelyState.parseJson("{\"a\\\\ge\":7}"));
+    }
+
+    @Test
+    public void testByteBufferPositionAdvances() {
+        ByteBuffer buf = ByteBuffer.wrap("{\"age\":1} {\"age\":2}".getBytes(UTF_8));
+        assertEquals(1, StatelyState.parseJson(buf).age());
+        assertEquals(2, StatelyState.parseJson(buf).age());
+        assertEquals(buf.limit(), buf.position());
+    }
+
+    @Test
+    public void testRegionsOfCharSequences() {
+        String json = "xx{\"age\":3}yy";
+        assertEquals(3, StatelyState.parseJson(json, 2, json.length() - 2).age());
+        assertThrows(IndexOutOfBoundsException.class, () -> StatelyState.parseJson(json, 2, 100));
+    }
+
+    @Test
+    public void testInvalidInputThrows() {
+        assertThrows(IllegalArgumentException.class, () -> StatelyState.parseJson("{\"age\":70000}"));
+        assertThrows(IllegalArgumentException.class, () -> InventoryState.parseJson("{\"skew\":100}"));
+        assertThrows(IllegalArgumentException.class, () -> StatelyState.parseJson("{\"age\":1"));
+        assertThrows(IllegalArgumentException.class, () -> StatelyState.parseJson("{\"age\" 1}"));
+        assertThrows(IllegalArgumentException.class, () -> StatelyState.parseJson("{\"age\":1} x"));
+        assertThrows(IllegalArgumentException.class, () -> StatelyState.parseJson("[]"));
+        assertThrows(IllegalArgumentException.class, () -> StatelyState.parseJson(""));
+    }
+}
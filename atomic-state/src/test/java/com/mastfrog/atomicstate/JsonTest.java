@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.EnumSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import org.junit.jupiter.api.Test;
+
+public class JsonTest {
+
+    @Test
+    public void testNumbersBooleansAndEnums() throws IOException {
+        StatelyState st = StatelyState.INITIAL.withAge((short) -1234).withIsCool(true)
+                .withNumber((byte) -128).withThing(Things.SKIN);
+        assertAllForms("{\"age\":-1234,\"isCool\":true,\"number\":-128,\"thing\":\"SKIN\"}", st);
+        assertAllForms("{\"age\":0,\"isCool\":false,\"number\":0,\"thing\":\"SHOES\"}", StatelyState.INITIAL);
+    }
+
+    @Test
+    public void testExtremeValues() throws IOException {
+        IntParameterOrderState st = IntParameterOrderState.INITIAL.withBbbb(Integer.MIN_VALUE)
+                .withTttt(Byte.MAX_VALUE);
+        String json = st.writeJson(new StringBuilder()).toString();
+        assertEquals(json, utf8(st.writeJson(ByteBuffer.allocate(256))));
+        assertEquals(json, st.writeJson((Appendable) new StringWriter()).toString());
+        assertContains(json, "\"bbbb\":-2147483648,");
+        assertContains(json, "\"tttt\":127}");
+        st = st.withBbbb(Integer.MAX_VALUE);
+        assertContains(utf8(st.writeJson(ByteBuffer.allocate(256))), "\"bbbb\":2147483647,");
+    }
+
+    @Test
+    public void testNestedStatesAreNestedObjects() throws IOException {
+        ExchangeState st = ExchangeState.INITIAL.withRetries(1000)
+                .withConnection(ConnectionPhaseState.INITIAL.withOpen(true).withStreams(15));
+        String expected = "{\"connection\":{\"open\":true,\"streams\":15},"
+                + "\"request\":{\"headersSent\":false,\"stage\":\"SHOES\"},\"retries\":1000}";
+        assertEquals(expected, st.writeJson(new StringBuilder()).toString());
+        assertEquals(expected, st.writeJson((Appendable) new StringWriter()).toString());
+        assertEquals(expected, utf8(st.writeJson(ByteBuffer.allocate(256))));
+    }
+
+    @Test
+    public void testSetsOfConstants() throws IOException {
+        CapabilitiesState st = CapabilitiesState.INITIAL.withActive(true)
+                .withEquipped(EnumSet.of(Things.SHOES, Things.CLOUDS, Things.DARTH_VADER));
+        assertAllForms("{\"active\":true,\"equipped\":[\"SHOES\",\"CLOUDS\",\"DARTH_VADER\"],\"wanted\":[]}", st);
+    }
+
+    @Test
+    public void testFloatingPoint() throws IOException {
+        HealthState st = HealthState.INITIAL.withLoad(1F).withScore(-1).withLatency(2.5F).withUp(true);
+        assertAllForms("{\"latency\":2.5,\"load\":1.0,\"score\":-1.0,\"up\":true}", st);
+        // JSON has no NaN
+        assertAllForms("{\"latency\":null,\"load\":1.0,\"score\":-1.0,\"up\":true}", st.withLatency(Float.NaN));
+    }
+
+    @Test
+    public void testInternedObjectsAreEscapedStrings() throws IOException {
+        RoutingState st = RoutingState.INITIAL.withUpstream("say \"hi\"\n");
+        assertAllForms("{\"handler\":null,\"phase\":\"SHOES\",\"upstream\":\"say \\\"hi\\\"\\u000a\"}", st);
+    }
+
+    @Test
+    public void testAppendableReturnsItsArgument() throws IOException {
+        StringBuilder sb = new StringBuilder("x=");
+        assertSame(sb, StatelyState.INITIAL.writeJson((Appendable) sb));
+        assertEquals("x={\"age\":0,\"isCool\":false,\"number\":0,\"thing\":\"SHOES\"}", sb.toString());
+    }
+
+    private static void assertAllForms(String expected, Object state) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        StringWriter w = new StringWriter();
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        if (state instanceof StatelyState) {
+            ((StatelyState) state).writeJson(sb);
+            ((StatelyState) state).writeJson(w);
+            ((StatelyState) state).writeJson(buf);
+        } else if (state instanceof CapabilitiesState) {
+            ((CapabilitiesState) state).writeJson(sb);
+            ((CapabilitiesState) state).writeJson(w);
+            ((CapabilitiesState) state).writeJson(buf);
+        } else if (state instanceof HealthState) {
+            ((HealthState) state).writeJson(sb);
+            ((HealthState) state).writeJson(w);
+            ((HealthState) state).writeJson(buf);
+        } else {
+            ((RoutingState) state).writeJson(sb);
+            ((RoutingState) state).writeJson(w);
+            ((RoutingState) state).writeJson(buf);
+        }
+        assertEquals(expected, sb.toString());
+        assertEquals(expected, w.toString());
+        assertEquals(expected, utf8(buf));
+    }
+
+    private static void assertContains(String json, String part) {
+        assertEquals(true, json.contains(part), json);
+    }
+
+    private static String utf8(ByteBuffer buf) {
+        buf.flip();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class LayoutTest {
+
+    @Test
+    public void testFieldsArePlacedAsDeclared() {
+        // The hot field is at bit 0, priority is byte-aligned after it, urgent
+        // fills the gap at bit 1, length is pinned at 24 and retries takes the
+        // next free byte - 40 bits in all, so the state is a long
+        assertEquals(1L, PacketState.INITIAL.withReady(true).getAsLong());
+        assertEquals(0xFF00L, PacketState.INITIAL.withPriority(-1).getAsLong());
+        assertEquals(0b10L, PacketState.INITIAL.withUrgent(true).getAsLong());
+        assertEquals(0xFFFFL << 24, PacketState.INITIAL.withLength(-1).getAsLong());
+        assertEquals(7L << 16, PacketState.INITIAL.withRetries(7).getAsLong());
+    }
+
+    @Test
+    public void testRoundTrip() {
+        PacketState st = PacketState.INITIAL.withReady(true).withPriority(-3)
+                .withUrgent(true).withLength(Short.MIN_VALUE).withRetries(5);
+        assertTrue(st.ready());
+        assertEquals(-3, st.priority());
+        assertTrue(st.urgent());
+        assertEquals(Short.MIN_VALUE, st.length());
+        assertEquals(5, st.retries());
+
+        PacketState copy = new PacketState(st.getAsLong());
+        assertEquals(st, copy);
+        PacketState other = copy.withPriority(Byte.MAX_VALUE).withReady(false);
+        assertFalse(other.ready());
+        assertEquals(Byte.MAX_VALUE, other.priority());
+        assertEquals(Short.MIN_VALUE, other.length());
+        assertEquals(5, other.retries());
+    }
+
+    @Test
+    public void testDefaultLayoutIsUnchanged() {
+        // Fields of unannotated interfaces are still packed alphabetically,
+        // not in declaration order
+        assertEquals(1L, TrafficState.INITIAL.withErrors(1).getAsLong());
+        assertEquals(1L << 16, TrafficState.INITIAL.withInFlight(1).getAsLong());
+        assertEquals(1L << 36, TrafficState.INITIAL.withIsShedding(true).getAsLong());
+    }
+}
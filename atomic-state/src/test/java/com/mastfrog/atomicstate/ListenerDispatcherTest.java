@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class ListenerDispatcherTest {
+
+    @Test
+    public void testEventsFromOneHolderStayOrdered() throws Exception {
+        Map<StatelyStateHolder, List<Integer>> ages = new ConcurrentHashMap<>();
+        List<StatelyStateHolder> holders = new ArrayList<>();
+        ListenerDispatcher dispatcher = new ListenerDispatcher(3, 4);
+        for (int i = 0; i < 20; i++) {
+            List<Integer> list = Collections.synchronizedList(new ArrayList<>());
+            StatelyStateHolder holder = new StatelyStateHolder(StatelyStateListener.async(dispatcher,
+                    (old, nue, getter) -> list.add((int) nue.age())));
+            ages.put(holder, list);
+            holders.add(holder);
+        }
+        for (int age = 1; age <= 50; age++) {
+            for (StatelyStateHolder h : holders) {
+                int a = age;
+                h.updateAndGet(old -> old.withAge(a));
+            }
+        }
+        assertTrue(dispatcher.closeAndAwait(10, TimeUnit.SECONDS));
+        assertEquals(20 * 50, dispatcher.completedCount());
+        assertEquals(0, dispatcher.queueDepth());
+        for (Map.Entry<StatelyStateHolder, List<Integer>> e : ages.entrySet()) {
+            List<Integer> got = e.getValue();
+            assertEquals(50, got.size(), got::toString);
+            for (int i = 0; i < got.size(); i++) {
+                assertEquals(i + 1, got.get(i), got::toString);
+            }
+        }
+    }
+
+    @Test
+    public void testDispatchFromWorkerIntoFullShardKeepsOrder() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher(1, 2);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        Object affinity = new Object();
+        dispatcher.dispatch(affinity, () -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException ex) {
+                throw new AssertionError(ex);
+            }
+            order.add("a");
+            // The shard is full; dispatching from its own worker must neither
+            // deadlock nor run these ahead of b and c
+            dispatcher.dispatch(affinity, () -> order.add("d"));
+            dispatcher.dispatch(affinity, () -> order.add("e"));
+            dispatcher.dispatch(affinity, () -> {
+                order.add("f");
+                finished.countDown();
+            });
+        });
+        started.await();
+        dispatcher.dispatch(affinity, () -> order.add("b"));
+        dispatcher.dispatch(affinity, () -> order.add("c"));
+        assertEquals(2, dispatcher.queueDepth(0));
+        assertEquals(2, dispatcher.queueDepth());
+        assertEquals(2, dispatcher.highWaterMark(0));
+        blocker.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue(dispatcher.closeAndAwait(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f"), order);
+        assertEquals(6, dispatcher.completedCount());
+        assertEquals(5, dispatcher.highWaterMark(0));
+    }
+
+    @Test
+    public void testCapacityIsRestoredAfterWorkerBurst() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher(1, 2);
+        Object affinity = new Object();
+        CountDownLatch burstDone = new CountDownLatch(1);
+        dispatcher.dispatch(affinity, () -> {
+            for (int i = 0; i < 5; i++) {
+                dispatcher.dispatch(affinity, () -> {
+                });
+            }
+            dispatcher.dispatch(affinity, burstDone::countDown);
+        });
+        assertTrue(burstDone.await(10, TimeUnit.SECONDS));
+        assertEquals(6, dispatcher.highWaterMark(0));
+
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        dispatcher.dispatch(affinity, () -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException ex) {
+                throw new AssertionError(ex);
+            }
+        });
+        started.await();
+        dispatcher.dispatch(affinity, () -> {
+        });
+        dispatcher.dispatch(affinity, () -> {
+        });
+        // The buffer grew for the burst, but other threads must still block
+        // at the configured capacity
+        Thread third = new Thread(() -> dispatcher.dispatch(affinity, () -> {
+        }));
+        third.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (third.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, third.getState());
+        assertEquals(2, dispatcher.queueDepth(0));
+        blocker.countDown();
+        third.join(10000);
+        assertTrue(dispatcher.closeAndAwait(10, TimeUnit.SECONDS));
+        assertEquals(11, dispatcher.completedCount());
+    }
+}
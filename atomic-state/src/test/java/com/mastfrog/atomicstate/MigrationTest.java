@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.EnumSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class MigrationTest {
+
+    @Test
+    public void testFieldsAreMovedAndRemapped() {
+        InventoryState st = new InventoryState(InventoryState.migrateFromV1(
+                v1(17, 3, true, 9, -5, 0b011, -5)));
+        assertEquals(17, st.count());
+        assertEquals(Things.SKIN, st.kind());
+        assertTrue(st.open());
+        assertEquals((short) -5, st.delta());
+        assertEquals(EnumSet.of(Things.SKIN, Things.SHOES), st.tags());
+        assertEquals(-5, st.skew());
+        // New since version 1, so it has its initial value
+        assertEquals(InventoryState.INITIAL.shelf(), st.shelf());
+    }
+
+    @Test
+    public void testExtremesSurvive() {
+        InventoryState st = new InventoryState(InventoryState.migrateFromV1(
+                v1(31, 0, false, 15, -128, 0, 10)));
+        assertEquals(31, st.count());
+        assertEquals(Things.CLOUDS, st.kind());
+        assertFalse(st.open());
+        assertEquals((short) -128, st.delta());
+        assertTrue(st.tags().isEmpty());
+        assertEquals(10, st.skew());
+        assertEquals((short) 127, new InventoryState(InventoryState.migrateFromV1(
+                v1(0, 1, false, 0, 127, 0, 0))).delta());
+    }
+
+    @Test
+    public void testRemovedFlagsAreDropped() {
+        InventoryState st = new InventoryState(InventoryState.migrateFromV1(
+                v1(0, 1, false, 0, 0, 0b110, 0)));
+        assertEquals(EnumSet.of(Things.SHOES), st.tags());
+    }
+
+    @Test
+    public void testUnrepresentableValuesAreRejected() {
+        // UNICORNS no longer exists
+        assertThrows(IllegalArgumentException.class,
+                () -> InventoryState.migrateFromV1(v1(0, 2, false, 0, 0, 0, 0)));
+        // skew's range has narrowed from -20..20 to -10..10
+        assertThrows(IllegalArgumentException.class,
+                () -> InventoryState.migrateFromV1(v1(0, 0, false, 0, 0, 0, -11)));
+    }
+
+    @Test
+    public void testLayoutDescriptorIsGenerated() throws IOException {
+        try (InputStream in = MigrationTest.class.getResourceAsStream("Inventory.layout")) {
+            assertNotNull(in);
+            String desc = new String(in.readAllBytes(), UTF_8);
+            assertTrue(desc.contains("\ncount 0 10 offset 0 1000\n"), desc);
+            assertTrue(desc.contains("\nkind 10 3 enum SHOES,TOOTHPASTE,FEATHER_BARBULES,SKIN,CLOUDS,DARTH_VADER\n"),
+                    desc);
+            assertTrue(desc.contains("\ndelta 14 16 signed -32768 32767\n"), desc);
+        }
+    }
+
+    /**
+     * Build a raw value in the layout described by Inventory.v1.layout.
+     */
+    private static long v1(int count, int kind, boolean open, int legacy, int delta, int tags, int skew) {
+        return count
+                | kind << 5
+                | (open ? 1 : 0) << 8
+                | legacy << 9
+                | (delta & 0xFF) << 13
+                | tags << 21
+                | (long) (skew + 20) << 24;
+    }
+}
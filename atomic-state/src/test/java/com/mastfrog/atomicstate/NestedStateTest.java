@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class NestedStateTest {
+
+    @Test
+    public void testNestedStatesArePackedInline() {
+        ExchangeState st = ExchangeState.INITIAL
+                .withConnection(ConnectionPhaseState.INITIAL.withOpen(true).withStreams(9))
+                .withRequest(RequestPhaseState.INITIAL.withStage(Things.CLOUDS).withHeadersSent(true))
+                .withRetries(1000);
+        ConnectionPhaseState conn = st.connection();
+        assertTrue(conn.open());
+        assertEquals(9, conn.streams());
+        RequestPhaseState req = st.request();
+        assertEquals(Things.CLOUDS, req.stage());
+        assertTrue(req.headersSent());
+        assertEquals(1000, st.retries());
+
+        ExchangeState changed = st.withRequest(req.withHeadersSent(false));
+        assertFalse(changed.request().headersSent());
+        assertEquals(conn, changed.connection());
+        assertEquals(1000, changed.retries());
+
+        assertEquals(st, new ExchangeState(st.getAsInt()));
+        assertEquals(st, ExchangeState.fromMap(st.toMap()));
+        assertEquals(Boolean.TRUE, ((Map<?, ?>) st.toMap().get("connection")).get("open"));
+    }
+
+    @Test
+    public void testNestedBitsAreValidated() {
+        // All ones is an invalid ordinal for the request's stage
+        assertThrows(IllegalArgumentException.class, () -> new ExchangeState(-1));
+    }
+
+    @Test
+    public void testSubStatesChangeTogether() {
+        L<ExchangeState> l = new L<>();
+        ExchangeStateHolder holder = new ExchangeStateHolder(l::onChange);
+        holder.updateAndGet(old -> old
+                .withConnection(old.connection().withOpen(true))
+                .withRequest(old.request().withStage(Things.SKIN)));
+        l.assertChange((old, nue) -> {
+            assertFalse(old.connection().open());
+            assertTrue(nue.connection().open());
+            assertEquals(Things.SKIN, nue.request().stage());
+        });
+        holder.updateRaw(cursor -> cursor.setConnection(cursor.connection().withStreams(3)));
+        assertEquals(3, holder.state().connection().streams());
+        assertTrue(holder.state().connection().open());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class QuantizedTest {
+
+    private static final double LOAD_STEP = 1D / 1023;
+    private static final double SCORE_STEP = 2D / 4095;
+
+    @Test
+    public void testQuantizedFieldsShareAWord() {
+        // 10 + 12 bits quantized, 32 for the raw float and one boolean
+        HealthState st = HealthState.INITIAL.withLoad(0.75F).withScore(-0.5)
+                .withLatency(12.5F).withUp(true);
+        assertEquals(0.75F, st.load(), LOAD_STEP / 2);
+        assertEquals(-0.5, st.score(), SCORE_STEP / 2);
+        assertEquals(12.5F, st.latency());
+        assertTrue(st.up());
+        assertEquals(st, new HealthState(st.getAsLong()));
+    }
+
+    @Test
+    public void testBoundsAreRepresentable() {
+        HealthState st = HealthState.INITIAL.withLoad(1F).withScore(-1);
+        assertEquals(1F, st.load(), 1E-6);
+        assertEquals(-1D, st.score());
+        assertEquals(1D, st.withScore(1).score(), 1E-12);
+        assertEquals(0F, st.withLoad(0).load());
+    }
+
+    @Test
+    public void testValuesWithinHalfAStepAreTheSame() {
+        HealthState st = HealthState.INITIAL.withLoad(0.5F);
+        assertSame(st, st.withLoad((float) (0.5F + LOAD_STEP / 4)));
+    }
+
+    @Test
+    public void testOutOfRangeValuesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> HealthState.INITIAL.withLoad(1.01F));
+        assertThrows(IllegalArgumentException.class, () -> HealthState.INITIAL.withScore(-2));
+        assertThrows(IllegalArgumentException.class, () -> HealthState.INITIAL.withScore(Double.NaN));
+    }
+
+    @Test
+    public void testRawFloatsKeepTheirBits() {
+        HealthState neg = HealthState.INITIAL.withLatency(-3.25F).withUp(true);
+        assertEquals(-3.25F, neg.latency());
+        assertTrue(neg.up());
+        assertEquals(Float.MAX_VALUE, neg.withLatency(Float.MAX_VALUE).latency());
+        assertTrue(Float.isNaN(neg.withLatency(Float.NaN).latency()));
+        // Negative zero is a different value than zero
+        HealthState negZero = HealthState.INITIAL.withLatency(-0F);
+        assertEquals(Float.floatToRawIntBits(-0F), Float.floatToRawIntBits(negZero.latency()));
+    }
+
+    @Test
+    public void testMapRoundTrip() {
+        HealthState st = HealthState.INITIAL.withLoad(0.25F).withScore(0.125).withLatency(7F);
+        Map<String, Object> map = st.toMap();
+        assertEquals(st, HealthState.fromMap(map));
+    }
+}
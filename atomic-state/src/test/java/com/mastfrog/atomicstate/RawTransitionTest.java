@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class RawTransitionTest {
+
+    @Test
+    public void testCursorUpdatesMatchWithMethods() {
+        L<StatelyState> l = new L<>();
+        StatelyStateHolder holder = new StatelyStateHolder(l::onChange);
+        int raw = holder.updateRaw(cursor -> cursor.setAge(cursor.age() + 23)
+                .setThing(Things.CLOUDS).setIsCool(true));
+        StatelyState expected = StatelyState.INITIAL.withAge(23).withThing(Things.CLOUDS).withIsCool(true);
+        assertEquals(expected.getAsInt(), raw);
+        assertEquals(expected, holder.state());
+        l.assertChange((old, nue) -> {
+            assertEquals(StatelyState.INITIAL, old);
+            assertEquals(expected, nue);
+        });
+
+        holder.updateRaw(cursor -> cursor.setIsCool(false));
+        assertFalse(holder.state().isCool());
+        assertEquals(23, holder.state().age());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> holder.updateRaw(cursor -> cursor.setNumber(1000)));
+        assertEquals(23, holder.state().age());
+    }
+
+    @Test
+    public void testNestedRawTransitionsGetTheirOwnCursor() {
+        StatelyStateHolder outer = new StatelyStateHolder();
+        StatelyStateHolder inner = new StatelyStateHolder();
+        outer.updateRaw(cursor -> {
+            cursor.setNumber(5);
+            inner.updateRaw(innerCursor -> innerCursor.setNumber(7));
+            cursor.setAge(cursor.number() + 1);
+        });
+        assertEquals(5, outer.state().number());
+        assertEquals(6, outer.state().age());
+        assertEquals(7, inner.state().number());
+    }
+
+    @Test
+    public void testRawTransitionsBumpStamp() {
+        VersionedStateHolder holder = new VersionedStateHolder();
+        long stamp = holder.tryOptimisticRead();
+        holder.updateRaw(cursor -> cursor.setIsOpen(false));
+        assertTrue(holder.validate(stamp), "No-op should not bump stamp");
+        holder.updateRaw(cursor -> cursor.setIsOpen(true));
+        assertFalse(holder.validate(stamp));
+        assertEquals(1, holder.state().version());
+    }
+
+    @Test
+    public void testContendedArrayUpdates() throws Exception {
+        UpstreamStateArray arr = new UpstreamStateArray(2);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 25; i++) {
+                    arr.updateRaw(1, cursor -> cursor.setFailures(cursor.failures() + 1));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(100, arr.state(1).failures());
+        assertEquals(0, arr.state(0).failures());
+    }
+}
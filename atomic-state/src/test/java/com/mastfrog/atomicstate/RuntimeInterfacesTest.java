@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class RuntimeInterfacesTest {
+
+    @Test
+    public void testPackedState() {
+        PackedState st = MeterState.INITIAL.withReading((short) -1).withUnit(Things.SKIN);
+        assertEquals(((MeterState) st).getAsInt(), (int) st.packedValue());
+        assertEquals(MeterState.LAYOUT_HASH, st.layoutHash());
+        assertEquals((short) -1, st.toMap().get("reading"));
+        assertTrue(st.writeJson(new StringBuilder()).toString().contains("\"unit\":\"SKIN\""));
+        PackedState ledger = LedgerState.INITIAL.withBalance(1000000).withEntries(-1);
+        assertEquals(((LedgerState) ledger).getAsLong(), ledger.packedValue());
+        assertTrue(ledger.packedBits() > 32 && ledger.packedBits() <= 64, "" + ledger.packedBits());
+    }
+
+    @Test
+    public void testGenericUpdatesThroughPackedValues() {
+        List<MeterState> changes = new ArrayList<>();
+        MeterStateHolder meter = new MeterStateHolder((old, nue, supp) -> changes.add(nue));
+        MeterState expected = MeterState.INITIAL.withReading((short) 5);
+        long bumped = MeterState.Field.READING.set(0, 5);
+        assertEquals(expected, update(meter, raw -> bumped));
+        assertEquals(1, changes.size());
+        assertEquals(expected, changes.get(0));
+        assertFalse(meter.compareAndSetPacked(0, bumped));
+        assertEquals(1, changes.size());
+        assertThrows(IllegalArgumentException.class, () -> meter.compareAndSetPacked(bumped, 1L << 40));
+
+        LedgerStateHolder ledger = new LedgerStateHolder();
+        LedgerState rich = update(ledger, raw -> LedgerState.Field.BALANCE.set(raw, 1000000));
+        assertEquals(1000000, rich.balance());
+        assertEquals(rich, ledger.state());
+        long tooRich = LedgerState.Field.BALANCE.mask();
+        assertThrows(IllegalArgumentException.class, () -> ledger.compareAndSetPacked(rich.getAsLong(), tooRich));
+    }
+
+    @Test
+    public void testSamplerAcceptsHolders() {
+        List<StateSampler.Change<String, MeterState>> seen = new ArrayList<>();
+        MeterStateHolder holder = new MeterStateHolder();
+        try (StateSampler<String, MeterState> sampler = new StateSampler<>(1, TimeUnit.HOURS,
+                raw -> MeterState.newMeterState((int) raw), seen::addAll)) {
+            sampler.register("a", holder);
+            holder.set(MeterState.INITIAL.withReading((short) -7));
+            assertEquals(1, sampler.sampleNow());
+            assertEquals(-7, seen.get(0).current().reading());
+        }
+    }
+
+    private static <S extends PackedState> S update(AtomicStateHolder<S> holder, LongUnaryOperator transition) {
+        long old;
+        do {
+            old = holder.packedValue();
+        } while (!holder.compareAndSetPacked(old, transition.applyAsLong(old)));
+        return holder.state();
+    }
+}
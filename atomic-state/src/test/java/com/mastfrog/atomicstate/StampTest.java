@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class StampTest {
+
+    @Test
+    public void testStampIncrementsOnCommittedChangesOnly() {
+        L<VersionedState> l = new L<>();
+        VersionedStateHolder holder = new VersionedStateHolder(l::onChange);
+        assertEquals(0, holder.state().version());
+
+        long stamp = holder.tryOptimisticRead();
+        assertTrue(holder.validate(stamp));
+
+        holder.updateAndGet(old -> old.withIsOpen(true));
+        assertEquals(1, holder.state().version(), holder::toString);
+        assertFalse(holder.validate(stamp));
+        l.assertChange((old, nue) -> {
+            assertEquals(0, old.version());
+            assertEquals(1, nue.version());
+        });
+
+        stamp = holder.tryOptimisticRead();
+        holder.updateAndGet(old -> old.withIsOpen(true));
+        assertEquals(1, holder.state().version(), "No-op transition should not bump the stamp");
+        assertTrue(holder.validate(stamp));
+
+        VersionedState prev = holder.getAndUpdate(old -> old.withThing(Things.SKIN));
+        assertEquals(1, prev.version());
+        assertEquals(2, holder.state().version());
+        l.assertChange((old, nue) -> {
+            assertEquals(1, old.version());
+            assertEquals(2, nue.version());
+        });
+
+        holder.set(holder.state().withThing(Things.CLOUDS));
+        assertEquals(3, holder.state().version());
+
+        holder.updateAndGet(old -> old.withThing(Things.SHOES));
+        assertEquals(4, holder.state().version());
+        holder.updateAndGet(old -> old.withThing(Things.TOOTHPASTE));
+        assertEquals(0, holder.state().version(), "Stamp should wrap within its range");
+        assertTrue(holder.state().isOpen());
+        assertEquals(Things.TOOTHPASTE, holder.state().thing());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class StateSamplerTest {
+
+    @Test
+    public void testSamplingHoldersAndArrays() throws Exception {
+        List<List<StateSampler.Change<String, UpstreamState>>> batches = new ArrayList<>();
+        UpstreamStateHolder a = new UpstreamStateHolder();
+        UpstreamStateHolder b = new UpstreamStateHolder(UpstreamState.INITIAL.withFailures(3));
+        UpstreamStateArray arr = new UpstreamStateArray(5, UpstreamState.INITIAL.withIsHealthy(true));
+        assertTrue(arr.state(4).isHealthy(), arr::toString);
+
+        try (StateSampler<String, UpstreamState> sampler = new StateSampler<>(1, TimeUnit.HOURS,
+                raw -> UpstreamState.newUpstreamState((int) raw), batches::add)) {
+            sampler.register("a", a::rawValue);
+            sampler.register("b", b::rawValue);
+            StateSampler.Registration reg = sampler.register(arr.length(), ix -> "arr-" + ix, arr::rawValue);
+
+            assertEquals(0, sampler.sampleNow());
+            assertTrue(batches.isEmpty());
+
+            a.updateAndGet(old -> old.withThing(Things.CLOUDS));
+            arr.updateAndGet(2, old -> old.withFailures(7));
+            arr.updateAndGet(3, old -> old.withFailures(1));
+            arr.updateAndGet(3, old -> old.withFailures(0));
+
+            assertEquals(2, sampler.sampleNow());
+            assertEquals(1, batches.size());
+            List<StateSampler.Change<String, UpstreamState>> batch = batches.get(0);
+            assertEquals("a", batch.get(0).key());
+            assertSame(Things.SHOES, batch.get(0).previous().thing());
+            assertSame(Things.CLOUDS, batch.get(0).current().thing());
+            assertEquals("arr-2", batch.get(1).key());
+            assertEquals(0, batch.get(1).previous().failures());
+            assertEquals(7, batch.get(1).current().failures());
+            assertTrue(batch.get(1).current().isHealthy());
+
+            assertEquals(0, sampler.sampleNow());
+            reg.close();
+            arr.updateAndGet(1, old -> old.withFailures(2));
+            b.updateAndGet(old -> old.withFailures(4));
+            assertEquals(1, sampler.sampleNow());
+            assertEquals("b", batches.get(1).get(0).key());
+            assertEquals(4, batches.get(1).get(0).current().failures());
+        }
+    }
+
+    @Test
+    public void testSamplingContinuesAfterConsumerThrows() throws Exception {
+        AtomicReference<Throwable> reported = new AtomicReference<>();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sampler-test");
+            t.setDaemon(true);
+            t.setUncaughtExceptionHandler((th, ex) -> reported.set(ex));
+            return t;
+        });
+        UpstreamStateHolder holder = new UpstreamStateHolder();
+        CountDownLatch failed = new CountDownLatch(1);
+        CountDownLatch delivered = new CountDownLatch(1);
+        List<UpstreamState> received = new ArrayList<>();
+        try (StateSampler<String, UpstreamState> sampler = new StateSampler<>(executor, 1, TimeUnit.MILLISECONDS,
+                raw -> UpstreamState.newUpstreamState((int) raw), batch -> {
+                    UpstreamState curr = batch.get(0).current();
+                    if (curr.failures() == 1) {
+                        failed.countDown();
+                        throw new IllegalStateException("Boom");
+                    }
+                    received.add(curr);
+                    delivered.countDown();
+                })) {
+            sampler.register("a", holder::rawValue);
+            holder.updateAndGet(old -> old.withFailures(1));
+            assertTrue(failed.await(10, TimeUnit.SECONDS), "Consumer not called");
+            holder.updateAndGet(old -> old.withFailures(2));
+            assertTrue(delivered.await(10, TimeUnit.SECONDS), "Sampling stopped after an exception");
+            assertEquals(2, received.get(0).failures());
+            assertNotNull(reported.get(), "Exception not passed to the uncaught exception handler");
+            assertEquals("Boom", reported.get().getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
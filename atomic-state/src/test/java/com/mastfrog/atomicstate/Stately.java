@@ -23,7 +23,8 @@
  */
 package com.mastfrog.atomicstate;
 
-@AtomicState(generateChangeSupport = true)
+@AtomicState(generateChangeSupport = true, generateJson = true, generateFieldEnum = true,
+        generateCodec = true)
 public interface Stately {
 
     public byte number();
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class TimestampTest {
+
+    @Test
+    public void testElapsedTime() throws InterruptedException {
+        PollerState st = PollerState.INITIAL.withIdle(true).withLastPollNow();
+        assertEquals(CoarseClock.currentMillis() & 0xFF, st.lastPoll(), 5);
+        assertTrue(st.idle());
+        Thread.sleep(50);
+        long elapsed = st.elapsedSinceLastPoll();
+        assertTrue(elapsed >= 25 && elapsed < 256, "Elapsed " + elapsed);
+    }
+
+    @Test
+    public void testWraparound() {
+        // Recorded ten milliseconds ago, in a field which holds only eight bits,
+        // so the current time has often wrapped past zero since
+        long tenAgo = (CoarseClock.currentMillis() - 10) & 0xFF;
+        PollerState st = PollerState.INITIAL.withLastPoll((int) tenAgo);
+        long elapsed = st.elapsedSinceLastPoll();
+        assertTrue(elapsed >= 10 && elapsed < 100, "Elapsed " + elapsed);
+
+        PollerState justNow = PollerState.INITIAL.withLastPoll(
+                (int) (CoarseClock.currentMillis() & 0xFF));
+        assertTrue(justNow.elapsedSinceLastPoll() < 100);
+    }
+
+    @Test
+    public void testCoarserResolution() {
+        PollerState st = PollerState.INITIAL.withCreatedNow();
+        assertEquals(CoarseClock.current(SECONDS), st.created(), 1);
+        assertTrue(st.elapsedSinceCreated() <= 1);
+        assertEquals(0, st.lastPoll());
+    }
+
+    @Test
+    public void testHolderAndCursor() {
+        PollerStateHolder holder = new PollerStateHolder();
+        PollerState st = holder.touchLastPoll();
+        assertEquals(st, holder.state());
+        assertTrue(holder.elapsedSinceLastPoll() < 100);
+
+        PollerState.Cursor cur = PollerState.INITIAL.cursor().setCreatedNow().setIdle(true);
+        assertTrue(cur.elapsedSinceCreated() <= 1);
+        assertTrue(cur.toState().idle());
+    }
+
+    @Test
+    public void testJsonHoldsWallClockTime() {
+        long thirtyAgo = (CoarseClock.currentMillis() - 30) & 0xFF;
+        PollerState st = PollerState.INITIAL.withLastPoll((int) thirtyAgo).withCreatedNow();
+        String json = st.writeJson(new StringBuilder()).toString();
+        Matcher m = Pattern.compile("\"lastPoll\":(\\d+)").matcher(json);
+        assertTrue(m.find(), json);
+        assertEquals(System.currentTimeMillis() - 30, Long.parseLong(m.group(1)), 50, json);
+
+        PollerState parsed = PollerState.parseJson(json);
+        assertEquals(st.elapsedSinceLastPoll(), parsed.elapsedSinceLastPoll(), 20);
+        assertTrue(parsed.elapsedSinceCreated() <= 1);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class TransactionTest {
+
+    @Test
+    public void testCommitUpdatesAllHolders() {
+        L<AccountState> l = new L<>();
+        AccountStateHolder account = new AccountStateHolder(AccountState.INITIAL.withBalance(10), l::onChange);
+        VaultStateHolder vault = new VaultStateHolder();
+        assertTrue(Transaction.begin()
+                .update(account, a -> a.withBalance(a.balance() - 4))
+                .update(vault, v -> v.withBalance(v.balance() + 4).withGeneration(v.generation() + 1))
+                .commit());
+        assertEquals(6, account.state().balance());
+        assertEquals(4, vault.state().balance());
+        assertEquals(1, vault.state().generation());
+        l.assertChange((old, nue) -> {
+            assertEquals(10, old.balance());
+            assertEquals(6, nue.balance());
+        });
+
+        assertFalse(Transaction.begin()
+                .update(account, a -> a)
+                .update(vault, v -> v)
+                .commit());
+    }
+
+    @Test
+    public void testThrowingTransitionWritesNothing() {
+        AccountStateHolder account = new AccountStateHolder(AccountState.INITIAL.withBalance(1));
+        VaultStateHolder vault = new VaultStateHolder();
+        assertThrows(IllegalStateException.class, () -> Transaction.begin()
+                .update(vault, v -> v.withBalance(100))
+                .update(account, a -> {
+                    throw new IllegalStateException("Insufficient funds");
+                })
+                .commit());
+        assertEquals(0, vault.state().balance());
+        assertEquals(1, account.state().balance());
+        assertThrows(IllegalArgumentException.class, () -> Transaction.begin()
+                .update(vault, v -> v).update(vault, v -> v));
+    }
+
+    @Test
+    public void testConcurrentTransfersConserveTotal() throws Throwable {
+        int holders = 4;
+        int initial = 10000;
+        List<AccountStateHolder> accounts = new ArrayList<>();
+        for (int i = 0; i < holders; i++) {
+            accounts.add(new AccountStateHolder(AccountState.INITIAL.withBalance(initial)));
+        }
+        VaultStateHolder vault = new VaultStateHolder();
+        int threads = 6;
+        int perThread = 3000;
+        AtomicInteger deposits = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> all = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        AccountStateHolder from = accounts.get((seed + i) % holders);
+                        AccountStateHolder to = accounts.get((seed + i + 1 + (i % (holders - 1))) % holders);
+                        if (seed == 0) {
+                            // Mix plain single-holder updates in with the transactions
+                            from.updateAndGet(a -> a.withBalance(a.balance() + 1));
+                            deposits.incrementAndGet();
+                        } else if (i % 3 == 0) {
+                            Transaction.begin()
+                                    .update(from, a -> a.withBalance(a.balance() - 1))
+                                    .update(vault, v -> v.withBalance(v.balance() + 1)
+                                    .withGeneration(v.generation() + 1))
+                                    .commit();
+                        } else {
+                            Transaction.begin()
+                                    .update(from, a -> a.withBalance(a.balance() - 1))
+                                    .update(to, a -> a.withBalance(a.balance() + 1))
+                                    .commit();
+                        }
+                    }
+                } catch (Throwable ex) {
+                    synchronized (failures) {
+                        failures.add(ex);
+                    }
+                }
+            });
+            thread.start();
+            all.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : all) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+        int total = 0;
+        for (AccountStateHolder a : accounts) {
+            total += a.state().balance();
+        }
+        // Transfers conserve the total; only the single-holder deposits add
+        assertEquals(holders * initial + deposits.get(), total + vault.state().balance());
+        assertEquals((threads - 1) * (perThread / 3), vault.state().generation());
+    }
+}
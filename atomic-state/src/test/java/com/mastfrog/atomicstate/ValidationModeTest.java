@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class ValidationModeTest {
+
+    @Test
+    public void testUncheckedValuesAreMaskedToTheirOwnBits() {
+        UncheckedState st = UncheckedState.INITIAL.withFlag(true).withLevel(7);
+        st = st.withSmall(-1);
+        assertEquals(-1, st.small());
+        assertTrue(st.flag());
+        assertEquals(7, st.level());
+
+        st = st.withSmall(300);
+        assertEquals((byte) 300, st.small(), "Out of range values are truncated");
+        st = st.withLevel(20);
+        assertEquals(10, st.level(), "Out of range values are clamped to the range");
+        assertTrue(st.flag());
+        assertEquals((byte) 300, st.small());
+    }
+
+    @Test
+    public void testUncheckedValuesWhichFitTheBitsStayValid() {
+        // 13 fits in level's four bits, but is outside its 0-10 range
+        UncheckedState st = UncheckedState.INITIAL.withLevel(13);
+        assertEquals(10, st.level());
+        assertEquals(st, UncheckedState.newUncheckedState(st.getAsInt()));
+        assertEquals(0, UncheckedState.INITIAL.withLevel(-3).level());
+        UncheckedState.Cursor cursor = UncheckedState.cursor();
+        try {
+            assertEquals(10, cursor.setLevel(13).level());
+        } finally {
+            UncheckedState.releaseCursor(cursor);
+        }
+    }
+
+    @Test
+    public void testAssertedChecksFollowAssertionStatus() {
+        AssertedState st = AssertedState.INITIAL.withMedium(-300);
+        assertEquals(-300, st.medium());
+        if (AssertedState.class.desiredAssertionStatus()) {
+            assertThrows(AssertionError.class, () -> AssertedState.INITIAL.withLevel(11));
+            assertThrows(AssertionError.class, () -> AssertedState.INITIAL.withMedium(Short.MAX_VALUE + 1));
+        } else {
+            assertEquals(10, AssertedState.INITIAL.withLevel(11).level());
+        }
+    }
+
+    @Test
+    public void testFullValidationAndNegativeValues() {
+        StatelyState st = StatelyState.INITIAL.withIsCool(true).withThing(Things.CLOUDS);
+        st = st.withNumber(-5).withAge(-1000);
+        assertEquals(-5, st.number());
+        assertEquals(-1000, st.age());
+        assertTrue(st.isCool());
+        assertEquals(Things.CLOUDS, st.thing());
+        StatelyState fin = st;
+        assertThrows(IllegalArgumentException.class, () -> fin.withNumber(200));
+    }
+}
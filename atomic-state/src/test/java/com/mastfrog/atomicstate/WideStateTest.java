@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class WideStateTest {
+
+    @Test
+    public void testWideStateRoundTrips() {
+        assertEquals(3, HandshakeState.WORDS);
+        HandshakeState st = HandshakeState.INITIAL
+                .withSequence(Integer.MIN_VALUE)
+                .withAck(-1)
+                .withWindow(Short.MIN_VALUE)
+                .withPhase(Things.DARTH_VADER)
+                .withOpen(true)
+                .withRetries(-5)
+                .withRtt(-1.5F)
+                .withLossRate(0.25)
+                .withRequest(RequestPhaseState.INITIAL.withStage(Things.SKIN));
+        assertEquals(Integer.MIN_VALUE, st.sequence());
+        assertEquals(-1, st.ack());
+        assertEquals(Short.MIN_VALUE, st.window());
+        assertEquals(Things.DARTH_VADER, st.phase());
+        assertTrue(st.open());
+        assertEquals(-5, st.retries());
+        assertEquals(-1.5F, st.rtt());
+        assertEquals(0.25, st.lossRate(), 1D / 510);
+        assertEquals(Things.SKIN, st.request().stage());
+
+        HandshakeState copy = new HandshakeState(st.word(0), st.word(1), st.word(2));
+        assertEquals(st, copy);
+        assertEquals(st.hashCode(), copy.hashCode());
+        assertEquals(st.toString(), copy.toString());
+        assertEquals(st, HandshakeState.from(copy));
+        assertSame(st, st.withAck(-1));
+
+        HandshakeState changed = copy.withAck(3).withRetries(100);
+        assertEquals(3, changed.ack());
+        assertEquals(100, changed.retries());
+        assertEquals(Integer.MIN_VALUE, changed.sequence());
+        assertEquals(Short.MIN_VALUE, changed.window());
+        assertEquals(-1.5F, changed.rtt());
+    }
+
+    @Test
+    public void testWideStateIsValidated() {
+        assertThrows(IllegalArgumentException.class, () -> HandshakeState.INITIAL.withRetries(101));
+        assertThrows(IllegalArgumentException.class, () -> HandshakeState.INITIAL.withLossRate(-0.1));
+        assertThrows(IllegalArgumentException.class, () -> HandshakeState.INITIAL.withWindow(Short.MAX_VALUE + 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> HandshakeState.INITIAL.word(3));
+        // All ones sets unused bits, enum ordinals past the last constant
+        // and retries past its maximum
+        assertThrows(IllegalArgumentException.class, () -> new HandshakeState(-1L, -1L, -1L));
+    }
+
+    @Test
+    public void testHolder() {
+        L<HandshakeState> l = new L<>();
+        HandshakeStateHolder holder = new HandshakeStateHolder(l::onChange);
+        HandshakeState st = holder.updateAndGet(old -> old.withSequence(1).withRtt(2.5F));
+        assertEquals(st, holder.state());
+        l.assertChange((old, nue) -> {
+            assertEquals(HandshakeState.INITIAL, old);
+            assertEquals(1, nue.sequence());
+            assertEquals(2.5F, nue.rtt());
+        });
+        HandshakeState prev = holder.getAndUpdate(old -> old.withOpen(true));
+        assertEquals(st, prev);
+        assertTrue(holder.state().open());
+        assertFalse(holder.set(holder.state()));
+        assertTrue(holder.set(HandshakeState.INITIAL));
+        assertEquals(HandshakeState.INITIAL, holder.state());
+    }
+
+    @Test
+    public void testUpdatesToBothWordsAreAtomic() throws Throwable {
+        // sequence and window live in different words; every update
+        // increments both, so a reader must never see them differ
+        HandshakeStateHolder holder = new HandshakeStateHolder();
+        int threads = 4;
+        int perThread = 5000;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean torn = new AtomicBoolean();
+        List<Thread> all = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int j = 0; j < perThread; j++) {
+                    HandshakeState st = holder.updateAndGet(old -> old.withSequence(old.sequence() + 1)
+                            .withWindow((short) (old.window() + 1)));
+                    if ((short) st.sequence() != st.window()) {
+                        torn.set(true);
+                    }
+                }
+            });
+            t.start();
+            all.add(t);
+        }
+        start.countDown();
+        for (Thread t : all) {
+            t.join();
+        }
+        assertFalse(torn.get());
+        assertEquals(threads * perThread, holder.state().sequence());
+        assertEquals((short) (threads * perThread), holder.state().window());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.atomicstate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class WriteElisionTest {
+
+    @Test
+    public void testNoOpTransitionsAreNotWrittenOrRetried() {
+        AtomicInteger notifications = new AtomicInteger();
+        StatelyStateHolder holder = new StatelyStateHolder((old, nue, getter) -> notifications.incrementAndGet());
+        AtomicInteger calls = new AtomicInteger();
+        StatelyState result = holder.updateAndGet(old -> {
+            if (calls.getAndIncrement() == 0) {
+                // Simulate a concurrent write between the read and the CAS;
+                // since this transition is a no-op, there is no CAS to fail
+                holder.set(old.withAge(12));
+            }
+            return old;
+        });
+        assertEquals(1, calls.get(), "No-op transition should not be retried");
+        assertEquals(1, notifications.get(), "Only the nested set() should notify");
+        assertEquals(0, result.age(), "Result should be the state the no-op was applied to");
+        assertEquals(12, holder.state().age());
+
+        calls.set(0);
+        StatelyState prev = holder.getAndUpdate(old -> {
+            calls.incrementAndGet();
+            return old.withAge(12);
+        });
+        assertEquals(1, calls.get());
+        assertEquals(12, prev.age());
+        assertEquals(1, notifications.get());
+        assertFalse(holder.set(holder.state()));
+        assertEquals(1, notifications.get());
+    }
+
+    @Test
+    public void testChangingTransitionsStillRetry() {
+        StatelyStateHolder holder = new StatelyStateHolder();
+        AtomicInteger calls = new AtomicInteger();
+        StatelyState result = holder.updateAndGet(old -> {
+            if (calls.getAndIncrement() == 0) {
+                holder.set(old.withAge(12));
+            }
+            return old.withIsCool(true);
+        });
+        assertEquals(2, calls.get(), "Lost CAS should be retried");
+        assertEquals(12, result.age());
+        assertTrue(result.isCool());
+    }
+
+    @Test
+    public void testArrayNoOps() {
+        UpstreamStateArray arr = new UpstreamStateArray(3);
+        AtomicInteger calls = new AtomicInteger();
+        arr.updateAndGet(1, old -> {
+            if (calls.getAndIncrement() == 0) {
+                arr.set(1, old.withFailures(3));
+            }
+            return old;
+        });
+        assertEquals(1, calls.get());
+        assertEquals(3, arr.state(1).failures());
+        assertFalse(arr.set(1, arr.state(1)));
+    }
+}